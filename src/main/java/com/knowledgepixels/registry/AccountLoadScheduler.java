@@ -0,0 +1,245 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.knowledgepixels.registry.EntryStatus.toLoad;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getOne;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Sorts.orderBy;
+
+/**
+ * Hands out the accounts to load in one {@code LOAD_FULL} run to up to
+ * {@code REGISTRY_LOAD_ACCOUNT_PARALLELISM} workers (default 4), which load them concurrently.
+ *
+ * <p>Accounts whose load was cut off by the chunk limit of the previous run come first, so that
+ * large accounts keep progressing; then the {@code toLoad} accounts by expected value: highest trust
+ * ratio first, then highest quota. The next accounts are read ahead in batches, so that a worker
+ * that is done with one account starts streaming the next one right away. Each account is loaded
+ * for at most one chunk per run, and no new account is started once the run's deadline has passed.
+ * Accounts are leased to this node before they are loaded (see {@link TaskLease}), so that the
+ * loops of several registry processes do not load the same account.
+ */
+final class AccountLoadScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountLoadScheduler.class);
+
+    static final int PARALLELISM = Math.max(1, Integer.parseInt(Utils.getEnv("REGISTRY_LOAD_ACCOUNT_PARALLELISM", "4")));
+
+    private static final int LOOK_AHEAD = PARALLELISM * 4;
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, PARALLELISM - 1), r -> {
+                Thread t = new Thread(r, "account-load-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Where to continue the load of an account whose previous run reached the chunk limit.
+     */
+    record ResumePoint(String pubkey, int typeIndex, String resumeChecksum, long position) {
+
+        Document toDocument() {
+            return new Document("pubkey", pubkey)
+                    .append("typeIndex", typeIndex)
+                    .append("resumeChecksum", resumeChecksum)
+                    .append("position", position);
+        }
+
+        static ResumePoint fromDocument(Document d) {
+            return new ResumePoint(d.getString("pubkey"), d.getInteger("typeIndex", 0), d.getString("resumeChecksum"), d.get("position", 0L));
+        }
+
+    }
+
+    /**
+     * Loads one chunk of an account.
+     */
+    interface AccountLoader {
+
+        /**
+         * @param s       the session of the calling worker
+         * @param account the account document, in status {@code toLoad}
+         * @param resume  where to continue, or null to start from the beginning
+         * @return where to continue in the next run, or null if the account is done
+         */
+        ResumePoint load(ClientSession s, Document account, ResumePoint resume);
+
+    }
+
+    private record Claim(Document account, ResumePoint resume) {
+    }
+
+    private final Deque<ResumePoint> resumes;
+    private final long deadline;
+    private final Deque<Document> lookAhead = new ArrayDeque<>();
+    private final Set<String> taken = new HashSet<>();
+    private final List<ResumePoint> deferred = Collections.synchronizedList(new ArrayList<>());
+    private boolean exhausted = false;
+    private volatile boolean failed = false;
+    private int started = 0;
+
+    /**
+     * @param resumes  the accounts to continue first
+     * @param deadline the time after which no new account is started
+     */
+    AccountLoadScheduler(List<ResumePoint> resumes, long deadline) {
+        this.resumes = new ArrayDeque<>(resumes);
+        this.deadline = deadline;
+    }
+
+    /**
+     * Loads accounts until none is left or the deadline has passed. The calling thread takes the
+     * first account on the given session; the other workers open sessions of their own.
+     *
+     * @param s      the session of the task
+     * @param loader loads one chunk of an account
+     * @return the points where the accounts cut off by the chunk limit continue
+     */
+    List<ResumePoint> run(ClientSession s, AccountLoader loader) {
+        Claim first = next(s);
+        if (first == null) {
+            return List.of();
+        }
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 1; i < PARALLELISM; i++) {
+            workers.add(getExecutor().submit(() -> {
+                try (ClientSession ws = RegistryDB.getClient().startSession()) {
+                    work(ws, loader, null);
+                }
+            }));
+        }
+        RuntimeException error = null;
+        try {
+            work(s, loader, first);
+        } catch (RuntimeException ex) {
+            error = ex;
+        }
+        for (Future<?> w : workers) {
+            try {
+                w.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed = true;
+                throw new AbortingTaskException("Interrupted while loading accounts; aborting task...");
+            } catch (ExecutionException ex) {
+                if (error == null) {
+                    error = ex.getCause() instanceof RuntimeException rex ? rex : new RuntimeException(ex.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        logger.info("Loaded {} account(s) on {} worker(s); {} to be continued", started, PARALLELISM, deferred.size());
+        return new ArrayList<>(deferred);
+    }
+
+    /**
+     * Returns the number of accounts handed out so far.
+     */
+    synchronized int getStarted() {
+        return started;
+    }
+
+    private void work(ClientSession s, AccountLoader loader, Claim claim) {
+        try {
+            if (claim == null) {
+                claim = next(s);
+            }
+            while (claim != null) {
+                ResumePoint rp = loader.load(s, claim.account(), claim.resume());
+                if (rp != null) {
+                    deferred.add(rp);
+                }
+                claim = next(s);
+            }
+        } catch (RuntimeException ex) {
+            // Let the other workers finish their accounts, but start no new ones
+            failed = true;
+            throw ex;
+        }
+    }
+
+    private synchronized Claim next(ClientSession s) {
+        if (failed || (started > 0 && System.currentTimeMillis() >= deadline)) {
+            return null;
+        }
+        while (!resumes.isEmpty()) {
+            ResumePoint r = resumes.poll();
+            Document a = getOne(s, Collection.ACCOUNTS.toString(), new DbEntryWrapper(toLoad).getDocument().append("pubkey", r.pubkey()));
+            if (a == null) {
+                logger.info("Account {} to resume is no longer in status {}; picking the next one", r.pubkey(), toLoad);
+                continue;
+            }
+            if (taken.add(r.pubkey()) && TaskLease.claimAccount(s, a)) {
+                started++;
+                return new Claim(a, r);
+            }
+        }
+        while (true) {
+            if (lookAhead.isEmpty()) {
+                if (exhausted) {
+                    return null;
+                }
+                // Accounts that could not be claimed count as taken, so each read gets further
+                readAhead(s);
+            }
+            Document a;
+            while ((a = lookAhead.poll()) != null) {
+                if (taken.add(a.getString("pubkey")) && TaskLease.claimAccount(s, a)) {
+                    started++;
+                    return new Claim(a, null);
+                }
+            }
+        }
+    }
+
+    private void readAhead(ClientSession s) {
+        int count = 0;
+        try (MongoCursor<Document> cursor = collection(Collection.ACCOUNTS.toString())
+                .find(s, and(eq("status", toLoad.getValue()), nin("pubkey", taken), TaskLease.claimableAccounts(System.currentTimeMillis())))
+                .sort(orderBy(descending("ratio"), descending("quota"), ascending("pubkey")))
+                .limit(LOOK_AHEAD)
+                .cursor()) {
+            while (cursor.hasNext()) {
+                lookAhead.add(cursor.next());
+                count++;
+            }
+        }
+        if (count < LOOK_AHEAD) {
+            exhausted = true;
+        }
+        logger.debug("Read ahead {} account(s) to load", count);
+    }
+
+}
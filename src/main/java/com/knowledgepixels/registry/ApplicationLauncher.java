@@ -15,6 +15,10 @@ public class ApplicationLauncher extends Launcher {
 
     public static void main(String[] args) {
         logger.info("Starting application with args={}", Arrays.toString(args));
+        if (args.length > 0 && BulkImport.COMMAND.equals(args[0])) {
+            // Offline tool; runs without Vert.x and exits when done
+            System.exit(BulkImport.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         new ApplicationLauncher().dispatch(args);
     }
 
@@ -0,0 +1,369 @@
+package com.knowledgepixels.registry;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.knowledgepixels.registry.RegistryDB.WriteProfile;
+import com.knowledgepixels.registry.db.IndexInitializer;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.InsertManyOptions;
+import net.trustyuri.TrustyUriUtils;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubUtils;
+import org.nanopub.jelly.JellyUtils;
+import org.nanopub.jelly.MaybeNanopub;
+import org.nanopub.jelly.NanopubStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.has;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+/**
+ * Offline seeding of an empty registry from a delimited Jelly dump, as served by
+ * {@code /nanopubs.jelly}. Run through the launcher as {@code import --file dump.jelly}.
+ *
+ * <p>The dump is read through memory-mapped I/O, and signatures are verified in parallel, batch
+ * by batch. Each batch is then written with a few large unordered inserts. List positions and
+ * checksums are computed in memory, in dump order, instead of claiming them one by one in the
+ * database as {@link RegistryDB#loadNanopub} does. Secondary indexes are dropped for the import and
+ * rebuilt at the end, together with the nanopub counter.
+ *
+ * <p>The imported nanopubs are placed on their pubkeys' lists like nanopubs of pubkeys that are
+ * not loaded yet: intro and {@code $} lists are marked {@code encountered}, so the regular tasks
+ * complete them from peers, skipping the imported part via the list checksums. As the imported
+ * nanopubs are not recorded as trust changes one by one, the next trust state update is a full
+ * rebuild.
+ */
+public class BulkImport {
+
+    static final String COMMAND = "import";
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkImport.class);
+
+    @Parameter(names = "--file", required = true, description = "Delimited Jelly dump file, as served by /nanopubs.jelly")
+    String file;
+
+    @Parameter(names = "--parallelism", description = "Number of threads verifying signatures")
+    int parallelism = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "--batch-size", description = "Number of nanopubs verified and written per batch")
+    int batchSize = 1000;
+
+    @Parameter(names = {"--help", "-h"}, help = true, description = "Show this help")
+    boolean help;
+
+    /**
+     * Parses the command line and runs the import.
+     *
+     * @param args the arguments following the {@code import} command
+     * @return the exit code: 0 on success, 1 if the import failed, 2 for invalid arguments
+     */
+    public static int run(String[] args) {
+        BulkImport bulkImport = new BulkImport();
+        JCommander jc = JCommander.newBuilder().addObject(bulkImport).programName(COMMAND).build();
+        try {
+            jc.parse(args);
+        } catch (ParameterException ex) {
+            logger.error("Invalid arguments: {}", ex.getMessage());
+            jc.usage();
+            return 2;
+        }
+        if (bulkImport.help) {
+            jc.usage();
+            return 0;
+        }
+        try {
+            bulkImport.importFile(Path.of(bulkImport.file));
+            return 0;
+        } catch (Exception ex) {
+            logger.error("Import of {} failed: {}", bulkImport.file, ex.getMessage(), ex);
+            return 1;
+        }
+    }
+
+    /**
+     * A nanopub that passed verification, with everything the writer needs precomputed.
+     */
+    private record Verified(Nanopub nanopub, String ac, String pubkey, String pubkeyHash, String content, byte[] jelly,
+                            List<String> typeUris, Set<String> invalidatedAcs) {
+    }
+
+    /**
+     * The in-memory tail of a list built during the import.
+     */
+    private static class ListTail {
+        long maxPosition = -1;
+        String checksum = NanopubUtils.INIT_CHECKSUM;
+    }
+
+    private final Map<String, ListTail> lists = new LinkedHashMap<>();
+    private final Map<String, String> hashes = new HashMap<>();
+    private final Set<String> batchAcs = new HashSet<>();
+    private long counter = 0;
+    private long imported = 0;
+    private long rejected = 0;
+    private long duplicates = 0;
+
+    void importFile(Path dumpFile) throws IOException, InterruptedException {
+        CoverageFilter.init();
+        RegistryDB.init();
+        NanopubExistenceFilter.clear();
+        long startTime = System.currentTimeMillis();
+        try (ClientSession s = RegistryDB.getClient().startSession()) {
+            if (has(s, Collection.NANOPUBS.toString(), new Document())) {
+                throw new IllegalStateException("Bulk import requires an empty registry, but the nanopubs collection is not empty");
+            }
+            // Rebuilt at the end; uniqueness is ensured by the import itself in the meantime
+            List<String> existing = RegistryDB.getDB().listCollectionNames(s).into(new ArrayList<>());
+            for (String name : List.of(Collection.NANOPUBS.toString(), "listEntries", "invalidations")) {
+                if (existing.contains(name)) {
+                    collection(name).dropIndexes();
+                }
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try (MappedFileInputStream in = new MappedFileInputStream(dumpFile);
+                 Stream<MaybeNanopub> stream = NanopubStream.fromByteStream(in).getAsNanopubs()) {
+                logger.info("Importing {} ({} bytes) with {} verification threads", dumpFile, in.getSize(), parallelism);
+                Iterator<MaybeNanopub> it = stream.iterator();
+                List<Nanopub> batch = new ArrayList<>(batchSize);
+                while (it.hasNext()) {
+                    MaybeNanopub m = it.next();
+                    if (!m.isSuccess()) {
+                        logger.warn("Skipping an undecodable frame at byte {}", in.getPosition());
+                        rejected++;
+                        continue;
+                    }
+                    batch.add(m.getNanopub());
+                    if (batch.size() >= batchSize) {
+                        writeBatch(s, verify(executor, batch));
+                        batch.clear();
+                        logger.info("Imported {} nanopubs ({}% of file)", imported, in.getSize() == 0 ? 100 : in.getPosition() * 100 / in.getSize());
+                    }
+                }
+                writeBatch(s, verify(executor, batch));
+            } finally {
+                executor.shutdownNow();
+            }
+
+            writeLists(s);
+            writeHashes();
+            markInvalidatedEntries(s);
+            // The imported intros, endorsements and invalidations bypass TrustChanges.record
+            TrustChanges.requestFullRebuild(s);
+            RegistryDB.awaitDurability();
+
+            logger.info("Rebuilding counters and indexes");
+            RegistryDB.initCounter(s);
+            IndexInitializer.initCollections(s);
+        }
+        logger.info("Import finished in {}s: {} nanopubs imported, {} lists, {} rejected, {} duplicates",
+                (System.currentTimeMillis() - startTime) / 1000, imported, lists.size(), rejected, duplicates);
+    }
+
+    private List<Verified> verify(ExecutorService executor, List<Nanopub> batch) throws InterruptedException {
+        List<Callable<Verified>> tasks = new ArrayList<>(batch.size());
+        for (Nanopub np : batch) {
+            tasks.add(() -> verify(np));
+        }
+        List<Verified> result = new ArrayList<>(batch.size());
+        for (Future<Verified> f : executor.invokeAll(tasks)) {
+            try {
+                result.add(f.get());
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Verification failed", ex.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs the checks of {@link RegistryDB#loadNanopub} and serializes the nanopub; returns null if
+     * it has to be rejected. Runs on the verification threads.
+     */
+    private static Verified verify(Nanopub np) throws IOException {
+        if (!CoverageFilter.isCovered(np)) {
+            return null;
+        }
+        String ac = TrustyUriUtils.getArtifactCode(np.getUri().stringValue());
+        if (ac == null || !RegistryDB.isAcceptable(np)) {
+            return null;
+        }
+        String pubkey = RegistryDB.getPubkey(np);
+        if (pubkey == null) {
+            logger.warn("Rejecting nanopub {}: no valid signature found", np.getUri());
+            return null;
+        }
+        List<String> typeUris = new ArrayList<>();
+        for (IRI type : NanopubUtils.getTypes(np)) {
+            typeUris.add(type.stringValue());
+        }
+        Set<String> invalidatedAcs = new LinkedHashSet<>();
+        for (IRI invalidatedId : Utils.getInvalidatedNanopubIds(np)) {
+            String invalidatedAc = TrustyUriUtils.getArtifactCode(invalidatedId.stringValue());
+            if (invalidatedAc != null) {
+                invalidatedAcs.add(invalidatedAc);
+            }
+        }
+        return new Verified(np, ac, pubkey, Utils.getHash(pubkey), NanopubUtils.writeToString(np, RDFFormat.TRIG),
+                JellyUtils.writeNanopubForDB(np), typeUris, invalidatedAcs);
+    }
+
+    private void writeBatch(ClientSession s, List<Verified> batch) {
+        List<Document> nanopubDocs = new ArrayList<>();
+        List<Document> listEntryDocs = new ArrayList<>();
+        List<Document> invalidationDocs = new ArrayList<>();
+        batchAcs.clear();
+        for (Verified v : batch) {
+            if (v == null) {
+                rejected++;
+                continue;
+            }
+            if (batchAcs.contains(v.ac()) || (NanopubExistenceFilter.mightContain(v.ac()) && has(s, Collection.NANOPUBS.toString(), v.ac()))) {
+                duplicates++;
+                continue;
+            }
+            batchAcs.add(v.ac());
+            hashes.putIfAbsent(v.pubkey(), v.pubkeyHash());
+            nanopubDocs.add(new Document("_id", v.ac()).append("fullId", v.nanopub().getUri().stringValue()).append("counter", ++counter)
+                    .append("pubkey", v.pubkeyHash()).append("content", v.content()).append("jelly", new Binary(v.jelly())));
+
+            List<String> typeHashes = new ArrayList<>();
+            List<String> listTypes = new ArrayList<>();
+            listTypes.add("$");
+            for (String typeUri : v.typeUris()) {
+                String typeHash = Utils.getHash(typeUri);
+                hashes.putIfAbsent(typeUri, typeHash);
+                typeHashes.add(typeHash);
+                if (CoverageFilter.isCoveredType(typeHash)) {
+                    listTypes.add(typeHash);
+                }
+            }
+            for (String typeHash : listTypes) {
+                ListTail tail = lists.computeIfAbsent(v.pubkeyHash() + " " + typeHash, k -> new ListTail());
+                tail.maxPosition++;
+                tail.checksum = NanopubUtils.updateXorChecksum(v.nanopub().getUri(), tail.checksum);
+                listEntryDocs.add(new Document("pubkey", v.pubkeyHash()).append("type", typeHash).append("position", tail.maxPosition)
+                        .append("np", v.ac()).append("checksum", tail.checksum).append("invalidated", false));
+            }
+            // Make sure every pubkey gets an intro list, so RUN_OPTIONAL_LOAD picks it up
+            lists.computeIfAbsent(v.pubkeyHash() + " " + NanopubLoader.INTRO_TYPE_HASH, k -> new ListTail());
+            for (String invalidatedAc : v.invalidatedAcs()) {
+                invalidationDocs.add(new Document("invalidatingNp", v.ac()).append("invalidatingPubkey", v.pubkeyHash())
+                        .append("invalidatedNp", invalidatedAc).append("invalidatingTypes", typeHashes));
+            }
+        }
+        InsertManyOptions unordered = new InsertManyOptions().ordered(false);
+        if (!nanopubDocs.isEmpty()) {
+            collection(Collection.NANOPUBS.toString(), WriteProfile.BULK).insertMany(nanopubDocs, unordered);
+            for (Document d : nanopubDocs) {
+                NanopubExistenceFilter.add(d.getString("_id"));
+            }
+        }
+        if (!listEntryDocs.isEmpty()) {
+            collection("listEntries", WriteProfile.BULK).insertMany(listEntryDocs, unordered);
+        }
+        if (!invalidationDocs.isEmpty()) {
+            collection("invalidations", WriteProfile.BULK).insertMany(invalidationDocs, unordered);
+        }
+        imported += nanopubDocs.size();
+    }
+
+    private void writeLists(ClientSession s) {
+        List<Document> listDocs = new ArrayList<>();
+        for (Map.Entry<String, ListTail> e : lists.entrySet()) {
+            String[] key = e.getKey().split(" ");
+            Document d = new Document("pubkey", key[0]).append("type", key[1]).append("maxPosition", e.getValue().maxPosition);
+            if (key[1].equals("$") || key[1].equals(NanopubLoader.INTRO_TYPE_HASH)) {
+                d.append("status", EntryStatus.encountered.getValue());
+            }
+            listDocs.add(d);
+            if (listDocs.size() >= batchSize) {
+                collection("lists", WriteProfile.BULK).insertMany(s, listDocs, new InsertManyOptions().ordered(false));
+                listDocs.clear();
+            }
+        }
+        if (!listDocs.isEmpty()) {
+            collection("lists", WriteProfile.BULK).insertMany(s, listDocs, new InsertManyOptions().ordered(false));
+        }
+    }
+
+    private void writeHashes() {
+        List<Document> hashDocs = new ArrayList<>();
+        for (Map.Entry<String, String> e : hashes.entrySet()) {
+            hashDocs.add(new Document("value", e.getKey()).append("hash", e.getValue()));
+        }
+        if (hashDocs.isEmpty()) {
+            return;
+        }
+        try {
+            collection("hashes", WriteProfile.BULK).insertMany(hashDocs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            // Hashes recorded before the import (e.g. of the setting) are duplicates -- ignore them
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flags the list entries of invalidated nanopubs, now that all of them are written, with one
+     * update per invalidating pubkey and chunk of invalidated nanopubs.
+     */
+    private void markInvalidatedEntries(ClientSession s) {
+        Map<String, List<String>> invalidatedByPubkey = new HashMap<>();
+        try (MongoCursor<Document> c = collection("invalidations").find(s).cursor()) {
+            while (c.hasNext()) {
+                Document d = c.next();
+                List<String> acs = invalidatedByPubkey.computeIfAbsent(d.getString("invalidatingPubkey"), k -> new ArrayList<>());
+                acs.add(d.getString("invalidatedNp"));
+                if (acs.size() >= batchSize) {
+                    markInvalidated(s, d.getString("invalidatingPubkey"), acs);
+                    acs.clear();
+                }
+            }
+        }
+        invalidatedByPubkey.forEach((pubkeyHash, acs) -> markInvalidated(s, pubkeyHash, acs));
+    }
+
+    private static void markInvalidated(ClientSession s, String pubkeyHash, List<String> invalidatedAcs) {
+        if (invalidatedAcs.isEmpty()) {
+            return;
+        }
+        collection("listEntries", WriteProfile.BULK).updateMany(s, and(eq("pubkey", pubkeyHash), in("np", invalidatedAcs)),
+                new Document("$set", new Document("invalidated", true)));
+    }
+
+}
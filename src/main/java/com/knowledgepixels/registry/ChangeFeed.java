@@ -0,0 +1,463 @@
+package com.knowledgepixels.registry;
+
+import com.google.gson.Gson;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import io.vertx.core.Context;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.eclipse.rdf4j.model.IRI;
+import org.nanopub.NanopubUtils;
+import org.nanopub.jelly.JellyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Pushes the nanopubs this registry stores and the trust states it publishes to subscribers, as
+ * Server-Sent Events on {@code /changes}, so that peers and other consumers do not have to poll
+ * for them.
+ *
+ * <p>A background thread follows the {@code nanopubs} collection by counter and the trust state
+ * in the server info, and keeps the most recent {@code REGISTRY_CHANGE_FEED_BUFFER} events
+ * (default 10000) in memory. It is woken up whenever a nanopub is inserted, and looks on its own
+ * once a second for anything stored by a transaction that was still open at that moment. Only
+ * committed data is therefore ever announced. There are three kinds of events:
+ * <ul>
+ *   <li>{@code nanopub}, with the counter as event ID and the counter, artifact code, pubkey hash
+ *   and type hashes as JSON data</li>
+ *   <li>{@code trust-state}, with the trust state counter and hash as JSON data</li>
+ *   <li>{@code resync}, when the feed moves on past counters that did not show up in time, with
+ *   the last counter before them and the next announced counter as JSON data. The nanopubs of
+ *   these counters may still be committed later, so a subscriber that needs all of them has to
+ *   fetch them with {@code /nanopubs.jelly?afterCounter=N} from the last counter before the gap.</li>
+ * </ul>
+ *
+ * <p>A subscriber can resume with {@code ?afterCounter=N} or the {@code Last-Event-ID} header.
+ * If the events after that counter are no longer in the buffer, it gets a single
+ * {@code catch-up} event and the stream ends; it then has to fetch the missing nanopubs with
+ * {@code /nanopubs.jelly?afterCounter=N} and subscribe again. Each subscriber is served from its
+ * own position in the buffer and only as fast as its connection takes the events; one that falls
+ * behind by more than the buffer also gets a {@code catch-up} event.
+ */
+public final class ChangeFeed {
+
+    private ChangeFeed() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * The path of the feed, relative to the registry URL, as advertised in the
+     * {@code Nanopub-Registry-Change-Feed} header.
+     */
+    public static final String PATH = "changes";
+
+    static final int BUFFER_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_CHANGE_FEED_BUFFER", "10000"));
+
+    private static final int MAX_SUBSCRIBERS = Integer.parseInt(Utils.getEnv("REGISTRY_CHANGE_FEED_MAX_SUBSCRIBERS", "100"));
+
+    private static final int QUERY_BATCH_SIZE = 1000;
+
+    private static final long POLL_INTERVAL = 1000;
+
+    private static final long HEARTBEAT_INTERVAL = 15 * 1000;
+
+    /**
+     * How long a missing counter is waited for before the feed moves on with a {@code resync}
+     * event. Counters are claimed before the nanopub is inserted, so a counter can be missing
+     * because its transaction is slow to commit, or for good because the insert failed.
+     */
+    static final long GAP_TIMEOUT = 5000;
+
+    /**
+     * One event of the feed. The change it announces, including the type hashes of a nanopub, is
+     * worked out once when the event is buffered, and the JSON data is written from it right away.
+     *
+     * @param seq     the position in the feed
+     * @param name    the event name
+     * @param counter the nanopub counter, used as event ID, or null for trust state events
+     * @param data    the JSON data
+     * @param change  the announced change, as {@link NanopubChange} or {@link TrustStateChange}
+     */
+    record Event(long seq, String name, Long counter, String data, Record change) {
+
+        String toSse() {
+            return (counter != null ? "id: " + counter + "\n" : "") + "event: " + name + "\ndata: " + data + "\n\n";
+        }
+
+    }
+
+    record NanopubChange(long counter, String artifactCode, String pubkeyHash, List<String> typeHashes) {
+    }
+
+    record TrustStateChange(long trustStateCounter, String trustStateHash) {
+    }
+
+    /**
+     * The feed moved on past counters that did not show up in time.
+     *
+     * @param afterCounter the last counter announced before the gap
+     * @param nextCounter  the first counter announced after the gap
+     */
+    record Resync(long afterCounter, long nextCounter) {
+    }
+
+    private static final ConcurrentSkipListMap<Long, Event> buffer = new ConcurrentSkipListMap<>();
+    private static final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private static final Object signal = new Object();
+
+    private static volatile long nextSeq = 1;
+    // The feed covers the counters after this one; -1 until the feed is initialized
+    private static volatile long bufferStartCounter = -1;
+    private static volatile long lastCounter = -1;
+    private static Long gapCounter;
+    private static long gapSince;
+    private static volatile Event trustStateEvent;
+    private static boolean signalled;
+
+    public static boolean isEnabled() {
+        return !"false".equals(Utils.getEnv("REGISTRY_ENABLE_CHANGE_FEED", null));
+    }
+
+    /**
+     * Background loop that feeds new changes to the subscribers. Meant to run on its own thread next
+     * to {@link Task#runTasks()}.
+     */
+    static void runPeriodically() {
+        if (!isEnabled()) {
+            logger.info("REGISTRY_ENABLE_CHANGE_FEED=false; not serving a change feed");
+            return;
+        }
+        long lastHeartbeat = System.currentTimeMillis();
+        while (true) {
+            int count = 0;
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                count = update(s, System.currentTimeMillis());
+            } catch (Exception ex) {
+                logger.warn("Failed to update change feed: {}", ex.getMessage(), ex);
+            }
+            if (System.currentTimeMillis() - lastHeartbeat > HEARTBEAT_INTERVAL) {
+                subscribers.forEach(Subscriber::heartbeat);
+                lastHeartbeat = System.currentTimeMillis();
+            }
+            if (count >= QUERY_BATCH_SIZE) {
+                continue;
+            }
+            try {
+                synchronized (signal) {
+                    if (!signalled) {
+                        signal.wait(POLL_INTERVAL);
+                    }
+                    signalled = false;
+                }
+            } catch (InterruptedException ex) {
+                logger.debug("Change feed interrupted");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wakes up the feed, so that a nanopub that was just stored is announced right away.
+     */
+    public static void notifyChanged() {
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Adds the nanopubs stored since the last update, and the trust state if it changed, to the
+     * feed and hands them on to the subscribers. Nanopubs are added in counter order; a missing
+     * counter holds up the later ones for at most {@link #GAP_TIMEOUT} ms, after which a
+     * {@code resync} event announces the gap.
+     *
+     * @param s   the MongoDB client session
+     * @param now the current time
+     * @return the number of events added
+     */
+    static synchronized int update(ClientSession s, long now) {
+        if (lastCounter < 0) {
+            Object maxCounter = RegistryDB.getMaxValue(s, Collection.NANOPUBS.toString(), "counter");
+            lastCounter = maxCounter instanceof Long l ? l : 0;
+            bufferStartCounter = lastCounter;
+            logger.info("Change feed starts after counter {}", lastCounter);
+        }
+        List<Event> events = new ArrayList<>();
+        try (MongoCursor<Document> cursor = RegistryDB.collection(Collection.NANOPUBS.toString()).find(s, gt("counter", lastCounter))
+                .sort(ascending("counter"))
+                .projection(include("counter", "pubkey", "jelly"))
+                .limit(QUERY_BATCH_SIZE)
+                .cursor()) {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                long counter = d.getLong("counter");
+                if (counter != lastCounter + 1) {
+                    if (gapCounter == null || gapCounter != lastCounter + 1) {
+                        gapCounter = lastCounter + 1;
+                        gapSince = now;
+                    }
+                    if (now - gapSince < GAP_TIMEOUT) {
+                        break;
+                    }
+                    logger.info("Change feed moves on past counters {}-{} that did not show up; announcing a resync", lastCounter + 1, counter - 1);
+                    events.add(newEvent("resync", null, new Resync(lastCounter, counter)));
+                }
+                gapCounter = null;
+                events.add(newEvent("nanopub", counter, new NanopubChange(counter, d.getString("_id"), d.getString("pubkey"), getTypeHashes(d))));
+                lastCounter = counter;
+            }
+        }
+
+        Object trustStateCounter = RegistryDB.getValue(s, Collection.SERVER_INFO.toString(), "trustStateCounter");
+        Object trustStateHash = RegistryDB.getValue(s, Collection.SERVER_INFO.toString(), "trustStateHash");
+        if (trustStateCounter instanceof Long c && trustStateHash != null) {
+            TrustStateChange change = new TrustStateChange(c, trustStateHash.toString());
+            if (trustStateEvent == null || !trustStateEvent.change().equals(change)) {
+                trustStateEvent = newEvent("trust-state", null, change);
+                events.add(trustStateEvent);
+            }
+        }
+
+        for (Event e : events) {
+            buffer.put(e.seq(), e);
+        }
+        while (buffer.size() > BUFFER_SIZE) {
+            Event evicted = buffer.pollFirstEntry().getValue();
+            if (evicted.counter() != null) {
+                bufferStartCounter = evicted.counter();
+            }
+        }
+        if (!events.isEmpty()) {
+            logger.debug("Change feed: {} new event(s) for {} subscriber(s)", events.size(), subscribers.size());
+            subscribers.forEach(Subscriber::wake);
+        }
+        return events.size();
+    }
+
+    private static Event newEvent(String name, Long counter, Record change) {
+        return new Event(nextSeq++, name, counter, gson.toJson(change), change);
+    }
+
+    /**
+     * Reads the type hashes of a stored nanopub. Only called once per nanopub, when its event is
+     * added to the buffer.
+     */
+    private static List<String> getTypeHashes(Document d) {
+        List<String> typeHashes = new ArrayList<>();
+        Binary jelly = d.get("jelly", Binary.class);
+        if (jelly == null) {
+            return typeHashes;
+        }
+        try {
+            for (IRI type : NanopubUtils.getTypes(JellyUtils.readFromDB(jelly.getData()))) {
+                typeHashes.add(Utils.getHash(type.stringValue()));
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to read the types of nanopub {} for the change feed: {}", d.getString("_id"), ex.getMessage());
+        }
+        return typeHashes;
+    }
+
+    /**
+     * Returns the feed position after which the events for a subscriber resuming after the given
+     * counter start.
+     *
+     * @param afterCounter the last counter the subscriber has seen, or null to start with new events
+     * @return the feed position, or null if the events after that counter are no longer buffered
+     */
+    static Long getResumePosition(Long afterCounter) {
+        Map.Entry<Long, Event> last = buffer.lastEntry();
+        long head = last == null ? nextSeq - 1 : last.getKey();
+        if (afterCounter == null || afterCounter >= lastCounter) {
+            return head;
+        }
+        if (afterCounter < bufferStartCounter) {
+            return null;
+        }
+        for (Event e : buffer.values()) {
+            if (e.counter() != null && e.counter() > afterCounter) {
+                return e.seq() - 1;
+            }
+            if (e.change() instanceof Resync r && r.afterCounter() >= afterCounter) {
+                // The subscriber needs to know about the gap ahead
+                return e.seq() - 1;
+            }
+        }
+        return head;
+    }
+
+    /**
+     * Returns the buffered events after the given feed position.
+     *
+     * @return the events, or null if events right after that position are no longer buffered
+     */
+    static List<Event> getEventsAfter(long seq, int max) {
+        Map.Entry<Long, Event> first = buffer.firstEntry();
+        if (first != null && first.getKey() > seq + 1) {
+            return null;
+        }
+        List<Event> events = new ArrayList<>();
+        for (Event e : buffer.tailMap(seq, false).values()) {
+            if (events.size() >= max) {
+                break;
+            }
+            events.add(e);
+        }
+        return events;
+    }
+
+    /**
+     * Handles a {@code GET /changes} request by opening an event stream.
+     *
+     * @param c the routing context
+     */
+    public static void subscribe(RoutingContext c) {
+        HttpServerResponse response = c.response();
+        if (!isEnabled() || lastCounter < 0) {
+            response.setStatusCode(isEnabled() ? 503 : 404).end();
+            return;
+        }
+        if (subscribers.size() >= MAX_SUBSCRIBERS) {
+            logger.info("Rejecting change feed subscriber {}: {} subscribers already", c.request().remoteAddress(), subscribers.size());
+            response.setStatusCode(503).setStatusMessage("Too many change feed subscribers").end();
+            return;
+        }
+        String afterCounterParam = c.request().getParam("afterCounter");
+        if (afterCounterParam == null) {
+            afterCounterParam = c.request().getHeader("Last-Event-ID");
+        }
+        Long afterCounter = null;
+        if (afterCounterParam != null) {
+            if (!afterCounterParam.matches("[0-9]+")) {
+                response.setStatusCode(400).setStatusMessage("Invalid afterCounter").end();
+                return;
+            }
+            afterCounter = Long.parseLong(afterCounterParam);
+        }
+        response.setChunked(true);
+        response.putHeader("Content-Type", "text/event-stream");
+        response.putHeader("Cache-Control", "no-cache");
+        Long position = getResumePosition(afterCounter);
+        if (position == null) {
+            logger.debug("Change feed subscriber {} is too far behind (afterCounter={})", c.request().remoteAddress(), afterCounter);
+            response.end(catchUpEvent(afterCounter));
+            return;
+        }
+        response.write("retry: 5000\n\n");
+        Event trustState = trustStateEvent;
+        if (trustState != null && trustState.seq() <= position) {
+            response.write(trustState.toSse());
+        }
+        Subscriber subscriber = new Subscriber(response, c.vertx().getOrCreateContext(), position, afterCounter != null ? afterCounter : lastCounter);
+        subscribers.add(subscriber);
+        response.closeHandler(v -> subscriber.close());
+        response.exceptionHandler(ex -> subscriber.close());
+        response.drainHandler(v -> subscriber.pump());
+        logger.info("Change feed subscriber {} connected (afterCounter={}); {} subscriber(s)", c.request().remoteAddress(), afterCounter, subscribers.size());
+        subscriber.pump();
+    }
+
+    private static String catchUpEvent(long afterCounter) {
+        return "event: catch-up\ndata: {\"afterCounter\":" + afterCounter + "}\n\n";
+    }
+
+    /**
+     * A subscriber with its own position in the feed. Only accessed on the Vert.x context of its
+     * connection.
+     */
+    private static final class Subscriber {
+
+        private final HttpServerResponse response;
+        private final Context context;
+        private long position;
+        // The last nanopub counter the subscriber has seen
+        private long counter;
+        private boolean closed = false;
+
+        Subscriber(HttpServerResponse response, Context context, long position, long counter) {
+            this.response = response;
+            this.context = context;
+            this.position = position;
+            this.counter = counter;
+        }
+
+        void wake() {
+            context.runOnContext(v -> pump());
+        }
+
+        void heartbeat() {
+            context.runOnContext(v -> {
+                if (!closed && !response.writeQueueFull()) {
+                    response.write(": keep-alive\n\n");
+                }
+            });
+        }
+
+        /**
+         * Writes the pending events until the connection's write queue is full; the drain handler
+         * calls this again once it has room.
+         */
+        void pump() {
+            while (!closed && !response.writeQueueFull()) {
+                List<Event> events = getEventsAfter(position, 100);
+                if (events == null) {
+                    logger.info("Change feed subscriber fell behind after counter {}; asking it to catch up", counter);
+                    response.end(catchUpEvent(counter));
+                    close();
+                    return;
+                }
+                if (events.isEmpty()) {
+                    return;
+                }
+                for (Event e : events) {
+                    response.write(e.toSse());
+                    position = e.seq();
+                    if (e.counter() != null) {
+                        counter = e.counter();
+                    }
+                }
+            }
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                subscribers.remove(this);
+                logger.debug("Change feed subscriber disconnected; {} subscriber(s)", subscribers.size());
+            }
+        }
+
+    }
+
+    static int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    static synchronized void clear() {
+        buffer.clear();
+        subscribers.clear();
+        nextSeq = 1;
+        bufferStartCounter = -1;
+        lastCounter = -1;
+        gapCounter = null;
+        trustStateEvent = null;
+    }
+
+}
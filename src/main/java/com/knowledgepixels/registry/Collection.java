@@ -10,7 +10,8 @@ public enum Collection {
     TRUST_STATE_SNAPSHOTS("trustStateSnapshots"),
 
     TASKS("tasks"),
-    PEER_STATE("peerState");
+    PEER_STATE("peerState"),
+    NODES("nodes");
 
     private final String value;
 
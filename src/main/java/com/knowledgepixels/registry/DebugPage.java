@@ -77,10 +77,14 @@ public class DebugPage extends Page {
         } else if (getRequestString().matches("/debug/tasks")) {
             setRespContentType("text/plain");
             try {
-                String currentTask = Task.getCurrentTaskName();
-                if (currentTask != null) {
-                    long elapsed = System.currentTimeMillis() - Task.getCurrentTaskStartTime();
-                    println("Currently running: " + currentTask + " (for " + elapsed + "ms)");
+                if (Task.getCurrentTaskName() != null) {
+                    for (TaskLane lane : TaskLane.values()) {
+                        Task.RunningTask running = Task.getRunningTask(lane);
+                        if (running != null) {
+                            long elapsed = System.currentTimeMillis() - running.startTime();
+                            println("Currently running in lane " + lane.getName() + ": " + running.name() + " (for " + elapsed + "ms)");
+                        }
+                    }
                 } else {
                     println("Currently running: (none)");
                 }
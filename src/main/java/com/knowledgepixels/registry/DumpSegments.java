@@ -0,0 +1,298 @@
+package com.knowledgepixels.registry;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.nanopub.jelly.NanopubStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Writes the history of the {@code nanopubs} collection to immutable segment files, so that peers
+ * bootstrapping from this registry can download it as static files instead of having every
+ * request walk the collection with a cursor and re-encode it.
+ *
+ * <p>Each segment covers a fixed counter range ({@code REGISTRY_SEGMENT_SIZE} counters, 100k by
+ * default) and holds the nanopubs of that range as delimited Jelly frames with counters, exactly as
+ * {@code /nanopubs.jelly} would serve them. A segment is only written once the counter has moved
+ * well past its end, so no nanopub can still be added to it. The segments of the current setup
+ * are listed with their counter ranges, sizes and SHA-256 digests in {@code manifest.json}.
+ */
+public final class DumpSegments {
+
+    private DumpSegments() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DumpSegments.class);
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public static final String MANIFEST_FILE = "manifest.json";
+
+    static final long SEGMENT_SIZE = Long.parseLong(Utils.getEnv("REGISTRY_SEGMENT_SIZE", "100000"));
+
+    /**
+     * How far the counter has to be past the end of a range before its segment is written. Counters
+     * are claimed before the nanopub is inserted, so the last few counters of a range may still be
+     * in flight while the counter itself has already moved on.
+     */
+    static final long SEALING_MARGIN = 1000;
+
+    private static final long UPDATE_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Describes one segment file.
+     *
+     * @param fromCounter the first counter covered (inclusive)
+     * @param toCounter   the last counter covered (inclusive)
+     * @param count       the number of nanopubs in the segment
+     * @param size        the file size in bytes
+     * @param sha256      the hex-encoded SHA-256 digest of the file
+     * @param file        the file name, relative to the manifest
+     */
+    public record Segment(long fromCounter, long toCounter, long count, long size, String sha256, String file) {
+    }
+
+    /**
+     * The list of segments of one setup, as served in {@code manifest.json}.
+     *
+     * @param setupId     the setup ID of the registry the counters refer to
+     * @param segmentSize the number of counters per segment
+     * @param segments    the segments in counter order
+     */
+    public record Manifest(long setupId, long segmentSize, List<Segment> segments) {
+    }
+
+    private static volatile Manifest manifest;
+
+    public static boolean isEnabled() {
+        return !"false".equals(Utils.getEnv("REGISTRY_ENABLE_SEGMENTS", null));
+    }
+
+    static Path getBaseDir() {
+        return Path.of(Utils.getEnv("REGISTRY_SEGMENT_DIR", "/data/segments"));
+    }
+
+    /**
+     * Background loop that keeps the segments up to date. Meant to run on its own thread next to
+     * {@link Task#runTasks()}.
+     */
+    static void runPeriodically() {
+        if (!isEnabled()) {
+            logger.info("REGISTRY_ENABLE_SEGMENTS=false; not writing dump segments");
+            return;
+        }
+        while (true) {
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                update(s);
+            } catch (Exception ex) {
+                logger.warn("Failed to update dump segments: {}", ex.getMessage(), ex);
+            }
+            try {
+                Thread.sleep(UPDATE_INTERVAL);
+            } catch (InterruptedException ex) {
+                logger.debug("Dump segment writer interrupted");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes all segments that are sealed but not written yet, and updates the manifest.
+     *
+     * @param s the MongoDB client session
+     * @return the number of segments written
+     * @throws IOException if a segment or the manifest cannot be written
+     */
+    public static int update(ClientSession s) throws IOException {
+        Object setupIdValue = RegistryDB.getValue(s, Collection.SERVER_INFO.toString(), "setupId");
+        if (!(setupIdValue instanceof Long setupId)) {
+            logger.debug("No setup ID yet; not writing dump segments");
+            return 0;
+        }
+        Path dir = getBaseDir().resolve(String.valueOf(setupId));
+        Files.createDirectories(dir);
+        removeOtherSetups(setupId);
+
+        Manifest current = getManifest(setupId);
+        List<Segment> segments = new ArrayList<>(current.segments());
+        long nextFrom = segments.isEmpty() ? 1 : segments.getLast().toCounter() + 1;
+
+        Object counterValue = RegistryDB.getValue(s, "counters", "nanopubs");
+        long counter = counterValue instanceof Long l ? l : 0;
+        int written = 0;
+        while (nextFrom + SEGMENT_SIZE - 1 + SEALING_MARGIN <= counter) {
+            long toCounter = nextFrom + SEGMENT_SIZE - 1;
+            segments.add(writeSegment(s, dir, nextFrom, toCounter));
+            nextFrom = toCounter + 1;
+            written++;
+            writeManifest(dir, new Manifest(setupId, SEGMENT_SIZE, List.copyOf(segments)));
+        }
+        if (written > 0) {
+            logger.info("Wrote {} dump segment(s); {} segments now cover counters up to {}", written, segments.size(), nextFrom - 1);
+        }
+        return written;
+    }
+
+    private static Segment writeSegment(ClientSession s, Path dir, long fromCounter, long toCounter) throws IOException {
+        long startTime = System.currentTimeMillis();
+        String fileName = "nanopubs-" + fromCounter + "-" + toCounter + ".jelly";
+        Path tmpFile = dir.resolve(fileName + ".tmp");
+        MessageDigest digest = newDigest();
+        long count = RegistryDB.collection(Collection.NANOPUBS.toString())
+                .countDocuments(s, and(gte("counter", fromCounter), lte("counter", toCounter)));
+        try (MongoCursor<Document> cursor = RegistryDB.collection(Collection.NANOPUBS.toString()).find(s)
+                .filter(and(gte("counter", fromCounter), lte("counter", toCounter)))
+                .sort(ascending("counter"))
+                .projection(include("jelly", "counter"))
+                .cursor();
+             OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)), digest)) {
+            NanopubStream.fromMongoCursorWithCounter(cursor).writeToByteStream(out);
+        }
+        Path file = dir.resolve(fileName);
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Segment segment = new Segment(fromCounter, toCounter, count, Files.size(file), HexFormat.of().formatHex(digest.digest()), fileName);
+        logger.info("Wrote dump segment {} ({} nanopubs, {} bytes) in {} ms", fileName, count, segment.size(), System.currentTimeMillis() - startTime);
+        return segment;
+    }
+
+    private static void writeManifest(Path dir, Manifest newManifest) throws IOException {
+        Path tmpFile = dir.resolve(MANIFEST_FILE + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            gson.toJson(newManifest, w);
+        }
+        Files.move(tmpFile, dir.resolve(MANIFEST_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        manifest = newManifest;
+    }
+
+    /**
+     * Returns the manifest of the given setup, reading it from disk if it is not loaded yet.
+     * Segments whose file has gone missing are dropped together with all later ones, so that the
+     * manifest always covers a contiguous counter range starting at 1.
+     */
+    static Manifest getManifest(long setupId) {
+        Manifest m = manifest;
+        if (m != null && m.setupId() == setupId) {
+            return m;
+        }
+        Path dir = getBaseDir().resolve(String.valueOf(setupId));
+        List<Segment> segments = new ArrayList<>();
+        Path manifestFile = dir.resolve(MANIFEST_FILE);
+        if (Files.exists(manifestFile)) {
+            try (Reader r = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+                Manifest stored = gson.fromJson(r, Manifest.class);
+                if (stored != null && stored.setupId() == setupId && stored.segmentSize() == SEGMENT_SIZE && stored.segments() != null) {
+                    for (Segment segment : stored.segments()) {
+                        if (!Files.exists(dir.resolve(segment.file()))) {
+                            logger.warn("Dump segment {} is missing; rewriting it and all later segments", segment.file());
+                            break;
+                        }
+                        segments.add(segment);
+                    }
+                }
+            } catch (Exception ex) {
+                logger.warn("Failed to read dump segment manifest {}: {}; rewriting all segments", manifestFile, ex.getMessage());
+            }
+        }
+        m = new Manifest(setupId, SEGMENT_SIZE, List.copyOf(segments));
+        manifest = m;
+        return m;
+    }
+
+    /**
+     * Returns the currently loaded manifest, or null if no segments have been looked at yet.
+     *
+     * @return the manifest
+     */
+    public static Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Resolves a file name requested under {@code /segments/} to a file of the current manifest.
+     *
+     * @param name the requested file name
+     * @return the path of the file, or null if it is not part of the current manifest
+     */
+    public static Path resolve(String name) {
+        Manifest m = manifest;
+        if (m == null) {
+            return null;
+        }
+        Path dir = getBaseDir().resolve(String.valueOf(m.setupId()));
+        if (MANIFEST_FILE.equals(name)) {
+            return Files.exists(dir.resolve(MANIFEST_FILE)) ? dir.resolve(MANIFEST_FILE) : null;
+        }
+        for (Segment segment : m.segments()) {
+            if (segment.file().equals(name)) {
+                return dir.resolve(segment.file());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a manifest as served by a peer.
+     *
+     * @param json the manifest JSON
+     * @return the manifest
+     */
+    static Manifest parseManifest(String json) {
+        return gson.fromJson(json, Manifest.class);
+    }
+
+    private static void removeOtherSetups(long setupId) throws IOException {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(getBaseDir(), Files::isDirectory)) {
+            for (Path d : dirs) {
+                if (!d.getFileName().toString().equals(String.valueOf(setupId))) {
+                    logger.info("Removing dump segments of previous setup {}", d.getFileName());
+                    try (Stream<Path> files = Files.list(d)) {
+                        for (Path f : files.toList()) {
+                            Files.deleteIfExists(f);
+                        }
+                    }
+                    Files.deleteIfExists(d);
+                }
+            }
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    static void clear() {
+        manifest = null;
+    }
+
+}
@@ -2,22 +2,40 @@ package com.knowledgepixels.registry;
 
 import com.google.common.base.Charsets;
 import com.mongodb.client.ClientSession;
+import net.trustyuri.TrustyUriUtils;
+import net.trustyuri.rdf.RdfModule;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.util.EntityUtils;
-import org.nanopub.NanopubUtils;
+import org.nanopub.Nanopub;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // This class is used to connect to the 1st-generation publishing services in the form of nanopub-server.
 // This code can be removed once the transition to Nanopub Registry is completed.
+//
+// The listed nanopubs are handled in chunks: one query per chunk finds those already stored, the
+// missing ones are fetched from the peers on a bounded pool (REGISTRY_LEGACY_FETCH_PARALLELISM,
+// default 8), and they are loaded in listing order as they arrive.
 public class LegacyConnector {
 
     private LegacyConnector() {
@@ -27,8 +45,32 @@ public class LegacyConnector {
 
     private static final Logger logger = LoggerFactory.getLogger(LegacyConnector.class);
 
-    // Just to make sure we don't need 1000+ DB requests each time we check for updates:
-    private static Map<String, Boolean> loadedCache = new HashMap<>();
+    static final int CHUNK_SIZE = 500;
+
+    static final int FETCH_PARALLELISM = Integer.parseInt(Utils.getEnv("REGISTRY_LEGACY_FETCH_PARALLELISM", "8"));
+
+    static final int CACHE_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_LEGACY_CACHE_SIZE", "100000"));
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private static final ExecutorService fetchExecutor = Executors.newFixedThreadPool(Math.max(1, FETCH_PARALLELISM), r -> {
+        Thread t = new Thread(r, "legacy-fetch-" + threadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Just to make sure we don't need 1000+ DB requests each time we check for updates;
+    // bounded, so the least recently seen URIs are dropped first:
+    private static Map<String, Boolean> loadedCache = newLoadedCache();
+
+    static Map<String, Boolean> newLoadedCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+    }
 
     public static void checkForNewNanopubs(ClientSession mongoSession) {
         String baseUrl = serverUrls[Utils.getRandom().nextInt(serverUrls.length)];
@@ -42,29 +84,106 @@ public class LegacyConnector {
         logger.info("Checking legacy URL for new nanopubs: {}", url);
         HttpGet get = new HttpGet(url);
         get.setHeader("Accept", "text/plain");
+        HttpClient client = PeerHttpClient.get();
         HttpResponse resp = null;
         String prev = null;
         try {
-            resp = NanopubUtils.getHttpClient().execute(get);
+            resp = client.execute(get);
+            int httpStatus = resp.getStatusLine().getStatusCode();
+            if (httpStatus < 200 || httpStatus >= 300) {
+                logger.info("Request to {} was not successful: HTTP {}", url, httpStatus);
+                return null;
+            }
             for (Header h : resp.getHeaders("Link")) {
                 if (h.getValue().endsWith("; rel=\"prev\"")) {
                     prev = h.getValue().replaceFirst("^.*<(.+)>.*$", "$1");
                 }
             }
             try (BufferedReader i = new BufferedReader(new InputStreamReader(resp.getEntity().getContent(), Charsets.UTF_8))) {
-                String npUri;
-                while ((npUri = i.readLine()) != null) {
-                    if (loadedCache.containsKey(npUri)) continue;
-                    // TODO: Here we need to make sure to append to existing lists:
-                    NanopubLoader.simpleLoad(mongoSession, npUri, false);
-                    loadedCache.put(npUri, true);
-                }
+                loadListed(mongoSession, i, client);
             }
         } catch (IOException ex) {
-            if (resp != null) EntityUtils.consumeQuietly(resp.getEntity());
             logger.info("Request to {} was not successful: ", url, ex);
+        } finally {
+            // Returns the connection to the pool on every path, including failed loads
+            if (resp != null) EntityUtils.consumeQuietly(resp.getEntity());
         }
         return prev;
     }
 
+    private record Fetch(String npUri, Future<Nanopub> nanopub) {
+    }
+
+    private static void loadListed(ClientSession mongoSession, BufferedReader reader, HttpClient client) throws IOException {
+        Deque<Fetch> pending = new ArrayDeque<>();
+        List<String> chunk = new ArrayList<>();
+        try {
+            String npUri;
+            while ((npUri = reader.readLine()) != null) {
+                if (npUri.isBlank() || loadedCache.containsKey(npUri)) continue;
+                chunk.add(npUri);
+                if (chunk.size() == CHUNK_SIZE) {
+                    fetchMissing(mongoSession, chunk, client, pending);
+                    chunk.clear();
+                    // Keep at most one chunk in flight while reading the next one:
+                    while (pending.size() > CHUNK_SIZE) {
+                        loadNext(mongoSession, pending);
+                    }
+                }
+            }
+            fetchMissing(mongoSession, chunk, client, pending);
+            while (!pending.isEmpty()) {
+                loadNext(mongoSession, pending);
+            }
+        } finally {
+            for (Fetch f : pending) {
+                f.nanopub().cancel(true);
+            }
+        }
+    }
+
+    private static void fetchMissing(ClientSession mongoSession, List<String> npUris, HttpClient client, Deque<Fetch> pending) {
+        if (npUris.isEmpty()) return;
+        Map<String, String> artifactCodes = new LinkedHashMap<>();
+        for (String npUri : npUris) {
+            String ac = TrustyUriUtils.getArtifactCode(npUri);
+            if (ac == null || !ac.startsWith(RdfModule.MODULE_ID)) {
+                logger.debug("Skipping {}: not a trusty URI of type RA", npUri);
+                continue;
+            }
+            artifactCodes.put(npUri, ac);
+        }
+        Set<String> stored = RegistryDB.getStoredArtifactCodes(mongoSession, new ArrayList<>(artifactCodes.values()));
+        for (Map.Entry<String, String> e : artifactCodes.entrySet()) {
+            String ac = e.getValue();
+            if (stored.contains(ac)) {
+                loadedCache.put(e.getKey(), true);
+            } else {
+                // TODO: Here we need to make sure to append to existing lists:
+                pending.add(new Fetch(e.getKey(), fetchExecutor.submit(() -> NanopubFetcher.fetch(ac, client))));
+            }
+        }
+        logger.debug("{} of {} listed nanopubs already stored; fetching the others", stored.size(), artifactCodes.size());
+    }
+
+    private static void loadNext(ClientSession mongoSession, Deque<Fetch> pending) {
+        Fetch f = pending.removeFirst();
+        Nanopub np;
+        try {
+            np = f.nanopub().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AbortingTaskException("Interrupted while loading legacy nanopubs; aborting task...");
+        } catch (ExecutionException ex) {
+            logger.warn("Failed to fetch nanopub {}: {}", f.npUri(), ex.getCause().getMessage());
+            return;
+        }
+        if (np == null) {
+            logger.warn("Could not retrieve nanopub {} from any peer; skipping load", f.npUri());
+            return;
+        }
+        NanopubLoader.simpleLoad(mongoSession, np);
+        loadedCache.put(f.npUri(), true);
+    }
+
 }
@@ -0,0 +1,324 @@
+package com.knowledgepixels.registry;
+
+import com.google.gson.Gson;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getMaxValueDocument;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Keeps a registry-wide digest of all lists, so that a peer can find out with a single request
+ * which lists changed, instead of opening a list stream per pubkey and type.
+ *
+ * <p>Each {@code lists} document carries the position and checksum of its last entry
+ * ({@code tailPosition}, {@code tailChecksum}) and a {@code digestCounter}. The registry-wide
+ * counter behind it only moves when a digest is served, and a list that gets a new entry is stamped
+ * with one more than its current value, so adding entries does not write to a shared document.
+ * {@code /lists/digest?since=N} serves the lists changed after counter N, in counter order, from an
+ * index on that counter; its {@code Nanopub-Registry-Digest-Counter} header gives the marker for
+ * the next call.
+ *
+ * <p>On the other side, the digest of each peer is mirrored into {@code peerListDigests} after it
+ * was synced, with a delta request from the second time on. A list fetch then leaves out the
+ * peers whose copy of the list has the same tail checksum as the local one, since the checksum
+ * covers the whole set of entries.
+ */
+public final class ListDigest {
+
+    private ListDigest() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ListDigest.class);
+
+    private static final Gson gson = new Gson();
+
+    public static final String DIGEST_COUNTER_HEADER = "Nanopub-Registry-Digest-Counter";
+
+    static final String PEER_DIGESTS = "peerListDigests";
+
+    private static final int WRITE_BATCH_SIZE = 1000;
+
+    /**
+     * How far back a delta request reaches before the marker of the last one, to catch lists whose
+     * digest counter was claimed before but written after it.
+     */
+    private static final long DELTA_OVERLAP = 1000;
+
+    /**
+     * How long a node stamps lists with the counter it last read, before reading it again. Markers
+     * served by other nodes in the meantime are covered by {@link #DELTA_OVERLAP}.
+     */
+    private static final long COUNTER_REFRESH_MILLIS = 1000;
+
+    private static volatile long cachedCounter = -1;
+    private static volatile long cachedCounterTime = 0;
+
+    /**
+     * One line of the digest.
+     */
+    record Entry(String pubkeyHash, String typeHash, long maxPosition, String tailChecksum, long counter) {
+    }
+
+    // Peers whose digest has been mirrored completely for their current setup
+    private static final Set<String> peersWithDigest = ConcurrentHashMap.newKeySet();
+
+    public static boolean isEnabled() {
+        return !"false".equals(Utils.getEnv("REGISTRY_ENABLE_LIST_DIGEST", null));
+    }
+
+    /**
+     * Returns the counter to stamp a changed list with: one more than the last marker this node
+     * has seen, so that the change is after it.
+     */
+    private static long nextDigestCounter(ClientSession s) {
+        long now = System.currentTimeMillis();
+        if (cachedCounter < 0 || now - cachedCounterTime > COUNTER_REFRESH_MILLIS) {
+            cachedCounter = getDigestCounter(s);
+            cachedCounterTime = now;
+        }
+        return cachedCounter + 1;
+    }
+
+    /**
+     * Returns the current digest counter.
+     */
+    static long getDigestCounter(ClientSession s) {
+        Object value = RegistryDB.getValue(s, "counters", "listDigest");
+        return value instanceof Long l ? l : 0;
+    }
+
+    /**
+     * Moves the digest counter on and returns it as the marker for the next delta. Lists changed
+     * from now on are stamped with a higher counter.
+     */
+    static long nextMarker(ClientSession s) {
+        Document result = collection("counters").findOneAndUpdate(s, new Document("_id", "listDigest"),
+                new Document("$inc", new Document("value", 1L)), new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        long marker = result.getLong("value");
+        cachedCounter = marker;
+        cachedCounterTime = System.currentTimeMillis();
+        return marker;
+    }
+
+    /**
+     * Records a new last entry of a list. Entries can be added concurrently, so the tail only
+     * moves forward.
+     */
+    static void recordTail(ClientSession s, String pubkeyHash, String typeHash, long position, String checksum) {
+        long counter = nextDigestCounter(s);
+        collection("lists").updateOne(s,
+                and(eq("pubkey", pubkeyHash), eq("type", typeHash), or(lt("tailPosition", position), exists("tailPosition", false))),
+                new Document("$set", new Document("tailPosition", position).append("tailChecksum", checksum).append("digestCounter", counter)));
+    }
+
+    /**
+     * Creates the index of the digest and fills in the tails of lists that were written before
+     * it existed (or by a bulk import). Only looks at lists without a digest counter, so it is
+     * cheap after the first run.
+     *
+     * @param s the MongoDB client session
+     * @return the number of lists filled in
+     */
+    static int backfill(ClientSession s) {
+        collection("lists").createIndex(s, ascending("digestCounter"));
+        collection(PEER_DIGESTS).createIndex(s, ascending("peer", "pubkey", "type"), new IndexOptions().unique(true));
+        int count = 0;
+        try (MongoCursor<Document> cursor = collection("lists").find(s, exists("digestCounter", false)).projection(include("pubkey", "type")).cursor()) {
+            while (cursor.hasNext()) {
+                Document list = cursor.next();
+                String pubkeyHash = list.getString("pubkey");
+                String typeHash = list.getString("type");
+                Document maxEntry = getMaxValueDocument(s, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash), "position");
+                if (maxEntry == null) {
+                    continue;
+                }
+                recordTail(s, pubkeyHash, typeHash, maxEntry.getLong("position"), maxEntry.getString("checksum"));
+                count++;
+            }
+        }
+        if (count > 0) {
+            logger.info("Filled in the list digest for {} lists", count);
+        }
+        return count;
+    }
+
+    /**
+     * Runs {@link #backfill(ClientSession)} once, in its own session.
+     */
+    static void runBackfill() {
+        try (ClientSession s = RegistryDB.getClient().startSession()) {
+            backfill(s);
+        } catch (Exception ex) {
+            logger.error("Failed to fill in the list digest", ex);
+        }
+    }
+
+    /**
+     * Writes the lists changed after the given counter, one JSON object per line.
+     *
+     * @param page  the page to write to
+     * @param since the counter after which to start, or 0 for all lists
+     */
+    static void write(Page page, ClientSession s, long since) {
+        page.getContext().response().putHeader(DIGEST_COUNTER_HEADER, String.valueOf(nextMarker(s)));
+        int count = 0;
+        try (MongoCursor<Document> cursor = collection("lists").find(s, new Document("digestCounter", new Document("$gt", since)))
+                .sort(ascending("digestCounter"))
+                .projection(include("pubkey", "type", "tailPosition", "tailChecksum", "digestCounter"))
+                .cursor()) {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                page.println(gson.toJson(new Entry(d.getString("pubkey"), d.getString("type"), d.getLong("tailPosition"), d.getString("tailChecksum"), d.getLong("digestCounter"))));
+                count++;
+            }
+        }
+        logger.info("Served list digest with {} lists changed after counter {}", count, since);
+    }
+
+    /**
+     * Mirrors the list digest of a peer, asking only for what changed since the last time.
+     *
+     * @param client  the HTTP client to use
+     * @param s       the MongoDB client session
+     * @param peerUrl the peer URL
+     * @param setupId the current setup ID of the peer
+     */
+    static void refreshPeer(HttpClient client, ClientSession s, String peerUrl, long setupId) {
+        if (!isEnabled()) {
+            return;
+        }
+        Document peerState = RegistryPeerConnector.getPeerState(s, peerUrl);
+        Long since = null;
+        if (peerState != null && Long.valueOf(setupId).equals(peerState.getLong("digestSetupId"))) {
+            if (Boolean.FALSE.equals(peerState.getBoolean("digestSupported"))) {
+                return;
+            }
+            since = peerState.getLong("digestCounter");
+        } else {
+            collection(PEER_DIGESTS).deleteMany(s, eq("peer", peerUrl));
+            peersWithDigest.remove(peerUrl);
+        }
+        String requestUrl = peerUrl + "lists/digest" + (since != null ? "?since=" + Math.max(0, since - DELTA_OVERLAP) : "");
+        logger.debug("Fetching list digest from peer: {}", requestUrl);
+        try {
+            long startTime = System.currentTimeMillis();
+            HttpResponse resp = client.execute(RegistryPeerConnector.withTimeouts(new HttpGet(requestUrl)));
+            int httpStatus = resp.getStatusLine().getStatusCode();
+            if (httpStatus == 404) {
+                EntityUtils.consumeQuietly(resp.getEntity());
+                logger.info("Peer {} offers no list digest", peerUrl);
+                updateDigestState(s, peerUrl, new Document("digestSetupId", setupId).append("digestSupported", false));
+                return;
+            }
+            Long counter = RegistryPeerConnector.getHeaderLong(resp, DIGEST_COUNTER_HEADER);
+            if (httpStatus < 200 || httpStatus >= 300 || counter == null) {
+                EntityUtils.consumeQuietly(resp.getEntity());
+                PeerDirectory.recordFailure(peerUrl);
+                logger.warn("Fetching list digest from {} failed: HTTP {}", requestUrl, httpStatus);
+                return;
+            }
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+            int received = 0;
+            List<WriteModel<Document>> writes = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(PeerDirectory.meter(peerUrl, resp.getEntity().getContent()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    Entry entry = gson.fromJson(line, Entry.class);
+                    Document filter = new Document("peer", peerUrl).append("pubkey", entry.pubkeyHash()).append("type", entry.typeHash());
+                    writes.add(new ReplaceOneModel<>(filter, new Document(filter).append("maxPosition", entry.maxPosition()).append("tailChecksum", entry.tailChecksum()),
+                            new ReplaceOptions().upsert(true)));
+                    received++;
+                    if (writes.size() >= WRITE_BATCH_SIZE) {
+                        collection(PEER_DIGESTS).bulkWrite(s, writes, new BulkWriteOptions().ordered(false));
+                        writes.clear();
+                    }
+                }
+            }
+            if (!writes.isEmpty()) {
+                collection(PEER_DIGESTS).bulkWrite(s, writes, new BulkWriteOptions().ordered(false));
+            }
+            updateDigestState(s, peerUrl, new Document("digestSetupId", setupId).append("digestCounter", counter).append("digestSupported", true));
+            peersWithDigest.add(peerUrl);
+            logger.info("Mirrored list digest of peer {}: {} changed lists (counter {})", peerUrl, received, counter);
+        } catch (Exception ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
+            logger.warn("Failed to fetch list digest from {}: {} ({})", peerUrl, ex.getMessage(), ex.getClass().getSimpleName());
+        }
+    }
+
+    private static void updateDigestState(ClientSession s, String peerUrl, Document fields) {
+        collection(Collection.PEER_STATE.toString()).updateOne(s, new Document("_id", peerUrl), new Document("$set", fields), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Returns the peers among the given ones whose digest says that they have the same list as
+     * this registry, or don't have it at all. Peers whose digest is not known are never included.
+     *
+     * @param peerUrls     the peers to check
+     * @param pubkeyHash   the pubkey hash of the list
+     * @param typeHash     the type hash of the list
+     * @param tailChecksum the checksum of the local list
+     * @return the peers there is nothing to fetch from
+     */
+    static Set<String> getPeersInSync(List<String> peerUrls, String pubkeyHash, String typeHash, String tailChecksum) {
+        List<String> known = peerUrls.stream().filter(peersWithDigest::contains).toList();
+        Set<String> inSync = new HashSet<>();
+        if (known.isEmpty() || tailChecksum == null) {
+            return inSync;
+        }
+        inSync.addAll(known);
+        try (ClientSession s = RegistryDB.getClient().startSession();
+             MongoCursor<Document> cursor = collection(PEER_DIGESTS).find(s, and(in("peer", known), eq("pubkey", pubkeyHash), eq("type", typeHash)))
+                     .projection(include("peer", "tailChecksum")).cursor()) {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                if (!tailChecksum.equals(d.getString("tailChecksum"))) {
+                    inSync.remove(d.getString("peer"));
+                }
+            }
+        }
+        return inSync;
+    }
+
+    static void clear() {
+        peersWithDigest.clear();
+        cachedCounter = -1;
+    }
+
+}
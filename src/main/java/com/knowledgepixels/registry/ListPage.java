@@ -6,6 +6,7 @@ import com.mongodb.client.MongoCursor;
 import io.vertx.ext.web.RoutingContext;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.nanopub.NanopubUtils;
 import org.nanopub.jelly.NanopubStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +30,12 @@ public class ListPage extends Page {
     private static final Gson gson = new Gson();
     private static final Logger logger = LoggerFactory.getLogger(ListPage.class);
 
+    /**
+     * Request header with which a client asks for at most the given number of list entries per
+     * response, so that it can fetch the rest of a large list in ranges.
+     */
+    public static final String RANGE_LIMIT_HEADER = "Nanopub-Registry-Range-Limit";
+
     public static void show(RoutingContext context) {
         ListPage page;
         logger.info("Received list request: {}", context.request().path());
@@ -49,6 +56,17 @@ public class ListPage extends Page {
         super(mongoSession, context);
     }
 
+    /**
+     * Returns the checksum of the list up to (excluding) the given position, i.e. the checksum of
+     * the last entry before it, or the initial checksum if there is none.
+     */
+    private String getChecksumBefore(String pubkey, String type, long position) {
+        Document entry = collection("listEntries").find(mongoSession,
+                        new Document("pubkey", pubkey).append("type", type).append("position", new Document("$lt", position)))
+                .sort(descending("position")).projection(include("checksum")).first();
+        return entry == null ? NanopubUtils.INIT_CHECKSUM : entry.getString("checksum");
+    }
+
     protected void show() throws IOException {
         RoutingContext context = getContext();
         String format;
@@ -57,6 +75,20 @@ public class ListPage extends Page {
 
         logger.debug("Preparing list response for request: {} (ext={})", getFullRequest(), ext);
 
+        if ("/lists/digest".equals(req)) {
+            String since = getParam("since", "0");
+            if (!ListDigest.isEnabled()) {
+                context.response().setStatusCode(404).setStatusMessage("List digest not enabled");
+            } else if (!since.matches("[0-9]{1,18}")) {
+                logger.warn("Invalid list digest request for {}: since={}", getFullRequest(), since);
+                context.response().setStatusCode(400).setStatusMessage("Invalid request: " + getFullRequest());
+            } else {
+                setRespContentType(TYPE_NDJSON);
+                ListDigest.write(this, mongoSession, Long.parseLong(since));
+            }
+            return;
+        }
+
         if ("json".equals(ext)) {
             format = TYPE_JSON;
         } else if ("jelly".equals(ext)) {
@@ -104,11 +136,43 @@ public class ListPage extends Page {
                     }
                 }
 
-                // Build pipeline with optional position filter
                 Document matchFilter = new Document("pubkey", pubkey).append("type", type);
-                if (afterPosition >= 0) {
-                    matchFilter.append("position", new Document("$gt", afterPosition));
+                String fromParam = getParam("fromPosition", null);
+                String toParam = getParam("toPosition", null);
+                String limitHeader = context.request().getHeader(RANGE_LIMIT_HEADER);
+                if (fromParam == null && toParam == null && limitHeader == null) {
+                    // Plain request for the whole list, or what follows afterChecksums
+                    if (afterPosition >= 0) {
+                        matchFilter.append("position", new Document("$gt", afterPosition));
+                    }
+                } else {
+                    // Position range: fromPosition/toPosition (inclusive), optionally capped by the
+                    // number of entries the client accepts per response
+                    long fromPosition;
+                    long toPosition;
+                    long rangeLimit;
+                    try {
+                        fromPosition = Math.max(afterPosition + 1, fromParam == null ? 0 : Long.parseLong(fromParam));
+                        toPosition = toParam == null ? Long.MAX_VALUE : Long.parseLong(toParam);
+                        rangeLimit = limitHeader == null ? 0 : Long.parseLong(limitHeader);
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Invalid position range for {}: {}", getFullRequest(), ex.getMessage());
+                        context.response().setStatusCode(400).setStatusMessage("Invalid position range: " + getFullRequest());
+                        return;
+                    }
+                    Document maxEntry = RegistryDB.getMaxValueDocument(mongoSession, "listEntries", new Document("pubkey", pubkey).append("type", type), "position");
+                    long maxPosition = maxEntry == null ? -1 : maxEntry.getLong("position");
+                    toPosition = Math.min(toPosition, maxPosition);
+                    if (rangeLimit > 0 && toPosition - fromPosition + 1 > rangeLimit) {
+                        toPosition = fromPosition + rangeLimit - 1;
+                    }
+                    context.response().putHeader("Nanopub-Registry-List-Size", String.valueOf(maxPosition + 1));
+                    context.response().putHeader("Nanopub-Registry-Range", fromPosition + "-" + toPosition);
+                    context.response().putHeader("Nanopub-Registry-Range-Start-Checksum", getChecksumBefore(pubkey, type, fromPosition));
+                    context.response().putHeader("Nanopub-Registry-Range-End-Checksum", getChecksumBefore(pubkey, type, toPosition + 1));
+                    matchFilter.append("position", new Document("$gte", fromPosition).append("$lte", toPosition));
                 }
+
                 List<Bson> pipeline = List.of(match(matchFilter), sort(ascending("position")),
                         lookup("nanopubs", "np", "_id", "nanopub"), project(new Document("jelly", "$nanopub.jelly")), unwind("$jelly"));
                 try (var result = collection("listEntries").aggregate(mongoSession, pipeline).cursor()) {
@@ -483,7 +547,17 @@ public class ListPage extends Page {
                 }
             }
         } else if (req.equals("/pubkeys")) {
-            try (var c = collection("lists").distinct(mongoSession, "pubkey", String.class).cursor()) {
+            // With afterCounter, only the pubkeys of nanopubs loaded after that counter are listed,
+            // so that peers can discover new pubkeys incrementally
+            String afterCounter = getParam("afterCounter", null);
+            if (afterCounter != null && !afterCounter.matches("[0-9]+")) {
+                logger.warn("Invalid afterCounter for {}: {}", getFullRequest(), afterCounter);
+                context.response().setStatusCode(400).setStatusMessage("Invalid afterCounter: " + afterCounter);
+                return;
+            }
+            var distinct = afterCounter == null ? collection("lists").distinct(mongoSession, "pubkey", String.class)
+                    : collection(Collection.NANOPUBS.toString()).distinct(mongoSession, "pubkey", gt("counter", Long.parseLong(afterCounter)), String.class);
+            try (var c = distinct.cursor()) {
                 if (TYPE_JSON.equals(format)) {
                     int count = 0;
                     println("[");
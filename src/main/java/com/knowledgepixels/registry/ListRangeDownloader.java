@@ -0,0 +1,461 @@
+package com.knowledgepixels.registry;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.nanopub.NanopubUtils;
+import org.nanopub.jelly.MaybeNanopub;
+import org.nanopub.jelly.NanopubStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Downloads a large list from the peers in position ranges, so that its load rate is not capped by a
+ * single connection and a single remote cursor.
+ *
+ * <p>The first request for a list asks the peer for at most {@code REGISTRY_LIST_RANGE_SIZE} entries
+ * (default 10000) with the {@value ListPage#RANGE_LIMIT_HEADER} header. If the peer answers with a
+ * partial range, the remaining ranges are requested with {@code fromPosition}/{@code toPosition} from
+ * up to {@code REGISTRY_LIST_RANGE_PARALLELISM} connections at once (default 4), spread over the
+ * healthy peers that cover the list. Apart from the range that is read next, a range is only
+ * requested in advance if {@link PeerHttpClient#tryAcquireExtraStream} gives it a connection, so
+ * that all account loading workers together stay within the connection limit per peer. The ranges are handed on strictly in position order, and each
+ * download waits once {@code REGISTRY_LIST_RANGE_BUFFER} nanopubs (default 500) are ahead of the
+ * reader, so only a bounded number of nanopubs is held in memory per list.
+ *
+ * <p>Positions are local to each registry, so a range served by another peer than the one that
+ * answered the first request is only used if it fits: its start checksum must be the end checksum
+ * of the range before, and the checksum of the nanopubs received must match its end checksum. A
+ * range that does not fit, or fails, is fetched again from the first peer, continuing after the
+ * nanopubs that were already handed on.
+ */
+public final class ListRangeDownloader {
+
+    private ListRangeDownloader() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ListRangeDownloader.class);
+
+    static final int RANGE_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_LIST_RANGE_SIZE", "10000"));
+
+    static final int RANGE_PARALLELISM = Integer.parseInt(Utils.getEnv("REGISTRY_LIST_RANGE_PARALLELISM", "4"));
+
+    /**
+     * How many nanopubs of a range may be downloaded ahead of the reader.
+     */
+    static final int RANGE_BUFFER = Integer.parseInt(Utils.getEnv("REGISTRY_LIST_RANGE_BUFFER", "500"));
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    public static boolean isEnabled() {
+        return RANGE_SIZE > 0;
+    }
+
+    /**
+     * The position range a peer served, as given in its response headers.
+     *
+     * @param fromPosition  the first position served (inclusive)
+     * @param toPosition    the last position served (inclusive)
+     * @param listSize      the size of the whole list at the peer
+     * @param startChecksum the list checksum before the range
+     * @param endChecksum   the list checksum at the end of the range
+     */
+    record Range(long fromPosition, long toPosition, long listSize, String startChecksum, String endChecksum) {
+
+        boolean isPartial() {
+            return toPosition + 1 < listSize;
+        }
+
+        static Range of(HttpResponse resp) {
+            String range = RegistryPeerConnector.getHeader(resp, "Nanopub-Registry-Range");
+            Long listSize = RegistryPeerConnector.getHeaderLong(resp, "Nanopub-Registry-List-Size");
+            String startChecksum = RegistryPeerConnector.getHeader(resp, "Nanopub-Registry-Range-Start-Checksum");
+            String endChecksum = RegistryPeerConnector.getHeader(resp, "Nanopub-Registry-Range-End-Checksum");
+            if (range == null || listSize == null || startChecksum == null || endChecksum == null || !range.matches("[0-9]+-[0-9]+")) {
+                return null;
+            }
+            String[] bounds = range.split("-");
+            return new Range(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]), listSize, startChecksum, endChecksum);
+        }
+
+    }
+
+    /**
+     * One element of a range download as handed from the downloading thread to the reader: the
+     * range headers, a nanopub, the end of the range with the checksum of what was received, or
+     * an error.
+     */
+    private record Item(Range range, MaybeNanopub nanopub, String receivedChecksum, String error) {
+
+        static Item header(Range range) {
+            return new Item(range, null, null, null);
+        }
+
+        static Item of(MaybeNanopub nanopub) {
+            return new Item(null, nanopub, null, null);
+        }
+
+        static Item end(String receivedChecksum) {
+            return new Item(null, null, receivedChecksum, null);
+        }
+
+        static Item failed(String error) {
+            return new Item(null, null, null, error == null ? "unknown error" : error);
+        }
+
+    }
+
+    /**
+     * The download of one range, streamed through a bounded queue. If it replaces a failed
+     * download of the same range, the nanopubs the failed one already handed on are skipped, after
+     * checking that they are the same.
+     */
+    private static final class RangeFetch {
+
+        private final String peerUrl;
+        private final long fromPosition;
+        private final long toPosition;
+        private final long skip;
+        private final String skipChecksum;
+        private final boolean retry;
+        // Whether the fetch holds one of the extra connections to its peer
+        private final boolean extraStream;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final BlockingQueue<Item> items = new ArrayBlockingQueue<>(RANGE_BUFFER);
+        private Future<?> future;
+        private Range range;
+        private long seen = 0;
+        private String seenChecksum = NanopubUtils.INIT_CHECKSUM;
+
+        RangeFetch(String peerUrl, long fromPosition, long toPosition, long skip, String skipChecksum, boolean retry, boolean extraStream) {
+            this.peerUrl = peerUrl;
+            this.fromPosition = fromPosition;
+            this.toPosition = toPosition;
+            this.skip = skip;
+            this.skipChecksum = skipChecksum;
+            this.retry = retry;
+            this.extraStream = extraStream;
+        }
+
+        void start(ExecutorService executor, HttpClient client, String pubkeyHash, String typeHash) {
+            future = executor.submit(() -> {
+                try {
+                    streamRange(client, peerUrl, pubkeyHash, typeHash, fromPosition, toPosition, items);
+                } catch (InterruptedException ex) {
+                    // Cancelled; the request was aborted
+                } finally {
+                    releaseStream();
+                }
+            });
+        }
+
+        private void releaseStream() {
+            if (extraStream && released.compareAndSet(false, true)) {
+                PeerHttpClient.releaseExtraStream(peerUrl);
+            }
+        }
+
+        Item take() {
+            try {
+                Item item;
+                while ((item = items.poll(1, TimeUnit.SECONDS)) == null) {
+                    if (future.isDone() && items.isEmpty()) {
+                        return Item.failed("download ended unexpectedly");
+                    }
+                }
+                return item;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new AbortingTaskException("Interrupted while downloading list ranges; aborting task...");
+            }
+        }
+
+        void cancel() {
+            future.cancel(true);
+            // The task may never have run
+            releaseStream();
+        }
+
+    }
+
+    /**
+     * Continues a list download whose first response only covered part of the list. The returned
+     * stream first yields the nanopubs of the first response and then those of the remaining
+     * ranges, in position order. Closing it closes the first response and stops the downloads.
+     *
+     * @param client     the HTTP client to use
+     * @param peerUrl    the peer that served the first range
+     * @param otherPeers further peers that cover the list, best first
+     * @param pubkeyHash the pubkey hash of the list
+     * @param typeHash   the type hash of the list
+     * @param first      the range of the first response
+     * @param firstRange the nanopubs of the first response
+     * @return the nanopubs of the whole list
+     */
+    static Stream<MaybeNanopub> continueDownload(HttpClient client, String peerUrl, List<String> otherPeers, String pubkeyHash, String typeHash, Range first, Stream<MaybeNanopub> firstRange) {
+        List<String> peers = new ArrayList<>();
+        peers.add(peerUrl);
+        for (String p : otherPeers) {
+            if (peers.size() >= RANGE_PARALLELISM) {
+                break;
+            }
+            peers.add(p);
+        }
+        logger.info("List pubkey={} type={} has {} entries at peer {}; fetching positions {}-{} in ranges of {} from {} peer(s)",
+                pubkeyHash, typeHash, first.listSize(), peerUrl, first.toPosition() + 1, first.listSize() - 1, RANGE_SIZE, peers.size());
+        // One more thread than ranges in flight, for fetching a failed range again
+        ExecutorService executor = Executors.newFixedThreadPool(RANGE_PARALLELISM + 1, r -> {
+            Thread t = new Thread(r, "list-range-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        RangeIterator iterator = new RangeIterator(client, executor, peers, pubkeyHash, typeHash, first, firstRange.iterator());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    iterator.close();
+                    executor.shutdownNow();
+                    firstRange.close();
+                });
+    }
+
+    private static final class RangeIterator implements Iterator<MaybeNanopub> {
+
+        private final HttpClient client;
+        private final ExecutorService executor;
+        private final List<String> peers;
+        private final String pubkeyHash;
+        private final String typeHash;
+        private final long listSize;
+        private final Deque<RangeFetch> pending = new ArrayDeque<>();
+        private final Iterator<MaybeNanopub> firstRange;
+        private RangeFetch active;
+        private MaybeNanopub next;
+        private String expectedStartChecksum;
+        private long nextFrom;
+        private int rangeCount = 0;
+
+        RangeIterator(HttpClient client, ExecutorService executor, List<String> peers, String pubkeyHash, String typeHash, Range first, Iterator<MaybeNanopub> firstRange) {
+            this.client = client;
+            this.executor = executor;
+            this.peers = peers;
+            this.pubkeyHash = pubkeyHash;
+            this.typeHash = typeHash;
+            this.listSize = first.listSize();
+            this.firstRange = firstRange;
+            this.expectedStartChecksum = first.endChecksum();
+            this.nextFrom = first.toPosition() + 1;
+            fillWindow();
+        }
+
+        /**
+         * Requests further ranges in advance, as far as the window and the free connections of
+         * the peers allow.
+         */
+        private void fillWindow() {
+            while (pending.size() + (active == null ? 0 : 1) < RANGE_PARALLELISM && nextFrom < listSize) {
+                String peerUrl = peers.get((rangeCount + 1) % peers.size());
+                if (!PeerHttpClient.tryAcquireExtraStream(peerUrl)) {
+                    return;
+                }
+                pending.add(startNextRange(peerUrl, true));
+            }
+        }
+
+        private RangeFetch startNextRange(String peerUrl, boolean extraStream) {
+            long from = nextFrom;
+            long to = Math.min(from + RANGE_SIZE - 1, listSize - 1);
+            RangeFetch fetch = new RangeFetch(peerUrl, from, to, 0, null, false, extraStream);
+            fetch.start(executor, client, pubkeyHash, typeHash);
+            rangeCount++;
+            nextFrom = to + 1;
+            return fetch;
+        }
+
+        void close() {
+            pending.forEach(RangeFetch::cancel);
+            pending.clear();
+            if (active != null) {
+                active.cancel();
+                active = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (firstRange.hasNext()) {
+                next = firstRange.next();
+                return true;
+            }
+            while (true) {
+                if (active == null) {
+                    if (!pending.isEmpty()) {
+                        active = pending.removeFirst();
+                    } else if (nextFrom < listSize) {
+                        // The range that is read next is always requested, in place of the first response
+                        active = startNextRange(peers.get((rangeCount + 1) % peers.size()), false);
+                    } else {
+                        return false;
+                    }
+                    fillWindow();
+                }
+                Item item = active.take();
+                String problem = null;
+                if (item.error() != null) {
+                    problem = item.error();
+                } else if (item.range() != null) {
+                    if (!item.range().startChecksum().equals(expectedStartChecksum)) {
+                        problem = "start checksum " + item.range().startChecksum() + " does not continue " + expectedStartChecksum;
+                    } else {
+                        active.range = item.range();
+                    }
+                } else if (item.nanopub() != null) {
+                    active.seen++;
+                    active.seenChecksum = NanopubUtils.updateXorChecksum(item.nanopub().getNanopub().getUri(), active.seenChecksum);
+                    if (active.seen > active.skip) {
+                        next = item.nanopub();
+                        return true;
+                    }
+                    if (active.seen == active.skip && !active.seenChecksum.equals(active.skipChecksum)) {
+                        problem = "range does not start with the nanopubs already received";
+                    }
+                } else if (active.seen < active.skip) {
+                    problem = "range ended before the nanopubs already received";
+                } else if (!item.receivedChecksum().equals(active.range.endChecksum())) {
+                    problem = "received nanopubs do not match end checksum " + active.range.endChecksum();
+                } else {
+                    expectedStartChecksum = active.range.endChecksum();
+                    active = null;
+                    fillWindow();
+                }
+                if (problem != null) {
+                    retryActive(problem);
+                }
+            }
+        }
+
+        /**
+         * Replaces the download of the active range with one from the peer the list positions are
+         * taken from, continuing after the nanopubs already handed on.
+         */
+        private void retryActive(String problem) {
+            long from = active.fromPosition;
+            long to = active.toPosition;
+            active.cancel();
+            if (active.retry) {
+                logger.error("Failed to download range {}-{} of list pubkey={} type={}: {}", from, to, pubkeyHash, typeHash, problem);
+                throw new AbortingTaskException("Failed to download list range; aborting task...");
+            }
+            String primary = peers.getFirst();
+            logger.warn("Range {}-{} of list pubkey={} type={} not usable ({}); fetching it again from {}", from, to, pubkeyHash, typeHash, problem, primary);
+            active = new RangeFetch(primary, from, to, active.seen, active.seenChecksum, true, false);
+            active.start(executor, client, pubkeyHash, typeHash);
+        }
+
+        @Override
+        public MaybeNanopub next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            MaybeNanopub m = next;
+            next = null;
+            return m;
+        }
+
+    }
+
+    /**
+     * Fetches one position range of a list from a peer and hands its headers, nanopubs and end
+     * onto the given queue, waiting while it is full. An error is handed on as the last item.
+     *
+     * @throws InterruptedException if the download was cancelled
+     */
+    private static void streamRange(HttpClient client, String peerUrl, String pubkeyHash, String typeHash, long from, long to, BlockingQueue<Item> items) throws InterruptedException {
+        String requestUrl = peerUrl + "list/" + pubkeyHash + "/" + typeHash + ".jelly?fromPosition=" + from + "&toPosition=" + to;
+        logger.debug("Fetching list range from peer: {}", requestUrl);
+        if (!PeerDirectory.allowRequest(peerUrl)) {
+            items.put(Item.failed("circuit breaker of peer " + peerUrl + " is open"));
+            return;
+        }
+        HttpGet get = RegistryPeerConnector.withTimeouts(new HttpGet(requestUrl));
+        long startTime = System.currentTimeMillis();
+        HttpResponse resp;
+        try {
+            resp = client.execute(get);
+        } catch (IOException ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
+            items.put(Item.failed(ex.getMessage()));
+            return;
+        }
+        boolean complete = false;
+        try {
+            int httpStatus = resp.getStatusLine().getStatusCode();
+            if (httpStatus < 200 || httpStatus >= 300) {
+                PeerDirectory.recordFailure(peerUrl);
+                items.put(Item.failed("HTTP " + httpStatus + " from " + peerUrl));
+                return;
+            }
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+            Range range = Range.of(resp);
+            if (range == null || range.fromPosition() != from) {
+                items.put(Item.failed("peer " + peerUrl + " does not support position ranges"));
+                return;
+            }
+            if (range.toPosition() != to || range.listSize() <= to) {
+                // A peer that lags behind serves a shorter range, which would leave a gap
+                items.put(Item.failed("peer " + peerUrl + " served only " + range.fromPosition() + "-" + range.toPosition() + " of list size " + range.listSize()));
+                return;
+            }
+            items.put(Item.header(range));
+            String checksum = range.startChecksum();
+            try (InputStream in = PeerDirectory.meter(peerUrl, resp.getEntity().getContent())) {
+                Iterator<MaybeNanopub> it = NanopubStream.fromByteStream(in).getAsNanopubs().iterator();
+                while (it.hasNext()) {
+                    MaybeNanopub m = it.next();
+                    if (!m.isSuccess()) {
+                        items.put(Item.failed("failed to parse a nanopub from " + peerUrl));
+                        return;
+                    }
+                    checksum = NanopubUtils.updateXorChecksum(m.getNanopub().getUri(), checksum);
+                    items.put(Item.of(m));
+                }
+            }
+            complete = true;
+            items.put(Item.end(checksum));
+        } catch (IOException | RuntimeException ex) {
+            items.put(Item.failed(ex.getMessage()));
+        } finally {
+            if (complete) {
+                EntityUtils.consumeQuietly(resp.getEntity());
+            } else {
+                // Do not read the rest of a range that is not used
+                get.abort();
+            }
+        }
+    }
+
+}
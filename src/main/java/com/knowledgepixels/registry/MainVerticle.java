@@ -21,6 +21,7 @@ import org.nanopub.extra.server.NanopubServerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
 
 import static com.knowledgepixels.registry.RegistryDB.has;
@@ -84,6 +85,23 @@ public class MainVerticle extends AbstractVerticle {
             logger.debug("Routing GET /trust-state* -> TrustStatePage for {}", c.request().path());
             TrustStatePage.show(c);
         });
+        router.route(HttpMethod.GET, "/" + ChangeFeed.PATH).handler(c -> {
+            logger.debug("Routing GET /{} -> ChangeFeed for {}", ChangeFeed.PATH, c.request().remoteAddress());
+            ChangeFeed.subscribe(c);
+        });
+        router.route(HttpMethod.GET, "/segments/*").handler(c -> {
+            // Immutable dump segment files and their manifest, sent by the kernel without copying:
+            String name = c.request().path().substring("/segments/".length());
+            Path file = DumpSegments.resolve(name);
+            if (file == null) {
+                logger.debug("Unknown dump segment file requested: {}", name);
+                c.response().setStatusCode(404).end();
+                return;
+            }
+            logger.debug("Routing GET /segments/* -> sendFile {}", file);
+            c.response().putHeader("Content-Type", name.endsWith(".json") ? Utils.TYPE_JSON : Utils.TYPE_JELLY);
+            c.response().sendFile(file.toString());
+        });
         router.route(HttpMethod.GET, "/style.css").handler(c -> {
             logger.debug("Routing GET /style.css -> ResourcePage for {}", c.request().path());
             ResourcePage.show(c, "style.css", "text/css");
@@ -204,6 +222,9 @@ public class MainVerticle extends AbstractVerticle {
             RegistryDB.init();
 
             new Thread(Task::runTasks).start();
+            new Thread(DumpSegments::runPeriodically, "dump-segments").start();
+            new Thread(ChangeFeed::runPeriodically, "change-feed").start();
+            new Thread(ListDigest::runBackfill, "list-digest-backfill").start();
 
             return null;
         }).onComplete(res -> logger.info("DB initialization finished"));
@@ -0,0 +1,108 @@
+package com.knowledgepixels.registry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through memory-mapped regions, so that large dump files are paged in by the kernel
+ * instead of being copied through read buffers. Files larger than one region (a mapping is limited
+ * to 2 GB) are mapped region by region as the stream advances.
+ */
+public class MappedFileInputStream extends InputStream {
+
+    static final long DEFAULT_REGION_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long regionSize;
+    private long regionStart = 0;
+    private MappedByteBuffer region;
+
+    /**
+     * Opens the given file for memory-mapped reading.
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be opened
+     */
+    public MappedFileInputStream(Path file) throws IOException {
+        this(file, DEFAULT_REGION_SIZE);
+    }
+
+    MappedFileInputStream(Path file, long regionSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.regionSize = regionSize;
+        this.region = map(0);
+    }
+
+    private MappedByteBuffer map(long start) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+    }
+
+    private boolean ensureRemaining() throws IOException {
+        if (region.hasRemaining()) {
+            return true;
+        }
+        long nextStart = regionStart + region.capacity();
+        if (nextStart >= size) {
+            return false;
+        }
+        regionStart = nextStart;
+        region = map(regionStart);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureRemaining()) {
+            return -1;
+        }
+        return region.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, region.remaining());
+        region.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return region.remaining();
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     *
+     * @return the current position in the file
+     */
+    public long getPosition() {
+        return regionStart + region.position();
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return the file size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
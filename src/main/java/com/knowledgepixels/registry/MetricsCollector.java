@@ -1,6 +1,8 @@
 package com.knowledgepixels.registry;
 
 import com.mongodb.client.ClientSession;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
@@ -8,7 +10,9 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.knowledgepixels.registry.RegistryDB.*;
@@ -24,7 +28,14 @@ public final class MetricsCollector {
 
     private final Map<ServerStatus, AtomicInteger> statusStates = new ConcurrentHashMap<>();
 
+    private final MeterRegistry meterRegistry;
+    private final Set<String> registeredPeers = ConcurrentHashMap.newKeySet();
+    private final Set<String> registeredHttpHosts = ConcurrentHashMap.newKeySet();
+    private final Set<String> registeredTasks = ConcurrentHashMap.newKeySet();
+
     public MetricsCollector(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
         // Numeric metrics
         Gauge.builder("registry.load.counter", loadCounter, AtomicInteger::get).register(meterRegistry);
         Gauge.builder("registry.nanopub.count", nanopubCount, AtomicInteger::get).register(meterRegistry);
@@ -41,6 +52,58 @@ public final class MetricsCollector {
                     .tag("status", status.name())
                     .register(meterRegistry);
         }
+
+        // Outbound HTTP connection pool
+        Gauge.builder("registry.http.pool.leased", () -> PeerHttpClient.getPoolStats().getLeased())
+                .description("Outbound connections in use")
+                .register(meterRegistry);
+        Gauge.builder("registry.http.pool.available", () -> PeerHttpClient.getPoolStats().getAvailable())
+                .description("Idle outbound connections kept alive")
+                .register(meterRegistry);
+        Gauge.builder("registry.http.pool.pending", () -> PeerHttpClient.getPoolStats().getPending())
+                .description("Requests waiting for an outbound connection")
+                .register(meterRegistry);
+        Gauge.builder("registry.http.pool.max", () -> PeerHttpClient.getPoolStats().getMax())
+                .description("Maximum number of outbound connections")
+                .register(meterRegistry);
+
+        // Task lanes
+        for (final var lane : TaskLane.values()) {
+            Gauge.builder("registry.task.queue.depth", () -> TaskQueue.getDepth(lane))
+                    .description("Tasks queued in the lane, due or not")
+                    .tag("lane", lane.getName())
+                    .register(meterRegistry);
+            Gauge.builder("registry.task.queue.lag", () -> TaskQueue.getLag(lane))
+                    .description("Time since the first task of the lane was due, in ms")
+                    .tag("lane", lane.getName())
+                    .register(meterRegistry);
+            Gauge.builder("registry.task.running.time", () -> {
+                        Task.RunningTask running = Task.getRunningTask(lane);
+                        return running == null ? 0 : System.currentTimeMillis() - running.startTime();
+                    })
+                    .description("Time the task currently running in the lane has been running, in ms (0 if idle)")
+                    .tag("lane", lane.getName())
+                    .register(meterRegistry);
+        }
+        Gauge.builder("registry.task.queue.overdue", TaskQueue::getMaxLag)
+                .description("Time since the most overdue queued task was due, in ms")
+                .register(meterRegistry);
+        FunctionCounter.builder("registry.task.transaction.aborts", TaskStats.class, c -> TaskStats.getTransactionAbortCount())
+                .description("Task transactions that were aborted")
+                .register(meterRegistry);
+        FunctionCounter.builder("registry.task.aborting.exceptions", TaskStats.class, c -> TaskStats.getAbortingTaskExceptionCount())
+                .description("Task runs that failed with an AbortingTaskException")
+                .register(meterRegistry);
+    }
+
+    private static boolean isRunning(String task) {
+        for (final var lane : TaskLane.values()) {
+            Task.RunningTask running = Task.getRunningTask(lane);
+            if (running != null && running.name().equals(task)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void updateMetrics() {
@@ -66,6 +129,114 @@ public final class MetricsCollector {
         } catch (Exception e) {
             logger.error("Error updating metrics: {}", e.getMessage());
         }
+        registerPeerMetrics();
+        registerHttpHostMetrics();
+        registerTaskMetrics();
+    }
+
+    /**
+     * Registers the timers, counters and gauges for tasks that were scheduled or run for the first
+     * time since the last call.
+     */
+    private void registerTaskMetrics() {
+        for (final var entry : TaskStats.getAll().entrySet()) {
+            final String task = entry.getKey();
+            if (!registeredTasks.add(task)) {
+                continue;
+            }
+            FunctionTimer.builder("registry.task.duration", entry.getValue(),
+                            TaskStats.Run::getCount, TaskStats.Run::getTotalTimeMs, TimeUnit.MILLISECONDS)
+                    .description("Task runs, successful or not")
+                    .tag("task", task)
+                    .register(meterRegistry);
+            FunctionCounter.builder("registry.task.failures", entry.getValue(), r -> r.getFailureCount())
+                    .description("Failed task runs, each of which is retried")
+                    .tag("task", task)
+                    .register(meterRegistry);
+            FunctionTimer.builder("registry.task.start.lag", entry.getValue(),
+                            TaskStats.Run::getStartCount, TaskStats.Run::getTotalStartLagMs, TimeUnit.MILLISECONDS)
+                    .description("Time by which task runs started after their not-before time")
+                    .tag("task", task)
+                    .register(meterRegistry);
+            Gauge.builder("registry.task.queued", () -> TaskQueue.getDepth(task))
+                    .description("Queued tasks with this action, due or not")
+                    .tag("task", task)
+                    .register(meterRegistry);
+            Gauge.builder("registry.task.running", () -> isRunning(task) ? 1 : 0)
+                    .description("Whether the task is currently running (1 if running)")
+                    .tag("task", task)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Registers the request timer and pool gauges for hosts the outbound HTTP client talked to since
+     * the last call.
+     */
+    private void registerHttpHostMetrics() {
+        for (final var entry : PeerHttpClient.getRequestStats().entrySet()) {
+            final String host = entry.getKey();
+            if (!registeredHttpHosts.add(host)) {
+                continue;
+            }
+            FunctionTimer.builder("registry.http.client.requests", entry.getValue(),
+                            PeerHttpClient.RequestStats::getCount, PeerHttpClient.RequestStats::getTotalTimeMs, TimeUnit.MILLISECONDS)
+                    .description("Outbound requests until the response head arrived")
+                    .tag("host", host)
+                    .register(meterRegistry);
+            FunctionCounter.builder("registry.http.client.failures", entry.getValue(), s -> s.getFailureCount())
+                    .description("Outbound requests that failed before a response arrived")
+                    .tag("host", host)
+                    .register(meterRegistry);
+            Gauge.builder("registry.http.pool.host.leased", () -> PeerHttpClient.getPoolStats(host).getLeased())
+                    .description("Outbound connections to the host in use")
+                    .tag("host", host)
+                    .register(meterRegistry);
+            Gauge.builder("registry.http.pool.host.pending", () -> PeerHttpClient.getPoolStats(host).getPending())
+                    .description("Requests waiting for a connection to the host; above 0 the pool of the host is saturated")
+                    .tag("host", host)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Registers gauges for peers that showed up in the {@link PeerDirectory} since the last call.
+     * The gauges read the peer statistics directly, so they only need to be registered once.
+     */
+    private void registerPeerMetrics() {
+        for (final var peer : PeerDirectory.getAll()) {
+            if (!registeredPeers.add(peer.getPeerUrl())) {
+                continue;
+            }
+            Gauge.builder("registry.peer.latency", peer, PeerDirectory.PeerStats::getLatencyMs)
+                    .description("Moving average of the request latency to the peer (ms)")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+            Gauge.builder("registry.peer.throughput", peer, PeerDirectory.PeerStats::getThroughput)
+                    .description("Moving average of the download throughput from the peer (bytes/s)")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+            Gauge.builder("registry.peer.error.rate", peer, PeerDirectory.PeerStats::getErrorRate)
+                    .description("Moving average of the share of failed requests to the peer")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+            Gauge.builder("registry.peer.requests", peer, p -> p.getRequestCount())
+                    .description("Requests sent to the peer")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+            Gauge.builder("registry.peer.failures", peer, p -> p.getFailureCount())
+                    .description("Failed requests to the peer")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+            Gauge.builder("registry.peer.breaker.open", peer, p -> p.getBreakerState() == PeerDirectory.BreakerState.CLOSED ? 0 : 1)
+                    .description("Circuit breaker state of the peer (1 if open or half-open)")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+            Gauge.builder("registry.peer.ready", peer, p -> "ready".equals(p.getStatus()) || "updating".equals(p.getStatus()) ? 1 : 0)
+                    .description("Whether the peer last reported a ready or updating status")
+                    .tag("peer", peer.getPeerUrl())
+                    .register(meterRegistry);
+        }
     }
 
     private Optional<Integer> extractMaximalIntegerValueFromField(
@@ -0,0 +1,158 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory membership filter over the artifact codes of all stored nanopubs.
+ *
+ * <p>This is a Bloom filter: {@link #mightContain(String)} never returns false for an artifact
+ * code that was added, but may return true for one that was not. A negative answer therefore
+ * proves that a nanopub is not stored yet, and a positive answer has to be confirmed against the
+ * {@code nanopubs} collection (see {@link RegistryDB#getStoredPubkeyHash}). Streams that re-deliver
+ * known nanopubs (e.g. a full re-sync after a checksum mismatch) can so skip signature
+ * verification and serialization for them, while genuinely new nanopubs cost no extra query.
+ *
+ * <p>The filter is rebuilt from the {@code _id} index on startup and updated on every insert. It
+ * only ever grows; stale positives are harmless because of the exact fallback.
+ */
+public final class NanopubExistenceFilter {
+
+    private NanopubExistenceFilter() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(NanopubExistenceFilter.class);
+
+    private static final long EXPECTED_INSERTIONS = Long.parseLong(
+            Utils.getEnv("REGISTRY_EXISTENCE_FILTER_CAPACITY", "20000000"));
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    static final int BIT_COUNT = optimalBitCount(EXPECTED_INSERTIONS, FALSE_POSITIVE_RATE);
+
+    static final int HASH_COUNT = optimalHashCount(EXPECTED_INSERTIONS, BIT_COUNT);
+
+    private static volatile AtomicLongArray bits = new AtomicLongArray(wordCount(BIT_COUNT));
+
+    /**
+     * Rebuilds the filter from the artifact codes currently stored in the {@code nanopubs}
+     * collection. Only the {@code _id} field is read, so the scan is covered by the primary index.
+     *
+     * @param mongoSession the MongoDB client session
+     */
+    public static void rebuild(ClientSession mongoSession) {
+        long startTime = System.currentTimeMillis();
+        AtomicLongArray newBits = new AtomicLongArray(wordCount(BIT_COUNT));
+        long count = 0;
+        try (MongoCursor<Document> cursor = RegistryDB.collection(Collection.NANOPUBS.toString())
+                .find(mongoSession)
+                .projection(new Document("_id", 1))
+                .hint(new Document("_id", 1))
+                .batchSize(10000)
+                .cursor()) {
+            while (cursor.hasNext()) {
+                Object id = cursor.next().get("_id");
+                if (id instanceof String ac) {
+                    add(newBits, ac);
+                    count++;
+                }
+            }
+        }
+        bits = newBits;
+        logger.info("Rebuilt nanopub existence filter with {} artifact codes in {} ms ({} bits, {} hash functions)",
+                count, System.currentTimeMillis() - startTime, BIT_COUNT, HASH_COUNT);
+        if (count > EXPECTED_INSERTIONS) {
+            logger.warn("Existence filter holds {} artifact codes, more than its capacity of {}; consider raising REGISTRY_EXISTENCE_FILTER_CAPACITY",
+                    count, EXPECTED_INSERTIONS);
+        }
+    }
+
+    /**
+     * Records the given artifact code as stored.
+     *
+     * @param artifactCode the artifact code of a stored nanopub
+     */
+    public static void add(String artifactCode) {
+        add(bits, artifactCode);
+    }
+
+    /**
+     * Checks whether the given artifact code may be stored.
+     *
+     * @param artifactCode the artifact code to check
+     * @return false if the nanopub is definitely not stored, true if it may be
+     */
+    public static boolean mightContain(String artifactCode) {
+        AtomicLongArray b = bits;
+        long h1 = hash(artifactCode, 0x9E3779B97F4A7C15L);
+        long h2 = hash(artifactCode, 0xC2B2AE3D27D4EB4FL) | 1L;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, BIT_COUNT);
+            if ((b.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Empties the filter, so that every lookup falls through to the database until it is rebuilt.
+     */
+    public static void clear() {
+        bits = new AtomicLongArray(wordCount(BIT_COUNT));
+    }
+
+    private static void add(AtomicLongArray b, String artifactCode) {
+        long h1 = hash(artifactCode, 0x9E3779B97F4A7C15L);
+        long h2 = hash(artifactCode, 0xC2B2AE3D27D4EB4FL) | 1L;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, BIT_COUNT);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = b.get(word);
+                if ((current & mask) != 0) {
+                    break;
+                }
+            } while (!b.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, finished with the MurmurHash3 mixer. Artifact codes are
+     * already uniformly distributed hashes, so this only needs to spread them over the bit array.
+     */
+    private static long hash(String s, long seed) {
+        long h = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int optimalBitCount(long n, double p) {
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        return (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+    }
+
+    static int optimalHashCount(long n, int m) {
+        return Math.max(1, (int) Math.round((double) m / Math.max(1, n) * Math.log(2)));
+    }
+
+    private static int wordCount(int bitCount) {
+        return (bitCount + 63) >>> 6;
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.knowledgepixels.registry;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.eclipse.rdf4j.common.exception.RDF4JException;
+import org.nanopub.MalformedNanopubException;
+import org.nanopub.Nanopub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches single nanopubs from the peers, for nanopubs that are needed but not stored locally.
+ *
+ * <p>The best-ranked peer is asked first. If it has not answered after
+ * {@code REGISTRY_NANOPUB_HEDGE_DELAY} ms (default 200), the next peer is asked as well, and the
+ * first valid answer wins; a peer that answers without the nanopub is replaced by the next one.
+ * Concurrent lookups of the same artifact code share one fetch, and an artifact code that no peer
+ * could provide is not asked for again for {@code REGISTRY_NANOPUB_MISS_TTL} ms (default 60000).
+ */
+final class NanopubFetcher {
+
+    private NanopubFetcher() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(NanopubFetcher.class);
+
+    static final long HEDGE_DELAY = Long.parseLong(Utils.getEnv("REGISTRY_NANOPUB_HEDGE_DELAY", "200"));
+
+    static final long MISS_TTL = Long.parseLong(Utils.getEnv("REGISTRY_NANOPUB_MISS_TTL", "60000"));
+
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private static final int MAX_MISSES = 100000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "nanopub-fetch-" + threadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Map<String, CompletableFuture<Nanopub>> inFlight = new ConcurrentHashMap<>();
+
+    // Artifact code -> time until which it counts as missing
+    private static final Map<String, Long> misses = new ConcurrentHashMap<>();
+
+    /**
+     * Fetches the nanopub with the given artifact code from the peers.
+     *
+     * @param ac     the artifact code
+     * @param client the HTTP client to use
+     * @return the nanopub, or null if no peer could provide it
+     */
+    static Nanopub fetch(String ac, HttpClient client) {
+        Long missingUntil = misses.get(ac);
+        if (missingUntil != null) {
+            if (missingUntil > System.currentTimeMillis()) {
+                logger.debug("Nanopub {} was not available recently; not asking the peers again yet", ac);
+                return null;
+            }
+            misses.remove(ac, missingUntil);
+        }
+        CompletableFuture<Nanopub> own = new CompletableFuture<>();
+        CompletableFuture<Nanopub> running = inFlight.putIfAbsent(ac, own);
+        if (running != null) {
+            logger.debug("Nanopub {} is being fetched already; waiting for that fetch", ac);
+            try {
+                return running.join();
+            } catch (CompletionException ex) {
+                throw ex.getCause() instanceof RuntimeException rex ? rex : ex;
+            }
+        }
+        try {
+            List<String> peerUrls = PeerDirectory.rankPeers(Utils.getPeerUrls());
+            if (peerUrls.isEmpty()) {
+                logger.warn("No peers configured; cannot fetch nanopub {}", ac);
+                own.complete(null);
+                return null;
+            }
+            Nanopub np = fetchHedged(ac, peerUrls, client);
+            if (np == null) {
+                logger.warn("Could not fetch nanopub {} from any of the {} peer(s)", ac, peerUrls.size());
+                rememberMiss(ac);
+            }
+            own.complete(np);
+            return np;
+        } catch (RuntimeException ex) {
+            own.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(ac, own);
+        }
+    }
+
+    private static void rememberMiss(String ac) {
+        if (MISS_TTL <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (misses.size() >= MAX_MISSES) {
+            misses.values().removeIf(until -> until <= now);
+            if (misses.size() >= MAX_MISSES) {
+                misses.clear();
+            }
+        }
+        misses.put(ac, now + MISS_TTL);
+    }
+
+    private record Attempt(String peerUrl, Nanopub nanopub) {
+    }
+
+    private static Nanopub fetchHedged(String ac, List<String> peerUrls, HttpClient client) {
+        ExecutorCompletionService<Attempt> completion = new ExecutorCompletionService<>(executor);
+        List<HttpUriRequest> requests = new CopyOnWriteArrayList<>();
+        Map<Future<Attempt>, String> futures = new HashMap<>();
+        Iterator<String> nextPeer = peerUrls.iterator();
+        Throwable lastError = null;
+        int answered = 0;
+        try {
+            submit(completion, futures, ac, nextPeer.next(), client, requests);
+            int running = 1;
+            while (running > 0) {
+                Future<Attempt> done;
+                if (running < MAX_IN_FLIGHT && nextPeer.hasNext()) {
+                    done = completion.poll(HEDGE_DELAY, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        String hedgePeer = nextPeer.next();
+                        logger.debug("No answer for nanopub {} after {} ms; asking {} as well", ac, HEDGE_DELAY, hedgePeer);
+                        submit(completion, futures, ac, hedgePeer, client, requests);
+                        running++;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                running--;
+                try {
+                    Attempt result = done.get();
+                    answered++;
+                    if (result.nanopub() != null) {
+                        logger.debug("Fetched nanopub {} from peer {}", ac, result.peerUrl());
+                        return result.nanopub();
+                    }
+                } catch (ExecutionException ex) {
+                    // A failing peer does not end the fetch while others are left to ask
+                    String peerUrl = futures.get(done);
+                    PeerDirectory.recordFailure(peerUrl);
+                    logger.debug("Failed to fetch nanopub {} from peer {}: {}", ac, peerUrl, ex.getCause().getMessage(), ex.getCause());
+                    lastError = ex.getCause();
+                }
+                if (nextPeer.hasNext()) {
+                    submit(completion, futures, ac, nextPeer.next(), client, requests);
+                    running++;
+                }
+            }
+            if (answered == 0 && lastError != null) {
+                throw new RuntimeException("Failed to fetch nanopub " + ac, lastError);
+            }
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AbortingTaskException("Interrupted while fetching nanopub " + ac + "; aborting task...");
+        } finally {
+            // The slower requests are not needed anymore
+            for (HttpUriRequest r : requests) {
+                r.abort();
+            }
+            for (Future<Attempt> f : futures.keySet()) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private static void submit(ExecutorCompletionService<Attempt> completion, Map<Future<Attempt>, String> futures, String ac, String peerUrl,
+                               HttpClient client, List<HttpUriRequest> requests) {
+        futures.put(completion.submit(() -> attempt(ac, peerUrl, client, requests)), peerUrl);
+    }
+
+    private static Attempt attempt(String ac, String peerUrl, HttpClient client, List<HttpUriRequest> requests) {
+        if (!PeerDirectory.allowRequest(peerUrl)) {
+            logger.debug("Not asking peer {} for nanopub {}: circuit breaker open", peerUrl, ac);
+            return new Attempt(peerUrl, null);
+        }
+        long startTime = System.currentTimeMillis();
+        HttpUriRequest[] sent = new HttpUriRequest[1];
+        try {
+            Nanopub np = NanopubLoader.get(ac, peerUrl, client, r -> {
+                sent[0] = r;
+                requests.add(r);
+            });
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+            return new Attempt(peerUrl, np);
+        } catch (IOException ex) {
+            if (sent[0] == null || !sent[0].isAborted()) {
+                PeerDirectory.recordFailure(peerUrl, ex);
+                logger.debug("Failed to fetch nanopub {} from peer {}: {}", ac, peerUrl, ex.getMessage(), ex);
+            }
+        } catch (RDF4JException | MalformedNanopubException ex) {
+            logger.debug("Failed to fetch nanopub {} from peer {}: {}", ac, peerUrl, ex.getMessage(), ex);
+        }
+        return new Attempt(peerUrl, null);
+    }
+
+    static void clear() {
+        misses.clear();
+        inFlight.clear();
+    }
+
+}
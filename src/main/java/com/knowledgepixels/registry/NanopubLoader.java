@@ -11,6 +11,8 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.bson.Document;
 import org.bson.types.Binary;
@@ -32,12 +34,16 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -83,6 +89,15 @@ public class NanopubLoader {
     }
 
     public static void simpleLoad(ClientSession mongoSession, Nanopub np) {
+        String ac = TrustyUriUtils.getArtifactCode(np.getUri().stringValue());
+        String storedPubkeyHash = (ac == null) ? null : RegistryDB.getStoredPubkeyHash(mongoSession, ac);
+        if (storedPubkeyHash != null) {
+            // Already stored, so its signature was verified back then; just make sure it is listed
+            logger.debug("Nanopub {} already stored; skipping signature verification", np.getUri());
+            simpleLoad(mongoSession, np, storedPubkeyHash, (pubkeyHash, types) ->
+                    RegistryDB.loadStoredNanopub(mongoSession, np, ac, storedPubkeyHash, pubkeyHash, types));
+            return;
+        }
         String pubkey = RegistryDB.getPubkey(np);
         if (pubkey == null) {
             logger.warn("Skipping load of nanopub {}: no valid signature found, so its public key could not be determined", np.getUri());
@@ -96,20 +111,32 @@ public class NanopubLoader {
      * to skip redundant signature verification.
      */
     public static void simpleLoad(ClientSession mongoSession, Nanopub np, String verifiedPubkey) {
-        String pubkeyHash = Utils.getHash(verifiedPubkey);
+        simpleLoad(mongoSession, np, Utils.getHash(verifiedPubkey), (pubkeyHash, types) ->
+                RegistryDB.loadNanopubVerified(mongoSession, np, verifiedPubkey, pubkeyHash, types));
+    }
+
+    /**
+     * Stores a nanopub and adds it to the given lists: either the verifying or the
+     * already-stored path of {@link RegistryDB}.
+     */
+    private interface ListLoader {
+        void load(String pubkeyHash, String... types);
+    }
+
+    private static void simpleLoad(ClientSession mongoSession, Nanopub np, String pubkeyHash, ListLoader loader) {
         // TODO Do we need to load anything else here, into the other DB collections?
         if (has(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", "$").append("status", "loaded"))) {
             logger.debug("Loading nanopub {} into full-loaded lists for pubkey {}", np.getUri(), pubkeyHash);
-            RegistryDB.loadNanopubVerified(mongoSession, np, verifiedPubkey, pubkeyHash, "$");
+            loader.load(pubkeyHash, "$");
         } else if (has(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH).append("status", "loaded"))) {
             logger.debug("Loading nanopub {} into core lists (intro/endorse) for pubkey {}", np.getUri(), pubkeyHash);
-            RegistryDB.loadNanopubVerified(mongoSession, np, verifiedPubkey, pubkeyHash, INTRO_TYPE, ENDORSE_TYPE);
+            loader.load(pubkeyHash, INTRO_TYPE, ENDORSE_TYPE);
         } else {
             // Pubkey not yet loaded (unknown or in transitional "encountered" state): store the
             // nanopub in the nanopubs collection so it is not lost. RUN_OPTIONAL_LOAD will add it
             // to the appropriate lists once the pubkey's intro/endorse have been fetched.
             logger.debug("Pubkey {} not yet loaded; storing nanopub {} without adding it to any list yet", pubkeyHash, np.getUri());
-            RegistryDB.loadNanopubVerified(mongoSession, np, verifiedPubkey, null);
+            loader.load(null);
             if (!has(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH))) {
                 // Unknown pubkey: create encountered intro list so RUN_OPTIONAL_LOAD picks it up
                 try {
@@ -131,9 +158,28 @@ public class NanopubLoader {
             Utils.getEnv("REGISTRY_LOAD_PARALLELISM", String.valueOf(Runtime.getRuntime().availableProcessors())));
 
     /**
-     * Processes a stream of nanopubs in parallel using a thread pool.
+     * Worker pool shared by all streams, so that concurrent streams (e.g. from several peers at
+     * once) together never run more than {@code REGISTRY_LOAD_PARALLELISM} loads against the database.
+     */
+    private static ExecutorService ingestExecutor;
+
+    private static synchronized ExecutorService getIngestExecutor() {
+        if (ingestExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ingestExecutor = Executors.newFixedThreadPool(LOAD_PARALLELISM, r -> {
+                Thread t = new Thread(r, "nanopub-ingest-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return ingestExecutor;
+    }
+
+    /**
+     * Processes a stream of nanopubs in parallel on the shared ingest pool.
      * Each worker thread uses its own MongoDB ClientSession.
-     * Backpressure is applied via a semaphore to avoid unbounded memory growth.
+     * Backpressure is applied via a semaphore to avoid unbounded memory growth; the same semaphore
+     * is drained at the end to wait for this stream's work, as the pool itself outlives the call.
      *
      * @param stream    the nanopub stream to process
      * @param processor consumer that processes each nanopub (called with its own ClientSession)
@@ -152,53 +198,45 @@ public class NanopubLoader {
             return;
         }
 
-        logger.debug("Processing nanopub stream in parallel with {} worker threads", LOAD_PARALLELISM);
-        AtomicReference<Exception> error;
-        try (ExecutorService executor = Executors.newFixedThreadPool(LOAD_PARALLELISM)) {
-            Semaphore semaphore = new Semaphore(LOAD_PARALLELISM * 2);
-            error = new AtomicReference<>();
+        logger.debug("Processing nanopub stream in parallel with {} shared worker threads", LOAD_PARALLELISM);
+        ExecutorService executor = getIngestExecutor();
+        final int permits = LOAD_PARALLELISM * 2;
+        Semaphore semaphore = new Semaphore(permits);
+        AtomicReference<Exception> error = new AtomicReference<>();
 
-            try {
-                stream.forEach(m -> {
-                    if (error.get() != null) {
-                        return;
-                    }
-                    if (!m.isSuccess()) {
-                        logger.error("Failed to download a nanopub from the stream; aborting remaining work");
-                        error.compareAndSet(null, new AbortingTaskException("Failed to download nanopub; aborting task..."));
-                        return;
-                    }
-                    Nanopub np = m.getNanopub();
-                    try {
-                        semaphore.acquire();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        logger.warn("Interrupted while waiting for a free worker slot; aborting parallel load", e);
-                        error.compareAndSet(null, e);
-                        return;
-                    }
-                    executor.submit(() -> {
-                        try {
-                            processor.accept(np);
-                        } catch (Exception e) {
-                            logger.error("Worker thread failed while processing nanopub {}: {}", np.getUri(), e.getMessage(), e);
-                            error.compareAndSet(null, e);
-                        } finally {
-                            semaphore.release();
-                        }
-                    });
-                });
-            } finally {
-                executor.shutdown();
+        try {
+            stream.forEach(m -> {
+                if (error.get() != null) {
+                    return;
+                }
+                if (!m.isSuccess()) {
+                    logger.error("Failed to download a nanopub from the stream; aborting remaining work");
+                    error.compareAndSet(null, new AbortingTaskException("Failed to download nanopub; aborting task..."));
+                    return;
+                }
+                Nanopub np = m.getNanopub();
                 try {
-                    if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
-                        logger.warn("Worker pool did not terminate within the 1-hour timeout after shutdown");
-                    }
+                    semaphore.acquire();
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                    logger.warn("Interrupted while waiting for worker pool to terminate", e);
+                    logger.warn("Interrupted while waiting for a free worker slot; aborting parallel load", e);
+                    error.compareAndSet(null, e);
+                    return;
                 }
-            }
+                executor.submit(() -> {
+                    try {
+                        processor.accept(np);
+                    } catch (Exception e) {
+                        logger.error("Worker thread failed while processing nanopub {}: {}", np.getUri(), e.getMessage(), e);
+                        error.compareAndSet(null, e);
+                    } finally {
+                        semaphore.release();
+                    }
+                });
+            });
+        } finally {
+            // All permits back means all work of this stream is done
+            semaphore.acquireUninterruptibly(permits);
         }
 
         if (error.get() != null) {
@@ -230,15 +268,49 @@ public class NanopubLoader {
      * @return A stream of MaybeNanopub objects, or an empty stream if no peer is available.
      */
     public static Stream<MaybeNanopub> retrieveNanopubsFromPeers(String typeHash, String pubkeyHash, String afterChecksums) {
+        return retrieveNanopubsFromPeers(typeHash, pubkeyHash, afterChecksums, range -> {
+        });
+    }
+
+    /**
+     * Retrieve Nanopubs from the peers, optionally skipping ahead using checksums, and tell the
+     * caller where in the peer's list the returned nanopubs start.
+     *
+     * @param typeHash       The hash of the type of the Nanopub to retrieve.
+     * @param pubkeyHash     The hash of the pubkey of the Nanopub to retrieve.
+     * @param afterChecksums Comma-separated checksums for skip-ahead (geometric fallback), or null for full fetch.
+     * @param onStart        Called before the stream is returned with the range headers of the peer that serves it,
+     *                       whose start checksum is the peer's list checksum before the first nanopub, or with null
+     *                       if the peer sent none.
+     * @return A stream of MaybeNanopub objects, or an empty stream if no peer is available.
+     */
+    public static Stream<MaybeNanopub> retrieveNanopubsFromPeers(String typeHash, String pubkeyHash, String afterChecksums, Consumer<ListRangeDownloader.Range> onStart) {
         // TODO Move the code of this method to nanopub-java library.
 
-        List<String> peerUrlsToTry = new ArrayList<>(Utils.getPeerUrls());
-        Collections.shuffle(peerUrlsToTry);
-        if (peerUrlsToTry.isEmpty()) {
+        List<String> peerUrlsToTry = new ArrayList<>(PeerDirectory.rankPeersFor(Utils.getPeerUrls(), pubkeyHash, typeHash));
+        if (Utils.getPeerUrls().isEmpty()) {
             logger.warn("No peers configured; cannot retrieve nanopub list for pubkey {} / type {}", pubkeyHash, typeHash);
+        } else if (peerUrlsToTry.isEmpty()) {
+            logger.warn("No healthy peer covering pubkey {} / type {} available; cannot retrieve nanopub list", pubkeyHash, typeHash);
+        } else if (afterChecksums != null) {
+            // Peers whose list digest shows the list as we have it have nothing new for us
+            Set<String> inSync = ListDigest.getPeersInSync(peerUrlsToTry, pubkeyHash, typeHash, afterChecksums.split(",")[0]);
+            if (!inSync.isEmpty()) {
+                peerUrlsToTry.removeAll(inSync);
+                if (peerUrlsToTry.isEmpty()) {
+                    logger.debug("List pubkey {} / type {} is unchanged at all peers according to their list digests", pubkeyHash, typeHash);
+                    return Stream.empty();
+                }
+            }
         }
+        // Obtained here, as range downloads use it from their own threads
+        CloseableHttpClient client = PeerHttpClient.get();
         while (!peerUrlsToTry.isEmpty()) {
             String peerUrl = peerUrlsToTry.removeFirst();
+            if (!PeerDirectory.allowRequest(peerUrl)) {
+                logger.debug("Skipping peer {}: circuit breaker open", peerUrl);
+                continue;
+            }
 
             String requestUrl = peerUrl + "list/" + pubkeyHash + "/" + typeHash + ".jelly";
             if (afterChecksums != null) {
@@ -246,14 +318,26 @@ public class NanopubLoader {
             }
             logger.debug("Fetching nanopub list from peer: {}", requestUrl);
             try {
-                CloseableHttpResponse resp = NanopubUtils.getHttpClient().execute(new HttpGet(requestUrl));
+                long startTime = System.currentTimeMillis();
+                HttpGet get = new HttpGet(requestUrl);
+                if (ListRangeDownloader.isEnabled()) {
+                    // Large lists are then served partially, and fetched in ranges from here on
+                    get.setHeader(ListPage.RANGE_LIMIT_HEADER, String.valueOf(ListRangeDownloader.RANGE_SIZE));
+                }
+                CloseableHttpResponse resp = client.execute(get);
                 int httpStatus = resp.getStatusLine().getStatusCode();
                 if (httpStatus < 200 || httpStatus >= 300) {
                     logger.warn("Peer {} returned HTTP {} for nanopub list request {}; trying next peer", peerUrl, httpStatus, requestUrl);
+                    PeerDirectory.recordFailure(peerUrl);
                     EntityUtils.consumeQuietly(resp.getEntity());
                     continue;
                 }
+                PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
                 Header nrStatus = resp.getFirstHeader("Nanopub-Registry-Status");
+                PeerDirectory.recordStatus(peerUrl, nrStatus == null ? null : nrStatus.getValue());
+                Header coverageTypes = resp.getFirstHeader("Nanopub-Registry-Coverage-Types");
+                Header coverageAgents = resp.getFirstHeader("Nanopub-Registry-Coverage-Agents");
+                PeerDirectory.recordCoverage(peerUrl, coverageTypes == null ? null : coverageTypes.getValue(), coverageAgents == null ? null : coverageAgents.getValue());
                 if (nrStatus == null) {
                     logger.warn("Peer {} did not return a Nanopub-Registry-Status header for {}; trying next peer", peerUrl, requestUrl);
                     EntityUtils.consumeQuietly(resp.getEntity());
@@ -264,15 +348,30 @@ public class NanopubLoader {
                     continue;
                 }
                 logger.debug("Successfully fetched nanopub list from peer {} (status: {})", peerUrl, nrStatus.getValue());
-                InputStream is = resp.getEntity().getContent();
-                return NanopubStream.fromByteStream(is).getAsNanopubs().onClose(() -> {
+                InputStream is = PeerDirectory.meter(peerUrl, resp.getEntity().getContent());
+                ListRangeDownloader.Range range = ListRangeDownloader.Range.of(resp);
+                if (range != null) {
+                    PeerDirectory.recordListSize(peerUrl, pubkeyHash, typeHash, range.listSize());
+                }
+                onStart.accept(range);
+                AtomicLong received = new AtomicLong();
+                Stream<MaybeNanopub> stream = NanopubStream.fromByteStream(is).getAsNanopubs().peek(m -> received.incrementAndGet()).onClose(() -> {
+                    if (afterChecksums == null && range == null) {
+                        PeerDirectory.recordListSize(peerUrl, pubkeyHash, typeHash, received.get());
+                    }
                     try {
+                        is.close();
                         resp.close();
                     } catch (IOException e) {
                         logger.debug("Error closing HTTP response from peer {}", peerUrl, e);
                     }
                 });
+                if (range != null && range.isPartial()) {
+                    return ListRangeDownloader.continueDownload(client, peerUrl, peerUrlsToTry, pubkeyHash, typeHash, range, stream);
+                }
+                return stream;
             } catch (UnsupportedOperationException | IOException ex) {
+                PeerDirectory.recordFailure(peerUrl, ex);
                 logger.warn("Failed to fetch nanopub list from peer {} ({}): {}", peerUrl, requestUrl, ex.getMessage(), ex);
             }
         }
@@ -282,30 +381,17 @@ public class NanopubLoader {
 
     public static Nanopub retrieveNanopub(ClientSession mongoSession, String nanopubId) {
         Nanopub np = retrieveLocalNanopub(mongoSession, nanopubId);
-        int tryCount = 0;
-        while (np == null) {
-            if (tryCount > 10) {
-                logger.error("Giving up on retrieving nanopub {} after {} attempts", nanopubId, tryCount);
-                throw new RuntimeException("Could not load nanopub: " + nanopubId);
-            } else if (tryCount > 0) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ex) {
-                    logger.warn("Thread interrupted while waiting to retry nanopub retrieval for {}", nanopubId, ex);
-                }
-            }
-            logger.info("Nanopub {} not found locally; fetching from peers (attempt {} of 10)", nanopubId, tryCount + 1);
-
-            // TODO Reach out to other Nanopub Registries here:
-            np = getNanopub(nanopubId);
-            if (np != null) {
-                logger.debug("Retrieved nanopub {} from a peer; persisting it locally", nanopubId);
-                RegistryDB.loadNanopub(mongoSession, np);
-            } else {
-                logger.debug("Attempt {} to retrieve nanopub {} from peers failed", tryCount + 1, nanopubId);
-                tryCount = tryCount + 1;
-            }
+        if (np != null) {
+            return np;
         }
+        logger.info("Nanopub {} not found locally; fetching from peers", nanopubId);
+        np = getNanopub(nanopubId);
+        if (np == null) {
+            logger.error("Giving up on retrieving nanopub {}: no peer could provide it", nanopubId);
+            throw new RuntimeException("Could not load nanopub: " + nanopubId);
+        }
+        logger.debug("Retrieved nanopub {} from a peer; persisting it locally", nanopubId);
+        RegistryDB.loadNanopub(mongoSession, np);
         return np;
     }
 
@@ -324,57 +410,112 @@ public class NanopubLoader {
         }
     }
 
+    /**
+     * Decodes the Jelly content of stored nanopub documents on the shared ingest pool, keeping
+     * their order. Documents that cannot be decoded are logged and left out.
+     *
+     * @param npDocs nanopub documents with their {@code _id} and {@code jelly} fields
+     * @return the decoded nanopubs
+     */
+    static List<Nanopub> decodeLocalNanopubs(List<Document> npDocs) {
+        List<Callable<Nanopub>> tasks = new ArrayList<>(npDocs.size());
+        for (Document d : npDocs) {
+            tasks.add(() -> {
+                Binary jelly = d.get("jelly", Binary.class);
+                if (jelly == null) {
+                    logger.error("Nanopub '{}' has no stored Jelly content; skipping it", d.get("_id"));
+                    return null;
+                }
+                try {
+                    return JellyUtils.readFromDB(jelly.getData());
+                } catch (RDF4JException | MalformedNanopubException ex) {
+                    logger.error("Failed to parse locally stored Jelly content for nanopub '{}'; skipping it", d.get("_id"), ex);
+                    return null;
+                }
+            });
+        }
+        List<Nanopub> nanopubs = new ArrayList<>(npDocs.size());
+        try {
+            for (Future<Nanopub> f : getIngestExecutor().invokeAll(tasks)) {
+                Nanopub np = f.get();
+                if (np != null) {
+                    nanopubs.add(np);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AbortingTaskException("Interrupted while decoding stored nanopubs; aborting task...");
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Decoding stored nanopubs failed", ex.getCause());
+        }
+        return nanopubs;
+    }
+
     // TODO Provide this method in nanopub-java (GetNanopub)
     private static Nanopub getNanopub(String uriOrArtifactCode) {
-        List<String> peerUrls = new ArrayList<>(Utils.getPeerUrls());
-        Collections.shuffle(peerUrls);
         String ac = GetNanopub.getArtifactCode(uriOrArtifactCode).toString();
         if (!ac.startsWith(RdfModule.MODULE_ID)) {
             throw new IllegalArgumentException("Not a trusty URI of type RA");
         }
-        if (peerUrls.isEmpty()) {
-            logger.warn("No peers configured; cannot fetch nanopub {}", ac);
-        }
-        while (!peerUrls.isEmpty()) {
-            String peerUrl = peerUrls.removeFirst();
-            try {
-                Nanopub np = get(ac, peerUrl, NanopubUtils.getHttpClient());
-                if (np != null) {
-                    logger.debug("Successfully fetched nanopub {} from peer {}", ac, peerUrl);
-                    return np;
-                }
-            } catch (IOException | RDF4JException | MalformedNanopubException ex) {
-                logger.debug("Failed to fetch nanopub {} from peer {}: {}", ac, peerUrl, ex.getMessage(), ex);
-            }
-        }
-        logger.warn("Could not fetch nanopub {} from any of the {} configured peer(s)", ac, Utils.getPeerUrls().size());
-        return null;
+        return NanopubFetcher.fetch(ac, PeerHttpClient.get());
     }
 
+    static Nanopub get(String artifactCode, String registryUrl, HttpClient httpClient)
+            throws IOException, RDF4JException, MalformedNanopubException {
+        return get(artifactCode, registryUrl, httpClient, r -> {
+        });
+    }
+
+    /**
+     * Fetches a nanopub from a peer, in Jelly if the peer offers it and in TriG otherwise, and
+     * checks that it is the trusty nanopub with the given artifact code.
+     *
+     * @param onSend called with the request before it is sent, so that it can be aborted
+     * @return the nanopub, or null if the peer does not have it
+     */
     // TODO Provide this method in nanopub-java (GetNanopub)
-    private static Nanopub get(String artifactCode, String registryUrl, HttpClient httpClient)
+    static Nanopub get(String artifactCode, String registryUrl, HttpClient httpClient, Consumer<HttpUriRequest> onSend)
             throws IOException, RDF4JException, MalformedNanopubException {
         HttpGet get = null;
-        // TODO Get in Jelly format:
         String getUrl = registryUrl + "np/" + artifactCode;
         try {
             get = new HttpGet(getUrl);
         } catch (IllegalArgumentException ex) {
             throw new IOException("invalid URL: " + getUrl);
         }
-        get.setHeader("Accept", "application/trig");
+        get.setHeader("Accept", Utils.TYPE_JELLY + ", " + Utils.TYPE_TRIG + ";q=0.5");
+        onSend.accept(get);
         InputStream in = null;
         try {
             HttpResponse resp = httpClient.execute(get);
+            if (resp.getStatusLine().getStatusCode() == 404) {
+                // A healthy peer that just does not have it
+                EntityUtils.consumeQuietly(resp.getEntity());
+                return null;
+            }
             if (!wasSuccessful(resp)) {
                 EntityUtils.consumeQuietly(resp.getEntity());
                 throw new IOException("Request to " + getUrl + " failed: " + resp.getStatusLine());
             }
             in = resp.getEntity().getContent();
-            Nanopub nanopub = new NanopubImpl(in, RDFFormat.TRIG);
+            Header contentType = resp.getEntity().getContentType();
+            Nanopub nanopub;
+            if (contentType != null && contentType.getValue().startsWith(Utils.TYPE_JELLY)) {
+                // A single delimited frame, as served by NanopubPage
+                MaybeNanopub m = NanopubStream.fromByteStream(in).getAsNanopubs().findFirst().orElse(null);
+                if (m == null || !m.isSuccess()) {
+                    throw new MalformedNanopubException("Could not read Jelly nanopub retrieved from " + registryUrl);
+                }
+                nanopub = m.getNanopub();
+            } else {
+                nanopub = new NanopubImpl(in, RDFFormat.TRIG);
+            }
             if (!TrustyNanopubUtils.isValidTrustyNanopub(nanopub)) {
                 throw new MalformedNanopubException("Nanopub retrieved from " + registryUrl + " is not a valid trusty nanopub");
             }
+            if (!artifactCode.equals(TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue()))) {
+                throw new MalformedNanopubException("Peer " + registryUrl + " returned nanopub " + nanopub.getUri() + " for " + artifactCode);
+            }
             return nanopub;
         } finally {
             if (in != null) {
@@ -0,0 +1,188 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import org.bson.Document;
+import org.nanopub.Nanopub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.knowledgepixels.registry.EntryStatus.encountered;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Decides which pubkeys a {@code RUN_OPTIONAL_LOAD} run loads, and how much of each.
+ *
+ * <p>Each run has a budget in nanopubs ({@code REGISTRY_OPTIONAL_LOAD_BATCH_SIZE}, default 100),
+ * bytes ({@code REGISTRY_OPTIONAL_LOAD_BATCH_BYTES}, default 10 MB) and wall time
+ * ({@code REGISTRY_OPTIONAL_LOAD_BATCH_SECONDS}, default 30). Within it, the encountered lists are
+ * served in turns of at most {@code REGISTRY_OPTIONAL_LOAD_QUANTUM} nanopubs (default 25), by
+ * start-time fair queueing: each list carries the virtual time ({@code vtime}) at which its pubkey
+ * has had its share, and the list with the lowest one goes next. A turn advances it by the bytes
+ * loaded divided by the weight of the pubkey, so a pubkey with a large list gets no more than its
+ * share of every run, and lists that are new start at the current virtual time rather than ahead.
+ *
+ * <p>The weight is 1, plus the number of peers that list the pubkey and the number of trust edges
+ * that point to it, each counted up to {@value #MAX_BOOST}: pubkeys that are seen more widely or
+ * endorsed more often are loaded faster.
+ */
+final class OptionalLoadScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(OptionalLoadScheduler.class);
+
+    static final long BATCH_BYTES = Long.parseLong(Utils.getEnv("REGISTRY_OPTIONAL_LOAD_BATCH_BYTES", "10000000"));
+
+    static final long BATCH_MILLIS = Long.parseLong(Utils.getEnv("REGISTRY_OPTIONAL_LOAD_BATCH_SECONDS", "30")) * 1000L;
+
+    static final long QUANTUM = Long.parseLong(Utils.getEnv("REGISTRY_OPTIONAL_LOAD_QUANTUM", "25"));
+
+    static final int MAX_BOOST = 8;
+
+    private static final String VIRTUAL_TIME_KEY = "optionalLoadVirtualTime";
+
+    /**
+     * The nanopubs and bytes of one turn, counted as they are received.
+     */
+    final class Turn {
+
+        private final AtomicLong nanopubs = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        /**
+         * Whether this turn may receive another nanopub.
+         */
+        boolean hasQuantum() {
+            return nanopubs.get() < QUANTUM && hasBudget();
+        }
+
+        /**
+         * Counts a received nanopub against this turn and the run.
+         */
+        void charge(Nanopub np) {
+            long size = np.getByteCount();
+            nanopubs.incrementAndGet();
+            bytes.addAndGet(size);
+            runNanopubs.incrementAndGet();
+            runBytes.addAndGet(size);
+        }
+
+        long getNanopubCount() {
+            return nanopubs.get();
+        }
+
+        long getByteCount() {
+            return bytes.get();
+        }
+
+    }
+
+    private final long maxNanopubs;
+    private final long deadline;
+    private final AtomicLong runNanopubs = new AtomicLong();
+    private final AtomicLong runBytes = new AtomicLong();
+    // Lists already served in this run that did not finish, so that the other ones get their turn
+    private final HashSet<Object> served = new HashSet<>();
+
+    /**
+     * @param maxNanopubs the nanopub budget of the run
+     */
+    OptionalLoadScheduler(long maxNanopubs) {
+        this.maxNanopubs = maxNanopubs;
+        this.deadline = System.currentTimeMillis() + BATCH_MILLIS;
+    }
+
+    /**
+     * Whether the run has budget left.
+     */
+    boolean hasBudget() {
+        return runNanopubs.get() < maxNanopubs && runBytes.get() < BATCH_BYTES && System.currentTimeMillis() < deadline;
+    }
+
+    long getNanopubCount() {
+        return runNanopubs.get();
+    }
+
+    long getByteCount() {
+        return runBytes.get();
+    }
+
+    Turn startTurn() {
+        return new Turn();
+    }
+
+    /**
+     * Returns the encountered list of the given type whose turn it is, or null if there is none or
+     * the run has no budget left. Lists that already had a turn in this run and are not done yet
+     * wait for the next run.
+     *
+     * @param s        the MongoDB client session
+     * @param typeHash the list type
+     * @return the list document
+     */
+    Document next(ClientSession s, String typeHash) {
+        if (!hasBudget()) {
+            return null;
+        }
+        for (Document list : collection("lists").find(s, and(eq("type", typeHash), eq("status", encountered.getValue())))
+                .sort(ascending("vtime")).limit(served.size() + 1)) {
+            if (!served.contains(list.get("_id"))) {
+                return list;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends the turn of a list: advances its virtual time by what the turn loaded, relative to the
+     * weight of its pubkey.
+     *
+     * @param s    the MongoDB client session
+     * @param list the list document
+     * @param turn the turn
+     * @return the new virtual time of the list
+     */
+    double finishTurn(ClientSession s, Document list, Turn turn) {
+        served.add(list.get("_id"));
+        double now = getVirtualTime(s);
+        double start = Math.max(list.get("vtime") instanceof Number n ? n.doubleValue() : 0, now);
+        double weight = getWeight(s, list.getString("pubkey"));
+        double vtime = start + Math.max(1, turn.getByteCount()) / weight;
+        collection("lists").updateOne(s, eq("_id", list.get("_id")), new Document("$set", new Document("vtime", vtime)));
+        list.append("vtime", vtime);
+        if (start > now) {
+            RegistryDB.setValue(s, Collection.SERVER_INFO.toString(), VIRTUAL_TIME_KEY, start);
+        }
+        logger.debug("Pubkey {}: turn loaded {} nanopubs ({} bytes) at weight {}; virtual time now {}",
+                list.getString("pubkey"), turn.getNanopubCount(), turn.getByteCount(), weight, vtime);
+        return vtime;
+    }
+
+    /**
+     * Returns the virtual time of the scheduler: the start of the latest turn.
+     */
+    static double getVirtualTime(ClientSession s) {
+        Object value = RegistryDB.getValue(s, Collection.SERVER_INFO.toString(), VIRTUAL_TIME_KEY);
+        return value instanceof Number n ? n.doubleValue() : 0;
+    }
+
+    /**
+     * Returns the weight of a pubkey: 1, plus the number of peers that list it and the number of
+     * valid trust edges that point to it, each up to {@value #MAX_BOOST}.
+     */
+    static double getWeight(ClientSession s, String pubkeyHash) {
+        int peers = 0;
+        for (String ignored : collection(ListDigest.PEER_DIGESTS).distinct(s, "peer", eq("pubkey", pubkeyHash), String.class)) {
+            if (++peers >= MAX_BOOST) {
+                break;
+            }
+        }
+        long endorsements = collection("trustEdges").countDocuments(s, and(eq("toPubkey", pubkeyHash), eq("invalidated", false)));
+        return 1 + peers + Math.min(endorsements, MAX_BOOST);
+    }
+
+}
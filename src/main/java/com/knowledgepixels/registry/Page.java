@@ -57,6 +57,9 @@ public abstract class Page {
         context.response().putHeader("Nanopub-Registry-Test-Instance", String.valueOf(serverInfo.get("testInstance") != null && (Boolean) serverInfo.get("testInstance")));
         context.response().putHeader("Nanopub-Registry-Coverage-Types", serverInfo.get("coverageTypes") != null ? serverInfo.get("coverageTypes").toString() : "all");
         context.response().putHeader("Nanopub-Registry-Coverage-Agents", serverInfo.get("coverageAgents") != null ? serverInfo.get("coverageAgents").toString() : "viaSetting");
+        if (ChangeFeed.isEnabled()) {
+            context.response().putHeader("Nanopub-Registry-Change-Feed", ChangeFeed.PATH);
+        }
 
         String r = context.request().path().substring(1);
         if (r.endsWith(".txt")) {
@@ -0,0 +1,261 @@
+package com.knowledgepixels.registry;
+
+import com.google.gson.Gson;
+import com.mongodb.client.ClientSession;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.bson.Document;
+import org.nanopub.Nanopub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Listens to the change feeds of the peers that offer one (see {@link ChangeFeed}), so that their
+ * new nanopubs are loaded within milliseconds instead of with the next {@code CHECK_NEW} run.
+ *
+ * <p>There is one listener thread per peer. It subscribes after the counter recorded in the peer
+ * state, loads each announced nanopub this registry covers and does not have yet, and then moves
+ * the recorded counter on, so that the next {@code CHECK_NEW} run finds nothing left to fetch. The
+ * counter is only moved on while the announced counters follow each other without a gap. If the
+ * peer asks it to catch up, the missing nanopubs are fetched with the regular
+ * {@code /nanopubs.jelly} feed before it subscribes again. A listener stops when the peer no
+ * longer offers a change feed, its setup ID changes, or its feed skips counters (announced with a
+ * {@code resync} event); the next {@code CHECK_NEW} run then fetches from the recorded counter and
+ * starts a new listener if appropriate.
+ */
+public final class PeerChangeListener {
+
+    private PeerChangeListener() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PeerChangeListener.class);
+
+    private static final Gson gson = new Gson();
+
+    private static final long MIN_RETRY_DELAY = 1000;
+
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    private static final Map<String, Thread> listeners = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled() {
+        return !"false".equals(Utils.getEnv("REGISTRY_ENABLE_PEER_CHANGE_FEEDS", null));
+    }
+
+    /**
+     * One event as read from an event stream.
+     */
+    record SseEvent(String name, String id, String data) {
+    }
+
+    /**
+     * Starts listening to the change feed of the given peer, unless a listener is already running.
+     *
+     * @param client   the HTTP client to use
+     * @param peerUrl  the peer URL
+     * @param feedPath the path of the feed, as advertised by the peer
+     * @param setupId  the current setup ID of the peer
+     */
+    static void ensureListening(HttpClient client, String peerUrl, String feedPath, long setupId) {
+        if (!isEnabled()) {
+            return;
+        }
+        listeners.computeIfAbsent(peerUrl, url -> {
+            Thread t = new Thread(() -> {
+                try {
+                    listen(client, url, feedPath, setupId);
+                } finally {
+                    listeners.remove(url);
+                }
+            }, "peer-changes-" + listeners.size());
+            t.setDaemon(true);
+            t.start();
+            logger.info("Listening to the change feed of peer {}", url);
+            return t;
+        });
+    }
+
+    static boolean isListening(String peerUrl) {
+        return listeners.containsKey(peerUrl);
+    }
+
+    private static void listen(HttpClient client, String peerUrl, String feedPath, long setupId) {
+        long retryDelay = MIN_RETRY_DELAY;
+        while (!Thread.currentThread().isInterrupted()) {
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                Document peerState = RegistryPeerConnector.getPeerState(s, peerUrl);
+                if (peerState == null || peerState.getLong("setupId") == null || peerState.getLong("setupId") != setupId) {
+                    logger.info("Peer {} has no recorded state for setup {}; no longer listening to its change feed", peerUrl, setupId);
+                    return;
+                }
+                long afterCounter = peerState.getLong("loadCounter");
+                HttpGet get = RegistryPeerConnector.withTimeouts(new HttpGet(peerUrl + feedPath + "?afterCounter=" + afterCounter));
+                get.setHeader("Accept", "text/event-stream");
+                HttpResponse resp = client.execute(get);
+                int httpStatus = resp.getStatusLine().getStatusCode();
+                if (httpStatus == 404) {
+                    EntityUtils.consumeQuietly(resp.getEntity());
+                    logger.info("Peer {} does not offer a change feed; no longer listening", peerUrl);
+                    return;
+                }
+                if (httpStatus < 200 || httpStatus >= 300) {
+                    EntityUtils.consumeQuietly(resp.getEntity());
+                    throw new IOException("HTTP " + httpStatus + " " + resp.getStatusLine().getReasonPhrase());
+                }
+                // The last counter up to which all announced nanopubs have been handled:
+                AtomicLong appliedCounter = new AtomicLong(afterCounter);
+                AtomicBoolean gap = new AtomicBoolean(false);
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(resp.getEntity().getContent(), StandardCharsets.UTF_8))) {
+                    retryDelay = MIN_RETRY_DELAY;
+                    readEvents(reader, e -> handleEvent(s, client, peerUrl, setupId, appliedCounter, gap, e));
+                }
+                if (gap.get()) {
+                    logger.info("Change feed of peer {} skips counters after {}; leaving them to the next CHECK_NEW run", peerUrl, appliedCounter.get());
+                    return;
+                }
+                logger.debug("Change feed of peer {} ended; subscribing again", peerUrl);
+            } catch (Exception ex) {
+                logger.info("Change feed of peer {} failed: {} ({}); retrying in {} ms", peerUrl, ex.getMessage(), ex.getClass().getSimpleName(), retryDelay);
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException iex) {
+                    return;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Reads an event stream and hands each event to the given handler, until the stream ends or the
+     * handler returns false.
+     */
+    static void readEvents(BufferedReader reader, Predicate<SseEvent> handler) throws IOException {
+        String name = null;
+        String id = null;
+        StringBuilder data = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data != null && !handler.test(new SseEvent(name == null ? "message" : name, id, data.toString()))) {
+                    return;
+                }
+                name = null;
+                data = null;
+            } else if (line.startsWith(":")) {
+                // Comment, e.g. a keep-alive
+            } else {
+                int colon = line.indexOf(':');
+                String field = colon < 0 ? line : line.substring(0, colon);
+                String value = colon < 0 ? "" : line.substring(colon + 1).replaceFirst("^ ", "");
+                switch (field) {
+                    case "event" -> name = value;
+                    case "id" -> id = value;
+                    case "data" -> data = data == null ? new StringBuilder(value) : data.append('\n').append(value);
+                    default -> {
+                        // Ignore 'retry' and unknown fields
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles one event of a peer's change feed. The recorded counter of the peer is only moved on
+     * to a counter that directly follows the last one handled; on a gap, the stream is ended and the
+     * given flag is set.
+     *
+     * @return false if the stream is to be ended
+     */
+    static boolean handleEvent(ClientSession s, HttpClient client, String peerUrl, long setupId, AtomicLong appliedCounter, AtomicBoolean gap, SseEvent event) {
+        switch (event.name()) {
+            case "nanopub" -> {
+                ChangeFeed.NanopubChange change = gson.fromJson(event.data(), ChangeFeed.NanopubChange.class);
+                if (change.counter() <= appliedCounter.get()) {
+                    return true;
+                }
+                loadAnnouncedNanopub(s, client, peerUrl, change);
+                if (change.counter() != appliedCounter.get() + 1) {
+                    gap.set(true);
+                    return false;
+                }
+                appliedCounter.set(change.counter());
+                RegistryPeerConnector.advancePeerState(s, peerUrl, setupId, change.counter());
+                return true;
+            }
+            case "resync" -> {
+                gap.set(true);
+                return false;
+            }
+            case "catch-up" -> {
+                Document peerState = RegistryPeerConnector.getPeerState(s, peerUrl);
+                long afterCounter = peerState == null ? 0 : peerState.getLong("loadCounter");
+                logger.info("Peer {} asks to catch up after counter {}; fetching from its nanopub feed", peerUrl, afterCounter);
+                long lastReceived = RegistryPeerConnector.loadRecentNanopubs(s, peerUrl, afterCounter);
+                if (lastReceived > 0) {
+                    RegistryPeerConnector.advancePeerState(s, peerUrl, setupId, lastReceived);
+                }
+                return false;
+            }
+            case "trust-state" -> {
+                logger.debug("Peer {} published trust state {}", peerUrl, event.data());
+                return true;
+            }
+            default -> {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Loads an announced nanopub from the peer, unless it is stored already or none of its types
+     * is covered.
+     */
+    static void loadAnnouncedNanopub(ClientSession s, HttpClient client, String peerUrl, ChangeFeed.NanopubChange change) {
+        if (change.artifactCode() == null || RegistryDB.getStoredPubkeyHash(s, change.artifactCode()) != null) {
+            return;
+        }
+        if (!CoverageFilter.coversAllTypes() && change.typeHashes() != null && !change.typeHashes().isEmpty()
+                && change.typeHashes().stream().noneMatch(CoverageFilter::isCoveredType)) {
+            logger.trace("Skipping announced nanopub {}: no covered type", change.artifactCode());
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            Nanopub np = NanopubLoader.get(change.artifactCode(), peerUrl, client);
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+            if (np == null) {
+                logger.warn("Peer {} announced nanopub {} but does not serve it", peerUrl, change.artifactCode());
+                return;
+            }
+            if (CoverageFilter.isCovered(np)) {
+                NanopubLoader.simpleLoad(s, np);
+                logger.debug("Loaded nanopub {} announced by peer {} (counter {})", change.artifactCode(), peerUrl, change.counter());
+            }
+        } catch (IOException ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
+            throw new RuntimeException("Failed to fetch announced nanopub " + change.artifactCode(), ex);
+        } catch (Exception ex) {
+            // A broken nanopub must not stop the feed; it was announced, so it counts as seen
+            logger.warn("Failed to load nanopub {} announced by peer {}: {}", change.artifactCode(), peerUrl, ex.getMessage());
+        }
+    }
+
+    static void stopAll() {
+        listeners.values().forEach(Thread::interrupt);
+        listeners.clear();
+    }
+
+}
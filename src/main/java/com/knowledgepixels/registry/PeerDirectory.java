@@ -0,0 +1,536 @@
+package com.knowledgepixels.registry;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of how the peer registries have been doing, so that requests go to the best healthy
+ * peer first instead of to a random one.
+ *
+ * <p>For each peer, this records exponentially weighted moving averages of request latency,
+ * download throughput and error rate, as well as the {@code Nanopub-Registry-Status} and setup ID
+ * it last reported. These are refreshed by the HEAD probes of {@link RegistryPeerConnector} and by
+ * every regular request to the peer.
+ *
+ * <p>Each peer also has a circuit breaker. It opens after {@code REGISTRY_PEER_FAILURE_THRESHOLD}
+ * consecutive failures (default 3), after which the peer is left out of {@link #rankPeers} for
+ * {@code REGISTRY_PEER_BREAKER_COOLDOWN} milliseconds (default 60000). After that, a single trial
+ * request is let through (half-open): if it succeeds the breaker closes, otherwise it opens again.
+ * Ranking only looks at the breaker; the trial is claimed with {@link #allowRequest} when a
+ * request is actually sent. A successful HEAD probe also closes it.
+ */
+public final class PeerDirectory {
+
+    private PeerDirectory() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PeerDirectory.class);
+
+    /**
+     * Weight of the newest observation in the moving averages.
+     */
+    static final double EWMA_ALPHA = 0.3;
+
+    static final int FAILURE_THRESHOLD = Integer.parseInt(Utils.getEnv("REGISTRY_PEER_FAILURE_THRESHOLD", "3"));
+
+    static final long BREAKER_COOLDOWN = Long.parseLong(Utils.getEnv("REGISTRY_PEER_BREAKER_COOLDOWN", "60000"));
+
+    /**
+     * How long a reported status is trusted; after that, the peer is tried again whatever it said.
+     */
+    static final long STATUS_TTL = 5 * 60 * 1000;
+
+    public enum BreakerState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * The statistics of a single peer. All access is synchronized on the instance.
+     */
+    public static final class PeerStats {
+
+        private final String peerUrl;
+        private double latencyMs = Double.NaN;
+        private double throughput = Double.NaN;
+        private double errorRate = 0;
+        private long requestCount = 0;
+        private long failureCount = 0;
+        private int consecutiveFailures = 0;
+        private String status;
+        private long statusTime;
+        private Long setupId;
+        private Long loadCounter;
+        private boolean testInstance;
+        private BreakerState breakerState = BreakerState.CLOSED;
+        private long breakerChangeTime;
+        private Set<String> coveredTypes;
+        private Set<String> coveredPubkeys;
+        private boolean coverageKnown;
+        private final Map<String, Long> listSizes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_LIST_SIZES_PER_PEER;
+            }
+        };
+
+        PeerStats(String peerUrl) {
+            this.peerUrl = peerUrl;
+        }
+
+        public String getPeerUrl() {
+            return peerUrl;
+        }
+
+        public synchronized double getLatencyMs() {
+            return latencyMs;
+        }
+
+        public synchronized double getThroughput() {
+            return throughput;
+        }
+
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        public synchronized long getRequestCount() {
+            return requestCount;
+        }
+
+        public synchronized long getFailureCount() {
+            return failureCount;
+        }
+
+        public synchronized String getStatus() {
+            return status;
+        }
+
+        public synchronized Long getSetupId() {
+            return setupId;
+        }
+
+        public synchronized Long getLoadCounter() {
+            return loadCounter;
+        }
+
+        public synchronized BreakerState getBreakerState() {
+            return breakerState;
+        }
+
+        private static double ewma(double current, double sample) {
+            return Double.isNaN(current) ? sample : EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * current;
+        }
+
+        synchronized void recordSuccess(long latency) {
+            latencyMs = ewma(latencyMs, latency);
+            errorRate = ewma(errorRate, 0);
+            requestCount++;
+            consecutiveFailures = 0;
+            if (breakerState != BreakerState.CLOSED) {
+                logger.info("Circuit breaker for peer {} closed again", peerUrl);
+                breakerState = BreakerState.CLOSED;
+                breakerChangeTime = System.currentTimeMillis();
+            }
+        }
+
+        synchronized void recordFailure() {
+            errorRate = ewma(errorRate, 1);
+            requestCount++;
+            failureCount++;
+            consecutiveFailures++;
+            if (breakerState == BreakerState.HALF_OPEN || (breakerState == BreakerState.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+                logger.warn("Circuit breaker for peer {} opened after {} consecutive failure(s)", peerUrl, consecutiveFailures);
+                breakerState = BreakerState.OPEN;
+                breakerChangeTime = System.currentTimeMillis();
+            }
+        }
+
+        synchronized void recordThroughput(long bytes, long durationMs) {
+            if (bytes > 0 && durationMs > 0) {
+                throughput = ewma(throughput, bytes * 1000.0 / durationMs);
+            }
+        }
+
+        synchronized void recordStatus(String status, Long setupId, Long loadCounter, boolean testInstance) {
+            this.status = status;
+            this.statusTime = System.currentTimeMillis();
+            if (setupId != null) {
+                this.setupId = setupId;
+            }
+            if (loadCounter != null) {
+                this.loadCounter = loadCounter;
+            }
+            this.testInstance = testInstance;
+        }
+
+        /**
+         * Checks, without changing the breaker, whether a request to this peer would be let
+         * through now: the breaker is closed, or its cooldown has passed.
+         */
+        synchronized boolean isAvailable() {
+            return breakerState == BreakerState.CLOSED || System.currentTimeMillis() - breakerChangeTime >= BREAKER_COOLDOWN;
+        }
+
+        /**
+         * Checks whether a request may be sent to this peer now. An open breaker whose cooldown
+         * has passed turns half-open and lets this one request through; further requests are
+         * held back until it has succeeded, or until another cooldown has passed without an answer.
+         */
+        synchronized boolean allowRequest() {
+            long now = System.currentTimeMillis();
+            if (breakerState == BreakerState.CLOSED) {
+                return true;
+            }
+            if (now - breakerChangeTime < BREAKER_COOLDOWN) {
+                return false;
+            }
+            if (breakerState == BreakerState.OPEN) {
+                logger.info("Circuit breaker for peer {} half-open; letting a trial request through", peerUrl);
+            }
+            breakerState = BreakerState.HALF_OPEN;
+            breakerChangeTime = now;
+            return true;
+        }
+
+        /**
+         * Whether the peer recently reported a state in which it should not be asked for data.
+         */
+        synchronized boolean isKnownUnavailable() {
+            if (status == null || System.currentTimeMillis() - statusTime > STATUS_TTL) {
+                return false;
+            }
+            return testInstance || (!"ready".equals(status) && !"updating".equals(status));
+        }
+
+        synchronized void recordCoverage(Set<String> coveredTypes, Set<String> coveredPubkeys) {
+            this.coveredTypes = coveredTypes;
+            this.coveredPubkeys = coveredPubkeys;
+            this.coverageKnown = true;
+        }
+
+        synchronized void recordListSize(String key, long size) {
+            // Lists only grow, so a shorter count comes from a stream that was not read to the end
+            listSizes.merge(key, size, Math::max);
+        }
+
+        synchronized Long getListSize(String key) {
+            return listSizes.get(key);
+        }
+
+        /**
+         * Returns how well this peer covers the given list, based on the coverage it advertised:
+         * {@link #COVERS} if it stores all of it (or nothing is known), {@link #COVERS_PARTIALLY}
+         * for the {@code $} list of a type-restricted peer, and {@link #DOES_NOT_COVER} if the
+         * type or pubkey is outside its coverage.
+         */
+        synchronized int coverageOf(String pubkeyHash, String typeHash) {
+            if (!coverageKnown) {
+                return COVERS;
+            }
+            if (coveredPubkeys != null && !coveredPubkeys.contains(pubkeyHash)) {
+                return DOES_NOT_COVER;
+            }
+            if (coveredTypes == null) {
+                return COVERS;
+            }
+            if ("$".equals(typeHash)) {
+                return COVERS_PARTIALLY;
+            }
+            return coveredTypes.contains(typeHash) ? COVERS : DOES_NOT_COVER;
+        }
+
+        /**
+         * Lower is better: the expected latency, inflated by the error rate. Peers without any
+         * latency sample yet score 0, so they are tried early and get measured.
+         */
+        synchronized double score() {
+            double latency = Double.isNaN(latencyMs) ? 0 : latencyMs;
+            return latency * (1 + 4 * errorRate);
+        }
+
+    }
+
+    static final int COVERS = 0;
+    static final int COVERS_PARTIALLY = 1;
+    static final int DOES_NOT_COVER = 2;
+
+    private static final int MAX_LIST_SIZES_PER_PEER = 10000;
+
+    private static final Map<String, PeerStats> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the statistics of the given peer, creating empty ones if it was not seen before.
+     *
+     * @param peerUrl the peer URL
+     * @return the statistics
+     */
+    public static PeerStats get(String peerUrl) {
+        return peers.computeIfAbsent(peerUrl, PeerStats::new);
+    }
+
+    /**
+     * Returns the statistics of all peers seen so far.
+     *
+     * @return the statistics, in no particular order
+     */
+    public static List<PeerStats> getAll() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /**
+     * Records the outcome of a HEAD probe that got an HTTP response. A probe that reaches the peer
+     * counts as a successful request, whatever status the peer reports.
+     *
+     * @param peerUrl      the peer URL
+     * @param latency      the time until the response arrived, in milliseconds
+     * @param status       the reported {@code Nanopub-Registry-Status}, or null
+     * @param setupId      the reported setup ID, or null
+     * @param loadCounter  the reported load counter, or null
+     * @param testInstance whether the peer reported to be a test instance
+     */
+    public static void recordProbe(String peerUrl, long latency, String status, Long setupId, Long loadCounter, boolean testInstance) {
+        PeerStats stats = get(peerUrl);
+        stats.recordSuccess(latency);
+        stats.recordStatus(status, setupId, loadCounter, testInstance);
+    }
+
+    /**
+     * Records a successful request to the peer.
+     *
+     * @param peerUrl the peer URL
+     * @param latency the time until the response arrived, in milliseconds
+     */
+    public static void recordSuccess(String peerUrl, long latency) {
+        get(peerUrl).recordSuccess(latency);
+    }
+
+    /**
+     * Records a failed request to the peer (network error or unexpected HTTP status).
+     *
+     * @param peerUrl the peer URL
+     */
+    public static void recordFailure(String peerUrl) {
+        get(peerUrl).recordFailure();
+    }
+
+    /**
+     * Records a request to the peer that failed with the given exception. Running out of time
+     * while waiting for a free pooled connection is not held against the peer, as the request
+     * never left this registry.
+     *
+     * @param peerUrl the peer URL
+     * @param ex      the exception the request failed with
+     */
+    public static void recordFailure(String peerUrl, Exception ex) {
+        if (ex instanceof ConnectionPoolTimeoutException) {
+            logger.debug("No free connection to peer {} in time; not counted as a peer failure", peerUrl);
+            return;
+        }
+        recordFailure(peerUrl);
+    }
+
+    /**
+     * Records the registry status reported in the headers of a regular response.
+     *
+     * @param peerUrl the peer URL
+     * @param status  the reported {@code Nanopub-Registry-Status}, or null
+     */
+    public static void recordStatus(String peerUrl, String status) {
+        get(peerUrl).recordStatus(status, null, null, false);
+    }
+
+    /**
+     * Records the coverage a peer advertises in its {@code Nanopub-Registry-Coverage-Types} and
+     * {@code Nanopub-Registry-Coverage-Agents} headers. Types are given as type URIs or type hashes,
+     * separated by whitespace or commas, or as {@code all}. Agents are given as {@code viaSetting}
+     * (all agents of the trust network) and/or explicit {@code pubkeyHash:quota} entries. Missing
+     * headers leave the coverage unknown, so the peer is assumed to cover everything.
+     *
+     * @param peerUrl      the peer URL
+     * @param typesHeader  the advertised types, or null
+     * @param agentsHeader the advertised agents, or null
+     */
+    public static void recordCoverage(String peerUrl, String typesHeader, String agentsHeader) {
+        if (typesHeader == null && agentsHeader == null) {
+            return;
+        }
+        get(peerUrl).recordCoverage(parseCoverageTypes(typesHeader), parseCoverageAgents(agentsHeader));
+    }
+
+    static Set<String> parseCoverageTypes(String header) {
+        if (header == null || header.isBlank() || "all".equalsIgnoreCase(header.trim()) || "null".equals(header.trim())) {
+            return null;
+        }
+        Set<String> types = new HashSet<>();
+        for (String entry : header.trim().split("[\\s,]+")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            types.add(entry.matches("[0-9a-f]{64}") ? entry : Utils.getHash(entry));
+        }
+        // Core types are always covered, whatever is configured
+        types.add(NanopubLoader.INTRO_TYPE_HASH);
+        types.add(NanopubLoader.ENDORSE_TYPE_HASH);
+        return Collections.unmodifiableSet(types);
+    }
+
+    static Set<String> parseCoverageAgents(String header) {
+        if (header == null || header.isBlank()) {
+            return null;
+        }
+        Set<String> pubkeys = new HashSet<>();
+        for (String entry : header.trim().split("\\s+")) {
+            if ("viaSetting".equals(entry)) {
+                // Any agent of the trust network may be covered
+                return null;
+            }
+            pubkeys.add(entry.contains(":") ? entry.substring(0, entry.indexOf(':')) : entry);
+        }
+        return Collections.unmodifiableSet(pubkeys);
+    }
+
+    /**
+     * Records the size of a list as a peer served it in full, so that peers with a truncated copy
+     * of that list can be told apart from those with a complete one.
+     *
+     * @param peerUrl    the peer URL
+     * @param pubkeyHash the pubkey hash of the list
+     * @param typeHash   the type hash of the list
+     * @param size       the number of nanopubs received
+     */
+    public static void recordListSize(String peerUrl, String pubkeyHash, String typeHash, long size) {
+        get(peerUrl).recordListSize(pubkeyHash + " " + typeHash, size);
+    }
+
+    /**
+     * Orders the given peers for fetching the list of the given pubkey and type. Peers that do not
+     * cover the list according to their advertised coverage are left out, and peers that hold it
+     * only partially come after those that hold all of it. Among these, peers that served a longer
+     * copy of the list before come first, and the rest is in the order of {@link #rankPeers}.
+     *
+     * @param peerUrls   the candidate peers
+     * @param pubkeyHash the pubkey hash of the list
+     * @param typeHash   the type hash of the list
+     * @return the peers to try, best first
+     */
+    public static List<String> rankPeersFor(List<String> peerUrls, String pubkeyHash, String typeHash) {
+        String key = pubkeyHash + " " + typeHash;
+        List<PeerStats> candidates = new ArrayList<>();
+        for (String peerUrl : rankPeers(peerUrls)) {
+            PeerStats stats = get(peerUrl);
+            if (stats.coverageOf(pubkeyHash, typeHash) == DOES_NOT_COVER) {
+                logger.debug("Leaving out peer {}: does not cover pubkey {} / type {}", peerUrl, pubkeyHash, typeHash);
+                continue;
+            }
+            candidates.add(stats);
+        }
+        candidates.sort(Comparator.<PeerStats>comparingInt(p -> p.coverageOf(pubkeyHash, typeHash))
+                .thenComparing(p -> {
+                    Long size = p.getListSize(key);
+                    return size == null ? 0L : -size;
+                }));
+        return candidates.stream().map(PeerStats::getPeerUrl).toList();
+    }
+
+    /**
+     * Orders the given peers for a request: peers whose breaker is open or that recently reported
+     * not to be ready are left out, and the rest are sorted by their {@link PeerStats#score score}.
+     * Ties are broken randomly, to spread load among equally good peers.
+     *
+     * @param peerUrls the candidate peers
+     * @return the peers to try, best first
+     */
+    public static List<String> rankPeers(List<String> peerUrls) {
+        List<PeerStats> candidates = new ArrayList<>();
+        for (String peerUrl : peerUrls) {
+            PeerStats stats = get(peerUrl);
+            if (stats.isKnownUnavailable()) {
+                logger.debug("Leaving out peer {}: last reported status '{}'", peerUrl, stats.getStatus());
+                continue;
+            }
+            if (!stats.isAvailable()) {
+                logger.debug("Leaving out peer {}: circuit breaker open", peerUrl);
+                continue;
+            }
+            candidates.add(stats);
+        }
+        Collections.shuffle(candidates);
+        candidates.sort(Comparator.comparingDouble(PeerStats::score));
+        return candidates.stream().map(PeerStats::getPeerUrl).toList();
+    }
+
+    /**
+     * Checks whether a request may be sent to the peer now, and claims the trial request of a
+     * half-open breaker. To be called right before a request is sent, not for ranking.
+     *
+     * @param peerUrl the peer URL
+     * @return true if the request may be sent
+     */
+    public static boolean allowRequest(String peerUrl) {
+        return get(peerUrl).allowRequest();
+    }
+
+    /**
+     * Wraps a response body so that the download throughput is recorded for the peer when the
+     * stream is closed.
+     *
+     * @param peerUrl the peer URL
+     * @param in      the response body
+     * @return the wrapped stream
+     */
+    public static InputStream meter(String peerUrl, InputStream in) {
+        long startTime = System.currentTimeMillis();
+        return new FilterInputStream(in) {
+
+            private long bytes = 0;
+            private boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytes += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    get(peerUrl).recordThroughput(bytes, System.currentTimeMillis() - startTime);
+                }
+                super.close();
+            }
+
+        };
+    }
+
+    static void clear() {
+        peers.clear();
+    }
+
+}
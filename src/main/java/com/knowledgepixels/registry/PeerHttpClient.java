@@ -0,0 +1,253 @@
+package com.knowledgepixels.registry;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The HTTP client for all outbound traffic to peers and legacy servers, owned by the registry
+ * instead of shared with the rest of the JVM via {@code NanopubUtils.getHttpClient()}.
+ *
+ * <p>Connections are pooled per peer (at most {@code REGISTRY_HTTP_MAX_PER_PEER}, default 10,
+ * and {@code REGISTRY_HTTP_MAX_TOTAL} overall, default 100) and kept alive for as long as the peer
+ * allows, or {@code REGISTRY_HTTP_KEEP_ALIVE} ms (default 30 s) if it does not say. Idle and expired
+ * connections are evicted in the background. Every request gets the connect timeout
+ * ({@code REGISTRY_PEER_CONNECT_TIMEOUT}, also the time to wait for a pooled connection), the read
+ * timeout between two packets ({@code REGISTRY_PEER_READ_TIMEOUT}), and a total timeout until the
+ * response head has arrived ({@code REGISTRY_PEER_TOTAL_TIMEOUT}, default 30 s). Parallel list
+ * range downloads only use the connections per peer that the account loading workers leave free,
+ * so that they do not queue up for the pool. Bodies are not
+ * covered by the total timeout, as list and feed streams may legitimately take hours, but they are
+ * streamed, so a stalled body still runs into the read timeout.
+ *
+ * <p>The pool and the time to the response head per peer are reported in the metrics.
+ */
+public final class PeerHttpClient {
+
+    private PeerHttpClient() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PeerHttpClient.class);
+
+    static final int CONNECT_TIMEOUT = Integer.parseInt(Utils.getEnv("REGISTRY_PEER_CONNECT_TIMEOUT", "5000"));
+
+    static final int READ_TIMEOUT = Integer.parseInt(Utils.getEnv("REGISTRY_PEER_READ_TIMEOUT", "60000"));
+
+    static final int TOTAL_TIMEOUT = Integer.parseInt(Utils.getEnv("REGISTRY_PEER_TOTAL_TIMEOUT", "30000"));
+
+    static final int MAX_PER_PEER = Integer.parseInt(Utils.getEnv("REGISTRY_HTTP_MAX_PER_PEER", "10"));
+
+    static final int MAX_TOTAL = Integer.parseInt(Utils.getEnv("REGISTRY_HTTP_MAX_TOTAL", "100"));
+
+    static final long KEEP_ALIVE = Long.parseLong(Utils.getEnv("REGISTRY_HTTP_KEEP_ALIVE", "30000"));
+
+    /**
+     * How many connections per peer parallel list range downloads may take, on top of the one
+     * list request of each account loading worker. One connection is left for other requests.
+     */
+    static final int MAX_EXTRA_STREAMS_PER_PEER = Math.max(0, MAX_PER_PEER - AccountLoadScheduler.PARALLELISM - 1);
+
+    private static final Map<String, Semaphore> extraStreams = new ConcurrentHashMap<>();
+
+    static final RequestConfig REQUEST_CONFIG = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT)
+            .setConnectionRequestTimeout(CONNECT_TIMEOUT)
+            .setSocketTimeout(READ_TIMEOUT)
+            .build();
+
+    /**
+     * Requests to one host, as seen by the client.
+     */
+    public static final class RequestStats {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(long nanos, boolean success) {
+            count.increment();
+            totalNanos.add(nanos);
+            if (!success) {
+                failures.increment();
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        public double getTotalTimeMs() {
+            return totalNanos.sum() / 1_000_000.0;
+        }
+
+    }
+
+    private static final Map<String, RequestStats> requestStats = new ConcurrentHashMap<>();
+
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "http-total-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    // Only built when first used
+    private static final class Holder {
+
+        static final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+
+        static final CloseableHttpClient client;
+
+        static {
+            connectionManager.setDefaultMaxPerRoute(MAX_PER_PEER);
+            connectionManager.setMaxTotal(MAX_TOTAL);
+            connectionManager.setValidateAfterInactivity(2000);
+            ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+                long fromPeer = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return fromPeer > 0 ? Math.min(fromPeer, KEEP_ALIVE) : KEEP_ALIVE;
+            };
+            client = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(REQUEST_CONFIG)
+                    .setKeepAliveStrategy(keepAlive)
+                    .setRequestExecutor(new TimedRequestExecutor())
+                    .evictExpiredConnections()
+                    .evictIdleConnections(KEEP_ALIVE, TimeUnit.MILLISECONDS)
+                    .setUserAgent("nanopub-registry")
+                    .build();
+            logger.info("Outbound HTTP client ready: {} connections per peer, {} in total, timeouts {}/{}/{} ms (connect/read/total)",
+                    MAX_PER_PEER, MAX_TOTAL, CONNECT_TIMEOUT, READ_TIMEOUT, TOTAL_TIMEOUT);
+        }
+
+    }
+
+    /**
+     * Returns the shared client. Responses have to be consumed or closed, or their connection is
+     * not returned to the pool.
+     */
+    public static CloseableHttpClient get() {
+        return Holder.client;
+    }
+
+    /**
+     * Claims a connection to the given peer for an optional parallel download, if one is free
+     * (see {@link #MAX_EXTRA_STREAMS_PER_PEER}). Never waits, so that optional downloads do not
+     * run into the time limit for getting a pooled connection.
+     *
+     * @param peerUrl the peer URL
+     * @return true if the connection was claimed; it has to be given back with {@link #releaseExtraStream}
+     */
+    public static boolean tryAcquireExtraStream(String peerUrl) {
+        return extraStreams.computeIfAbsent(peerUrl, url -> new Semaphore(MAX_EXTRA_STREAMS_PER_PEER)).tryAcquire();
+    }
+
+    /**
+     * Gives back a connection claimed with {@link #tryAcquireExtraStream}.
+     *
+     * @param peerUrl the peer URL
+     */
+    public static void releaseExtraStream(String peerUrl) {
+        extraStreams.get(peerUrl).release();
+    }
+
+    /**
+     * Returns the statistics of the whole connection pool.
+     */
+    public static PoolStats getPoolStats() {
+        return Holder.connectionManager.getTotalStats();
+    }
+
+    /**
+     * Returns the pool statistics of the given host, as named in {@link #getRequestStats()}.
+     */
+    public static PoolStats getPoolStats(String host) {
+        for (HttpRoute route : Holder.connectionManager.getRoutes()) {
+            if (route.getTargetHost().toURI().equals(host)) {
+                return Holder.connectionManager.getStats(route);
+            }
+        }
+        return new PoolStats(0, 0, 0, MAX_PER_PEER);
+    }
+
+    /**
+     * Returns the request statistics per host ({@code scheme://host:port}).
+     */
+    public static Map<String, RequestStats> getRequestStats() {
+        return requestStats;
+    }
+
+    /**
+     * Sends the request and waits for the response head, like the default executor, but gives up
+     * after the total timeout and records the time it took.
+     */
+    private static final class TimedRequestExecutor extends HttpRequestExecutor {
+
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+            long startTime = System.nanoTime();
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> timeout = TOTAL_TIMEOUT <= 0 ? null : timeouts.schedule(() -> {
+                timedOut.set(true);
+                try {
+                    conn.shutdown();
+                } catch (IOException ex) {
+                    logger.debug("Failed to shut down timed-out connection: {}", ex.getMessage());
+                }
+            }, TOTAL_TIMEOUT, TimeUnit.MILLISECONDS);
+            boolean success = false;
+            try {
+                HttpResponse response = super.execute(request, conn, context);
+                success = true;
+                return response;
+            } catch (IOException ex) {
+                if (timedOut.get()) {
+                    throw new SocketTimeoutException("No response within " + TOTAL_TIMEOUT + " ms: " + request.getRequestLine().getUri());
+                }
+                throw ex;
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+                if (target != null) {
+                    requestStats.computeIfAbsent(target.toURI(), h -> new RequestStats()).record(System.nanoTime() - startTime, success);
+                }
+            }
+        }
+
+    }
+
+}
@@ -7,6 +7,7 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.CountOptions;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.UpdateOptions;
@@ -16,6 +17,7 @@ import org.bson.conversions.Bson;
 import org.bson.types.Binary;
 import org.eclipse.rdf4j.common.exception.RDF4JException;
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.nanopub.MalformedNanopubException;
 import org.nanopub.Nanopub;
@@ -25,6 +27,7 @@ import org.nanopub.extra.server.NanopubServerUtils;
 import org.nanopub.extra.security.NanopubSignatureElement;
 import org.nanopub.extra.security.SignatureUtils;
 import org.nanopub.jelly.JellyUtils;
+import org.nanopub.trusty.TrustyNanopubUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,11 +36,17 @@ import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Indexes.ascending;
 
 public class RegistryDB {
@@ -71,13 +80,117 @@ public class RegistryDB {
     }
 
     /**
-     * Returns the specified collection from the MongoDB database.
+     * Named write-concern profiles, applied per collection by {@link #collection(String)}.
+     */
+    public enum WriteProfile {
+
+        /**
+         * The client's default write concern.
+         */
+        DEFAULT(null),
+
+        /**
+         * Acknowledged by the primary only, without waiting for the journal. Used where losing the
+         * last few writes on a crash is harmless: staging collections that are rebuilt from scratch,
+         * and the loaders of the initial load, whose data is repeated from peers anyway (see
+         * {@link #getLoadProfile}). Only ever used together with a
+         * {@link #awaitDurability() durability barrier} before the data is published.
+         */
+        BULK(WriteConcern.W1.withJournal(false)),
+
+        /**
+         * Majority-acknowledged and journaled. Used for the durability barrier.
+         */
+        DURABLE(WriteConcern.MAJORITY.withJournal(true));
+
+        private final WriteConcern writeConcern;
+
+        WriteProfile(WriteConcern writeConcern) {
+            this.writeConcern = writeConcern;
+        }
+
+        /**
+         * Returns the write concern of this profile.
+         *
+         * @return the write concern, or null for the client's default
+         */
+        public WriteConcern getWriteConcern() {
+            return writeConcern;
+        }
+
+    }
+
+    private static final boolean BULK_WRITE_PROFILE_ENABLED = !"false".equals(Utils.getEnv("REGISTRY_ENABLE_BULK_WRITE_CONCERN", null));
+
+    /**
+     * Returns the specified collection from the MongoDB database, with the write concern of the
+     * profile that currently applies to it.
      *
      * @param name the name of the collection
      * @return the MongoCollection instance
+     * @see #getWriteProfile(String)
      */
     public static MongoCollection<Document> collection(String name) {
-        return mongoDB.getCollection(name);
+        return collection(name, getWriteProfile(name));
+    }
+
+    /**
+     * Returns the specified collection from the MongoDB database with the given write profile.
+     *
+     * @param name    the name of the collection
+     * @param profile the write profile to apply
+     * @return the MongoCollection instance
+     */
+    public static MongoCollection<Document> collection(String name, WriteProfile profile) {
+        MongoCollection<Document> c = mongoDB.getCollection(name);
+        return profile.getWriteConcern() == null ? c : c.withWriteConcern(profile.getWriteConcern());
+    }
+
+    /**
+     * Returns the write profile that applies to the given collection: {@link WriteProfile#BULK}
+     * for the staging collections of a trust-state cycle, {@link WriteProfile#DEFAULT} otherwise.
+     * Loaders that may write with {@link WriteProfile#BULK} pass it explicitly instead.
+     *
+     * <p>Inside a transaction, the transaction's write concern takes precedence.
+     *
+     * @param name the name of the collection
+     * @return the write profile
+     */
+    public static WriteProfile getWriteProfile(String name) {
+        if (!BULK_WRITE_PROFILE_ENABLED) {
+            return WriteProfile.DEFAULT;
+        }
+        if (LOADING_COLLECTIONS.containsKey(name)) {
+            return WriteProfile.BULK;
+        }
+        return WriteProfile.DEFAULT;
+    }
+
+    /**
+     * Returns the write profile for the loaders of nanopubs from peers at the given server status:
+     * {@link WriteProfile#BULK} while the registry is still loading its initial data
+     * ({@code coreLoading} or {@code coreReady}), {@link WriteProfile#DEFAULT} otherwise. Leaving
+     * these states has to pass a {@link #awaitDurability() durability barrier}.
+     *
+     * @param status the server status
+     * @return the write profile for loaders
+     */
+    public static WriteProfile getLoadProfile(ServerStatus status) {
+        if (BULK_WRITE_PROFILE_ENABLED && (status == ServerStatus.coreLoading || status == ServerStatus.coreReady)) {
+            return WriteProfile.BULK;
+        }
+        return WriteProfile.DEFAULT;
+    }
+
+    /**
+     * Blocks until all writes so far, including those made with {@link WriteProfile#BULK}, are
+     * journaled and replicated to a majority. The journal is written sequentially, so a single
+     * {@link WriteProfile#DURABLE} write covers every write before it.
+     */
+    public static void awaitDurability() {
+        long startTime = System.currentTimeMillis();
+        collection(Collection.SERVER_INFO.toString(), WriteProfile.DURABLE).updateOne(new Document("_id", "durabilityBarrier"), new Document("$set", new Document("value", startTime)), new UpdateOptions().upsert(true));
+        logger.debug("Durability barrier passed in {} ms", System.currentTimeMillis() - startTime);
     }
 
     /**
@@ -103,6 +216,7 @@ public class RegistryDB {
                 logger.debug("Database '{}' already has setupId", REGISTRY_DB_NAME);
             }
             initCounter(mongoSession);
+            NanopubExistenceFilter.rebuild(mongoSession);
         }
     }
 
@@ -161,6 +275,8 @@ public class RegistryDB {
      * <p>Designed as an idempotent operation, since {@link #rename} is.
      */
     public static void promoteLoadingCollections() {
+        // The staging collections were written without waiting for the journal:
+        awaitDurability();
         for (Map.Entry<String, String> entry : LOADING_COLLECTIONS.entrySet()) {
             rename(entry.getKey(), entry.getValue());
         }
@@ -465,7 +581,7 @@ public class RegistryDB {
      * in the nanopubs collection.
      * Uses $max to ensure the counter is never decreased. Safe to call on every startup.
      */
-    private static void initCounter(ClientSession mongoSession) {
+    static void initCounter(ClientSession mongoSession) {
         Long maxCounter = (Long) getMaxValue(mongoSession, Collection.NANOPUBS.toString(), "counter");
         long effective = maxCounter != null ? maxCounter : 0L;
         collection("counters").updateOne(mongoSession, new Document("_id", "nanopubs"), new Document("$max", new Document("value", effective)), new UpdateOptions().upsert(true));
@@ -504,19 +620,114 @@ public class RegistryDB {
      * @return true if the nanopublication was loaded, false otherwise
      */
     public static boolean loadNanopub(ClientSession mongoSession, Nanopub nanopub, String pubkeyHash, String... types) {
+        return loadNanopub(mongoSession, WriteProfile.DEFAULT, nanopub, pubkeyHash, types);
+    }
+
+    /**
+     * Loads a nanopublication into the database like {@link #loadNanopub(ClientSession, Nanopub, String, String...)},
+     * writing the nanopub and its list entries with the given write profile.
+     *
+     * @param mongoSession the MongoDB client session
+     * @param profile      the write profile for the nanopub and its list entries (see {@link #getLoadProfile})
+     * @param nanopub      the nanopublication to load
+     * @param pubkeyHash   the public key hash to filter by (can be null)
+     * @param types        the types to filter by (can be empty)
+     * @return true if the nanopublication was loaded, false otherwise
+     */
+    public static boolean loadNanopub(ClientSession mongoSession, WriteProfile profile, Nanopub nanopub, String pubkeyHash, String... types) {
+        String ac = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
+        String storedPubkeyHash = (ac == null) ? null : getStoredPubkeyHash(mongoSession, ac);
+        if (storedPubkeyHash != null) {
+            // Signature was verified when the nanopub was first stored; only the lists need updating
+            return loadStoredNanopub(mongoSession, profile, nanopub, ac, storedPubkeyHash, pubkeyHash, types);
+        }
         String pubkey = getPubkey(nanopub);
         if (pubkey == null) {
             logger.warn("Ignoring nanopub {}: no valid public key / signature found", nanopub.getUri());
             return false;
         }
-        return loadNanopubVerified(mongoSession, nanopub, pubkey, pubkeyHash, types);
+        return loadNanopubVerified(mongoSession, profile, nanopub, pubkey, pubkeyHash, types);
     }
 
     /**
-     * Loads a nanopublication with a pre-verified public key, skipping signature verification.
-     * Use this when the caller has already verified the signature via getPubkey().
+     * Returns the pubkey hash recorded for an already stored nanopub, or null if the nanopub is not
+     * stored. The {@link NanopubExistenceFilter} answers most negative lookups without a query.
+     *
+     * @param mongoSession the MongoDB client session
+     * @param ac           the artifact code of the nanopub
+     * @return the stored pubkey hash, or null if the nanopub is not stored (or has no pubkey recorded)
      */
-    static boolean loadNanopubVerified(ClientSession mongoSession, Nanopub nanopub, String verifiedPubkey, String pubkeyHash, String... types) {
+    public static String getStoredPubkeyHash(ClientSession mongoSession, String ac) {
+        if (!NanopubExistenceFilter.mightContain(ac)) {
+            return null;
+        }
+        Document d = collection(Collection.NANOPUBS.toString()).find(mongoSession, new Document("_id", ac)).projection(new Document("pubkey", 1)).first();
+        if (d == null) {
+            logger.trace("Existence filter false positive for artifact {}", ac);
+            return null;
+        }
+        return d.getString("pubkey");
+    }
+
+    /**
+     * Returns which of the given artifact codes are stored, with a single query for all those the
+     * {@link NanopubExistenceFilter} does not rule out.
+     *
+     * @param mongoSession the MongoDB client session
+     * @param acs          the artifact codes to check
+     * @return the subset of the artifact codes that are stored
+     */
+    public static Set<String> getStoredArtifactCodes(ClientSession mongoSession, List<String> acs) {
+        List<String> candidates = new ArrayList<>();
+        for (String ac : acs) {
+            if (NanopubExistenceFilter.mightContain(ac)) {
+                candidates.add(ac);
+            }
+        }
+        Set<String> stored = new HashSet<>();
+        if (candidates.isEmpty()) {
+            return stored;
+        }
+        try (MongoCursor<Document> cursor = collection(Collection.NANOPUBS.toString()).find(mongoSession, in("_id", candidates)).projection(new Document("_id", 1)).cursor()) {
+            while (cursor.hasNext()) {
+                stored.add(cursor.next().getString("_id"));
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Adds an already stored nanopub to the given lists, skipping signature verification and
+     * serialization. The pubkey hash recorded at insert time stands in for the verified pubkey.
+     * The trusty hash of the incoming nanopub is still checked, as its types decide the lists it
+     * is added to and only the artifact code was matched against the stored one.
+     */
+    static boolean loadStoredNanopub(ClientSession mongoSession, Nanopub nanopub, String ac, String storedPubkeyHash, String pubkeyHash, String... types) {
+        return loadStoredNanopub(mongoSession, WriteProfile.DEFAULT, nanopub, ac, storedPubkeyHash, pubkeyHash, types);
+    }
+
+    private static boolean loadStoredNanopub(ClientSession mongoSession, WriteProfile profile, Nanopub nanopub, String ac, String storedPubkeyHash, String pubkeyHash, String... types) {
+        if (pubkeyHash != null && !pubkeyHash.equals(storedPubkeyHash)) {
+            logger.error("Rejecting nanopub {}: provided pubkey hash {} does not match stored hash {}", nanopub.getUri(), pubkeyHash, storedPubkeyHash);
+            return false;
+        }
+        if (!TrustyNanopubUtils.isValidTrustyNanopub(nanopub)) {
+            logger.error("Rejecting nanopub {}: content does not match the artifact code of the stored nanopub", nanopub.getUri());
+            return false;
+        }
+        logger.debug("Skipping verification of nanopub {}: already present in the database", nanopub.getUri());
+        updateLists(mongoSession, profile, nanopub, ac, storedPubkeyHash, pubkeyHash, types);
+        return true;
+    }
+
+    /**
+     * Checks the limits and sanity rules every stored nanopub has to satisfy, independent of its
+     * signature: size, protection, timestamp and graph URIs.
+     *
+     * @param nanopub the nanopub to check
+     * @return true if the nanopub may be stored, false if it has to be rejected
+     */
+    static boolean isAcceptable(Nanopub nanopub) {
         if (nanopub.getTripleCount() > 1200) {
             logger.error("Rejecting nanopub {}: triple count {} exceeds limit of 1200", nanopub.getUri(), nanopub.getTripleCount());
             return false;
@@ -547,6 +758,21 @@ public class RegistryDB {
                 return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Loads a nanopublication with a pre-verified public key, skipping signature verification.
+     * Use this when the caller has already verified the signature via getPubkey().
+     */
+    static boolean loadNanopubVerified(ClientSession mongoSession, Nanopub nanopub, String verifiedPubkey, String pubkeyHash, String... types) {
+        return loadNanopubVerified(mongoSession, WriteProfile.DEFAULT, nanopub, verifiedPubkey, pubkeyHash, types);
+    }
+
+    private static boolean loadNanopubVerified(ClientSession mongoSession, WriteProfile profile, Nanopub nanopub, String verifiedPubkey, String pubkeyHash, String... types) {
+        if (!isAcceptable(nanopub)) {
+            return false;
+        }
         String ph = Utils.getHash(verifiedPubkey);
         if (pubkeyHash != null && !pubkeyHash.equals(ph)) {
             logger.error("Rejecting nanopub {}: provided pubkey hash {} does not match computed hash {}", nanopub.getUri(), pubkeyHash, ph);
@@ -576,86 +802,210 @@ public class RegistryDB {
             long counter = getNextCounter(mongoSession);
             boolean inserted = false;
             try {
-                collection(Collection.NANOPUBS.toString()).insertOne(mongoSession, new Document("_id", ac).append("fullId", nanopub.getUri().stringValue()).append("counter", counter).append("pubkey", ph).append("content", nanopubString).append("jelly", new Binary(jellyContent)));
+                collection(Collection.NANOPUBS.toString(), profile).insertOne(mongoSession, new Document("_id", ac).append("fullId", nanopub.getUri().stringValue()).append("counter", counter).append("pubkey", ph).append("content", nanopubString).append("jelly", new Binary(jellyContent)));
                 inserted = true;
+                NanopubExistenceFilter.add(ac);
                 logger.info("Loaded nanopub {} (counter: {}, pubkey hash: {})", nanopub.getUri(), counter, ph);
+                ChangeFeed.notifyChanged();
             } catch (MongoWriteException e) {
                 if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
                     logger.error("Failed to insert nanopub {} (artifact {}): {}", nanopub.getUri(), ac, e.getMessage(), e);
                     throw e;
                 }
                 // Another thread inserted this nanopub concurrently — safe to skip
+                NanopubExistenceFilter.add(ac);
                 logger.debug("Skipping nanopub {}: inserted concurrently by another thread", nanopub.getUri());
             }
 
             if (inserted) {
-                for (IRI invalidatedId : Utils.getInvalidatedNanopubIds(nanopub)) {
-                    String invalidatedAc = TrustyUriUtils.getArtifactCode(invalidatedId.stringValue());
-                    if (invalidatedAc == null) {
-                        logger.warn("Nanopub {} references invalidated nanopub {} with an unresolvable artifact code; skipping", nanopub.getUri(), invalidatedId);
-                        continue;  // This should never happen; checking here just to be sure
-                    }
-
-                    // Add this nanopub also to all lists of invalidated nanopubs:
-                    logger.debug("Nanopub {} invalidates {}; updating list entries and trust edges", nanopub.getUri(), invalidatedId);
-                    collection("invalidations").insertOne(mongoSession, new Document("invalidatingNp", ac).append("invalidatingPubkey", ph).append("invalidatedNp", invalidatedAc));
-                    try (MongoCursor<Document> invalidatedEntries = collection("listEntries").find(mongoSession, new Document("np", invalidatedAc).append("pubkey", ph)).cursor()) {
-                        while (invalidatedEntries.hasNext()) {
-                            Document invalidatedEntry = invalidatedEntries.next();
-                            addToList(mongoSession, nanopub, ph, invalidatedEntry.getString("type"));
-                        }
-                    }
-
-                    collection("listEntries").updateMany(mongoSession, new Document("np", invalidatedAc).append("pubkey", ph), new Document("$set", new Document("invalidated", true)));
-
-                    collection("trustEdges").updateMany(mongoSession, new Document("source", invalidatedAc), new Document("$set", new Document("invalidated", true)));
-                    logger.debug("Marked invalidated entries and trust edges for invalidated artifact {}", invalidatedAc);
+                propagateInvalidations(mongoSession, profile, nanopub, ac, ph);
+                if (TrustChanges.affectsTrust(nanopub)) {
+                    TrustChanges.record(mongoSession, ph);
                 }
             }
         }
 
+        updateLists(mongoSession, profile, nanopub, ac, ph, pubkeyHash, types);
+        return true;
+    }
+
+    private static void updateLists(ClientSession mongoSession, WriteProfile profile, Nanopub nanopub, String ac, String ph, String pubkeyHash, String... types) {
         if (pubkeyHash != null) {
             for (String type : types) {
                 // TODO Check if nanopub really has the type?
-                addToList(mongoSession, nanopub, pubkeyHash, Utils.getTypeHash(mongoSession, type));
+                addToList(mongoSession, profile, nanopub, pubkeyHash, Utils.getTypeHash(mongoSession, type));
                 if (type.equals("$")) {
                     for (IRI t : NanopubUtils.getTypes(nanopub)) {
                         String th = Utils.getTypeHash(mongoSession, t);
                         if (CoverageFilter.isCoveredType(th)) {
-                            addToList(mongoSession, nanopub, pubkeyHash, th);
+                            addToList(mongoSession, profile, nanopub, pubkeyHash, th);
                         }
                     }
                 }
             }
         }
 
-        // Add the invalidating nanopubs also to the lists of this nanopub:
-        try (MongoCursor<Document> invalidations = collection("invalidations").find(mongoSession, new Document("invalidatedNp", ac).append("invalidatingPubkey", ph)).cursor()) {
-            if (invalidations.hasNext()) {
-                collection("listEntries").updateMany(mongoSession, new Document("np", ac).append("pubkey", ph), new Document("$set", new Document("invalidated", true)));
-                collection("trustEdges").updateMany(mongoSession, new Document("source", ac), new Document("$set", new Document("invalidated", true)));
-                logger.debug("Marked existing list entries and trust edges for nanopub {} as invalidated due to invalidations", ac);
+        inheritInvalidations(mongoSession, profile, ac, ph);
+    }
+
+    /**
+     * Adds already stored nanopubs of one pubkey to its {@code $} list and the lists of their
+     * covered types, like {@link #loadStoredNanopub} does for one nanopub with type {@code $}, but
+     * with one batched append per list (see {@link #appendToList}).
+     *
+     * @param mongoSession the MongoDB client session
+     * @param pubkeyHash   the pubkey hash that the nanopubs are stored with
+     * @param nanopubs     the nanopubs, in the order in which to list them
+     */
+    static void listStoredNanopubs(ClientSession mongoSession, String pubkeyHash, List<Nanopub> nanopubs) {
+        if (nanopubs.isEmpty()) {
+            return;
+        }
+        Map<String, List<Nanopub>> byType = new LinkedHashMap<>();
+        for (Nanopub np : nanopubs) {
+            byType.computeIfAbsent("$", k -> new ArrayList<>()).add(np);
+            for (IRI t : NanopubUtils.getTypes(np)) {
+                String th = Utils.getTypeHash(mongoSession, t);
+                if (CoverageFilter.isCoveredType(th)) {
+                    byType.computeIfAbsent(th, k -> new ArrayList<>()).add(np);
+                }
             }
-            while (invalidations.hasNext()) {
-                String iac = invalidations.next().getString("invalidatingNp");
-                try {
-                    Document npDoc = collection(Collection.NANOPUBS.toString()).find(mongoSession, new Document("_id", iac)).projection(new Document("jelly", 1)).first();
-                    Nanopub inp = JellyUtils.readFromDB(npDoc.get("jelly", Binary.class).getData());
-                    for (IRI type : NanopubUtils.getTypes(inp)) {
-                        addToList(mongoSession, inp, ph, Utils.getTypeHash(mongoSession, type));
-                    }
-                } catch (RDF4JException | MalformedNanopubException ex) {
-                    logger.error("Failed to load invalidating nanopub {} for invalidation record; skipping", iac, ex);
+        }
+        byType.forEach((typeHash, nps) -> appendToList(mongoSession, pubkeyHash, typeHash, nps));
+
+        // Only the few nanopubs that are invalidated need the invalidating ones on their lists
+        Map<String, Nanopub> byAc = new LinkedHashMap<>();
+        for (Nanopub np : nanopubs) {
+            byAc.put(TrustyUriUtils.getArtifactCode(np.getUri().stringValue()), np);
+        }
+        for (String ac : collection("invalidations").distinct(mongoSession, "invalidatedNp",
+                and(in("invalidatedNp", byAc.keySet()), eq("invalidatingPubkey", pubkeyHash)), String.class)) {
+            inheritInvalidations(mongoSession, WriteProfile.DEFAULT, ac, pubkeyHash);
+        }
+    }
+
+    /**
+     * Adds the invalidating nanopubs of a nanopub, by the same pubkey, to the lists of the nanopub,
+     * and flags its list entries and trust edges as invalidated.
+     */
+    private static void inheritInvalidations(ClientSession mongoSession, WriteProfile profile, String ac, String ph) {
+        List<Document> invalidations = collection("invalidations").find(mongoSession, new Document("invalidatedNp", ac).append("invalidatingPubkey", ph)).into(new ArrayList<>());
+        if (invalidations.isEmpty()) {
+            return;
+        }
+        collection("listEntries").updateMany(mongoSession, new Document("np", ac).append("pubkey", ph), new Document("$set", new Document("invalidated", true)));
+        collection("trustEdges").updateMany(mongoSession, new Document("source", ac), new Document("$set", new Document("invalidated", true)));
+        logger.debug("Marked existing list entries and trust edges for nanopub {} as invalidated due to invalidations", ac);
+
+        Set<String> invalidatingAcs = new HashSet<>();
+        for (Document invalidation : invalidations) {
+            invalidatingAcs.add(invalidation.getString("invalidatingNp"));
+        }
+        Map<String, Document> invalidatingNpDocs = new HashMap<>();
+        try (MongoCursor<Document> npDocs = collection(Collection.NANOPUBS.toString()).find(mongoSession, in("_id", invalidatingAcs)).projection(new Document("fullId", 1)).cursor()) {
+            while (npDocs.hasNext()) {
+                Document npDoc = npDocs.next();
+                invalidatingNpDocs.put(npDoc.getString("_id"), npDoc);
+            }
+        }
+        for (Document invalidation : invalidations) {
+            String iac = invalidation.getString("invalidatingNp");
+            Document npDoc = invalidatingNpDocs.get(iac);
+            if (npDoc == null || npDoc.getString("fullId") == null) {
+                logger.error("Invalidating nanopub {} of invalidation record not found; skipping", iac);
+                continue;
+            }
+            List<String> typeHashes = invalidation.getList("invalidatingTypes", String.class);
+            if (typeHashes == null) {
+                typeHashes = backfillInvalidatingTypes(mongoSession, invalidation);
+                if (typeHashes == null) {
+                    continue;
                 }
             }
+            IRI invalidatingUri = SimpleValueFactory.getInstance().createIRI(npDoc.getString("fullId"));
+            for (String typeHash : typeHashes) {
+                addToList(mongoSession, profile, iac, invalidatingUri, ph, typeHash);
+            }
+        }
+    }
+
+    /**
+     * Records the invalidations of a newly stored nanopub and applies them to the lists and trust
+     * edges of the nanopubs it invalidates, with one bulk write per collection.
+     *
+     * <p>The type hashes of the invalidating nanopub are stored on each {@code invalidations}
+     * document, so that nanopubs loaded later can inherit it onto their lists without decoding it.
+     */
+    private static void propagateInvalidations(ClientSession mongoSession, WriteProfile profile, Nanopub nanopub, String ac, String ph) {
+        Set<String> invalidatedAcs = new LinkedHashSet<>();
+        for (IRI invalidatedId : Utils.getInvalidatedNanopubIds(nanopub)) {
+            String invalidatedAc = TrustyUriUtils.getArtifactCode(invalidatedId.stringValue());
+            if (invalidatedAc == null) {
+                logger.warn("Nanopub {} references invalidated nanopub {} with an unresolvable artifact code; skipping", nanopub.getUri(), invalidatedId);
+                continue;  // This should never happen; checking here just to be sure
+            }
+            invalidatedAcs.add(invalidatedAc);
+        }
+        if (invalidatedAcs.isEmpty()) {
+            return;
+        }
+        logger.debug("Nanopub {} invalidates {}; updating list entries and trust edges", nanopub.getUri(), invalidatedAcs);
 
+        List<String> typeHashes = getTypeHashes(mongoSession, nanopub);
+        List<Document> invalidationDocs = new ArrayList<>();
+        for (String invalidatedAc : invalidatedAcs) {
+            invalidationDocs.add(new Document("invalidatingNp", ac).append("invalidatingPubkey", ph).append("invalidatedNp", invalidatedAc).append("invalidatingTypes", typeHashes));
         }
+        collection("invalidations").insertMany(mongoSession, invalidationDocs);
 
-        return true;
+        // Add this nanopub also to all lists of invalidated nanopubs:
+        List<String> invalidatedTypes = collection("listEntries").distinct(mongoSession, "type", and(in("np", invalidatedAcs), eq("pubkey", ph)), String.class).into(new ArrayList<>());
+        for (String typeHash : invalidatedTypes) {
+            addToList(mongoSession, profile, nanopub, ph, typeHash);
+        }
+
+        collection("listEntries").updateMany(mongoSession, and(in("np", invalidatedAcs), eq("pubkey", ph)), new Document("$set", new Document("invalidated", true)));
+        long invalidatedEdges = collection("trustEdges").updateMany(mongoSession, in("source", invalidatedAcs), new Document("$set", new Document("invalidated", true))).getModifiedCount();
+        if (invalidatedEdges > 0 || invalidatedTypes.contains(NanopubLoader.INTRO_TYPE_HASH) || invalidatedTypes.contains(NanopubLoader.ENDORSE_TYPE_HASH)) {
+            TrustChanges.record(mongoSession, ph);
+        }
+        logger.debug("Marked invalidated entries and trust edges for invalidated artifacts {}", invalidatedAcs);
     }
 
-    private static void addToList(ClientSession mongoSession, Nanopub nanopub, String pubkeyHash, String typeHash) {
-        String ac = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
+    private static List<String> getTypeHashes(ClientSession mongoSession, Nanopub nanopub) {
+        List<String> typeHashes = new ArrayList<>();
+        for (IRI type : NanopubUtils.getTypes(nanopub)) {
+            typeHashes.add(Utils.getTypeHash(mongoSession, type));
+        }
+        return typeHashes;
+    }
+
+    /**
+     * Decodes the invalidating nanopub of an invalidation record written before type hashes were
+     * recorded, and stores its type hashes on the record so this happens only once.
+     *
+     * @return the type hashes, or null if the invalidating nanopub cannot be read
+     */
+    private static List<String> backfillInvalidatingTypes(ClientSession mongoSession, Document invalidation) {
+        String iac = invalidation.getString("invalidatingNp");
+        try {
+            Document npDoc = collection(Collection.NANOPUBS.toString()).find(mongoSession, new Document("_id", iac)).projection(new Document("jelly", 1)).first();
+            Nanopub inp = JellyUtils.readFromDB(npDoc.get("jelly", Binary.class).getData());
+            List<String> typeHashes = getTypeHashes(mongoSession, inp);
+            collection("invalidations").updateMany(mongoSession, new Document("invalidatingNp", iac), new Document("$set", new Document("invalidatingTypes", typeHashes)));
+            logger.debug("Backfilled type hashes of invalidating nanopub {}", iac);
+            return typeHashes;
+        } catch (RDF4JException | MalformedNanopubException ex) {
+            logger.error("Failed to load invalidating nanopub {} for invalidation record; skipping", iac, ex);
+            return null;
+        }
+    }
+
+    private static void addToList(ClientSession mongoSession, WriteProfile profile, Nanopub nanopub, String pubkeyHash, String typeHash) {
+        addToList(mongoSession, profile, TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue()), nanopub.getUri(), pubkeyHash, typeHash);
+    }
+
+    private static void addToList(ClientSession mongoSession, WriteProfile profile, String ac, IRI npUri, String pubkeyHash, String typeHash) {
         try {
             insert(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", typeHash).append("maxPosition", -1L));
             logger.debug("Ensured list document exists for pubkey={} type={}", pubkeyHash, typeHash);
@@ -669,7 +1019,7 @@ public class RegistryDB {
         }
 
         if (has(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash).append("np", ac))) {
-            logger.debug("Already listed: nanopub {} (artifact {}) for pubkey={} type={}", nanopub.getUri(), ac, pubkeyHash, typeHash);
+            logger.debug("Already listed: nanopub {} (artifact {}) for pubkey={} type={}", npUri, ac, pubkeyHash, typeHash);
         } else {
             initListPositionIfNeeded(mongoSession, pubkeyHash, typeHash);
 
@@ -681,7 +1031,7 @@ public class RegistryDB {
                 // Get checksum from previous entry by exact position lookup (O(1) index hit)
                 String checksum;
                 if (position == 0) {
-                    checksum = NanopubUtils.updateXorChecksum(nanopub.getUri(), NanopubUtils.INIT_CHECKSUM);
+                    checksum = NanopubUtils.updateXorChecksum(npUri, NanopubUtils.INIT_CHECKSUM);
                 } else {
                     Document prevEntry = collection("listEntries").find(mongoSession, new Document("pubkey", pubkeyHash).append("type", typeHash).append("position", position - 1)).first();
                     String prevChecksum = (prevEntry != null) ? prevEntry.getString("checksum") : null;
@@ -690,12 +1040,13 @@ public class RegistryDB {
                         Document maxDoc = getMaxValueDocument(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash), "position");
                         prevChecksum = (maxDoc != null) ? maxDoc.getString("checksum") : NanopubUtils.INIT_CHECKSUM;
                     }
-                    checksum = NanopubUtils.updateXorChecksum(nanopub.getUri(), prevChecksum);
+                    checksum = NanopubUtils.updateXorChecksum(npUri, prevChecksum);
                 }
 
                 try {
-                    collection("listEntries").insertOne(mongoSession, new Document("pubkey", pubkeyHash).append("type", typeHash).append("position", position).append("np", ac).append("checksum", checksum).append("invalidated", false));
+                    collection("listEntries", profile).insertOne(mongoSession, new Document("pubkey", pubkeyHash).append("type", typeHash).append("position", position).append("np", ac).append("checksum", checksum).append("invalidated", false));
                     logger.debug("Inserted list entry: pubkey={} type={} np={} position={} checksum={}", pubkeyHash, typeHash, ac, position, checksum);
+                    ListDigest.recordTail(mongoSession, pubkeyHash, typeHash, position, checksum);
                     break;
                 } catch (MongoWriteException e) {
                     if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
@@ -716,6 +1067,89 @@ public class RegistryDB {
         }
     }
 
+    /**
+     * Appends nanopubs to a list in one go: the nanopubs that are not on it yet get a block of
+     * positions claimed with a single increment of {@code maxPosition}, their checksums are chained
+     * in memory, and the entries are written with one ordered insert. If a concurrent writer
+     * listed one of them in the meantime, the remaining ones are appended one by one.
+     *
+     * @param mongoSession the MongoDB client session
+     * @param pubkeyHash   the pubkey hash of the list
+     * @param typeHash     the type hash of the list
+     * @param nanopubs     the nanopubs to append, in order
+     */
+    static void appendToList(ClientSession mongoSession, String pubkeyHash, String typeHash, List<Nanopub> nanopubs) {
+        Map<String, IRI> toAppend = new LinkedHashMap<>();
+        for (Nanopub np : nanopubs) {
+            toAppend.put(TrustyUriUtils.getArtifactCode(np.getUri().stringValue()), np.getUri());
+        }
+        try (MongoCursor<Document> listed = collection("listEntries").find(mongoSession,
+                and(eq("pubkey", pubkeyHash), eq("type", typeHash), in("np", toAppend.keySet()))).projection(new Document("np", 1)).cursor()) {
+            while (listed.hasNext()) {
+                toAppend.remove(listed.next().getString("np"));
+            }
+        }
+        if (toAppend.isEmpty()) {
+            return;
+        }
+        if (toAppend.size() == 1) {
+            Map.Entry<String, IRI> e = toAppend.entrySet().iterator().next();
+            addToList(mongoSession, WriteProfile.DEFAULT, e.getKey(), e.getValue(), pubkeyHash, typeHash);
+            return;
+        }
+
+        try {
+            insert(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", typeHash).append("maxPosition", -1L));
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+        }
+        initListPositionIfNeeded(mongoSession, pubkeyHash, typeHash);
+        Document updated = collection("lists").findOneAndUpdate(mongoSession, new Document("pubkey", pubkeyHash).append("type", typeHash),
+                new Document("$inc", new Document("maxPosition", (long) toAppend.size())), new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        long position = updated.getLong("maxPosition") - toAppend.size() + 1;
+
+        String checksum;
+        if (position == 0) {
+            checksum = NanopubUtils.INIT_CHECKSUM;
+        } else {
+            Document prevEntry = collection("listEntries").find(mongoSession, new Document("pubkey", pubkeyHash).append("type", typeHash).append("position", position - 1)).first();
+            checksum = (prevEntry != null) ? prevEntry.getString("checksum") : null;
+            if (checksum == null) {
+                Document maxDoc = getMaxValueDocument(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash), "position");
+                checksum = (maxDoc != null) ? maxDoc.getString("checksum") : NanopubUtils.INIT_CHECKSUM;
+            }
+        }
+        List<Document> entries = new ArrayList<>(toAppend.size());
+        List<Map.Entry<String, IRI>> appended = new ArrayList<>(toAppend.entrySet());
+        for (Map.Entry<String, IRI> e : appended) {
+            checksum = NanopubUtils.updateXorChecksum(e.getValue(), checksum);
+            entries.add(new Document("pubkey", pubkeyHash).append("type", typeHash).append("position", position++)
+                    .append("np", e.getKey()).append("checksum", checksum).append("invalidated", false));
+        }
+        try {
+            collection("listEntries").insertMany(mongoSession, entries);
+            Document last = entries.getLast();
+            ListDigest.recordTail(mongoSession, pubkeyHash, typeHash, last.getLong("position"), last.getString("checksum"));
+            logger.debug("Appended {} entries to list pubkey={} type={}", entries.size(), pubkeyHash, typeHash);
+        } catch (MongoBulkWriteException ex) {
+            BulkWriteError error = ex.getWriteErrors().getFirst();
+            if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                throw ex;
+            }
+            // The ordered insert stopped at the first conflict; the entries after it take the single path
+            logger.debug("Concurrent insert into list pubkey={} type={}; appending the remaining entries one by one", pubkeyHash, typeHash);
+            if (error.getIndex() > 0) {
+                Document last = entries.get(error.getIndex() - 1);
+                ListDigest.recordTail(mongoSession, pubkeyHash, typeHash, last.getLong("position"), last.getString("checksum"));
+            }
+            for (Map.Entry<String, IRI> e : appended.subList(error.getIndex(), appended.size())) {
+                addToList(mongoSession, WriteProfile.DEFAULT, e.getKey(), e.getValue(), pubkeyHash, typeHash);
+            }
+        }
+    }
+
     /**
      * Lazily initializes the maxPosition field on a lists document for lists
      * created before this field existed. Uses a one-time sorted query, then
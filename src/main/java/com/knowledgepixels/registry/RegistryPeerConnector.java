@@ -1,27 +1,54 @@
 package com.knowledgepixels.registry;
 
+import com.google.gson.stream.JsonReader;
 import com.mongodb.ErrorCategory;
-import com.mongodb.MongoWriteException;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.client.ClientSession;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.WriteModel;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.util.EntityUtils;
 import org.bson.Document;
-import org.nanopub.NanopubUtils;
+import org.nanopub.Nanopub;
 import org.nanopub.jelly.NanopubStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.knowledgepixels.registry.RegistryDB.*;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
 
 /**
  * Checks peer Nanopub Registries for new nanopublications and loads them.
@@ -32,40 +59,147 @@ public class RegistryPeerConnector {
 
     private static final Logger logger = LoggerFactory.getLogger(RegistryPeerConnector.class);
 
+    static final int DISCOVERY_BATCH_SIZE = 1000;
+
+    /**
+     * How far back incremental pubkey discovery reaches before the counter of the last discovery,
+     * to catch nanopubs whose counter was claimed before but that were inserted after it.
+     */
+    private static final long DISCOVERY_OVERLAP = 1000;
+
+    private static final int PEER_SYNC_PARALLELISM = Integer.parseInt(Utils.getEnv("REGISTRY_PEER_SYNC_PARALLELISM", "4"));
+
+    /**
+     * Caps the number of nanopub streams downloaded from peers at the same time, across all peer
+     * workers. The nanopubs of all streams go through the shared ingest pool of {@link NanopubLoader}.
+     */
+    private static final Semaphore streamPermits = new Semaphore(Integer.parseInt(Utils.getEnv("REGISTRY_PEER_MAX_STREAMS", "2")));
+
+    /**
+     * What a peer reported in its HEAD response, if it is worth syncing from.
+     *
+     * @param changeFeed the path of the peer's change feed, or null if it does not offer one
+     */
+    record PeerProbe(String peerUrl, long setupId, long loadCounter, String changeFeed) {
+    }
+
+    /**
+     * Probes all peers concurrently and then syncs with the healthy ones on a bounded number of
+     * workers, each with its own session, so that one slow or hanging peer does not hold up the
+     * others.
+     *
+     * @param s the MongoDB client session, used when there is only one peer to sync with
+     */
     public static void checkPeers(ClientSession s) {
         List<String> peerUrls = new ArrayList<>(Utils.getPeerUrls());
+        if (peerUrls.isEmpty()) {
+            return;
+        }
         Collections.shuffle(peerUrls);
 
-        for (String peerUrl : peerUrls) {
-            try {
-                checkPeer(s, peerUrl);
-            } catch (Exception ex) {
-                logger.warn("Failed to check peer {}: {} ({})", peerUrl, ex.getMessage(), ex.getClass().getSimpleName(), ex);
+        HttpClient client = PeerHttpClient.get();
+        List<PeerProbe> probes = new ArrayList<>();
+        try (ExecutorService probeExecutor = Executors.newFixedThreadPool(peerUrls.size())) {
+            List<Future<PeerProbe>> futures = new ArrayList<>();
+            for (String peerUrl : peerUrls) {
+                futures.add(probeExecutor.submit(() -> {
+                    try {
+                        return probePeer(client, peerUrl);
+                    } catch (Exception ex) {
+                        logger.warn("Failed to check peer {}: {} ({})", peerUrl, ex.getMessage(), ex.getClass().getSimpleName(), ex);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<PeerProbe> f : futures) {
+                PeerProbe probe = f.get();
+                if (probe != null) {
+                    probes.add(probe);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while probing peers");
+            return;
+        } catch (ExecutionException ex) {
+            logger.warn("Probing peers failed: {}", ex.getCause().getMessage(), ex.getCause());
+        }
+
+        if (probes.size() <= 1 || PEER_SYNC_PARALLELISM <= 1) {
+            for (PeerProbe probe : probes) {
+                syncWithPeerSafely(client, s, probe);
+            }
+            return;
+        }
+        logger.info("Syncing with {} peers using {} workers", probes.size(), Math.min(PEER_SYNC_PARALLELISM, probes.size()));
+        try (ExecutorService syncExecutor = Executors.newFixedThreadPool(Math.min(PEER_SYNC_PARALLELISM, probes.size()))) {
+            for (PeerProbe probe : probes) {
+                syncExecutor.submit(() -> {
+                    try (ClientSession workerSession = RegistryDB.getClient().startSession()) {
+                        syncWithPeerSafely(client, workerSession, probe);
+                    }
+                });
             }
         }
     }
 
+    private static void syncWithPeerSafely(HttpClient client, ClientSession s, PeerProbe probe) {
+        try {
+            syncWithPeer(s, probe.peerUrl(), probe.setupId(), probe.loadCounter());
+            ListDigest.refreshPeer(client, s, probe.peerUrl(), probe.setupId());
+            if (probe.changeFeed() != null) {
+                // Nanopubs the peer stores from now on are pushed to us:
+                PeerChangeListener.ensureListening(client, probe.peerUrl(), probe.changeFeed(), probe.setupId());
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to sync with peer {}: {} ({})", probe.peerUrl(), ex.getMessage(), ex.getClass().getSimpleName(), ex);
+        }
+    }
+
     static void checkPeer(ClientSession s, String peerUrl) throws IOException {
+        PeerProbe probe = probePeer(PeerHttpClient.get(), peerUrl);
+        if (probe != null) {
+            syncWithPeer(s, peerUrl, probe.setupId(), probe.loadCounter());
+        }
+    }
+
+    /**
+     * Sends a HEAD request to the peer and checks whether it can be synced from.
+     *
+     * @return the reported setup ID and load counter, or null if the peer is to be skipped
+     */
+    static PeerProbe probePeer(HttpClient client, String peerUrl) throws IOException {
         logger.info("Checking peer: {}", peerUrl);
 
-        HttpResponse resp = NanopubUtils.getHttpClient().execute(new HttpHead(peerUrl));
+        long startTime = System.currentTimeMillis();
+        HttpResponse resp;
+        try {
+            resp = client.execute(withTimeouts(new HttpHead(peerUrl)));
+        } catch (IOException ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
+            throw ex;
+        }
         int httpStatus = resp.getStatusLine().getStatusCode();
         String reason = resp.getStatusLine().getReasonPhrase();
         EntityUtils.consumeQuietly(resp.getEntity());
         if (httpStatus < 200 || httpStatus >= 300) {
+            PeerDirectory.recordFailure(peerUrl);
             logger.warn("Failed to reach peer {}: HTTP {} {} ; skipping", peerUrl, httpStatus, reason);
-            return;
+            return null;
         }
+        PeerDirectory.recordProbe(peerUrl, System.currentTimeMillis() - startTime, getHeader(resp, "Nanopub-Registry-Status"),
+                getHeaderLong(resp, "Nanopub-Registry-Setup-Id"), getHeaderLong(resp, "Nanopub-Registry-Load-Counter"), isTestInstance(resp));
+        PeerDirectory.recordCoverage(peerUrl, getHeader(resp, "Nanopub-Registry-Coverage-Types"), getHeader(resp, "Nanopub-Registry-Coverage-Agents"));
 
         if (isTestInstance(resp)) {
             logger.info("Skipping peer {} because it is a test instance", peerUrl);
-            return;
+            return null;
         }
 
         String status = getHeader(resp, "Nanopub-Registry-Status");
         if (!"ready".equals(status) && !"updating".equals(status)) {
             logger.warn("Skipping peer {}: registry status is '{}' (expected 'ready' or 'updating')", peerUrl, status);
-            return;
+            return null;
         }
 
         String setupHeader = getHeader(resp, "Nanopub-Registry-Setup-Id");
@@ -74,10 +208,18 @@ public class RegistryPeerConnector {
         Long peerLoadCounter = getHeaderLong(resp, "Nanopub-Registry-Load-Counter");
         if (peerSetupId == null || peerLoadCounter == null) {
             logger.warn("Skipping peer {}: missing or invalid headers. Nanopub-Registry-Setup-Id='{}', Nanopub-Registry-Load-Counter='{}'", peerUrl, setupHeader, loadCounterHeader);
-            return;
+            return null;
         }
+        return new PeerProbe(peerUrl, peerSetupId, peerLoadCounter, getHeader(resp, "Nanopub-Registry-Change-Feed"));
+    }
 
-        syncWithPeer(s, peerUrl, peerSetupId, peerLoadCounter);
+    /**
+     * Applies the peer connect and read timeouts to the given request. {@link PeerHttpClient} does
+     * this for every request anyway; this is for requests that may be sent with another client.
+     */
+    static <T extends HttpRequestBase> T withTimeouts(T request) {
+        request.setConfig(PeerHttpClient.REQUEST_CONFIG);
+        return request;
     }
 
     static void syncWithPeer(ClientSession s, String peerUrl, long peerSetupId, long peerLoadCounter) {
@@ -98,42 +240,179 @@ public class RegistryPeerConnector {
         } else if (lastLoadCounter != null) {
             // Fetch all nanopubs added since our last known position.
             logger.info("Peer {} has new nanopubs (loadCounter {} -> {}), fetching recent", peerUrl, lastLoadCounter, peerLoadCounter);
-            long lastReceived = loadRecentNanopubs(s, peerUrl, lastLoadCounter);
+            long afterCounter = lastLoadCounter;
+            if (peerLoadCounter - lastLoadCounter >= DumpSegments.SEALING_MARGIN) {
+                // Possibly far behind: take the bulk of the history from the peer's pre-built segments
+                afterCounter = loadSegments(s, peerUrl, peerSetupId, lastLoadCounter, peerLoadCounter);
+                effectiveCounter = afterCounter;
+            }
+            long lastReceived = loadRecentNanopubs(s, peerUrl, afterCounter);
             if (lastReceived > 0) {
                 effectiveCounter = lastReceived;
                 logger.info("Updated effective counter for {} to {}", peerUrl, effectiveCounter);
             } else {
                 logger.info("No nanopubs were successfully received from {} when fetching recent entries", peerUrl);
             }
-            // Only discover new pubkeys when the peer has new data
-            discoverPubkeys(s, peerUrl);
+            // Only discover new pubkeys when the peer has new data, and only those it added since
+            // the last discovery (with some overlap for nanopubs that were still being inserted)
+            Long pubkeysCounter = lastSetupId != null && lastSetupId == peerSetupId ? peerState.getLong("pubkeysCounter") : null;
+            discoverAndRecordPubkeys(s, peerUrl, pubkeysCounter == null ? null : Math.max(0, pubkeysCounter - DISCOVERY_OVERLAP), peerLoadCounter);
         } else {
             logger.info("Peer {} is new to this registry; starting pubkey discovery and initial sync", peerUrl);
-            discoverPubkeys(s, peerUrl);
+            discoverAndRecordPubkeys(s, peerUrl, null, peerLoadCounter);
         }
         updatePeerState(s, peerUrl, peerSetupId, effectiveCounter);
         logger.debug("Peer {} state updated: setupId={}, loadCounter={}", peerUrl, peerSetupId, effectiveCounter);
     }
 
+    /**
+     * Loads the peer's dump segments that cover counters after the given one. Segments are
+     * immutable files listed in the peer's {@code segments/manifest.json}; peers that do not offer
+     * them are simply served by the live feed. Segments are only used if the gap is at least one
+     * segment of the peer's manifest, whose segment size the ranges are checked against. The
+     * recorded peer state advances after each segment, so an interrupted download resumes with
+     * the next one.
+     *
+     * @return the last counter covered by the loaded segments, or {@code afterCounter} if none were loaded
+     */
+    static long loadSegments(ClientSession s, String peerUrl, long peerSetupId, long afterCounter, long peerLoadCounter) {
+        DumpSegments.Manifest manifest;
+        try {
+            HttpResponse resp = PeerHttpClient.get().execute(withTimeouts(new HttpGet(peerUrl + "segments/" + DumpSegments.MANIFEST_FILE)));
+            int httpStatus = resp.getStatusLine().getStatusCode();
+            if (httpStatus < 200 || httpStatus >= 300) {
+                EntityUtils.consumeQuietly(resp.getEntity());
+                logger.info("Peer {} offers no dump segments (HTTP {}); using the live feed only", peerUrl, httpStatus);
+                return afterCounter;
+            }
+            manifest = DumpSegments.parseManifest(EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8));
+        } catch (Exception ex) {
+            logger.warn("Failed to fetch dump segment manifest from {}: {} ({})", peerUrl, ex.getMessage(), ex.getClass().getSimpleName());
+            return afterCounter;
+        }
+        if (manifest == null || manifest.segments() == null || manifest.setupId() != peerSetupId) {
+            logger.info("Dump segment manifest of {} does not match its current setup; using the live feed only", peerUrl);
+            return afterCounter;
+        }
+        long segmentSize = manifest.segmentSize();
+        if (segmentSize <= 0) {
+            logger.warn("Dump segment manifest of {} does not state a segment size; using the live feed only", peerUrl);
+            return afterCounter;
+        }
+        if (peerLoadCounter - afterCounter < segmentSize) {
+            logger.debug("Peer {} is less than one segment ({} counters) ahead; using the live feed only", peerUrl, segmentSize);
+            return afterCounter;
+        }
+
+        long covered = afterCounter;
+        for (DumpSegments.Segment segment : manifest.segments()) {
+            if ((segment.fromCounter() - 1) % segmentSize != 0 || segment.toCounter() != segment.fromCounter() + segmentSize - 1) {
+                logger.warn("Dump segment {} of {} does not match the segment size {} of the manifest; using the live feed from here", segment.file(), peerUrl, segmentSize);
+                break;
+            }
+            if (segment.toCounter() <= covered) {
+                continue;
+            }
+            if (segment.fromCounter() > covered + 1) {
+                logger.info("Dump segment {} of {} does not continue counter {}; using the live feed from here", segment.file(), peerUrl, covered);
+                break;
+            }
+            if (!loadSegment(peerUrl, segment)) {
+                break;
+            }
+            covered = segment.toCounter();
+            updatePeerState(s, peerUrl, peerSetupId, covered);
+        }
+        if (covered > afterCounter) {
+            logger.info("Loaded dump segments from {} up to counter {}", peerUrl, covered);
+        }
+        return covered;
+    }
+
+    private static boolean loadSegment(String peerUrl, DumpSegments.Segment segment) {
+        String requestUrl = peerUrl + "segments/" + segment.file();
+        logger.info("Fetching dump segment {} ({} nanopubs, {} bytes)", requestUrl, segment.count(), segment.size());
+        if (!acquireStream(peerUrl)) {
+            return false;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            HttpResponse resp = PeerHttpClient.get().execute(withTimeouts(new HttpGet(requestUrl)));
+            int httpStatus = resp.getStatusLine().getStatusCode();
+            if (httpStatus < 200 || httpStatus >= 300) {
+                EntityUtils.consumeQuietly(resp.getEntity());
+                PeerDirectory.recordFailure(peerUrl);
+                logger.warn("Fetching dump segment {} failed: HTTP {} {}", requestUrl, httpStatus, resp.getStatusLine().getReasonPhrase());
+                return false;
+            }
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+            MessageDigest digest = DumpSegments.newDigest();
+            try (InputStream is = new DigestInputStream(PeerDirectory.meter(peerUrl, resp.getEntity().getContent()), digest)) {
+                NanopubLoader.loadStreamInParallel(NanopubStream.fromByteStream(is).getAsNanopubs(), RegistryPeerConnector::loadCoveredNanopub);
+                // Drain what the Jelly parser did not need, so the digest covers the whole file
+                is.transferTo(OutputStream.nullOutputStream());
+            }
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            if (!sha256.equals(segment.sha256())) {
+                // The nanopubs themselves are verified one by one; this only means the segment may be incomplete
+                logger.warn("Digest mismatch for dump segment {}: expected {}, got {}", requestUrl, segment.sha256(), sha256);
+                return false;
+            }
+            return true;
+        } catch (IOException ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
+            logger.warn("Failed to fetch dump segment {}: {} ({})", requestUrl, ex.getMessage(), ex.getClass().getSimpleName(), ex);
+            return false;
+        } finally {
+            streamPermits.release();
+        }
+    }
+
+    private static boolean acquireStream(String peerUrl) {
+        try {
+            streamPermits.acquire();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for a free stream slot for peer {}", peerUrl);
+            return false;
+        }
+    }
+
+    private static void loadCoveredNanopub(Nanopub np) {
+        if (!CoverageFilter.isCovered(np)) {
+            return;
+        }
+        try (ClientSession workerSession = RegistryDB.getClient().startSession()) {
+            NanopubLoader.simpleLoad(workerSession, np);
+        }
+    }
+
     /**
      * Fetches nanopubs from a peer after the given counter.
      *
      * @return the counter of the last successfully received nanopub, or -1 if none were received
      */
-    private static long loadRecentNanopubs(ClientSession s, String peerUrl, long afterCounter) {
+    static long loadRecentNanopubs(ClientSession s, String peerUrl, long afterCounter) {
         String requestUrl = peerUrl + "nanopubs.jelly?afterCounter=" + afterCounter;
         logger.info("Fetching recent nanopubs from {} (afterCounter={})", peerUrl, afterCounter);
         AtomicLong lastReceivedCounter = new AtomicLong(-1);
+        if (!acquireStream(peerUrl)) {
+            return -1;
+        }
         try {
-            HttpResponse resp = NanopubUtils.getHttpClient().execute(new HttpGet(requestUrl));
+            long startTime = System.currentTimeMillis();
+            HttpResponse resp = PeerHttpClient.get().execute(withTimeouts(new HttpGet(requestUrl)));
             int httpStatus = resp.getStatusLine().getStatusCode();
             String reason = resp.getStatusLine().getReasonPhrase();
             if (httpStatus < 200 || httpStatus >= 300) {
                 EntityUtils.consumeQuietly(resp.getEntity());
+                PeerDirectory.recordFailure(peerUrl);
                 logger.warn("Fetching recent nanopubs from {} failed: HTTP {} {} ; skipping", requestUrl, httpStatus, reason);
                 return -1;
             }
-            try (InputStream is = resp.getEntity().getContent()) {
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+            try (InputStream is = PeerDirectory.meter(peerUrl, resp.getEntity().getContent())) {
                 NanopubLoader.loadStreamInParallel(
                         NanopubStream.fromByteStream(is).getAsNanopubs().peek(m -> {
                             // Track counter in the main thread as items are consumed from the stream
@@ -141,56 +420,133 @@ public class RegistryPeerConnector {
                                 lastReceivedCounter.set(m.getCounter());
                             }
                         }),
-                        np -> {
-                            if (!CoverageFilter.isCovered(np)) {
-                                return;
-                            }
-                            try (ClientSession workerSession = RegistryDB.getClient().startSession()) {
-                                String pubkey = RegistryDB.getPubkey(np);
-                                if (pubkey != null) {
-                                    NanopubLoader.simpleLoad(workerSession, np, pubkey);
-                                }
-                            }
-                        });
+                        RegistryPeerConnector::loadCoveredNanopub);
             }
         } catch (IOException ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
             logger.warn("Failed to fetch recent nanopubs from {} (request: {}): {} ({})", peerUrl, requestUrl, ex.getMessage(), ex.getClass().getSimpleName(), ex);
+        } finally {
+            streamPermits.release();
         }
         logger.info("Last received counter from {}: {}", peerUrl, lastReceivedCounter.get());
         return lastReceivedCounter.get();
     }
 
     static void discoverPubkeys(ClientSession s, String peerUrl) {
-        logger.info("Discovering pubkeys from peer: {}", peerUrl);
+        discoverPubkeys(s, peerUrl, null);
+    }
+
+    /**
+     * Creates {@code encountered} intro lists for the pubkeys a peer knows about. The peer's
+     * {@code pubkeys.json} is read as a stream and looked up in batches of
+     * {@value #DISCOVERY_BATCH_SIZE}, with one query and at most one bulk write per batch.
+     *
+     * @param s            the MongoDB client session
+     * @param peerUrl      the peer URL
+     * @param afterCounter if not null, only the pubkeys of nanopubs the peer loaded after this counter are asked for
+     * @return true if the discovery completed
+     */
+    static boolean discoverPubkeys(ClientSession s, String peerUrl, Long afterCounter) {
+        String url = peerUrl + "pubkeys.json" + (afterCounter != null ? "?afterCounter=" + afterCounter : "");
+        logger.info("Discovering pubkeys from peer: {}", url);
+        HttpResponse resp;
         try {
-            List<String> peerPubkeys = Utils.retrieveListFromJsonUrl(peerUrl + "pubkeys.json");
+            long startTime = System.currentTimeMillis();
+            resp = PeerHttpClient.get().execute(withTimeouts(new HttpGet(url)));
+            int httpStatus = resp.getStatusLine().getStatusCode();
+            if (httpStatus < 200 || httpStatus >= 300) {
+                EntityUtils.consumeQuietly(resp.getEntity());
+                PeerDirectory.recordFailure(peerUrl);
+                logger.warn("Failed to discover pubkeys from {}: HTTP {} {}", peerUrl, httpStatus, resp.getStatusLine().getReasonPhrase());
+                return false;
+            }
+            PeerDirectory.recordSuccess(peerUrl, System.currentTimeMillis() - startTime);
+        } catch (IOException ex) {
+            PeerDirectory.recordFailure(peerUrl, ex);
+            logger.warn("Failed to discover pubkeys from {}: {} ({})", peerUrl, ex.getMessage(), ex.getClass().getSimpleName());
+            return false;
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(PeerDirectory.meter(peerUrl, resp.getEntity().getContent()), StandardCharsets.UTF_8))) {
+            int received = 0;
             int discovered = 0;
-            logger.debug("Retrieved {} pubkeys from {} for discovery", peerPubkeys.size(), peerUrl);
-            for (String pubkeyHash : peerPubkeys) {
-                Document filter = new Document("pubkey", pubkeyHash).append("type", NanopubLoader.INTRO_TYPE_HASH);
-                if (!has(s, "lists", filter)) {
-                    try {
-                        insert(s, "lists", new Document("pubkey", pubkeyHash)
-                                .append("type", NanopubLoader.INTRO_TYPE_HASH)
-                                .append("status", EntryStatus.encountered.getValue()));
-                    } catch (MongoWriteException e) {
-                        if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
-                            throw e;
-                        } else {
-                            logger.debug("Pubkey {} was inserted concurrently by another worker", pubkeyHash);
-                        }
-                    }
-                    discovered++;
-                } else if (!has(s, "lists", new Document(filter).append("status", EntryStatus.loaded.getValue()))) {
-                    // Set status to encountered if not already loaded (fixes null-status entries from older code)
-                    collection("lists").updateMany(s, filter,
-                            new Document("$set", new Document("status", EntryStatus.encountered.getValue())));
-                    discovered++;
+            List<String> batch = new ArrayList<>(DISCOVERY_BATCH_SIZE);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                batch.add(reader.nextString());
+                received++;
+                if (batch.size() >= DISCOVERY_BATCH_SIZE) {
+                    discovered += registerPubkeys(s, batch);
+                    batch.clear();
                 }
             }
-            logger.info("Discovered {} new pubkeys from peer {}", discovered, peerUrl);
+            reader.endArray();
+            discovered += registerPubkeys(s, batch);
+            logger.info("Discovered {} new pubkeys among {} from peer {}", discovered, received, peerUrl);
+            return true;
         } catch (Exception ex) {
             logger.warn("Failed to discover pubkeys from {}: {} ({})", peerUrl, ex.getMessage(), ex.getClass().getSimpleName(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure the given pubkeys have an intro list that is {@code encountered} or
+     * {@code loaded}, creating or repairing the others in a single unordered bulk write.
+     *
+     * @return the number of intro lists created or repaired
+     */
+    static int registerPubkeys(ClientSession s, List<String> pubkeyHashes) {
+        if (pubkeyHashes.isEmpty()) {
+            return 0;
+        }
+        Map<String, String> statusByPubkey = new HashMap<>();
+        try (MongoCursor<Document> cursor = collection("lists").find(s, and(eq("type", NanopubLoader.INTRO_TYPE_HASH), in("pubkey", pubkeyHashes)))
+                .projection(include("pubkey", "status")).cursor()) {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                statusByPubkey.put(d.getString("pubkey"), d.getString("status"));
+            }
+        }
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String pubkeyHash : pubkeyHashes) {
+            if (!seen.add(pubkeyHash)) {
+                continue;
+            }
+            Document filter = new Document("pubkey", pubkeyHash).append("type", NanopubLoader.INTRO_TYPE_HASH);
+            if (!statusByPubkey.containsKey(pubkeyHash)) {
+                writes.add(new InsertOneModel<>(new Document(filter).append("status", EntryStatus.encountered.getValue())));
+            } else {
+                String status = statusByPubkey.get(pubkeyHash);
+                if (!EntryStatus.loaded.getValue().equals(status) && !EntryStatus.encountered.getValue().equals(status)) {
+                    // Set status to encountered if not already loaded (fixes null-status entries from older code)
+                    writes.add(new UpdateManyModel<>(filter, new Document("$set", new Document("status", EntryStatus.encountered.getValue()))));
+                }
+            }
+        }
+        if (writes.isEmpty()) {
+            return 0;
+        }
+        try {
+            collection("lists").bulkWrite(s, writes, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+            }
+            logger.debug("{} pubkey(s) were inserted concurrently by another worker", ex.getWriteErrors().size());
+            return writes.size() - ex.getWriteErrors().size();
+        }
+        return writes.size();
+    }
+
+    private static void discoverAndRecordPubkeys(ClientSession s, String peerUrl, Long afterCounter, long peerLoadCounter) {
+        if (discoverPubkeys(s, peerUrl, afterCounter)) {
+            collection(Collection.PEER_STATE.toString()).updateOne(s,
+                    new Document("_id", peerUrl),
+                    new Document("$set", new Document("pubkeysCounter", peerLoadCounter)),
+                    new com.mongodb.client.model.UpdateOptions().upsert(true));
         }
     }
 
@@ -211,6 +567,17 @@ public class RegistryPeerConnector {
                 new com.mongodb.client.model.UpdateOptions().upsert(true));
     }
 
+    /**
+     * Moves the recorded load counter of a peer forward to the given counter, if the recorded state
+     * is still for the given setup ID. Never moves it back.
+     */
+    static void advancePeerState(ClientSession s, String peerUrl, long setupId, long loadCounter) {
+        collection(Collection.PEER_STATE.toString()).updateOne(s,
+                and(eq("_id", peerUrl), eq("setupId", setupId)),
+                new Document("$max", new Document("loadCounter", loadCounter))
+                        .append("$set", new Document("lastChecked", System.currentTimeMillis())));
+    }
+
     static void deletePeerState(ClientSession s, String peerUrl) {
         collection(Collection.PEER_STATE.toString()).deleteOne(s, new Document("_id", peerUrl));
     }
@@ -10,20 +10,29 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang.Validate;
 import org.bson.Document;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Statement;
 import org.nanopub.Nanopub;
+import org.nanopub.NanopubUtils;
 import org.nanopub.SimpleTimestampPattern;
 import org.nanopub.extra.index.IndexUtils;
 import org.nanopub.extra.index.NanopubIndex;
 import org.nanopub.extra.security.KeyDeclaration;
 import org.nanopub.extra.setting.IntroNanopub;
 import org.nanopub.extra.setting.NanopubSetting;
+import org.nanopub.jelly.MaybeNanopub;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,9 +75,9 @@ import static com.knowledgepixels.registry.ServerStatus.coreReady;
 import static com.knowledgepixels.registry.ServerStatus.launching;
 import static com.knowledgepixels.registry.ServerStatus.ready;
 import static com.knowledgepixels.registry.ServerStatus.updating;
+import com.knowledgepixels.registry.RegistryDB.WriteProfile;
 import com.knowledgepixels.registry.db.IndexInitializer;
 import com.mongodb.client.ClientSession;
-import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import static com.mongodb.client.model.Filters.eq;
@@ -205,6 +214,7 @@ public enum Task implements Serializable {
             dropLoadingCollections();
 
             IndexInitializer.initLoadingCollections(s);
+            TrustChanges.startCycle(s);
 
             // Read through Utils rather than System.getenv so tests can reach this branch; the two
             // are equivalent in production, where the env reader delegates to System::getenv.
@@ -462,69 +472,73 @@ public enum Task implements Serializable {
             int depth = taskDoc.getInteger("depth");
             logger.info("Running EXPAND_TRUST_PATHS task at depth {}", depth);
 
-            while (true) {
-                Document d = getOne(s, "accounts_loading",
-                        new Document("status", visited.getValue())
-                                .append("depth", depth - 1)
-                );
-                if (d == null) {
-                    break;
-                }
+            if (TrustGraph.isEnabled()) {
+                TrustGraph.expandTrustPaths(s, depth);
+            } else {
+                while (true) {
+                    Document d = getOne(s, "accounts_loading",
+                            new Document("status", visited.getValue())
+                                    .append("depth", depth - 1)
+                    );
+                    if (d == null) {
+                        break;
+                    }
 
-                String agentId = d.getString("agent");
-                Validate.notNull(agentId);
-                String pubkeyHash = d.getString("pubkey");
-                Validate.notNull(pubkeyHash);
+                    String agentId = d.getString("agent");
+                    Validate.notNull(agentId);
+                    String pubkeyHash = d.getString("pubkey");
+                    Validate.notNull(pubkeyHash);
 
-                Document trustPath = collection("trustPaths_loading").find(s,
-                        new Document("agent", agentId).append("pubkey", pubkeyHash).append("type", "extended").append("depth", depth - 1)
-                ).sort(orderBy(descending("ratio"), ascending("sorthash"))).first();
+                    Document trustPath = collection("trustPaths_loading").find(s,
+                            new Document("agent", agentId).append("pubkey", pubkeyHash).append("type", "extended").append("depth", depth - 1)
+                    ).sort(orderBy(descending("ratio"), ascending("sorthash"))).first();
 
-                if (trustPath == null) {
-                    // Check it again in next iteration:
-                    set(s, "accounts_loading", d.append("depth", depth));
-                } else {
-                    // Only first matching trust path is considered
-
-                    Map<String, Document> newPaths = new HashMap<>();
-                    Map<String, Set<String>> pubkeySets = new HashMap<>();
-                    String currentSetting = getValue(s, Collection.SETTING.toString(), "current").toString();
-
-                    try (MongoCursor<Document> edgeCursor = get(s, "trustEdges",
-                            trustEdgeFilter(agentId, pubkeyHash, getBootstrapSettingAcs(s))
-                    )) {
-                        while (edgeCursor.hasNext()) {
-                            Document e = edgeCursor.next();
-
-                            String agent = e.getString("toAgent");
-                            Validate.notNull(agent);
-                            String pubkey = e.getString("toPubkey");
-                            Validate.notNull(pubkey);
-                            String pathId = trustPath.getString("_id") + " " + agent + "|" + pubkey;
-                            newPaths.put(pathId,
-                                    new Document("_id", pathId)
-                                            .append("sorthash", Utils.getHash(currentSetting + " " + pathId))
-                                            .append("agent", agent)
-                                            .append("pubkey", pubkey)
-                                            .append("depth", depth)
-                                            .append("type", "extended")
-                            );
-                            if (!pubkeySets.containsKey(agent)) {
-                                pubkeySets.put(agent, new HashSet<>());
+                    if (trustPath == null) {
+                        // Check it again in next iteration:
+                        set(s, "accounts_loading", d.append("depth", depth));
+                    } else {
+                        // Only first matching trust path is considered
+
+                        Map<String, Document> newPaths = new HashMap<>();
+                        Map<String, Set<String>> pubkeySets = new HashMap<>();
+                        String currentSetting = getValue(s, Collection.SETTING.toString(), "current").toString();
+
+                        try (MongoCursor<Document> edgeCursor = get(s, "trustEdges",
+                                trustEdgeFilter(agentId, pubkeyHash, getBootstrapSettingAcs(s))
+                        )) {
+                            while (edgeCursor.hasNext()) {
+                                Document e = edgeCursor.next();
+
+                                String agent = e.getString("toAgent");
+                                Validate.notNull(agent);
+                                String pubkey = e.getString("toPubkey");
+                                Validate.notNull(pubkey);
+                                String pathId = trustPath.getString("_id") + " " + agent + "|" + pubkey;
+                                newPaths.put(pathId,
+                                        new Document("_id", pathId)
+                                                .append("sorthash", Utils.getHash(currentSetting + " " + pathId))
+                                                .append("agent", agent)
+                                                .append("pubkey", pubkey)
+                                                .append("depth", depth)
+                                                .append("type", "extended")
+                                );
+                                if (!pubkeySets.containsKey(agent)) {
+                                    pubkeySets.put(agent, new HashSet<>());
+                                }
+                                pubkeySets.get(agent).add(pubkey);
                             }
-                            pubkeySets.get(agent).add(pubkey);
                         }
+                        for (String pathId : newPaths.keySet()) {
+                            Document pd = newPaths.get(pathId);
+                            // first divide by agents; then for each agent, divide by number of pubkeys:
+                            double newRatio = (trustPath.getDouble("ratio") * 0.9) / pubkeySets.size() / pubkeySets.get(pd.getString("agent")).size();
+                            insert(s, "trustPaths_loading", pd.append("ratio", newRatio));
+                        }
+                        // Retain only 10% of the ratio — the other 90% was distributed to children
+                        double retainedRatio = trustPath.getDouble("ratio") * 0.1;
+                        set(s, "trustPaths_loading", trustPath.append("type", "primary").append("ratio", retainedRatio));
+                        set(s, "accounts_loading", d.append("status", expanded.getValue()));
                     }
-                    for (String pathId : newPaths.keySet()) {
-                        Document pd = newPaths.get(pathId);
-                        // first divide by agents; then for each agent, divide by number of pubkeys:
-                        double newRatio = (trustPath.getDouble("ratio") * 0.9) / pubkeySets.size() / pubkeySets.get(pd.getString("agent")).size();
-                        insert(s, "trustPaths_loading", pd.append("ratio", newRatio));
-                    }
-                    // Retain only 10% of the ratio — the other 90% was distributed to children
-                    double retainedRatio = trustPath.getDouble("ratio") * 0.1;
-                    set(s, "trustPaths_loading", trustPath.append("type", "primary").append("ratio", retainedRatio));
-                    set(s, "accounts_loading", d.append("status", expanded.getValue()));
                 }
             }
             logger.info("EXPAND_TRUST_PATHS at depth {} complete.", depth);
@@ -603,9 +617,27 @@ public enum Task implements Serializable {
                 if (!has(s, "lists", d)) {
                     insert(s, "lists", d.append("status", encountered.getValue()));
                 }
+                schedule(s, LOAD_CORE.with("depth", depth).append("load-count", loadCount + 1));
+            } else if (TrustChanges.isIncrementalCycle(s) && !TrustChanges.isChanged(s, pubkeyHash)
+                    && has(s, "lists", new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH).append("status", loaded.getValue()))
+                    && has(s, "lists", new Document("pubkey", pubkeyHash).append("type", ENDORSE_TYPE_HASH).append("status", loaded.getValue()))) {
+                // Unchanged since the last cycle: its intros are local, and so are its endorsements
+                logger.info("Pubkey {}: reading core (intro + endorsements) from the local store at depth {}", pubkeyHash, depth);
+                long endorsementCount = readLocalEndorsements(s, agentId, pubkeyHash);
+                logger.debug("Pubkey {}: {} endorsement nanopub(s) read locally", pubkeyHash, endorsementCount);
+
+                Document df = new Document("pubkey", pubkeyHash).append("type", "$");
+                if (!has(s, "lists", df)) {
+                    insert(s, "lists",
+                            df.append("status", encountered.getValue()));
+                }
+
+                set(s, "accounts_loading", agentAccount.append("status", visited.getValue()));
+
                 schedule(s, LOAD_CORE.with("depth", depth).append("load-count", loadCount + 1));
             } else {
                 logger.info("Pubkey {}: loading core (intro + endorsements) at depth {}", pubkeyHash, depth);
+                WriteProfile profile = getLoadProfile(s);
                 // TODO check intro limit
                 Document introList = new Document()
                         .append("pubkey", pubkeyHash)
@@ -620,7 +652,7 @@ public enum Task implements Serializable {
                 try (var stream = NanopubLoader.retrieveNanopubsFromPeers(INTRO_TYPE_HASH, pubkeyHash)) {
                     NanopubLoader.loadStreamInParallel(stream, np -> {
                         try (ClientSession ws = RegistryDB.getClient().startSession()) {
-                            loadNanopub(ws, np, pubkeyHash, INTRO_TYPE);
+                            loadNanopub(ws, profile, np, pubkeyHash, INTRO_TYPE);
                         }
                     });
                 }
@@ -644,34 +676,8 @@ public enum Task implements Serializable {
                             throw new AbortingTaskException("Failed to download nanopub; aborting task...");
                         }
                         Nanopub nanopub = m.getNanopub();
-                        loadNanopub(s, nanopub, pubkeyHash, ENDORSE_TYPE);
-                        String sourceNpId = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
-                        Validate.notNull(sourceNpId);
-                        for (Statement st : nanopub.getAssertion()) {
-                            if (!st.getPredicate().equals(Utils.APPROVES_OF)) {
-                                continue;
-                            }
-                            if (!(st.getObject() instanceof IRI)) {
-                                continue;
-                            }
-                            if (!agentId.equals(st.getSubject().stringValue())) {
-                                continue;
-                            }
-                            String objStr = st.getObject().stringValue();
-                            if (!TrustyUriUtils.isPotentialTrustyUri(objStr)) {
-                                continue;
-                            }
-                            String endorsedNpId = TrustyUriUtils.getArtifactCode(objStr);
-                            Validate.notNull(endorsedNpId);
-                            Document endorsement = new Document("agent", agentId)
-                                    .append("pubkey", pubkeyHash)
-                                    .append("endorsedNanopub", endorsedNpId)
-                                    .append("source", sourceNpId);
-                            if (!has(s, "endorsements_loading", endorsement)) {
-                                insert(s, "endorsements_loading",
-                                        endorsement.append("status", toRetrieve.getValue()));
-                            }
-                        }
+                        loadNanopub(s, profile, nanopub, pubkeyHash, ENDORSE_TYPE);
+                        recordEndorsements(s, nanopub, agentId, pubkeyHash);
                     });
                 }
                 logger.debug("Pubkey {}: endorsement list loaded", pubkeyHash);
@@ -740,50 +746,54 @@ public enum Task implements Serializable {
         public void run(ClientSession s, Document taskDoc) {
             logger.info("Running CALCULATE_TRUST_SCORES task");
 
-            while (true) {
-                Document d = getOne(s, "accounts_loading", new Document("status", expanded.getValue()));
-                if (d == null) {
-                    break;
-                }
+            if (TrustGraph.isEnabled()) {
+                TrustGraph.calculateTrustScores(s, GLOBAL_QUOTA, MIN_USER_QUOTA, MAX_USER_QUOTA);
+            } else {
+                while (true) {
+                    Document d = getOne(s, "accounts_loading", new Document("status", expanded.getValue()));
+                    if (d == null) {
+                        break;
+                    }
 
-                double ratio = 0.0;
-                Map<String, Boolean> seenPathElements = new HashMap<>();
-                int pathCount = 0;
-                try (MongoCursor<Document> trustPaths = collection("trustPaths_loading").find(s,
-                        new Document("agent", d.get("agent").toString()).append("pubkey", d.get("pubkey").toString())
-                ).sort(orderBy(ascending("depth"), descending("ratio"), ascending("sorthash"))).cursor()) {
-                    while (trustPaths.hasNext()) {
-                        Document trustPath = trustPaths.next();
-                        ratio += trustPath.getDouble("ratio");
-                        boolean independentPath = true;
-                        String[] pathElements = trustPath.getString("_id").split(" ");
-                        // Iterate over path elements, ignoring first (root) and last (this agent/pubkey):
-                        for (int i = 1; i < pathElements.length - 1; i++) {
-                            String p = pathElements[i];
-                            if (seenPathElements.containsKey(p)) {
-                                independentPath = false;
-                                break;
+                    double ratio = 0.0;
+                    Map<String, Boolean> seenPathElements = new HashMap<>();
+                    int pathCount = 0;
+                    try (MongoCursor<Document> trustPaths = collection("trustPaths_loading").find(s,
+                            new Document("agent", d.get("agent").toString()).append("pubkey", d.get("pubkey").toString())
+                    ).sort(orderBy(ascending("depth"), descending("ratio"), ascending("sorthash"))).cursor()) {
+                        while (trustPaths.hasNext()) {
+                            Document trustPath = trustPaths.next();
+                            ratio += trustPath.getDouble("ratio");
+                            boolean independentPath = true;
+                            String[] pathElements = trustPath.getString("_id").split(" ");
+                            // Iterate over path elements, ignoring first (root) and last (this agent/pubkey):
+                            for (int i = 1; i < pathElements.length - 1; i++) {
+                                String p = pathElements[i];
+                                if (seenPathElements.containsKey(p)) {
+                                    independentPath = false;
+                                    break;
+                                }
+                                seenPathElements.put(p, true);
+                            }
+                            if (independentPath) {
+                                pathCount += 1;
                             }
-                            seenPathElements.put(p, true);
-                        }
-                        if (independentPath) {
-                            pathCount += 1;
                         }
                     }
+                    double rawQuota = GLOBAL_QUOTA * ratio;
+                    int quota = (int) rawQuota;
+                    if (rawQuota < MIN_USER_QUOTA) {
+                        quota = MIN_USER_QUOTA;
+                    } else if (rawQuota > MAX_USER_QUOTA) {
+                        quota = MAX_USER_QUOTA;
+                    }
+                    set(s, "accounts_loading",
+                            d.append("status", processed.getValue())
+                                    .append("ratio", ratio)
+                                    .append("pathCount", pathCount)
+                                    .append("quota", quota)
+                    );
                 }
-                double rawQuota = GLOBAL_QUOTA * ratio;
-                int quota = (int) rawQuota;
-                if (rawQuota < MIN_USER_QUOTA) {
-                    quota = MIN_USER_QUOTA;
-                } else if (rawQuota > MAX_USER_QUOTA) {
-                    quota = MAX_USER_QUOTA;
-                }
-                set(s, "accounts_loading",
-                        d.append("status", processed.getValue())
-                                .append("ratio", ratio)
-                                .append("pathCount", pathCount)
-                                .append("quota", quota)
-                );
             }
             logger.info("CALCULATE_TRUST_SCORES complete");
             schedule(s, AGGREGATE_AGENTS);
@@ -797,45 +807,49 @@ public enum Task implements Serializable {
         public void run(ClientSession s, Document taskDoc) {
             logger.info("Running AGGREGATE_AGENTS task");
 
-            while (true) {
-                Document a = getOne(s, "accounts_loading", new Document("status", processed.getValue()));
-                if (a == null) {
-                    break;
-                }
+            if (TrustGraph.isEnabled()) {
+                TrustGraph.aggregateAgents(s);
+            } else {
+                while (true) {
+                    Document a = getOne(s, "accounts_loading", new Document("status", processed.getValue()));
+                    if (a == null) {
+                        break;
+                    }
 
-                Document agentId = new Document("agent", a.get("agent").toString()).append("status", processed.getValue());
-                int count = 0;
-                int pathCountSum = 0;
-                double totalRatio = 0.0d;
-                // Canonical-name resolution across the agent's approved keys: pick the
-                // row with MAX(ratio); ties broken on lex-min name for determinism.
-                // Per-(agent, pubkey) name was already chosen by LOAD_ENDORSEMENTS as
-                // "latest declaring intro wins"; this layer just folds across keys.
-                String chosenName = null;
-                double chosenRatio = Double.NEGATIVE_INFINITY;
-                try (MongoCursor<Document> agentAccounts = collection("accounts_loading").find(s, agentId).cursor()) {
-                    while (agentAccounts.hasNext()) {
-                        Document d = agentAccounts.next();
-                        count++;
-                        pathCountSum += d.getInteger("pathCount");
-                        double r = d.getDouble("ratio");
-                        totalRatio += r;
-                        String n = d.getString("name");
-                        if (n != null && (r > chosenRatio
-                                || (r == chosenRatio && (chosenName == null || n.compareTo(chosenName) < 0)))) {
-                            chosenName = n;
-                            chosenRatio = r;
+                    Document agentId = new Document("agent", a.get("agent").toString()).append("status", processed.getValue());
+                    int count = 0;
+                    int pathCountSum = 0;
+                    double totalRatio = 0.0d;
+                    // Canonical-name resolution across the agent's approved keys: pick the
+                    // row with MAX(ratio); ties broken on lex-min name for determinism.
+                    // Per-(agent, pubkey) name was already chosen by LOAD_ENDORSEMENTS as
+                    // "latest declaring intro wins"; this layer just folds across keys.
+                    String chosenName = null;
+                    double chosenRatio = Double.NEGATIVE_INFINITY;
+                    try (MongoCursor<Document> agentAccounts = collection("accounts_loading").find(s, agentId).cursor()) {
+                        while (agentAccounts.hasNext()) {
+                            Document d = agentAccounts.next();
+                            count++;
+                            pathCountSum += d.getInteger("pathCount");
+                            double r = d.getDouble("ratio");
+                            totalRatio += r;
+                            String n = d.getString("name");
+                            if (n != null && (r > chosenRatio
+                                    || (r == chosenRatio && (chosenName == null || n.compareTo(chosenName) < 0)))) {
+                                chosenName = n;
+                                chosenRatio = r;
+                            }
                         }
                     }
+                    collection("accounts_loading").updateMany(s, agentId, new Document("$set",
+                            new DbEntryWrapper(aggregated).getDocument()));
+                    insert(s, "agents_loading",
+                            agentId.append("accountCount", count)
+                                    .append("avgPathCount", (double) pathCountSum / count)
+                                    .append("totalRatio", totalRatio)
+                                    .append("name", chosenName)
+                    );
                 }
-                collection("accounts_loading").updateMany(s, agentId, new Document("$set",
-                        new DbEntryWrapper(aggregated).getDocument()));
-                insert(s, "agents_loading",
-                        agentId.append("accountCount", count)
-                                .append("avgPathCount", (double) pathCountSum / count)
-                                .append("totalRatio", totalRatio)
-                                .append("name", chosenName)
-                );
             }
             logger.info("AGGREGATE_AGENTS complete");
             schedule(s, ASSIGN_PUBKEYS);
@@ -852,23 +866,29 @@ public enum Task implements Serializable {
             int approvedCount = 0;
             int contestedCount = 0;
 
-            while (true) {
-                Document a = getOne(s, "accounts_loading", new DbEntryWrapper(aggregated).getDocument());
-                if (a == null) {
-                    break;
-                }
+            if (TrustGraph.isEnabled()) {
+                int[] counts = TrustGraph.assignPubkeys(s);
+                approvedCount = counts[0];
+                contestedCount = counts[1];
+            } else {
+                while (true) {
+                    Document a = getOne(s, "accounts_loading", new DbEntryWrapper(aggregated).getDocument());
+                    if (a == null) {
+                        break;
+                    }
 
-                Document pubkeyId = new Document("pubkey", a.get("pubkey").toString());
-                if (collection("accounts_loading").countDocuments(s, pubkeyId) == 1) {
-                    collection("accounts_loading").updateMany(s, pubkeyId,
-                            new Document("$set", new DbEntryWrapper(approved).getDocument()));
-                    approvedCount++;
-                } else {
-                    // TODO At the moment all get marked as 'contested'; implement more nuanced algorithm
-                    logger.debug("Pubkey {} is claimed by multiple accounts; marking contested", pubkeyId.getString("pubkey"));
-                    collection("accounts_loading").updateMany(s, pubkeyId, new Document("$set",
-                            new DbEntryWrapper(contested).getDocument()));
-                    contestedCount++;
+                    Document pubkeyId = new Document("pubkey", a.get("pubkey").toString());
+                    if (collection("accounts_loading").countDocuments(s, pubkeyId) == 1) {
+                        collection("accounts_loading").updateMany(s, pubkeyId,
+                                new Document("$set", new DbEntryWrapper(approved).getDocument()));
+                        approvedCount++;
+                    } else {
+                        // TODO At the moment all get marked as 'contested'; implement more nuanced algorithm
+                        logger.debug("Pubkey {} is claimed by multiple accounts; marking contested", pubkeyId.getString("pubkey"));
+                        collection("accounts_loading").updateMany(s, pubkeyId, new Document("$set",
+                                new DbEntryWrapper(contested).getDocument()));
+                        contestedCount++;
+                    }
                 }
             }
             logger.info("ASSIGN_PUBKEYS complete: {} approved, {} contested", approvedCount, contestedCount);
@@ -884,16 +904,20 @@ public enum Task implements Serializable {
         public void run(ClientSession s, Document taskDoc) {
             logger.info("Running DETERMINE_UPDATES task");
 
-            // TODO Handle contested accounts properly:
-            for (Document d : collection("accounts_loading").find(s,
-                    new DbEntryWrapper(approved).getDocument())) {
-                // TODO Consider quota too:
-                Document accountId = new Document("agent", d.get("agent").toString()).append("pubkey", d.get("pubkey").toString());
-                if (collection(Collection.ACCOUNTS.toString()) == null || !has(s, Collection.ACCOUNTS.toString(),
-                        accountId.append("status", loaded.getValue()))) {
-                    set(s, "accounts_loading", d.append("status", toLoad.getValue()));
-                } else {
-                    set(s, "accounts_loading", d.append("status", loaded.getValue()));
+            if (TrustGraph.isEnabled()) {
+                TrustGraph.determineUpdates(s);
+            } else {
+                // TODO Handle contested accounts properly:
+                for (Document d : collection("accounts_loading").find(s,
+                        new DbEntryWrapper(approved).getDocument())) {
+                    // TODO Consider quota too:
+                    Document accountId = new Document("agent", d.get("agent").toString()).append("pubkey", d.get("pubkey").toString());
+                    if (collection(Collection.ACCOUNTS.toString()) == null || !has(s, Collection.ACCOUNTS.toString(),
+                            accountId.append("status", loaded.getValue()))) {
+                        set(s, "accounts_loading", d.append("status", toLoad.getValue()));
+                    } else {
+                        set(s, "accounts_loading", d.append("status", loaded.getValue()));
+                    }
                 }
             }
             logger.info("DETERMINE_UPDATES complete");
@@ -954,6 +978,12 @@ public enum Task implements Serializable {
             return false;
         }
 
+        @Override
+        public boolean runsExclusively() {
+            // Replaces the live collections, which the tasks of the other lanes read and write
+            return true;
+        }
+
     },
     PUBLISH_TRUST_STATE {
 
@@ -1130,6 +1160,8 @@ public enum Task implements Serializable {
                 logger.info("Trust state unchanged ({}); skipping snapshot and pruning", newTrustStateHash);
             }
 
+            TrustChanges.finishCycle(s);
+
             if (status == coreLoading) {
                 logger.info("Server status transitioning coreLoading -> coreReady");
                 setServerStatus(s, coreReady);
@@ -1149,6 +1181,11 @@ public enum Task implements Serializable {
         public void run(ClientSession s, Document taskDoc) {
             ServerStatus status = getServerStatus(s);
             if (status == ready || status == coreReady) {
+                if (TrustChanges.decide(s) == TrustChanges.Update.SKIP) {
+                    logger.info("No intro, endorsement or invalidation changes since the last trust state; keeping it");
+                    schedule(s, UPDATE.withDelay(10 * 60 * 1000));
+                    return;
+                }
                 logger.info("Server status {} eligible for update; transitioning to updating and scheduling INIT_COLLECTIONS", status);
                 setServerStatus(s, updating);
                 schedule(s, INIT_COLLECTIONS);
@@ -1178,8 +1215,31 @@ public enum Task implements Serializable {
                 return;
             }
 
-            Document a = getOne(s, Collection.ACCOUNTS.toString(), new DbEntryWrapper(toLoad).getDocument());
-            if (a == null) {
+            // A task that continues chunked account loads carries their resume points:
+            List<AccountLoadScheduler.ResumePoint> resumes = new ArrayList<>();
+            for (Document r : taskDoc.getList("resume", Document.class, List.of())) {
+                resumes.add(AccountLoadScheduler.ResumePoint.fromDocument(r));
+            }
+            if (taskDoc.getString("pubkey") != null) {
+                // Task queued before resume points were kept as a list
+                resumes.add(AccountLoadScheduler.ResumePoint.fromDocument(taskDoc));
+            }
+
+            // Each run loads at most one chunk per account, and then re-enqueues itself with the
+            // points to resume from, so other due tasks get to run in between and a broken stream
+            // only costs the current chunk.
+            long deadline = System.currentTimeMillis() + getLoadChunkSeconds() * 1000L;
+            WriteProfile profile = RegistryDB.getLoadProfile(status);
+            AccountLoadScheduler scheduler = new AccountLoadScheduler(resumes, deadline);
+            List<AccountLoadScheduler.ResumePoint> deferred = scheduler.run(s, (ws, a, resume) -> loadAccount(ws, a, resume, deadline, profile));
+
+            if (scheduler.getStarted() == 0 && status == coreReady
+                    && has(s, Collection.ACCOUNTS.toString(), new DbEntryWrapper(toLoad).getDocument())) {
+                // Accounts leased by other nodes are still loading; the server is ready only once they are done
+                long delay = 1000;
+                logger.info("Accounts with status={} are still being loaded by other nodes; checking again in {}ms", toLoad, delay);
+                schedule(s, LOAD_FULL.withDelay(delay));
+            } else if (scheduler.getStarted() == 0) {
                 logger.info("No accounts left with status={}; full load pass complete", toLoad);
                 if (status == coreReady) {
                     logger.info("Server status transitioning coreReady -> ready; full load finished");
@@ -1189,75 +1249,11 @@ public enum Task implements Serializable {
                 logger.info("Scheduling optional loading checks (RUN_OPTIONAL_LOAD) in {}ms", delay);
                 schedule(s, RUN_OPTIONAL_LOAD.withDelay(delay));
             } else {
-                final String ph = a.getString("pubkey");
-                boolean quotaReached = false;
-                if (!ph.equals("$")) {
-                    if (!AgentFilter.isAllowed(s, ph)) {
-                        logger.info("Pubkey {} is not covered by the agent filter; marking account as skipped", ph);
-                        set(s, Collection.ACCOUNTS.toString(), a.append("status", skipped.getValue()));
-                        schedule(s, LOAD_FULL.withDelay(100));
-                        return;
-                    }
-                    if (AgentFilter.isOverQuota(s, ph)) {
-                        logger.info("Pubkey {} is already over quota; skipping load, marking account as capped", ph);
-                        quotaReached = true;
-                    } else {
-                        long startTime = System.nanoTime();
-                        AtomicLong totalLoaded = new AtomicLong(0);
-
-                        // Load per covered type (or "$" if no restriction) with checksum skip-ahead
-                        for (String typeHash : getLoadTypeHashes(s, ph)) {
-                            logger.debug("Pubkey {}: starting load for typeHash={}", ph, typeHash);
-                            String checksums = buildChecksumFallbacks(s, ph, typeHash);
-                            logger.debug("Pubkey {}, typeHash={}: checksum fallbacks={}", ph, typeHash, checksums);
-                            try (var stream = NanopubLoader.retrieveNanopubsFromPeers(typeHash, ph, checksums)) {
-                                NanopubLoader.loadStreamInParallel(stream, np -> {
-                                    if (!CoverageFilter.isCovered(np)) {
-                                        logger.debug("Pubkey {}: nanopub {} not covered; skipping", ph, np);
-                                        return;
-                                    }
-                                    try (ClientSession ws = RegistryDB.getClient().startSession()) {
-                                        if (!AgentFilter.isOverQuota(ws, ph)) {
-                                            loadNanopub(ws, np, ph, "$");
-                                            totalLoaded.incrementAndGet();
-                                        } else {
-                                            logger.debug("Pubkey {} hit quota mid-stream; skipping nanopub {}", ph, np);
-                                        }
-                                    }
-                                });
-                            }
-                            logger.debug("Pubkey {}: finished load for typeHash={}", ph, typeHash);
-                        }
-
-                        double timeSeconds = (System.nanoTime() - startTime) * 1e-9;
-                        logger.info("Pubkey {}: loaded {} nanopubs in {}s ({} np/s)",
-                                ph, totalLoaded.get(), String.format("%.2f", timeSeconds),
-                                String.format("%.2f", totalLoaded.get() / timeSeconds));
-
-                        if (AgentFilter.isOverQuota(s, ph)) {
-                            logger.info("Pubkey {} reached quota during this load; marking account as capped", ph);
-                            quotaReached = true;
-                        }
-                    }
-                } else {
-                    logger.debug("Account pubkey is '$' (unrestricted); no per-pubkey quota/filter checks applied");
+                Document next = LOAD_FULL.withDelay(100);
+                if (!deferred.isEmpty()) {
+                    next.append("resume", deferred.stream().map(AccountLoadScheduler.ResumePoint::toDocument).toList());
                 }
-
-                Document l = getOne(s, "lists", new Document().append("pubkey", ph).append("type", "$"));
-                if (l != null) {
-                    logger.debug("Pubkey {}: marking matching list entry as loaded", ph);
-                    set(s, "lists", l.append("status", loaded.getValue()));
-                }
-                EntryStatus accountStatus = quotaReached ? capped : loaded;
-                int effectiveQuota = AgentFilter.getQuota(s, ph);
-                if (effectiveQuota >= 0) {
-                    logger.debug("Pubkey {}: recording effective quota={}", ph, effectiveQuota);
-                    a.append("quota", effectiveQuota);
-                }
-                logger.info("Pubkey {}: account load complete, status={}", ph, accountStatus);
-                set(s, Collection.ACCOUNTS.toString(), a.append("status", accountStatus.getValue()));
-
-                schedule(s, LOAD_FULL.withDelay(100));
+                schedule(s, next);
             }
         }
 
@@ -1273,6 +1269,9 @@ public enum Task implements Serializable {
         private static final int BATCH_SIZE = Integer.parseInt(
                 Utils.getEnv("REGISTRY_OPTIONAL_LOAD_BATCH_SIZE", "100"));
 
+        // How long optional loading may keep CHECK_NEW waiting while it prioritizes all pubkeys
+        private static final long CHECK_NEW_INTERVAL = 60_000;
+
         public void run(ClientSession s, Document taskDoc) {
             if ("false".equals(Utils.getEnv("REGISTRY_ENABLE_OPTIONAL_LOAD", null))) {
                 schedule(s, CHECK_NEW.withDelay(500));
@@ -1280,23 +1279,23 @@ public enum Task implements Serializable {
             }
 
             AtomicLong totalLoaded = new AtomicLong(0);
+            // Shares the budget of this run fairly among the pubkeys, in turns
+            OptionalLoadScheduler scheduler = new OptionalLoadScheduler(BATCH_SIZE);
 
             // Phase 1: Process encountered intro lists (core loading)
-            while (totalLoaded.get() < BATCH_SIZE) {
-                Document di = getOne(s, "lists", new Document("type", INTRO_TYPE_HASH).append("status", encountered.getValue()));
-                if (di == null) {
-                    break;
-                }
-
+            Document di;
+            while ((di = scheduler.next(s, INTRO_TYPE_HASH)) != null) {
                 final String pubkeyHash = di.getString("pubkey");
                 Validate.notNull(pubkeyHash);
                 logger.info("Optional core loading: {}", pubkeyHash);
+                OptionalLoadScheduler.Turn turn = scheduler.startTurn();
 
                 String introChecksums = buildChecksumFallbacks(s, pubkeyHash, INTRO_TYPE_HASH);
                 try (var stream = NanopubLoader.retrieveNanopubsFromPeers(INTRO_TYPE_HASH, pubkeyHash, introChecksums)) {
                     NanopubLoader.loadStreamInParallel(stream, np -> {
                         try (ClientSession ws = RegistryDB.getClient().startSession()) {
                             loadNanopub(ws, np, pubkeyHash, INTRO_TYPE);
+                            turn.charge(np);
                             totalLoaded.incrementAndGet();
                         }
                     });
@@ -1308,10 +1307,12 @@ public enum Task implements Serializable {
                     NanopubLoader.loadStreamInParallel(stream, np -> {
                         try (ClientSession ws = RegistryDB.getClient().startSession()) {
                             loadNanopub(ws, np, pubkeyHash, ENDORSE_TYPE);
+                            turn.charge(np);
                             totalLoaded.incrementAndGet();
                         }
                     });
                 }
+                double vtime = scheduler.finishTurn(s, di, turn);
 
                 Document de = new Document("pubkey", pubkeyHash).append("type", ENDORSE_TYPE_HASH);
                 if (has(s, "lists", de)) {
@@ -1322,25 +1323,53 @@ public enum Task implements Serializable {
 
                 Document df = new Document("pubkey", pubkeyHash).append("type", "$");
                 if (!has(s, "lists", df)) {
-                    insert(s, "lists", df.append("status", encountered.getValue()));
+                    // The full list takes its place in the queue from the intro list
+                    insert(s, "lists", df.append("status", encountered.getValue()).append("vtime", vtime));
                 }
             }
 
             // Phase 2: Process encountered full lists (if budget remains)
-            while (totalLoaded.get() < BATCH_SIZE) {
-                Document df = getOne(s, "lists", new Document("type", "$").append("status", encountered.getValue()));
-                if (df == null) {
-                    break;
-                }
-
+            Document df;
+            while ((df = scheduler.next(s, "$")) != null) {
                 final String pubkeyHash = df.getString("pubkey");
                 logger.info("Optional full loading: {}", pubkeyHash);
-
-                // Load per covered type (or "$" if no restriction) with checksum skip-ahead
-                for (String typeHash : getLoadTypeHashes(s, pubkeyHash)) {
+                OptionalLoadScheduler.Turn turn = scheduler.startTurn();
+
+                // Load per covered type (or "$" if no restriction) with checksum skip-ahead, for
+                // one turn; a list that is not done by then continues in a later turn where it
+                // stopped, like a chunk of LOAD_FULL.
+                int typeIndex = df.getInteger("typeIndex", 0);
+                String resumeChecksum = df.getString("resumeChecksum");
+                AtomicBoolean turnOver = new AtomicBoolean(false);
+                List<String> typeHashes = getLoadTypeHashes(s, pubkeyHash);
+                for (; typeIndex < typeHashes.size(); typeIndex++) {
+                    String typeHash = typeHashes.get(typeIndex);
                     String checksums = buildChecksumFallbacks(s, pubkeyHash, typeHash);
-                    try (var stream = NanopubLoader.retrieveNanopubsFromPeers(typeHash, pubkeyHash, checksums)) {
-                        NanopubLoader.loadStreamInParallel(stream, np -> {
+                    if (resumeChecksum != null) {
+                        checksums = checksums == null ? resumeChecksum : resumeChecksum + "," + checksums;
+                    }
+                    // As in LOAD_FULL, the peer's range headers tell where the received part starts
+                    AtomicReference<String> peerChecksum = new AtomicReference<>(checksums == null ? NanopubUtils.INIT_CHECKSUM : null);
+                    try (var stream = NanopubLoader.retrieveNanopubsFromPeers(typeHash, pubkeyHash, checksums, range -> {
+                        if (range != null) {
+                            peerChecksum.set(range.startChecksum());
+                        }
+                    })) {
+                        Stream<MaybeNanopub> slice = stream.takeWhile(m -> {
+                            if (peerChecksum.get() == null || turn.hasQuantum()) {
+                                return true;
+                            }
+                            turnOver.set(true);
+                            return false;
+                        }).peek(m -> {
+                            if (m.isSuccess()) {
+                                turn.charge(m.getNanopub());
+                                if (peerChecksum.get() != null) {
+                                    peerChecksum.set(NanopubUtils.updateXorChecksum(m.getNanopub().getUri(), peerChecksum.get()));
+                                }
+                            }
+                        });
+                        NanopubLoader.loadStreamInParallel(slice, np -> {
                             if (!CoverageFilter.isCovered(np)) {
                                 return;
                             }
@@ -1350,43 +1379,42 @@ public enum Task implements Serializable {
                             }
                         });
                     }
+                    if (turnOver.get()) {
+                        resumeChecksum = peerChecksum.get();
+                        break;
+                    }
+                    resumeChecksum = null;
                 }
+                scheduler.finishTurn(s, df, turn);
 
-                set(s, "lists", df.append("status", loaded.getValue()));
-
-                // Backfill nanopubs stored locally during the transitional period (i.e. before
-                // the $ list was loaded). Such nanopubs were stored in the nanopubs collection by
-                // simpleLoad() but never added to listEntries; add them to the $ list now.
-                logger.info("Backfilling locally stored nanopubs for pubkey: {}", pubkeyHash);
-                try (MongoCursor<Document> npCursor = collection(Collection.NANOPUBS.toString())
-                        .find(s, new Document("pubkey", pubkeyHash)).cursor()) {
-                    while (npCursor.hasNext()) {
-                        String fullId = npCursor.next().getString("fullId");
-                        if (fullId == null) {
-                            continue;
-                        }
-                        try (ClientSession ws = RegistryDB.getClient().startSession()) {
-                            Nanopub np = NanopubLoader.retrieveLocalNanopub(ws, fullId);
-                            if (np != null && CoverageFilter.isCovered(np)) {
-                                loadNanopub(ws, np, pubkeyHash, "$");
-                                totalLoaded.incrementAndGet();
-                            }
-                        } catch (Exception ex) {
-                            logger.info("Error backfilling nanopub {}: {}", fullId, ex.getMessage());
-                        }
-                    }
+                if (turnOver.get()) {
+                    logger.info("Pubkey {}: optional load turn over at type #{}; continuing in a later turn", pubkeyHash, typeIndex);
+                    collection("lists").updateOne(s, eq("_id", df.get("_id")), new Document("$set",
+                            new Document("typeIndex", typeIndex).append("resumeChecksum", resumeChecksum)));
+                    continue;
                 }
+                // Done with the peers: a backfill that is interrupted continues without asking them again
+                collection("lists").updateOne(s, eq("_id", df.get("_id")), new Document("$set", new Document("typeIndex", typeHashes.size()))
+                        .append("$unset", new Document("resumeChecksum", "")));
+                totalLoaded.addAndGet(backfillStoredNanopubs(s, df));
+                collection("lists").updateOne(s, eq("_id", df.get("_id")), new Document("$set", new Document("status", loaded.getValue()))
+                        .append("$unset", new Document("typeIndex", "").append("resumeChecksum", "").append("backfillAfter", "")));
             }
 
             if (totalLoaded.get() > 0) {
-                logger.info("Optional load batch completed: {} nanopubs across multiple pubkeys", totalLoaded.get());
+                logger.info("Optional load batch completed: {} nanopubs ({} bytes received) across multiple pubkeys",
+                        totalLoaded.get(), scheduler.getByteCount());
             }
 
             if (prioritizeAllPubkeys()) {
                 // Check if there are more pubkeys waiting to be processed
                 boolean moreWork = has(s, "lists", new Document("type", INTRO_TYPE_HASH).append("status", encountered.getValue()))
                         || has(s, "lists", new Document("type", "$").append("status", encountered.getValue()));
-                if (moreWork) {
+                // Approved accounts come first: go round through CHECK_NEW and LOAD_FULL when
+                // accounts are waiting to be loaded, or CHECK_NEW has not run for a while.
+                boolean approvedWork = has(s, Collection.ACCOUNTS.toString(), new DbEntryWrapper(toLoad).getDocument())
+                        || System.currentTimeMillis() - lastCheckNewTime > CHECK_NEW_INTERVAL;
+                if (moreWork && !approvedWork) {
                     // Continue processing without a full CHECK_NEW cycle in between.
                     // CHECK_NEW will run naturally once all encountered lists are processed.
                     schedule(s, RUN_OPTIONAL_LOAD.withDelay(10));
@@ -1411,6 +1439,7 @@ public enum Task implements Serializable {
     CHECK_NEW {
         public void run(ClientSession s, Document taskDoc) {
             logger.debug("Running CHECK_NEW task: checking peers and legacy source for new nanopubs");
+            lastCheckNewTime = System.currentTimeMillis();
 
             logger.debug("Checking peers for new nanopubs");
             RegistryPeerConnector.checkPeers(s);
@@ -1486,6 +1515,37 @@ public enum Task implements Serializable {
         return true;
     }
 
+    /**
+     * Returns the lane whose runner runs this task.
+     */
+    public TaskLane getLane() {
+        return switch (this) {
+            case INIT_DB, LOAD_CONFIG, LOAD_SETTING -> TaskLane.BOOTSTRAP;
+            case LOAD_FULL, RUN_OPTIONAL_LOAD -> TaskLane.LOAD;
+            case CHECK_NEW -> TaskLane.SYNC;
+            default -> TaskLane.TRUST;
+        };
+    }
+
+    /**
+     * Whether this task has to run alone, with the runners of all other lanes waiting until it is
+     * done. This is the case for the bootstrap tasks, which set up what the others rely on.
+     */
+    public boolean runsExclusively() {
+        return getLane() == TaskLane.BOOTSTRAP;
+    }
+
+    /**
+     * Whether this task belongs to the one chain of tasks that all registry processes sharing the
+     * database take turns in running, as opposed to the loading loop, of which each process runs its
+     * own ({@code LOAD_FULL}, {@code RUN_OPTIONAL_LOAD} and {@code CHECK_NEW}).
+     *
+     * @see TaskLease
+     */
+    public boolean isSingleton() {
+        return getLane() != TaskLane.LOAD && getLane() != TaskLane.SYNC;
+    }
+
     Document asDocument() {
         return withDelay(0L);
     }
@@ -1501,10 +1561,156 @@ public enum Task implements Serializable {
         return asDocument().append(key, value);
     }
 
+    /**
+     * Maximum number of nanopubs a single LOAD_FULL run streams for an account before it
+     * re-enqueues itself ({@code REGISTRY_LOAD_CHUNK_SIZE}, default 10000).
+     */
+    private static long getLoadChunkSize() {
+        return Long.parseLong(Utils.getEnv("REGISTRY_LOAD_CHUNK_SIZE", "10000"));
+    }
+
+    /**
+     * Maximum time in seconds a single LOAD_FULL run streams for an account before it
+     * re-enqueues itself ({@code REGISTRY_LOAD_CHUNK_SECONDS}, default 60).
+     */
+    private static long getLoadChunkSeconds() {
+        return Long.parseLong(Utils.getEnv("REGISTRY_LOAD_CHUNK_SECONDS", "60"));
+    }
+
     private static boolean prioritizeAllPubkeys() {
         return "true".equals(Utils.getEnv("REGISTRY_PRIORITIZE_ALL_PUBKEYS", null));
     }
 
+    /**
+     * Loads one chunk of a {@code toLoad} account for {@code LOAD_FULL}, and marks the account as
+     * skipped, capped or loaded once it is done.
+     *
+     * @param s        the MongoDB client session of the worker
+     * @param a        the account document
+     * @param resume   where to continue a previous chunk, or null to start from the beginning
+     * @param deadline the time at which the chunk ends, if it has not reached its size limit before
+     * @return where to continue in the next run, or null if the account is done
+     */
+    private static AccountLoadScheduler.ResumePoint loadAccount(ClientSession s, Document a, AccountLoadScheduler.ResumePoint resume, long deadline, WriteProfile profile) {
+        final String ph = a.getString("pubkey");
+        boolean quotaReached = false;
+        if (!ph.equals("$")) {
+            if (!AgentFilter.isAllowed(s, ph)) {
+                logger.info("Pubkey {} is not covered by the agent filter; marking account as skipped", ph);
+                set(s, Collection.ACCOUNTS.toString(), a.append("status", skipped.getValue()));
+                return null;
+            }
+            if (AgentFilter.isOverQuota(s, ph)) {
+                logger.info("Pubkey {} is already over quota; skipping load, marking account as capped", ph);
+                quotaReached = true;
+            } else {
+                long startTime = System.nanoTime();
+                AtomicLong totalLoaded = new AtomicLong(0);
+
+                boolean resuming = resume != null;
+                int typeIndex = resuming ? resume.typeIndex() : 0;
+                String resumeChecksum = resuming ? resume.resumeChecksum() : null;
+                long position = resuming ? resume.position() : 0L;
+                long chunkSize = getLoadChunkSize();
+                AtomicLong received = new AtomicLong(0);
+                AtomicBoolean chunkFull = new AtomicBoolean(false);
+                if (resuming) {
+                    logger.info("Pubkey {}: resuming load at type #{}, position {}", ph, typeIndex, position);
+                }
+
+                // Load per covered type (or "$" if no restriction) with checksum skip-ahead
+                List<String> typeHashes = getLoadTypeHashes(s, ph);
+                for (; typeIndex < typeHashes.size() && !chunkFull.get(); typeIndex++) {
+                    String typeHash = typeHashes.get(typeIndex);
+                    logger.debug("Pubkey {}: starting load for typeHash={}", ph, typeHash);
+                    String checksums = buildChecksumFallbacks(s, ph, typeHash);
+                    if (resumeChecksum != null) {
+                        checksums = checksums == null ? resumeChecksum : resumeChecksum + "," + checksums;
+                    }
+                    // The peer-side checksum and position of what has been received. Without any
+                    // checksums the peer starts at the beginning; otherwise only its range headers
+                    // tell which of the checksums it continued from.
+                    AtomicReference<String> peerChecksum = new AtomicReference<>(checksums == null ? NanopubUtils.INIT_CHECKSUM : null);
+                    AtomicLong peerPosition = new AtomicLong(0);
+                    logger.debug("Pubkey {}, typeHash={}: checksum fallbacks={}", ph, typeHash, checksums);
+                    try (var stream = NanopubLoader.retrieveNanopubsFromPeers(typeHash, ph, checksums, range -> {
+                        if (range != null) {
+                            peerChecksum.set(range.startChecksum());
+                            peerPosition.set(range.fromPosition());
+                        }
+                    })) {
+                        Stream<MaybeNanopub> chunk = stream.takeWhile(m -> {
+                            // A chunk can only be cut where it can be resumed
+                            if (peerChecksum.get() == null || (received.get() < chunkSize && System.currentTimeMillis() < deadline)) {
+                                return true;
+                            }
+                            chunkFull.set(true);
+                            return false;
+                        }).peek(m -> {
+                            received.incrementAndGet();
+                            peerPosition.incrementAndGet();
+                            if (m.isSuccess() && peerChecksum.get() != null) {
+                                peerChecksum.set(NanopubUtils.updateXorChecksum(m.getNanopub().getUri(), peerChecksum.get()));
+                            }
+                        });
+                        NanopubLoader.loadStreamInParallel(chunk, np -> {
+                            if (!CoverageFilter.isCovered(np)) {
+                                logger.debug("Pubkey {}: nanopub {} not covered; skipping", ph, np);
+                                return;
+                            }
+                            try (ClientSession ws = RegistryDB.getClient().startSession()) {
+                                if (!AgentFilter.isOverQuota(ws, ph)) {
+                                    loadNanopub(ws, profile, np, ph, "$");
+                                    totalLoaded.incrementAndGet();
+                                } else {
+                                    logger.debug("Pubkey {} hit quota mid-stream; skipping nanopub {}", ph, np);
+                                }
+                            }
+                        });
+                    }
+                    if (chunkFull.get()) {
+                        resumeChecksum = peerChecksum.get();
+                        position = peerPosition.get();
+                        break;
+                    }
+                    logger.debug("Pubkey {}: finished load for typeHash={}", ph, typeHash);
+                    resumeChecksum = null;
+                    position = 0;
+                }
+
+                double timeSeconds = (System.nanoTime() - startTime) * 1e-9;
+                logger.info("Pubkey {}: loaded {} nanopubs in {}s ({} np/s)",
+                        ph, totalLoaded.get(), String.format("%.2f", timeSeconds),
+                        String.format("%.2f", totalLoaded.get() / timeSeconds));
+
+                if (AgentFilter.isOverQuota(s, ph)) {
+                    logger.info("Pubkey {} reached quota during this load; marking account as capped", ph);
+                    quotaReached = true;
+                } else if (chunkFull.get()) {
+                    logger.info("Pubkey {}: chunk limit reached at type #{}, position {}; continuing in the next run", ph, typeIndex, position);
+                    return new AccountLoadScheduler.ResumePoint(ph, typeIndex, resumeChecksum, position);
+                }
+            }
+        } else {
+            logger.debug("Account pubkey is '$' (unrestricted); no per-pubkey quota/filter checks applied");
+        }
+
+        Document l = getOne(s, "lists", new Document().append("pubkey", ph).append("type", "$"));
+        if (l != null) {
+            logger.debug("Pubkey {}: marking matching list entry as loaded", ph);
+            set(s, "lists", l.append("status", loaded.getValue()));
+        }
+        EntryStatus accountStatus = quotaReached ? capped : loaded;
+        int effectiveQuota = AgentFilter.getQuota(s, ph);
+        if (effectiveQuota >= 0) {
+            logger.debug("Pubkey {}: recording effective quota={}", ph, effectiveQuota);
+            a.append("quota", effectiveQuota);
+        }
+        logger.info("Pubkey {}: account load complete, status={}", ph, accountStatus);
+        set(s, Collection.ACCOUNTS.toString(), a.append("status", accountStatus.getValue()));
+        return null;
+    }
+
     /**
      * Returns the type hashes to load for a given pubkey. When coverage is
      * unrestricted, returns just "$" (all types in one request). When
@@ -1525,6 +1731,52 @@ public enum Task implements Serializable {
         return java.util.List.copyOf(CoverageFilter.getCoveredTypeHashes());
     }
 
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
+    /**
+     * Adds the nanopubs of a pubkey that were stored locally before its {@code $} list was loaded
+     * (by simpleLoad(), without list entries) to its lists. They are read with one cursor in
+     * {@code _id} order; each batch is decoded in parallel and appended with one write per list,
+     * without verifying the signatures again. After each batch, its last {@code _id} is recorded
+     * on the list as {@code backfillAfter}, where an interrupted backfill continues.
+     *
+     * @param s    the MongoDB client session
+     * @param list the {@code $} list document
+     * @return the number of nanopubs backfilled
+     */
+    private static long backfillStoredNanopubs(ClientSession s, Document list) {
+        String pubkeyHash = list.getString("pubkey");
+        String after = list.getString("backfillAfter");
+        logger.info("Backfilling locally stored nanopubs for pubkey {}{}", pubkeyHash, after == null ? "" : " after " + after);
+        Document filter = new Document("pubkey", pubkeyHash);
+        if (after != null) {
+            filter.append("_id", new Document("$gt", after));
+        }
+        long count = 0;
+        List<Document> batch = new ArrayList<>(BACKFILL_BATCH_SIZE);
+        try (MongoCursor<Document> cursor = collection(Collection.NANOPUBS.toString()).find(s, filter)
+                .projection(new Document("jelly", 1)).sort(ascending("_id")).cursor()) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() >= BACKFILL_BATCH_SIZE) {
+                    count += backfillBatch(s, list, batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            count += backfillBatch(s, list, batch);
+        }
+        return count;
+    }
+
+    private static long backfillBatch(ClientSession s, Document list, List<Document> batch) {
+        List<Nanopub> nanopubs = NanopubLoader.decodeLocalNanopubs(batch).stream().filter(CoverageFilter::isCovered).toList();
+        RegistryDB.listStoredNanopubs(s, list.getString("pubkey"), nanopubs);
+        collection("lists").updateOne(s, eq("_id", list.get("_id")), new Document("$set", new Document("backfillAfter", batch.getLast().getString("_id"))));
+        return nanopubs.size();
+    }
+
     // TODO Move these to setting:
     private static final int MAX_TRUST_PATH_DEPTH = 10;
     private static final double MIN_TRUST_PATH_RATIO = 0.0000000001;
@@ -1558,15 +1810,46 @@ public enum Task implements Serializable {
      */
     private static final Set<Task> TRUST_CYCLE_TAIL_TASKS = EnumSet.of(RELEASE_DATA, PUBLISH_TRUST_STATE);
 
-    private static volatile String currentTaskName;
-    private static volatile long currentTaskStartTime;
+    /**
+     * A task that is currently running in its lane.
+     */
+    public record RunningTask(String name, long startTime) {
+    }
+
+    private static final Map<TaskLane, RunningTask> runningTasks = new ConcurrentHashMap<>();
 
+    // Tasks run under the read lock, exclusive tasks under the write lock
+    private static final ReentrantReadWriteLock exclusiveLock = new ReentrantReadWriteLock();
+
+    // When CHECK_NEW last started on this node; see RUN_OPTIONAL_LOAD
+    private static volatile long lastCheckNewTime = 0;
+
+    /**
+     * Returns the names of the currently running tasks, in lane order, or null if none is running.
+     */
     public static String getCurrentTaskName() {
-        return currentTaskName;
+        List<String> names = new ArrayList<>();
+        for (TaskLane lane : TaskLane.values()) {
+            RunningTask t = runningTasks.get(lane);
+            if (t != null) {
+                names.add(t.name());
+            }
+        }
+        return names.isEmpty() ? null : String.join(", ", names);
     }
 
+    /**
+     * Returns the start time of the longest-running current task, or 0 if none is running.
+     */
     public static long getCurrentTaskStartTime() {
-        return currentTaskStartTime;
+        return runningTasks.values().stream().mapToLong(RunningTask::startTime).min().orElse(0);
+    }
+
+    /**
+     * Returns the task currently running in the given lane, or null if the lane is idle.
+     */
+    public static RunningTask getRunningTask(TaskLane lane) {
+        return runningTasks.get(lane);
     }
 
     /**
@@ -1638,19 +1921,82 @@ public enum Task implements Serializable {
             if (!RegistryDB.isInitialized(s)) {
                 schedule(s, INIT_DB); // does not yet execute, only schedules
             } else {
-                recoverInterruptedCycle(s);
+                if (TaskLease.isOtherNodeAlive(s)) {
+                    // The queued cycle belongs to the running nodes; if one of them dies, another takes over
+                    logger.info("Other registry nodes are running; not checking for an interrupted trust-state cycle");
+                } else {
+                    recoverInterruptedCycle(s);
+                }
+                TaskLease.adoptUnownedLoop(s);
+                if (!TaskLease.hasOwnLoop(s) && !"false".equals(Utils.getEnv("REGISTRY_PERFORM_FULL_LOAD", null))) {
+                    logger.info("Starting the loading loop of node {}", TaskLease.NODE_ID);
+                    schedule(s, LOAD_FULL);
+                }
             }
+            TaskLease.renew(s);
 
-            logger.info("Task runner started");
+            TaskQueue.reload(s);
+        }
+        TaskLease.startHeartbeat();
+
+        List<Thread> runners = new ArrayList<>();
+        for (TaskLane lane : TaskLane.values()) {
+            Thread runner = new Thread(() -> runLane(lane), "task-runner-" + lane.getName());
+            runner.start();
+            runners.add(runner);
+        }
+        logger.info("Task runners started for lanes {}", List.of(TaskLane.values()));
+        for (Thread runner : runners) {
+            try {
+                runner.join();
+            } catch (InterruptedException ex) {
+                logger.debug("Interrupted while waiting for the task runners");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks of one lane, one after the other, on a session of its own.
+     */
+    private static void runLane(TaskLane lane) {
+        try (ClientSession s = RegistryDB.getClient().startSession()) {
             while (true) {
-                FindIterable<Document> taskResult = tasksCollection.find(s).sort(ascending("not-before"));
-                Document taskDoc = taskResult.first();
-                long sleepTime = 10;
-                if (taskDoc != null && taskDoc.getLong("not-before") < System.currentTimeMillis()) {
-                    Task task = valueOf(taskDoc.getString("action"));
-                    Object taskId = taskDoc.getOrDefault("_id", null);
-                    logger.info("Picked task to run: {} (docId={})", task.name(), taskId);
+                Document taskDoc;
+                try {
+                    // Sleeps until the first task of the lane is due or a new one is scheduled
+                    taskDoc = TaskQueue.awaitNext(lane);
+                } catch (InterruptedException ex) {
+                    logger.debug("Task runner wait interrupted in lane {}", lane.getName());
+                    continue;
+                }
+                // Only a failed task, still at the head of the queue, needs a pause before its retry
+                long sleepTime = 0;
+                Task task = valueOf(taskDoc.getString("action"));
+                Object taskId = taskDoc.getOrDefault("_id", null);
+                TaskLease.Claim claim;
+                try {
+                    claim = TaskLease.claim(s, task, taskDoc);
+                } catch (Exception ex) {
+                    logger.warn("Claiming task {} failed: {}", task.name(), ex.getMessage(), ex);
+                    claim = TaskLease.Claim.WAIT;
+                }
+                if (claim == TaskLease.Claim.SKIP) {
+                    TaskQueue.remove(taskDoc);
+                    continue;
+                }
+                if (claim == TaskLease.Claim.WAIT) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ex) {
+                        logger.debug("Task runner sleep interrupted");
+                    }
+                    continue;
+                }
+                logger.info("Picked task to run: {} (docId={})", task.name(), taskId);
 
+                try {
                     if (task.runAsTransaction()) {
                         try {
                             s.startTransaction();
@@ -1671,14 +2017,20 @@ public enum Task implements Serializable {
                             runTask(task, taskDoc);
                         } catch (Exception ex) {
                             logger.warn("Non-transactional task {} failed: {}", task.name(), ex.getMessage(), ex);
+                            sleepTime = 10;
                         }
                     }
+                } finally {
+                    // A task that failed stays in the queue, but no longer counts as running
+                    TaskLease.release(s, taskDoc);
                 }
-                try {
-                    Thread.sleep(sleepTime);
-                } catch (InterruptedException ex) {
-                    // ignore
-                    logger.debug("Task runner sleep interrupted");
+                if (sleepTime > 0) {
+                    try {
+                        Thread.sleep(sleepTime);
+                    } catch (InterruptedException ex) {
+                        // ignore
+                        logger.debug("Task runner sleep interrupted");
+                    }
                 }
             }
         }
@@ -1689,7 +2041,7 @@ public enum Task implements Serializable {
      *
      * <p>
      * The session belongs to the caller and carries the transaction, if any:
-     * for a task with {@link #runAsTransaction()}, {@link #runTasks} has
+     * for a task with {@link #runAsTransaction()}, the lane runner has
      * already called {@code startTransaction()} on it, so the task's writes and
      * the removal of the task from the queue below both join that transaction
      * and commit together. Opening a session here instead would silently place
@@ -1699,21 +2051,35 @@ public enum Task implements Serializable {
      * @param taskDoc the queue document describing this invocation
      */
     static void runTask(Task task, Document taskDoc) throws Exception {
-        currentTaskName = task.name();
-        currentTaskStartTime = System.currentTimeMillis();
-        logger.info("Starting task {} with request: {}", currentTaskName, taskDoc);
+        Lock lock = task.runsExclusively() ? exclusiveLock.writeLock() : exclusiveLock.readLock();
+        lock.lock();
+        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        runningTasks.put(task.getLane(), new RunningTask(task.name(), startTime));
+        TaskStats.Run stats = TaskStats.get(task.name());
+        if (taskDoc.get("not-before") instanceof Long notBefore) {
+            stats.recordStart(startTime - notBefore);
+        }
+        logger.info("Starting task {} with request: {}", task.name(), taskDoc);
 
         try (ClientSession s = RegistryDB.getClient().startSession()) {
             task.run(s, taskDoc);
-            long duration = System.currentTimeMillis() - currentTaskStartTime;
+            long duration = System.currentTimeMillis() - startTime;
             tasksCollection.deleteOne(s, eq("_id", taskDoc.get("_id")));
-            logger.info("Completed and removed from queue task {} in {} ms", currentTaskName, duration);
+            TaskQueue.remove(taskDoc);
+            stats.record(System.nanoTime() - startNanos, true);
+            logger.info("Completed and removed from queue task {} in {} ms", task.name(), duration);
         } catch (Exception ex) {
-            long duration = System.currentTimeMillis() - currentTaskStartTime;
-            logger.error("Task {} failed after {} ms: {}", currentTaskName, duration, ex.getMessage(), ex);
+            long duration = System.currentTimeMillis() - startTime;
+            stats.record(System.nanoTime() - startNanos, false);
+            if (ex instanceof AbortingTaskException) {
+                TaskStats.recordAbortingTaskException();
+            }
+            logger.error("Task {} failed after {} ms: {}", task.name(), duration, ex.getMessage(), ex);
             throw ex;
         } finally {
-            currentTaskName = null;
+            runningTasks.remove(task.getLane());
+            lock.unlock();
         }
     }
 
@@ -1724,6 +2090,7 @@ public enum Task implements Serializable {
                 if (mongoSession.hasActiveTransaction()) {
                     logger.info("Attempting to abort transaction: {}", message);
                     mongoSession.abortTransaction();
+                    TaskStats.recordTransactionAbort();
                 }
                 successful = true;
                 logger.debug("abortTransaction succeeded");
@@ -1769,7 +2136,76 @@ public enum Task implements Serializable {
         return agentIntro;
     }
 
+    /**
+     * Adds the endorsements in an endorsement nanopub of an account to {@code endorsements_loading},
+     * to be retrieved by the next {@code LOAD_DECLARATIONS}.
+     */
+    private static void recordEndorsements(ClientSession s, Nanopub nanopub, String agentId, String pubkeyHash) {
+        String sourceNpId = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
+        Validate.notNull(sourceNpId);
+        for (Statement st : nanopub.getAssertion()) {
+            if (!st.getPredicate().equals(Utils.APPROVES_OF)) {
+                continue;
+            }
+            if (!(st.getObject() instanceof IRI)) {
+                continue;
+            }
+            if (!agentId.equals(st.getSubject().stringValue())) {
+                continue;
+            }
+            String objStr = st.getObject().stringValue();
+            if (!TrustyUriUtils.isPotentialTrustyUri(objStr)) {
+                continue;
+            }
+            String endorsedNpId = TrustyUriUtils.getArtifactCode(objStr);
+            Validate.notNull(endorsedNpId);
+            Document endorsement = new Document("agent", agentId)
+                    .append("pubkey", pubkeyHash)
+                    .append("endorsedNanopub", endorsedNpId)
+                    .append("source", sourceNpId);
+            if (!has(s, "endorsements_loading", endorsement)) {
+                insert(s, "endorsements_loading",
+                        endorsement.append("status", toRetrieve.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Adds the endorsements of an account to {@code endorsements_loading} from its local
+     * endorsement list, in list order and in batches, instead of streaming them from the peers.
+     *
+     * @return the number of endorsement nanopubs read
+     */
+    private static long readLocalEndorsements(ClientSession s, String agentId, String pubkeyHash) {
+        long count = 0;
+        List<String> acs = new ArrayList<>();
+        try (MongoCursor<Document> entries = collection("listEntries").find(s,
+                        new Document("pubkey", pubkeyHash).append("type", ENDORSE_TYPE_HASH))
+                .sort(ascending("position")).projection(new Document("np", 1)).cursor()) {
+            while (entries.hasNext()) {
+                acs.add(entries.next().getString("np"));
+                if (acs.size() == BACKFILL_BATCH_SIZE || !entries.hasNext()) {
+                    Map<String, Document> npDocs = new HashMap<>();
+                    for (Document d : collection(Collection.NANOPUBS.toString()).find(s, in("_id", acs)).projection(new Document("jelly", 1))) {
+                        npDocs.put(d.getString("_id"), d);
+                    }
+                    List<Document> ordered = acs.stream().map(npDocs::get).filter(Objects::nonNull).toList();
+                    for (Nanopub np : NanopubLoader.decodeLocalNanopubs(ordered)) {
+                        recordEndorsements(s, np, agentId, pubkeyHash);
+                        count++;
+                    }
+                    acs.clear();
+                }
+            }
+        }
+        return count;
+    }
+
     private static void setServerStatus(ClientSession mongoSession, ServerStatus status) {
+        if (getLoadProfile(mongoSession) == WriteProfile.BULK && RegistryDB.getLoadProfile(status) != WriteProfile.BULK) {
+            // The loaders of the initial load wrote without waiting for the journal:
+            RegistryDB.awaitDurability();
+        }
         setValue(mongoSession, Collection.SERVER_INFO.toString(), "status", status.toString());
     }
 
@@ -1781,13 +2217,24 @@ public enum Task implements Serializable {
         return ServerStatus.valueOf(status.toString());
     }
 
+    /**
+     * Returns the write profile for loaders at the current server status, see
+     * {@link RegistryDB#getLoadProfile}.
+     */
+    private static WriteProfile getLoadProfile(ClientSession mongoSession) {
+        Object status = getValue(mongoSession, Collection.SERVER_INFO.toString(), "status");
+        return status == null ? WriteProfile.DEFAULT : RegistryDB.getLoadProfile(ServerStatus.valueOf(status.toString()));
+    }
+
     private static void schedule(ClientSession mongoSession, Task task) {
         schedule(mongoSession, task.asDocument());
     }
 
     private static void schedule(ClientSession mongoSession, Document taskDoc) {
         logger.info("Scheduling task: {}", taskDoc.getString("action"));
+        TaskLease.stamp(valueOf(taskDoc.getString("action")), taskDoc);
         tasksCollection.insertOne(mongoSession, taskDoc);
+        TaskQueue.add(taskDoc);
     }
 
 }
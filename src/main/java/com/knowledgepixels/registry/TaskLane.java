@@ -0,0 +1,40 @@
+package com.knowledgepixels.registry;
+
+/**
+ * The lanes of the task queue. Each lane has its own runner thread, which runs the tasks of that
+ * lane one after the other, in {@code not-before} order, so that a long task in one lane does not
+ * hold up the others. Tasks hand over to another lane simply by scheduling a task of that lane.
+ *
+ * @see Task#getLane()
+ */
+public enum TaskLane {
+
+    /**
+     * Setting up a fresh database: {@code INIT_DB}, {@code LOAD_CONFIG}, {@code LOAD_SETTING}.
+     */
+    BOOTSTRAP,
+
+    /**
+     * The trust-state cycle, from {@code INIT_COLLECTIONS} to {@code PUBLISH_TRUST_STATE}, and the
+     * {@code UPDATE} that starts the next one.
+     */
+    TRUST,
+
+    /**
+     * The loading loop: {@code LOAD_FULL} and {@code RUN_OPTIONAL_LOAD}.
+     */
+    LOAD,
+
+    /**
+     * Checking peers and legacy servers for new nanopubs: {@code CHECK_NEW}.
+     */
+    SYNC;
+
+    /**
+     * Returns the lane name as used in thread names and metric tags.
+     */
+    public String getName() {
+        return name().toLowerCase();
+    }
+
+}
@@ -0,0 +1,300 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.knowledgepixels.registry.EntryStatus.toLoad;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Leases that let several registry processes ("nodes") share one database and its task queue.
+ *
+ * <p>A node claims a task before running it, by setting its {@code owner} and a {@code leaseUntil}
+ * time on the task document in one {@code findOneAndUpdate}. A heartbeat renews the leases of
+ * everything the node holds every third of the lease time ({@code REGISTRY_TASK_LEASE_SECONDS},
+ * default 60), so the leases of a node that has died run out, and other nodes take its tasks over.
+ *
+ * <p>Singleton tasks (see {@link Task#isSingleton()}) form one chain across all nodes, and any node
+ * can claim the next one. The other tasks form a loading loop of which every node runs its own: they
+ * are owned by the node that schedules them, and a node that finds the loop of a dead node drops it
+ * in favour of its own. The accounts that {@code LOAD_FULL} loads are leased in the same way, so
+ * that the loops of different nodes share out the accounts among them. Exclusive tasks (see
+ * {@link Task#runsExclusively()}) wait until no other node is running a task, and while one is
+ * running, other nodes do not start any.
+ */
+final class TaskLease {
+
+    private TaskLease() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskLease.class);
+
+    /**
+     * The name of this node ({@code REGISTRY_NODE_ID}, default the host name).
+     */
+    static final String NODE_ID = Utils.getEnv("REGISTRY_NODE_ID", getDefaultNodeId());
+
+    static final long LEASE_MILLIS = Long.parseLong(Utils.getEnv("REGISTRY_TASK_LEASE_SECONDS", "60")) * 1000L;
+
+    private static final long EXCLUSIVE_POLL_MILLIS = 100;
+
+    /**
+     * What the task runner does with a task after trying to claim it.
+     */
+    enum Claim {
+
+        /**
+         * The task is claimed by this node: run it.
+         */
+        RUN,
+
+        /**
+         * The task is leased by another node, or it was dropped: remove it from the local queue.
+         */
+        SKIP,
+
+        /**
+         * An exclusive task is running on another node: try again later.
+         */
+        WAIT
+
+    }
+
+    private static String getDefaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception ex) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private static List<String> getLoopTaskNames() {
+        return Arrays.stream(Task.values()).filter(t -> !t.isSingleton()).map(Task::name).toList();
+    }
+
+    private static List<String> getExclusiveTaskNames() {
+        return Arrays.stream(Task.values()).filter(Task::runsExclusively).map(Task::name).toList();
+    }
+
+    /**
+     * Matches the documents that are not leased, leased by this node, or whose lease has run out.
+     */
+    private static Bson claimable(String ownerField, String leaseField, long now) {
+        return or(exists(ownerField, false), eq(ownerField, NODE_ID), lt(leaseField, now));
+    }
+
+    /**
+     * Matches the tasks that another live node is running.
+     */
+    private static Bson runningElsewhere(long now) {
+        return and(eq("running", true), ne("owner", NODE_ID), gt("leaseUntil", now));
+    }
+
+    /**
+     * Matches the task documents this node may claim.
+     */
+    static Bson claimable(long now) {
+        return claimable("owner", "leaseUntil", now);
+    }
+
+    /**
+     * Marks a task document that is about to be scheduled: tasks of the loading loop belong to the
+     * node that schedules them.
+     */
+    static void stamp(Task task, Document taskDoc) {
+        if (!task.isSingleton() && !taskDoc.containsKey("owner")) {
+            taskDoc.append("owner", NODE_ID).append("leaseUntil", System.currentTimeMillis() + LEASE_MILLIS);
+        }
+    }
+
+    /**
+     * Claims a task for this node before it runs.
+     *
+     * @param s       the MongoDB client session
+     * @param task    the task
+     * @param taskDoc the task document
+     * @return whether to run the task, skip it or try again later
+     */
+    static Claim claim(ClientSession s, Task task, Document taskDoc) {
+        long now = System.currentTimeMillis();
+        Object id = taskDoc.get("_id");
+        Document before = collection(Collection.TASKS.toString()).findOneAndUpdate(s,
+                and(eq("_id", id), claimable(now)),
+                combine(set("owner", NODE_ID), set("leaseUntil", now + LEASE_MILLIS), set("running", true)),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+        if (before == null) {
+            logger.debug("Task {} ({}) is gone or leased by another node", task.name(), id);
+            return Claim.SKIP;
+        }
+        String previousOwner = before.getString("owner");
+        if (!task.isSingleton() && previousOwner != null && !previousOwner.equals(NODE_ID)) {
+            // The loop of a node whose lease has run out: keep it only if this node has none of its own
+            if (collection(Collection.TASKS.toString()).find(s, and(eq("owner", NODE_ID), in("action", getLoopTaskNames()), ne("_id", id))).first() != null) {
+                logger.info("Dropping task {} of node {}, whose lease has run out", task.name(), previousOwner);
+                collection(Collection.TASKS.toString()).deleteOne(s, eq("_id", id));
+                return Claim.SKIP;
+            }
+            logger.info("Taking over task {} of node {}, whose lease has run out", task.name(), previousOwner);
+        } else if (task.isSingleton() && previousOwner != null && !previousOwner.equals(NODE_ID)) {
+            if (before.getBoolean("running", false) && task.getLane() == TaskLane.TRUST) {
+                // The node died in the middle of a cycle task, just as in a crash of a single node
+                logger.info("Task {} was running on node {}, whose lease has run out; recovering the trust-state cycle", task.name(), previousOwner);
+                Task.recoverInterruptedCycle(s);
+                return Claim.SKIP;
+            }
+            logger.info("Taking over task {} of node {}, whose lease has run out", task.name(), previousOwner);
+        }
+        if (task.runsExclusively()) {
+            awaitOtherNodes(s, task);
+        } else if (collection(Collection.TASKS.toString()).find(s, and(runningElsewhere(now), in("action", getExclusiveTaskNames()))).first() != null) {
+            logger.debug("An exclusive task is running on another node; postponing task {}", task.name());
+            collection(Collection.TASKS.toString()).updateOne(s, eq("_id", id), set("running", false));
+            return Claim.WAIT;
+        }
+        return Claim.RUN;
+    }
+
+    /**
+     * Marks a claimed task as no longer running, after it has run or failed. A task that completed
+     * is already gone from the queue; one that failed keeps its lease until it is retried.
+     *
+     * @param s       the MongoDB client session
+     * @param taskDoc the task document
+     */
+    static void release(ClientSession s, Document taskDoc) {
+        try {
+            collection(Collection.TASKS.toString()).updateOne(s, eq("_id", taskDoc.get("_id")), set("running", false));
+        } catch (Exception ex) {
+            logger.warn("Releasing task {} failed: {}", taskDoc.getString("action"), ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Waits until no other node is running a task that is not exclusive. Such nodes see the claimed
+     * exclusive task and do not start new ones in the meantime.
+     */
+    private static void awaitOtherNodes(ClientSession s, Task task) {
+        boolean waited = false;
+        while (collection(Collection.TASKS.toString()).find(s, and(runningElsewhere(System.currentTimeMillis()), nin("action", getExclusiveTaskNames()))).first() != null) {
+            if (!waited) {
+                logger.info("Exclusive task {} waits for the tasks running on other nodes", task.name());
+                waited = true;
+            }
+            try {
+                Thread.sleep(EXCLUSIVE_POLL_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new AbortingTaskException("Interrupted while waiting for other nodes; aborting task...");
+            }
+        }
+    }
+
+    /**
+     * Claims a {@code toLoad} account for a {@code LOAD_FULL} run of this node.
+     *
+     * @param s       the MongoDB client session
+     * @param account the account document
+     * @return true if this node may load the account
+     */
+    static boolean claimAccount(ClientSession s, Document account) {
+        long now = System.currentTimeMillis();
+        return collection(Collection.ACCOUNTS.toString()).findOneAndUpdate(s,
+                and(eq("_id", account.get("_id")), eq("status", toLoad.getValue()), claimable("loadOwner", "loadLeaseUntil", now)),
+                combine(set("loadOwner", NODE_ID), set("loadLeaseUntil", now + LEASE_MILLIS))) != null;
+    }
+
+    /**
+     * Matches the accounts this node may claim.
+     */
+    static Bson claimableAccounts(long now) {
+        return claimable("loadOwner", "loadLeaseUntil", now);
+    }
+
+    /**
+     * Gives the loading loop tasks that no node owns yet, such as those queued before leases were
+     * introduced, to this node.
+     */
+    static void adoptUnownedLoop(ClientSession s) {
+        long adopted = collection(Collection.TASKS.toString()).updateMany(s,
+                and(exists("owner", false), in("action", getLoopTaskNames())),
+                combine(set("owner", NODE_ID), set("leaseUntil", System.currentTimeMillis() + LEASE_MILLIS))).getModifiedCount();
+        if (adopted > 0) {
+            logger.info("Adopted {} loading task(s) without an owner", adopted);
+        }
+    }
+
+    /**
+     * Returns whether this node has a loading loop in the queue.
+     */
+    static boolean hasOwnLoop(ClientSession s) {
+        return collection(Collection.TASKS.toString()).find(s, and(eq("owner", NODE_ID), in("action", getLoopTaskNames()))).first() != null;
+    }
+
+    /**
+     * Returns whether another node has renewed its leases within the lease time.
+     */
+    static boolean isOtherNodeAlive(ClientSession s) {
+        return collection(Collection.NODES.toString()).find(s, and(ne("_id", NODE_ID), gt("leaseUntil", System.currentTimeMillis()))).first() != null;
+    }
+
+    /**
+     * Renews the leases of this node: its entry in the {@code nodes} collection, its tasks and the
+     * accounts it is loading.
+     *
+     * @param s the MongoDB client session
+     */
+    static void renew(ClientSession s) {
+        long leaseUntil = System.currentTimeMillis() + LEASE_MILLIS;
+        collection(Collection.NODES.toString()).updateOne(s, eq("_id", NODE_ID), set("leaseUntil", leaseUntil), new UpdateOptions().upsert(true));
+        collection(Collection.TASKS.toString()).updateMany(s, eq("owner", NODE_ID), set("leaseUntil", leaseUntil));
+        collection(Collection.ACCOUNTS.toString()).updateMany(s, and(eq("loadOwner", NODE_ID), eq("status", toLoad.getValue())), set("loadLeaseUntil", leaseUntil));
+    }
+
+    /**
+     * Starts the heartbeat, which renews the leases of this node and picks up the tasks that other
+     * nodes have scheduled or given up.
+     */
+    static void startHeartbeat() {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "task-lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, LEASE_MILLIS / 3);
+        heartbeat.scheduleAtFixedRate(() -> {
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                renew(s);
+                TaskQueue.merge(s);
+            } catch (Exception ex) {
+                logger.warn("Task lease heartbeat failed: {}", ex.getMessage(), ex);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        logger.info("Task lease heartbeat started for node {} (lease {} ms)", NODE_ID, LEASE_MILLIS);
+    }
+
+}
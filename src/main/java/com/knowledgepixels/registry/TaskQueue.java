@@ -0,0 +1,259 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * The task queue as the task runners see it: the queued task documents in memory, one queue per
+ * {@link TaskLane}, each ordered by {@code not-before} time (and by scheduling order among equal
+ * times).
+ *
+ * <p>The {@code tasks} collection remains the durable journal: tasks are written to it when they
+ * are scheduled and deleted from it when they have completed, and the queues are read back from it
+ * when the task runner starts. In between, the runners do not query the collection at all, but
+ * sleep until the next task of their lane is due or a new one is scheduled. Tasks scheduled by other
+ * registry processes sharing the database are picked up by the {@link TaskLease} heartbeat.
+ */
+final class TaskQueue {
+
+    private TaskQueue() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskQueue.class);
+
+    private record Entry(Document taskDoc, long seq) {
+
+        long notBefore() {
+            return taskDoc.getLong("not-before");
+        }
+
+    }
+
+    private static final class Lane {
+
+        final PriorityQueue<Entry> queue = new PriorityQueue<>(
+                Comparator.comparingLong(Entry::notBefore).thenComparingLong(Entry::seq));
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        final Condition changed = lock.newCondition();
+
+    }
+
+    private static final AtomicLong seqCounter = new AtomicLong();
+
+    private static final Map<TaskLane, Lane> lanes = new EnumMap<>(TaskLane.class);
+
+    static {
+        for (TaskLane l : TaskLane.values()) {
+            lanes.put(l, new Lane());
+        }
+    }
+
+    private static Lane laneOf(Document taskDoc) {
+        return lanes.get(Task.valueOf(taskDoc.getString("action")).getLane());
+    }
+
+    /**
+     * Replaces the queues with the tasks in the journal that this node may claim.
+     *
+     * @param mongoSession the MongoDB client session
+     */
+    static void reload(ClientSession mongoSession) {
+        List<Document> taskDocs = new ArrayList<>();
+        try (MongoCursor<Document> cursor = collection(Collection.TASKS.toString()).find(mongoSession, TaskLease.claimable(System.currentTimeMillis())).sort(ascending("not-before")).cursor()) {
+            cursor.forEachRemaining(taskDocs::add);
+        }
+        clear();
+        for (Document taskDoc : taskDocs) {
+            add(taskDoc);
+        }
+        logger.info("Loaded {} queued task(s) from the journal", taskDocs.size());
+    }
+
+    /**
+     * Adds the tasks in the journal that this node may claim and does not have queued yet, such as
+     * tasks scheduled by other nodes or given up by a node whose lease has run out.
+     *
+     * @param mongoSession the MongoDB client session
+     * @see TaskLease
+     */
+    static void merge(ClientSession mongoSession) {
+        int added = 0;
+        try (MongoCursor<Document> cursor = collection(Collection.TASKS.toString()).find(mongoSession, TaskLease.claimable(System.currentTimeMillis())).sort(ascending("not-before")).cursor()) {
+            while (cursor.hasNext()) {
+                if (add(cursor.next())) {
+                    added++;
+                }
+            }
+        }
+        if (added > 0) {
+            logger.info("Picked up {} task(s) from the journal", added);
+        }
+    }
+
+    /**
+     * Adds a task that has just been written to the journal to the queue of its lane, and wakes up
+     * the runner of that lane if it is due before the one it is waiting for. A task that is already
+     * queued, by its {@code _id}, is not added again.
+     *
+     * @return true if the task was added
+     */
+    static boolean add(Document taskDoc) {
+        Object id = taskDoc.get("_id");
+        Lane lane = laneOf(taskDoc);
+        TaskStats.get(taskDoc.getString("action"));
+        lane.lock.lock();
+        try {
+            if (id != null && lane.queue.stream().anyMatch(e -> id.equals(e.taskDoc().get("_id")))) {
+                return false;
+            }
+            lane.queue.add(new Entry(taskDoc, seqCounter.incrementAndGet()));
+            lane.changed.signalAll();
+            return true;
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a task, matched by its {@code _id} or else by identity.
+     */
+    static void remove(Document taskDoc) {
+        Object id = taskDoc.get("_id");
+        Lane lane = laneOf(taskDoc);
+        lane.lock.lock();
+        try {
+            lane.queue.removeIf(e -> e.taskDoc() == taskDoc || (id != null && Objects.equals(id, e.taskDoc().get("_id"))));
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the first task of the given lane is due and returns it; it stays queued until it
+     * is removed.
+     *
+     * @param taskLane the lane
+     * @return the task document
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static Document awaitNext(TaskLane taskLane) throws InterruptedException {
+        Lane lane = lanes.get(taskLane);
+        lane.lock.lock();
+        try {
+            while (true) {
+                Entry first = lane.queue.peek();
+                if (first == null) {
+                    lane.changed.await();
+                    continue;
+                }
+                long wait = first.notBefore() - System.currentTimeMillis();
+                if (wait < 0) {
+                    return first.taskDoc();
+                }
+                lane.changed.await(wait + 1, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the queued task documents of the given lane in the order they will run.
+     */
+    static List<Document> getQueued(TaskLane taskLane) {
+        Lane lane = lanes.get(taskLane);
+        lane.lock.lock();
+        try {
+            return lane.queue.stream().sorted(lane.queue.comparator()).map(Entry::taskDoc).toList();
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks queued in the given lane, due or not.
+     */
+    static int getDepth(TaskLane taskLane) {
+        Lane lane = lanes.get(taskLane);
+        lane.lock.lock();
+        try {
+            return lane.queue.size();
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued tasks with the given action, due or not.
+     */
+    static int getDepth(String action) {
+        int depth = 0;
+        for (Lane lane : lanes.values()) {
+            lane.lock.lock();
+            try {
+                depth += (int) lane.queue.stream().filter(e -> action.equals(e.taskDoc().getString("action"))).count();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns how long the first task of the given lane has been due, in milliseconds, or 0 if it
+     * is not due yet or the lane is empty. A running task counts as due until it has completed.
+     */
+    static long getLag(TaskLane taskLane) {
+        Lane lane = lanes.get(taskLane);
+        lane.lock.lock();
+        try {
+            Entry first = lane.queue.peek();
+            return first == null ? 0 : Math.max(0, System.currentTimeMillis() - first.notBefore());
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long the task that is most overdue, in any lane, has been due, in milliseconds.
+     */
+    static long getMaxLag() {
+        long max = 0;
+        for (TaskLane taskLane : TaskLane.values()) {
+            max = Math.max(max, getLag(taskLane));
+        }
+        return max;
+    }
+
+    static void clear() {
+        for (Lane lane : lanes.values()) {
+            lane.lock.lock();
+            try {
+                lane.queue.clear();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+    }
+
+}
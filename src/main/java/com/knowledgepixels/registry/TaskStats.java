@@ -0,0 +1,112 @@
+package com.knowledgepixels.registry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run statistics of the tasks, as seen by the task runner, for the {@link MetricsCollector}.
+ *
+ * <p>Kept apart from {@link Task}, whose class initialisation needs the database, so the metrics
+ * can be registered without it.
+ */
+final class TaskStats {
+
+    private TaskStats() {
+    }
+
+    /**
+     * The runs of one task.
+     */
+    static final class Run {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder starts = new LongAdder();
+        private final LongAdder totalStartLagMs = new LongAdder();
+
+        void recordStart(long lagMs) {
+            starts.increment();
+            totalStartLagMs.add(Math.max(0, lagMs));
+        }
+
+        void record(long nanos, boolean success) {
+            count.increment();
+            totalNanos.add(nanos);
+            if (!success) {
+                failures.increment();
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the number of failed runs. A failed task stays queued, so each of them is retried.
+         */
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        public double getTotalTimeMs() {
+            return totalNanos.sum() / 1_000_000.0;
+        }
+
+        public long getStartCount() {
+            return starts.sum();
+        }
+
+        /**
+         * Returns the total time by which the runs started after their {@code not-before} time.
+         */
+        public double getTotalStartLagMs() {
+            return totalStartLagMs.sum();
+        }
+
+    }
+
+    private static final Map<String, Run> runs = new ConcurrentHashMap<>();
+
+    private static final LongAdder transactionAborts = new LongAdder();
+
+    private static final LongAdder abortingTaskExceptions = new LongAdder();
+
+    /**
+     * Returns the run statistics of the task with the given name.
+     */
+    static Run get(String taskName) {
+        return runs.computeIfAbsent(taskName, n -> new Run());
+    }
+
+    /**
+     * Returns the run statistics of the tasks that have been scheduled or run so far, by task name.
+     */
+    static Map<String, Run> getAll() {
+        return runs;
+    }
+
+    static void recordTransactionAbort() {
+        transactionAborts.increment();
+    }
+
+    static void recordAbortingTaskException() {
+        abortingTaskExceptions.increment();
+    }
+
+    /**
+     * Returns the number of task transactions that were aborted.
+     */
+    static long getTransactionAbortCount() {
+        return transactionAborts.sum();
+    }
+
+    /**
+     * Returns the number of task runs that failed with an {@link AbortingTaskException}.
+     */
+    static long getAbortingTaskExceptionCount() {
+        return abortingTaskExceptions.sum();
+    }
+
+}
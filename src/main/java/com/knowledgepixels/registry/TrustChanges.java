@@ -0,0 +1,187 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.eclipse.rdf4j.model.Statement;
+import org.nanopub.Nanopub;
+import org.nanopub.vocabulary.NPX;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.knowledgepixels.registry.EntryStatus.toLoad;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getValue;
+import static com.knowledgepixels.registry.RegistryDB.has;
+import static com.knowledgepixels.registry.RegistryDB.setValue;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Tracks what changed in the inputs of the trust state since the last trust-state cycle, so that
+ * an {@code UPDATE} only redoes what these changes affect.
+ *
+ * <p>The pubkeys that signed a newly stored agent introduction or endorsement, or a new
+ * invalidation of one, are recorded in {@code trustChanges}. An {@code UPDATE} that finds nothing
+ * recorded, and no account that finished loading since the last cycle, leaves the trust state as it
+ * is. Otherwise the cycle is incremental: {@code LOAD_CORE} streams the intro and endorsement lists
+ * from the peers only for the changed pubkeys and for those it has not loaded yet, and reads the
+ * endorsements of all others from the local store. The trust paths downstream of the changes, and
+ * the agents they touch, are then recomputed along with the rest, in memory (see
+ * {@link TrustGraph}). The changes recorded before a cycle started are cleared when it is
+ * published.
+ *
+ * <p>Every {@code REGISTRY_TRUST_FULL_REBUILD_CYCLES} updates (default 12), when
+ * {@code trustFullRebuildRequested} is set to true in {@code serverInfo}, before a trust state was
+ * first published, and with {@code REGISTRY_ENABLE_INCREMENTAL_TRUST=false}, the cycle is a full
+ * rebuild that streams everything from the peers again.
+ */
+final class TrustChanges {
+
+    private TrustChanges() {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(TrustChanges.class);
+
+    static final String COLLECTION = "trustChanges";
+
+    static final int FULL_REBUILD_CYCLES = Integer.parseInt(Utils.getEnv("REGISTRY_TRUST_FULL_REBUILD_CYCLES", "12"));
+
+    private static final String INCREMENTAL_KEY = "trustCycleIncremental";
+    private static final String STARTED_AT_KEY = "trustCycleStartedAt";
+    private static final String TO_LOAD_COUNT_KEY = "trustCycleToLoadCount";
+    private static final String CYCLES_SINCE_REBUILD_KEY = "trustCyclesSinceFullRebuild";
+    private static final String REBUILD_REQUESTED_KEY = "trustFullRebuildRequested";
+
+    /**
+     * What an {@code UPDATE} does.
+     */
+    enum Update {
+
+        /**
+         * Nothing changed: keep the current trust state.
+         */
+        SKIP,
+
+        /**
+         * Recompute, streaming only the changed pubkeys from the peers.
+         */
+        INCREMENTAL,
+
+        /**
+         * Rebuild from scratch.
+         */
+        FULL
+
+    }
+
+    /**
+     * Returns whether a nanopub is an input of the trust state: an agent introduction or an
+     * endorsement.
+     */
+    static boolean affectsTrust(Nanopub nanopub) {
+        for (Statement st : nanopub.getAssertion()) {
+            if (st.getPredicate().equals(Utils.APPROVES_OF) || st.getPredicate().equals(NPX.DECLARED_BY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the trust-relevant nanopubs of a pubkey changed.
+     *
+     * @param s          the MongoDB client session
+     * @param pubkeyHash the pubkey hash
+     */
+    static void record(ClientSession s, String pubkeyHash) {
+        collection(COLLECTION).updateOne(s, eq("_id", pubkeyHash), set("changedAt", System.currentTimeMillis()), new UpdateOptions().upsert(true));
+        logger.debug("Recorded trust change of pubkey {}", pubkeyHash);
+    }
+
+    /**
+     * Returns whether the trust-relevant nanopubs of a pubkey changed since the last cycle.
+     */
+    static boolean isChanged(ClientSession s, String pubkeyHash) {
+        return has(s, COLLECTION, eq("_id", pubkeyHash));
+    }
+
+    /**
+     * Asks for the next {@code UPDATE} to rebuild the trust state from scratch.
+     */
+    static void requestFullRebuild(ClientSession s) {
+        setValue(s, Collection.SERVER_INFO.toString(), REBUILD_REQUESTED_KEY, true);
+    }
+
+    /**
+     * Decides what an {@code UPDATE} does, and records the decision for the cycle it starts.
+     *
+     * @param s the MongoDB client session
+     * @return whether to skip the cycle, or run it incrementally or as a full rebuild
+     */
+    static Update decide(ClientSession s) {
+        Object sinceRebuild = getValue(s, Collection.SERVER_INFO.toString(), CYCLES_SINCE_REBUILD_KEY);
+        int cycles = (sinceRebuild instanceof Number n ? n.intValue() : 0) + 1;
+        Update update;
+        if ("false".equals(Utils.getEnv("REGISTRY_ENABLE_INCREMENTAL_TRUST", null))
+                || getValue(s, Collection.SERVER_INFO.toString(), "trustStateHash") == null
+                || Boolean.TRUE.equals(getValue(s, Collection.SERVER_INFO.toString(), REBUILD_REQUESTED_KEY))
+                || cycles >= FULL_REBUILD_CYCLES) {
+            update = Update.FULL;
+        } else if (!has(s, COLLECTION, new Document()) && !hasNewlyLoadedAccounts(s)) {
+            update = Update.SKIP;
+        } else {
+            update = Update.INCREMENTAL;
+        }
+        if (update == Update.FULL) {
+            setValue(s, Collection.SERVER_INFO.toString(), REBUILD_REQUESTED_KEY, false);
+            cycles = 0;
+        }
+        setValue(s, Collection.SERVER_INFO.toString(), CYCLES_SINCE_REBUILD_KEY, cycles);
+        if (update != Update.SKIP) {
+            setValue(s, Collection.SERVER_INFO.toString(), INCREMENTAL_KEY, update == Update.INCREMENTAL);
+        }
+        logger.info("Trust state update: {} ({} update(s) since the last full rebuild)", update, cycles);
+        return update;
+    }
+
+    /**
+     * Whether an account that was waiting to be loaded at the end of the last cycle has been
+     * loaded since. It enters the trust state only with the next cycle.
+     */
+    private static boolean hasNewlyLoadedAccounts(ClientSession s) {
+        Object count = getValue(s, Collection.SERVER_INFO.toString(), TO_LOAD_COUNT_KEY);
+        return !(count instanceof Number n) || collection(Collection.ACCOUNTS.toString()).countDocuments(s, eq("status", toLoad.getValue())) != n.longValue();
+    }
+
+    /**
+     * Returns whether the running cycle is incremental.
+     */
+    static boolean isIncrementalCycle(ClientSession s) {
+        return Boolean.TRUE.equals(getValue(s, Collection.SERVER_INFO.toString(), INCREMENTAL_KEY));
+    }
+
+    /**
+     * Marks the start of a cycle: the changes recorded from here on are left for the next one.
+     */
+    static void startCycle(ClientSession s) {
+        setValue(s, Collection.SERVER_INFO.toString(), STARTED_AT_KEY, System.currentTimeMillis());
+    }
+
+    /**
+     * Clears the changes that the published cycle has taken in, and notes the accounts it left
+     * waiting to be loaded.
+     *
+     * @param s the MongoDB client session
+     */
+    static void finishCycle(ClientSession s) {
+        if (getValue(s, Collection.SERVER_INFO.toString(), STARTED_AT_KEY) instanceof Number startedAt) {
+            long cleared = collection(COLLECTION).deleteMany(s, lt("changedAt", startedAt.longValue())).getDeletedCount();
+            logger.debug("Cleared {} trust change(s) taken in by the cycle", cleared);
+        }
+        setValue(s, Collection.SERVER_INFO.toString(), TO_LOAD_COUNT_KEY,
+                collection(Collection.ACCOUNTS.toString()).countDocuments(s, eq("status", toLoad.getValue())));
+    }
+
+}
@@ -0,0 +1,461 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.knowledgepixels.registry.EntryStatus.aggregated;
+import static com.knowledgepixels.registry.EntryStatus.approved;
+import static com.knowledgepixels.registry.EntryStatus.contested;
+import static com.knowledgepixels.registry.EntryStatus.expanded;
+import static com.knowledgepixels.registry.EntryStatus.loaded;
+import static com.knowledgepixels.registry.EntryStatus.processed;
+import static com.knowledgepixels.registry.EntryStatus.toLoad;
+import static com.knowledgepixels.registry.EntryStatus.visited;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getBootstrapSettingAcs;
+import static com.knowledgepixels.registry.RegistryDB.getValue;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * The derived steps of a trust-state cycle, computed in memory: {@code EXPAND_TRUST_PATHS},
+ * {@code CALCULATE_TRUST_SCORES}, {@code AGGREGATE_AGENTS}, {@code ASSIGN_PUBKEYS} and
+ * {@code DETERMINE_UPDATES}. Each step reads what it needs from the {@code *_loading} collections
+ * with a few queries, computes the result in memory, and writes it back with bulk inserts and
+ * updates, instead of a query and an update per account. The results are the same as those of the
+ * per-document loops in {@link Task}, which remain in use with
+ * {@code REGISTRY_ENABLE_TRUST_GRAPH=false}.
+ *
+ * <p>For the path expansion, the trust edges that start at the accounts being expanded are loaded
+ * into a compact graph: the accounts are interned to int ids, and the edges are held as CSR
+ * (compressed sparse row) arrays, together with the per-edge divisors of the ratio distribution.
+ * The new paths of the accounts are then computed in parallel.
+ */
+final class TrustGraph {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrustGraph.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Whether the trust cycle is computed in memory ({@code REGISTRY_ENABLE_TRUST_GRAPH}, default
+     * true).
+     */
+    static boolean isEnabled() {
+        return !"false".equals(Utils.getEnv("REGISTRY_ENABLE_TRUST_GRAPH", null));
+    }
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> agents = new ArrayList<>();
+    private final List<String> pubkeys = new ArrayList<>();
+
+    // The edges of node i are targets[offsets[i]] to targets[offsets[i + 1] - 1]
+    private int[] offsets;
+    private int[] targets;
+    // The number of agents node i trusts, and per edge the number of keys of the target's agent
+    private int[] agentCounts;
+    private int[] keyCounts;
+
+    private TrustGraph() {
+    }
+
+    private static String key(String agent, String pubkey) {
+        return agent + " " + pubkey;
+    }
+
+    private int intern(String agent, String pubkey) {
+        return ids.computeIfAbsent(key(agent, pubkey), k -> {
+            agents.add(agent);
+            pubkeys.add(pubkey);
+            return agents.size() - 1;
+        });
+    }
+
+    /**
+     * Loads the trust edges that start at the given accounts: those that are not invalidated, and
+     * those from a bootstrap setting, which count even when invalidated.
+     *
+     * @param s        the MongoDB client session
+     * @param accounts the account documents whose edges to load
+     * @return the graph
+     */
+    static TrustGraph load(ClientSession s, List<Document> accounts) {
+        TrustGraph graph = new TrustGraph();
+        Set<String> bootstrapSettings = getBootstrapSettingAcs(s);
+        Bson valid = bootstrapSettings.isEmpty() ? eq("invalidated", false)
+                : or(eq("invalidated", false), in("source", bootstrapSettings));
+        Set<String> sourcePubkeys = new LinkedHashSet<>();
+        for (Document a : accounts) {
+            graph.intern(a.getString("agent"), a.getString("pubkey"));
+            sourcePubkeys.add(a.getString("pubkey"));
+        }
+        int sourceCount = graph.agents.size();
+
+        List<Set<Integer>> adjacency = new ArrayList<>();
+        for (int i = 0; i < sourceCount; i++) {
+            adjacency.add(new LinkedHashSet<>());
+        }
+        for (List<String> chunk : chunks(new ArrayList<>(sourcePubkeys))) {
+            try (MongoCursor<Document> cursor = collection("trustEdges").find(s, and(in("fromPubkey", chunk), valid))
+                    .projection(include("fromAgent", "fromPubkey", "toAgent", "toPubkey")).cursor()) {
+                while (cursor.hasNext()) {
+                    Document e = cursor.next();
+                    Integer from = graph.ids.get(key(e.getString("fromAgent"), e.getString("fromPubkey")));
+                    if (from == null || from >= sourceCount) {
+                        continue;
+                    }
+                    adjacency.get(from).add(graph.intern(e.getString("toAgent"), e.getString("toPubkey")));
+                }
+            }
+        }
+
+        int n = graph.agents.size();
+        graph.offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            graph.offsets[i + 1] = graph.offsets[i] + (i < sourceCount ? adjacency.get(i).size() : 0);
+        }
+        graph.targets = new int[graph.offsets[n]];
+        graph.keyCounts = new int[graph.offsets[n]];
+        graph.agentCounts = new int[n];
+        for (int i = 0; i < sourceCount; i++) {
+            Map<String, Integer> keysPerAgent = new HashMap<>();
+            int e = graph.offsets[i];
+            for (int t : adjacency.get(i)) {
+                graph.targets[e++] = t;
+                keysPerAgent.merge(graph.agents.get(t), 1, Integer::sum);
+            }
+            graph.agentCounts[i] = keysPerAgent.size();
+            for (e = graph.offsets[i]; e < graph.offsets[i + 1]; e++) {
+                graph.keyCounts[e] = keysPerAgent.get(graph.agents.get(graph.targets[e]));
+            }
+        }
+        logger.debug("Loaded trust graph: {} source account(s), {} node(s), {} edge(s)", sourceCount, n, graph.targets.length);
+        return graph;
+    }
+
+    /**
+     * Returns the id of an account, or -1 if it is not in the graph.
+     */
+    int getId(String agent, String pubkey) {
+        Integer id = ids.get(key(agent, pubkey));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the trust paths that extend a path ending at the given node by one edge, with the
+     * ratio distributed as in {@code EXPAND_TRUST_PATHS}: 90% of it is divided among the trusted
+     * agents, and the share of each agent among its keys.
+     */
+    List<Document> extend(int node, Document path, int depth, String currentSetting) {
+        List<Document> children = new ArrayList<>();
+        if (node < 0) {
+            return children;
+        }
+        double ratio = path.getDouble("ratio");
+        for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+            int t = targets[e];
+            String agent = agents.get(t);
+            String pubkey = pubkeys.get(t);
+            String pathId = path.getString("_id") + " " + agent + "|" + pubkey;
+            children.add(new Document("_id", pathId)
+                    .append("sorthash", Utils.getHash(currentSetting + " " + pathId))
+                    .append("agent", agent)
+                    .append("pubkey", pubkey)
+                    .append("depth", depth)
+                    .append("type", "extended")
+                    .append("ratio", (ratio * 0.9) / agentCounts[node] / keyCounts[e]));
+        }
+        return children;
+    }
+
+    private record Expansion(Document account, Document path, List<Document> children) {
+    }
+
+    /**
+     * {@code EXPAND_TRUST_PATHS}: extends the best trust path of each account visited at the
+     * previous depth along its trust edges. The path keeps 10% of its ratio and becomes primary;
+     * accounts without a path at that depth are deferred to the next one.
+     *
+     * @param s     the MongoDB client session
+     * @param depth the depth of the new paths
+     */
+    static void expandTrustPaths(ClientSession s, int depth) {
+        List<Document> frontier = collection("accounts_loading").find(s,
+                new Document("status", visited.getValue()).append("depth", depth - 1)).into(new ArrayList<>());
+        if (frontier.isEmpty()) {
+            return;
+        }
+        // Only the first path by ratio (and sorthash) of each account is extended
+        Map<String, Document> bestPaths = new HashMap<>();
+        try (MongoCursor<Document> cursor = collection("trustPaths_loading").find(s,
+                new Document("type", "extended").append("depth", depth - 1)).cursor()) {
+            while (cursor.hasNext()) {
+                Document p = cursor.next();
+                bestPaths.merge(key(p.getString("agent"), p.getString("pubkey")), p, (a, b) -> comparePaths(a, b) <= 0 ? a : b);
+            }
+        }
+        TrustGraph graph = load(s, frontier.stream().filter(a -> bestPaths.containsKey(key(a.getString("agent"), a.getString("pubkey")))).toList());
+        String currentSetting = getValue(s, Collection.SETTING.toString(), "current").toString();
+
+        List<Expansion> expansions = frontier.parallelStream().map(a -> {
+            Document path = bestPaths.get(key(a.getString("agent"), a.getString("pubkey")));
+            if (path == null) {
+                return new Expansion(a, null, List.of());
+            }
+            return new Expansion(a, path, graph.extend(graph.getId(a.getString("agent"), a.getString("pubkey")), path, depth, currentSetting));
+        }).toList();
+
+        List<Document> newPaths = new ArrayList<>();
+        List<WriteModel<Document>> pathUpdates = new ArrayList<>();
+        List<WriteModel<Document>> accountUpdates = new ArrayList<>();
+        for (Expansion x : expansions) {
+            if (x.path() == null) {
+                // Check it again in next iteration
+                accountUpdates.add(new UpdateOneModel<>(eq("_id", x.account().get("_id")), set("depth", depth)));
+                continue;
+            }
+            newPaths.addAll(x.children());
+            pathUpdates.add(new UpdateOneModel<>(eq("_id", x.path().get("_id")),
+                    combine(set("type", "primary"), set("ratio", x.path().getDouble("ratio") * 0.1))));
+            accountUpdates.add(new UpdateOneModel<>(eq("_id", x.account().get("_id")), set("status", expanded.getValue())));
+        }
+        if (!newPaths.isEmpty()) {
+            collection("trustPaths_loading").insertMany(s, newPaths);
+        }
+        if (!pathUpdates.isEmpty()) {
+            collection("trustPaths_loading").bulkWrite(s, pathUpdates);
+        }
+        collection("accounts_loading").bulkWrite(s, accountUpdates);
+        logger.info("Expanded {} account(s) into {} trust path(s) at depth {}", pathUpdates.size(), newPaths.size(), depth);
+    }
+
+    /**
+     * Orders trust paths by descending ratio, then by sorthash.
+     */
+    private static int comparePaths(Document a, Document b) {
+        int c = Double.compare(b.getDouble("ratio"), a.getDouble("ratio"));
+        return c != 0 ? c : a.getString("sorthash").compareTo(b.getString("sorthash"));
+    }
+
+    /**
+     * Orders trust paths by depth, then as {@link #comparePaths}.
+     */
+    private static final Comparator<Document> PATH_ORDER = Comparator.<Document>comparingInt(p -> p.getInteger("depth"))
+            .thenComparing(TrustGraph::comparePaths);
+
+    /**
+     * {@code CALCULATE_TRUST_SCORES}: sums up the ratios of the trust paths of each expanded
+     * account, counts its independent paths (those that share no intermediate account with a path
+     * before them), and derives its quota from the ratio, clamped to the per-user bounds.
+     *
+     * @param s           the MongoDB client session
+     * @param globalQuota the quota of the whole trust network
+     * @param minQuota    the smallest quota of an account
+     * @param maxQuota    the largest quota of an account
+     */
+    static void calculateTrustScores(ClientSession s, int globalQuota, int minQuota, int maxQuota) {
+        List<Document> accounts = collection("accounts_loading").find(s, new Document("status", expanded.getValue()))
+                .projection(include("agent", "pubkey")).into(new ArrayList<>());
+        if (accounts.isEmpty()) {
+            return;
+        }
+        Map<String, List<Document>> pathsByAccount = new HashMap<>();
+        for (Document a : accounts) {
+            pathsByAccount.put(key(a.get("agent").toString(), a.get("pubkey").toString()), new ArrayList<>());
+        }
+        try (MongoCursor<Document> cursor = collection("trustPaths_loading").find(s)
+                .projection(include("agent", "pubkey", "depth", "ratio", "sorthash")).cursor()) {
+            while (cursor.hasNext()) {
+                Document p = cursor.next();
+                List<Document> paths = pathsByAccount.get(key(p.getString("agent"), p.getString("pubkey")));
+                if (paths != null) {
+                    paths.add(p);
+                }
+            }
+        }
+
+        List<WriteModel<Document>> updates = accounts.parallelStream().<WriteModel<Document>>map(a -> {
+            List<Document> paths = pathsByAccount.get(key(a.get("agent").toString(), a.get("pubkey").toString()));
+            paths.sort(PATH_ORDER);
+            double ratio = 0.0;
+            Set<String> seenPathElements = new HashSet<>();
+            int pathCount = 0;
+            for (Document p : paths) {
+                ratio += p.getDouble("ratio");
+                boolean independentPath = true;
+                String[] pathElements = p.getString("_id").split(" ");
+                // Iterate over path elements, ignoring first (root) and last (this agent/pubkey):
+                for (int i = 1; i < pathElements.length - 1; i++) {
+                    if (!seenPathElements.add(pathElements[i])) {
+                        independentPath = false;
+                        break;
+                    }
+                }
+                if (independentPath) {
+                    pathCount += 1;
+                }
+            }
+            double rawQuota = globalQuota * ratio;
+            int quota = (int) rawQuota;
+            if (rawQuota < minQuota) {
+                quota = minQuota;
+            } else if (rawQuota > maxQuota) {
+                quota = maxQuota;
+            }
+            return new UpdateOneModel<>(eq("_id", a.get("_id")), combine(set("status", processed.getValue()),
+                    set("ratio", ratio), set("pathCount", pathCount), set("quota", quota)));
+        }).toList();
+        collection("accounts_loading").bulkWrite(s, updates);
+        logger.info("Calculated trust scores of {} account(s)", updates.size());
+    }
+
+    /**
+     * {@code AGGREGATE_AGENTS}: folds the processed accounts of each agent into one
+     * {@code agents_loading} entry, and marks the accounts aggregated.
+     *
+     * @param s the MongoDB client session
+     */
+    static void aggregateAgents(ClientSession s) {
+        // In the order of their first account, as the agents are inserted by the task
+        Map<String, List<Document>> accountsByAgent = new LinkedHashMap<>();
+        try (MongoCursor<Document> cursor = collection("accounts_loading").find(s, new Document("status", processed.getValue()))
+                .projection(include("agent", "pathCount", "ratio", "name")).cursor()) {
+            while (cursor.hasNext()) {
+                Document a = cursor.next();
+                accountsByAgent.computeIfAbsent(a.get("agent").toString(), k -> new ArrayList<>()).add(a);
+            }
+        }
+        if (accountsByAgent.isEmpty()) {
+            return;
+        }
+        List<Document> agentDocs = new ArrayList<>(accountsByAgent.size());
+        accountsByAgent.forEach((agent, accounts) -> {
+            int pathCountSum = 0;
+            double totalRatio = 0.0d;
+            // Canonical name across the agent's keys: that of the key with the highest ratio,
+            // ties broken on the lexicographically smallest name
+            String chosenName = null;
+            double chosenRatio = Double.NEGATIVE_INFINITY;
+            for (Document d : accounts) {
+                pathCountSum += d.getInteger("pathCount");
+                double r = d.getDouble("ratio");
+                totalRatio += r;
+                String n = d.getString("name");
+                if (n != null && (r > chosenRatio
+                        || (r == chosenRatio && (chosenName == null || n.compareTo(chosenName) < 0)))) {
+                    chosenName = n;
+                    chosenRatio = r;
+                }
+            }
+            agentDocs.add(new Document("agent", agent).append("status", processed.getValue())
+                    .append("accountCount", accounts.size())
+                    .append("avgPathCount", (double) pathCountSum / accounts.size())
+                    .append("totalRatio", totalRatio)
+                    .append("name", chosenName));
+        });
+        collection("accounts_loading").updateMany(s, new Document("status", processed.getValue()),
+                new Document("$set", new DbEntryWrapper(aggregated).getDocument()));
+        collection("agents_loading").insertMany(s, agentDocs);
+        logger.info("Aggregated {} agent(s)", agentDocs.size());
+    }
+
+    /**
+     * {@code ASSIGN_PUBKEYS}: approves the pubkeys of aggregated accounts that no other account
+     * claims, and marks all accounts of the others contested.
+     *
+     * @param s the MongoDB client session
+     * @return the number of approved and of contested pubkeys
+     */
+    static int[] assignPubkeys(ClientSession s) {
+        Map<String, Integer> claims = new HashMap<>();
+        Set<String> pubkeys = new LinkedHashSet<>();
+        try (MongoCursor<Document> cursor = collection("accounts_loading").find(s).projection(include("pubkey", "status")).cursor()) {
+            while (cursor.hasNext()) {
+                Document a = cursor.next();
+                String pubkey = a.get("pubkey").toString();
+                claims.merge(pubkey, 1, Integer::sum);
+                if (aggregated.getValue().equals(a.getString("status"))) {
+                    pubkeys.add(pubkey);
+                }
+            }
+        }
+        List<String> approvedPubkeys = new ArrayList<>();
+        List<String> contestedPubkeys = new ArrayList<>();
+        for (String pubkey : pubkeys) {
+            if (claims.get(pubkey) == 1) {
+                approvedPubkeys.add(pubkey);
+            } else {
+                // TODO At the moment all get marked as 'contested'; implement more nuanced algorithm
+                logger.debug("Pubkey {} is claimed by multiple accounts; marking contested", pubkey);
+                contestedPubkeys.add(pubkey);
+            }
+        }
+        for (List<String> chunk : chunks(approvedPubkeys)) {
+            collection("accounts_loading").updateMany(s, in("pubkey", chunk), new Document("$set", new DbEntryWrapper(approved).getDocument()));
+        }
+        for (List<String> chunk : chunks(contestedPubkeys)) {
+            collection("accounts_loading").updateMany(s, in("pubkey", chunk), new Document("$set", new DbEntryWrapper(contested).getDocument()));
+        }
+        return new int[]{approvedPubkeys.size(), contestedPubkeys.size()};
+    }
+
+    /**
+     * {@code DETERMINE_UPDATES}: marks the approved accounts that are already loaded in the live
+     * {@code accounts} collection as loaded, and the others as to be loaded.
+     *
+     * @param s the MongoDB client session
+     */
+    static void determineUpdates(ClientSession s) {
+        Set<String> loadedAccounts = new HashSet<>();
+        try (MongoCursor<Document> cursor = collection(Collection.ACCOUNTS.toString()).find(s, new Document("status", loaded.getValue()))
+                .projection(include("agent", "pubkey")).cursor()) {
+            while (cursor.hasNext()) {
+                Document a = cursor.next();
+                loadedAccounts.add(key(a.get("agent").toString(), a.get("pubkey").toString()));
+            }
+        }
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        try (MongoCursor<Document> cursor = collection("accounts_loading").find(s, new DbEntryWrapper(approved).getDocument())
+                .projection(include("agent", "pubkey")).cursor()) {
+            while (cursor.hasNext()) {
+                Document a = cursor.next();
+                boolean isLoaded = loadedAccounts.contains(key(a.get("agent").toString(), a.get("pubkey").toString()));
+                updates.add(new UpdateOneModel<>(eq("_id", a.get("_id")), set("status", (isLoaded ? loaded : toLoad).getValue())));
+            }
+        }
+        if (!updates.isEmpty()) {
+            collection("accounts_loading").bulkWrite(s, updates);
+        }
+        logger.info("Determined the updates of {} approved account(s)", updates.size());
+    }
+
+    private static List<List<String>> chunks(List<String> values) {
+        List<List<String>> chunks = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += BATCH_SIZE) {
+            chunks.add(values.subList(i, Math.min(values.size(), i + BATCH_SIZE)));
+        }
+        return chunks;
+    }
+
+}
@@ -268,6 +268,7 @@ public class Utils {
     public static final String TYPE_NQUADS = "application/n-quads";
     public static final String TYPE_TRIX = "application/trix";
     public static final String TYPE_HTML = "text/html";
+    public static final String TYPE_NDJSON = "application/x-ndjson";
 
     // Content types supported on a ListPage
     public static final String SUPPORTED_TYPES_LIST = TYPE_JSON + "," + TYPE_JELLY + "," + TYPE_HTML;
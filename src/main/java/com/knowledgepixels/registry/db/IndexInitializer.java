@@ -35,6 +35,11 @@ public final class IndexInitializer {
         collection("lists").createIndex(mongoSession, ascending("pubkey", "type"), unique);
         collection("lists").createIndex(mongoSession, ascending("pubkey", "type", "status"));
         collection("lists").createIndex(mongoSession, ascending("status"));
+        collection("lists").createIndex(mongoSession, ascending("digestCounter"));
+        collection("lists").createIndex(mongoSession, ascending("type", "status", "vtime"));
+
+        collection("peerListDigests").createIndex(mongoSession, ascending("peer", "pubkey", "type"), unique);
+        collection("peerListDigests").createIndex(mongoSession, ascending("pubkey"));
 
         collection("listEntries").createIndex(mongoSession, ascending("np"));
         collection("listEntries").createIndex(mongoSession, ascending("pubkey", "type", "np"), unique);
@@ -0,0 +1,145 @@
+package com.knowledgepixels.registry;
+
+import com.knowledgepixels.registry.utils.FakeEnv;
+import com.knowledgepixels.registry.utils.TestUtils;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubImpl;
+import org.nanopub.NanopubUtils;
+import org.nanopub.jelly.NanopubStream;
+import org.nanopub.testsuite.NanopubTestSuite;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkImportTest {
+
+    @Test
+    void rejectsAMissingFileArgument() {
+        assertEquals(2, BulkImport.run(new String[0]));
+    }
+
+    @Test
+    void printsUsageOnHelp() {
+        assertEquals(0, BulkImport.run(new String[]{"--file", "unused.jelly", "--help"}));
+    }
+
+    @Nested
+    @Testcontainers
+    class Import {
+
+        @Container
+        private final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:7.0.0");
+
+        /** simple1.trig: valid signature, types npx:ExampleNanopub and ex:transmits. */
+        private static final String SIMPLE1_AC = "RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY";
+        /** example8.trig: signed with the same key as simple1, supersedes another nanopub. */
+        private static final String SUPERSEDER_AC = "RAR7wdfw9trX-4V5LnHGuXPXrNGTn4qFZKGs3MO_cwIHw";
+
+        @TempDir
+        Path tempDir;
+
+        private FakeEnv fakeEnv;
+
+        @BeforeEach
+        void setUp() throws Exception {
+            fakeEnv = TestUtils.setupFakeEnv();
+            TestUtils.setupDBEnv(mongoDBContainer, "nanopubRegistry");
+            TestUtils.clearStaticFields(RegistryDB.class, "mongoClient", "mongoDB");
+            RegistryDB.init();
+        }
+
+        @AfterEach
+        void tearDown() {
+            if (RegistryDB.getClient() != null) {
+                RegistryDB.getClient().close();
+            }
+            fakeEnv.reset();
+        }
+
+        private Nanopub testSuiteNanopub(String artifactCode) throws Exception {
+            return new NanopubImpl(NanopubTestSuite.getLatest().getByArtifactCode(artifactCode).getFirst().toFile());
+        }
+
+        /** Writes the stored nanopubs to a file exactly as /nanopubs.jelly would serve them. */
+        private Path dump() throws Exception {
+            Path file = tempDir.resolve("dump.jelly");
+            try (ClientSession s = RegistryDB.getClient().startSession();
+                 MongoCursor<Document> cursor = RegistryDB.collection(Collection.NANOPUBS.toString()).find(s)
+                         .filter(gt("counter", -1L)).sort(ascending("counter")).projection(include("jelly", "counter")).cursor();
+                 OutputStream out = Files.newOutputStream(file)) {
+                NanopubStream.fromMongoCursorWithCounter(cursor).writeToByteStream(out);
+            }
+            return file;
+        }
+
+        @Test
+        void seedsAnEmptyRegistryFromADump() throws Exception {
+            String pubkeyHash;
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                Nanopub first = testSuiteNanopub(SIMPLE1_AC);
+                pubkeyHash = Utils.getHash(RegistryDB.getPubkey(first));
+                assertTrue(RegistryDB.loadNanopub(s, first));
+                assertTrue(RegistryDB.loadNanopub(s, testSuiteNanopub(SUPERSEDER_AC)));
+            }
+            Path file = dump();
+            RegistryDB.getDB().drop();
+
+            assertEquals(0, BulkImport.run(new String[]{"--file", file.toString(), "--batch-size", "1"}));
+
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                assertEquals(2, RegistryDB.collection(Collection.NANOPUBS.toString()).countDocuments(s));
+                assertEquals(2L, RegistryDB.getMaxValue(s, "counters", "value"));
+                // Positions and checksums follow the dump order, as if loaded one by one:
+                Document second = RegistryDB.getOne(s, "listEntries", new Document("pubkey", pubkeyHash).append("type", "$").append("np", SUPERSEDER_AC));
+                assertNotNull(second);
+                assertEquals(1L, second.getLong("position"));
+                Nanopub first = testSuiteNanopub(SIMPLE1_AC);
+                Nanopub superseder = testSuiteNanopub(SUPERSEDER_AC);
+                String expected = NanopubUtils.updateXorChecksum(superseder.getUri(),
+                        NanopubUtils.updateXorChecksum(first.getUri(), NanopubUtils.INIT_CHECKSUM));
+                assertEquals(expected, second.getString("checksum"));
+                Document list = RegistryDB.getOne(s, "lists", new Document("pubkey", pubkeyHash).append("type", "$"));
+                assertEquals(1L, list.getLong("maxPosition"));
+                assertEquals(EntryStatus.encountered.getValue(), list.getString("status"));
+                assertNotNull(RegistryDB.getOne(s, "invalidations", new Document("invalidatingNp", SUPERSEDER_AC)));
+                // The trust state is not updated incrementally over an import:
+                assertEquals(true, RegistryDB.getValue(s, Collection.SERVER_INFO.toString(), "trustFullRebuildRequested"));
+                // Indexes are back in place:
+                assertTrue(RegistryDB.collection("listEntries").listIndexes().into(new java.util.ArrayList<>()).size() > 1);
+            }
+        }
+
+        @Test
+        void refusesToImportIntoANonEmptyRegistry() throws Exception {
+            try (ClientSession s = RegistryDB.getClient().startSession()) {
+                assertTrue(RegistryDB.loadNanopub(s, testSuiteNanopub(SIMPLE1_AC)));
+            }
+            Path file = dump();
+
+            assertEquals(1, BulkImport.run(new String[]{"--file", file.toString()}));
+            assertThrows(IllegalStateException.class, () -> new BulkImport().importFile(file));
+        }
+
+    }
+
+}
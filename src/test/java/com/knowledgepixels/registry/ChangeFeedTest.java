@@ -0,0 +1,141 @@
+package com.knowledgepixels.registry;
+
+import com.google.gson.Gson;
+import com.knowledgepixels.registry.utils.FakeEnv;
+import com.knowledgepixels.registry.utils.TestUtils;
+import com.mongodb.client.ClientSession;
+import net.trustyuri.TrustyUriUtils;
+import org.bson.Document;
+import org.eclipse.rdf4j.model.IRI;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubImpl;
+import org.nanopub.NanopubUtils;
+import org.nanopub.testsuite.NanopubTestSuite;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Testcontainers
+class ChangeFeedTest {
+
+    @Container
+    private static final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:7.0.0");
+
+    private static final Gson gson = new Gson();
+
+    private FakeEnv fakeEnv;
+    private ClientSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fakeEnv = TestUtils.setupFakeEnv();
+        TestUtils.setupDBEnv(mongoDBContainer, "nanopubRegistry");
+        TestUtils.clearStaticFields(RegistryDB.class, "mongoClient", "mongoDB");
+        RegistryDB.init();
+        CoverageFilter.init();
+        ChangeFeed.clear();
+        session = RegistryDB.getClient().startSession();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (session != null) {
+            session.close();
+        }
+        ChangeFeed.clear();
+        RegistryDB.getDB().drop();
+        fakeEnv.reset();
+    }
+
+    private void insertNanopubDoc(String ac, long counter) {
+        RegistryDB.collection(Collection.NANOPUBS.toString()).insertOne(session, new Document("_id", ac).append("counter", counter).append("pubkey", "pk"));
+    }
+
+    private List<Long> counters(List<ChangeFeed.Event> events) {
+        return events.stream().filter(e -> e.counter() != null).map(ChangeFeed.Event::counter).toList();
+    }
+
+    @Test
+    void announcesStoredNanopubsWithTheirTypes() throws Exception {
+        assertEquals(0, ChangeFeed.update(session, 0));
+        Nanopub np = new NanopubImpl(NanopubTestSuite.getLatest().getByArtifactCode("RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY").getFirst().toFile());
+        assertTrue(RegistryDB.loadNanopub(session, np));
+
+        assertEquals(1, ChangeFeed.update(session, 0));
+
+        List<ChangeFeed.Event> events = ChangeFeed.getEventsAfter(0, 10);
+        assertEquals(1, events.size());
+        assertEquals("nanopub", events.getFirst().name());
+        ChangeFeed.NanopubChange change = gson.fromJson(events.getFirst().data(), ChangeFeed.NanopubChange.class);
+        assertEquals(events.getFirst().counter(), change.counter());
+        assertEquals(TrustyUriUtils.getArtifactCode(np.getUri().stringValue()), change.artifactCode());
+        assertEquals(RegistryDB.getStoredPubkeyHash(session, change.artifactCode()), change.pubkeyHash());
+        Set<String> typeHashes = NanopubUtils.getTypes(np).stream().map(IRI::stringValue).map(Utils::getHash).collect(Collectors.toSet());
+        assertEquals(typeHashes, Set.copyOf(change.typeHashes()));
+        // The type hashes are kept with the buffered event:
+        assertEquals(change, events.getFirst().change());
+    }
+
+    @Test
+    void waitsForAMissingCounterBeforeMovingOn() {
+        ChangeFeed.update(session, 0);
+        insertNanopubDoc("A", 1);
+        insertNanopubDoc("C", 3);
+
+        assertEquals(1, ChangeFeed.update(session, 1000));
+        // Counter 2 may still be in flight:
+        assertEquals(0, ChangeFeed.update(session, 1000 + ChangeFeed.GAP_TIMEOUT - 1));
+        // Moving on is announced, as counter 2 may still be committed later:
+        assertEquals(2, ChangeFeed.update(session, 1000 + ChangeFeed.GAP_TIMEOUT));
+
+        List<ChangeFeed.Event> events = ChangeFeed.getEventsAfter(0, 10);
+        assertEquals(List.of(1L, 3L), counters(events));
+        assertEquals(new ChangeFeed.Resync(1, 3), events.get(1).change());
+        // A subscriber resuming before the gap is told about it:
+        assertEquals("resync", ChangeFeed.getEventsAfter(ChangeFeed.getResumePosition(1L), 10).getFirst().name());
+    }
+
+    @Test
+    void resumesAfterAGivenCounter() {
+        ChangeFeed.update(session, 0);
+        insertNanopubDoc("A", 1);
+        insertNanopubDoc("B", 2);
+        insertNanopubDoc("C", 3);
+        RegistryDB.setValue(session, Collection.SERVER_INFO.toString(), "trustStateCounter", 7L);
+        RegistryDB.setValue(session, Collection.SERVER_INFO.toString(), "trustStateHash", "abc");
+        assertEquals(4, ChangeFeed.update(session, 0));
+
+        assertEquals(List.of(2L, 3L), counters(ChangeFeed.getEventsAfter(ChangeFeed.getResumePosition(1L), 10)));
+        // Without a counter, only new events are sent:
+        assertTrue(ChangeFeed.getEventsAfter(ChangeFeed.getResumePosition(null), 10).isEmpty());
+
+        ChangeFeed.Event trustState = ChangeFeed.getEventsAfter(ChangeFeed.getResumePosition(3L) - 1, 10).getFirst();
+        assertEquals("trust-state", trustState.name());
+        assertEquals(new ChangeFeed.TrustStateChange(7, "abc"), gson.fromJson(trustState.data(), ChangeFeed.TrustStateChange.class));
+        // Unchanged trust state is not announced again:
+        assertEquals(0, ChangeFeed.update(session, 0));
+    }
+
+    @Test
+    void asksSubscribersToCatchUpFromBeforeTheBuffer() {
+        insertNanopubDoc("A", 1);
+        insertNanopubDoc("B", 2);
+        // The feed starts after the nanopubs that were there already:
+        ChangeFeed.update(session, 0);
+
+        assertNull(ChangeFeed.getResumePosition(1L));
+        assertEquals(0L, ChangeFeed.getResumePosition(2L));
+    }
+
+}
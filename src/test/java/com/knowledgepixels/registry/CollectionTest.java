@@ -13,6 +13,7 @@ class CollectionTest {
         assertEquals("agents", Collection.AGENTS.toString());
         assertEquals("accounts", Collection.ACCOUNTS.toString());
         assertEquals("nanopubs", Collection.NANOPUBS.toString());
+        assertEquals("nodes", Collection.NODES.toString());
     }
 
 }
\ No newline at end of file
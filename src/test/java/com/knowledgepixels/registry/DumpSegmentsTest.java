@@ -0,0 +1,140 @@
+package com.knowledgepixels.registry;
+
+import com.knowledgepixels.registry.utils.FakeEnv;
+import com.knowledgepixels.registry.utils.TestUtils;
+import com.mongodb.client.ClientSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nanopub.MalformedNanopubException;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubImpl;
+import org.nanopub.jelly.MaybeNanopub;
+import org.nanopub.jelly.NanopubStream;
+import org.nanopub.testsuite.NanopubTestSuite;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Testcontainers
+class DumpSegmentsTest {
+
+    @Container
+    private static final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:7.0.0");
+
+    private static final long SETUP_ID = 4242L;
+
+    @TempDir
+    Path segmentDir;
+
+    private FakeEnv fakeEnv;
+    private ClientSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fakeEnv = TestUtils.setupFakeEnv();
+        fakeEnv.addVariable("REGISTRY_SEGMENT_DIR", segmentDir.toString());
+        TestUtils.setupDBEnv(mongoDBContainer, "nanopubRegistry");
+        TestUtils.clearStaticFields(RegistryDB.class, "mongoClient", "mongoDB");
+        RegistryDB.init();
+        CoverageFilter.init();
+        DumpSegments.clear();
+        session = RegistryDB.getClient().startSession();
+        RegistryDB.setValue(session, Collection.SERVER_INFO.toString(), "setupId", SETUP_ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (session != null) {
+            session.close();
+        }
+        DumpSegments.clear();
+        RegistryDB.getDB().drop();
+        fakeEnv.reset();
+    }
+
+    private void loadTestSuiteNanopubs(String... artifactCodes) throws MalformedNanopubException, IOException {
+        for (String ac : artifactCodes) {
+            Nanopub np = new NanopubImpl(NanopubTestSuite.getLatest().getByArtifactCode(ac).getFirst().toFile());
+            assertTrue(RegistryDB.loadNanopub(session, np));
+        }
+    }
+
+    private void setCounter(long value) {
+        RegistryDB.setValue(session, "counters", "nanopubs", value);
+    }
+
+    @Test
+    void writesNothingUntilARangeIsSealed() throws Exception {
+        loadTestSuiteNanopubs("RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY");
+        setCounter(DumpSegments.SEGMENT_SIZE);
+
+        assertEquals(0, DumpSegments.update(session));
+        assertTrue(DumpSegments.getManifest().segments().isEmpty());
+        assertNull(DumpSegments.resolve("nanopubs-1-" + DumpSegments.SEGMENT_SIZE + ".jelly"));
+    }
+
+    @Test
+    void writesSealedRangesWithManifest() throws Exception {
+        loadTestSuiteNanopubs("RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY", "RAR7wdfw9trX-4V5LnHGuXPXrNGTn4qFZKGs3MO_cwIHw");
+        setCounter(DumpSegments.SEGMENT_SIZE + DumpSegments.SEALING_MARGIN);
+
+        assertEquals(1, DumpSegments.update(session));
+        // Nothing new is sealed on the second pass:
+        assertEquals(0, DumpSegments.update(session));
+
+        DumpSegments.Manifest manifest = DumpSegments.getManifest();
+        assertEquals(SETUP_ID, manifest.setupId());
+        assertEquals(1, manifest.segments().size());
+        DumpSegments.Segment segment = manifest.segments().getFirst();
+        assertEquals(1, segment.fromCounter());
+        assertEquals(DumpSegments.SEGMENT_SIZE, segment.toCounter());
+        assertEquals(2, segment.count());
+
+        Path file = DumpSegments.resolve(segment.file());
+        assertNotNull(file);
+        assertEquals(segment.size(), Files.size(file));
+        assertEquals(segment.sha256(), HexFormat.of().formatHex(DumpSegments.newDigest().digest(Files.readAllBytes(file))));
+        try (InputStream in = Files.newInputStream(file)) {
+            List<MaybeNanopub> nanopubs = NanopubStream.fromByteStream(in).getAsNanopubs().toList();
+            assertEquals(2, nanopubs.size());
+            assertEquals(1, nanopubs.getFirst().getCounter());
+            assertEquals(2, nanopubs.getLast().getCounter());
+        }
+
+        Path manifestFile = DumpSegments.resolve(DumpSegments.MANIFEST_FILE);
+        assertNotNull(manifestFile);
+        assertEquals(manifest, DumpSegments.parseManifest(Files.readString(manifestFile)));
+    }
+
+    @Test
+    void picksUpTheManifestFromDiskAndDropsOtherSetups() throws Exception {
+        loadTestSuiteNanopubs("RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY");
+        setCounter(DumpSegments.SEGMENT_SIZE + DumpSegments.SEALING_MARGIN);
+        Path staleSetup = Files.createDirectories(segmentDir.resolve("1"));
+        Files.writeString(staleSetup.resolve(DumpSegments.MANIFEST_FILE), "{}");
+
+        assertEquals(1, DumpSegments.update(session));
+        assertFalse(Files.exists(staleSetup));
+
+        // After a restart, the written segment is not written again:
+        DumpSegments.clear();
+        assertEquals(0, DumpSegments.update(session));
+        assertEquals(1, DumpSegments.getManifest().segments().size());
+    }
+
+}
@@ -3,37 +3,73 @@ package com.knowledgepixels.registry;
 import com.mongodb.client.ClientSession;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
-import org.nanopub.NanopubUtils;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubImpl;
+import org.nanopub.testsuite.NanopubTestSuite;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.Mockito.eq;
 
 /**
  * Tests for {@link LegacyConnector}, which polls the first-generation nanopub-server
- * instances. It walks backwards through their {@code Link: rel="prev"} pagination and
- * keeps an in-memory cache so a poll does not re-load nanopubs it already saw.
+ * instances. It walks backwards through their {@code Link: rel="prev"} pagination, fetches
+ * the listed nanopubs that are not stored yet from the peers, and keeps an in-memory cache
+ * so a poll does not re-load nanopubs it already saw.
+ *
+ * The nanopubs served by the fake peer are real signed ones from the nanopub test suite.
  */
 class LegacyConnectorTest {
 
+    private static final String PEER = "https://peer.example.org/";
+    private static final String AC_1 = "RATq2i1SMq-Ci6-1MAFALTELRRSL7xAsI4iQOC3cgMldE";
+    private static final String AC_2 = "RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY";
+    private static final String AC_3 = "RAR7wdfw9trX-4V5LnHGuXPXrNGTn4qFZKGs3MO_cwIHw";
+
+    private Field peerUrlsField;
+    private Object previousPeerUrls;
+
     @BeforeEach
-    void clearLoadedCache() {
+    void setUp() throws Exception {
         // The cache is static and shared across polls; each test needs a clean slate.
-        TestSupport.setLoadedCache(new HashMap<>());
+        TestSupport.setLoadedCache(LegacyConnector.newLoadedCache());
+        peerUrlsField = Utils.class.getDeclaredField("peerUrls");
+        peerUrlsField.setAccessible(true);
+        previousPeerUrls = peerUrlsField.get(null);
+        peerUrlsField.set(null, List.of(PEER));
+        PeerDirectory.clear();
+        NanopubFetcher.clear();
+        NanopubExistenceFilter.clear();
+    }
+
+    @AfterEach
+    void restorePeerUrls() throws Exception {
+        peerUrlsField.set(null, previousPeerUrls);
     }
 
     /**
@@ -51,8 +87,25 @@ class LegacyConnectorTest {
         }
     }
 
+    private static File file(String ac) {
+        return NanopubTestSuite.getLatest().getByArtifactCode(ac).getFirst().toFile();
+    }
+
+    private static String uri(String ac) {
+        try {
+            return new NanopubImpl(file(ac)).getUri().stringValue();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     private static CloseableHttpResponse response(String body, String prevLink) throws IOException {
+        return response(200, body, prevLink);
+    }
+
+    private static CloseableHttpResponse response(int status, String body, String prevLink) throws IOException {
         CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
+        when(resp.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "OK"));
         Header[] headers = prevLink == null
                 ? new Header[0]
                 : new Header[]{new BasicHeader("Link", "<" + prevLink + ">; rel=\"prev\"")};
@@ -63,104 +116,229 @@ class LegacyConnectorTest {
         return resp;
     }
 
+    private static boolean isPeerRequest(HttpUriRequest r) {
+        return r != null && r.getURI().toString().startsWith(PEER);
+    }
+
+    private static boolean isListingRequest(HttpUriRequest r) {
+        return r != null && !isPeerRequest(r);
+    }
+
+    /**
+     * A client that answers the listing requests with the given pages, in order, and the nanopub
+     * requests with the test suite nanopubs, except for the given missing ones.
+     */
+    private static CloseableHttpClient client(Set<String> missing, CloseableHttpResponse... pages) throws IOException {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        Deque<CloseableHttpResponse> listing = new ArrayDeque<>(List.of(pages));
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+            HttpUriRequest r = inv.getArgument(0);
+            if (isPeerRequest(r)) {
+                String ac = r.getURI().toString().substring((PEER + "np/").length());
+                if (missing.contains(ac)) {
+                    return response(404, "", null);
+                }
+                return response(Files.readString(file(ac).toPath()), null);
+            }
+            synchronized (listing) {
+                return listing.poll();
+            }
+        });
+        return client;
+    }
+
+    private static Nanopub withUri(String uri) {
+        return argThat(np -> np != null && np.getUri().stringValue().equals(uri));
+    }
+
     @Test
     void loadsEveryListedNanopubAndFollowsThePrevLink() throws Exception {
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class);
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
              MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
 
-            CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
             // Both responses are built before stubbing: creating mocks inside a stubbing
             // argument confuses Mockito's stubbing state machine.
-            CloseableHttpResponse first = response("http://example.org/np1\nhttp://example.org/np2\n", "page1");
-            CloseableHttpResponse second = response("http://example.org/np3\n", null);
-            when(client.execute(any(HttpUriRequest.class))).thenReturn(first).thenReturn(second);
+            CloseableHttpResponse first = response(uri(AC_1) + "\n" + uri(AC_2) + "\n", "page1");
+            CloseableHttpResponse second = response(uri(AC_3) + "\n", null);
+            CloseableHttpClient client = client(Set.of(), first, second);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
 
             ClientSession session = mock(ClientSession.class);
             LegacyConnector.checkForNewNanopubs(session);
 
-            loaderMock.verify(() -> NanopubLoader.simpleLoad(session, "http://example.org/np1", false));
-            loaderMock.verify(() -> NanopubLoader.simpleLoad(session, "http://example.org/np2", false));
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_1))));
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_2))));
             // The prev link is followed exactly once, so the previous page is loaded too.
-            loaderMock.verify(() -> NanopubLoader.simpleLoad(session, "http://example.org/np3", false));
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_3))));
         }
     }
 
     @Test
     void stopsAfterOnePageWhenThereIsNoPrevLink() throws Exception {
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class);
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
              MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
 
-            CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
-            CloseableHttpResponse only = response("http://example.org/np1\n", null);
-            when(client.execute(any(HttpUriRequest.class))).thenReturn(only);
+            CloseableHttpResponse only = response(uri(AC_1) + "\n", null);
+            CloseableHttpClient client = client(Set.of(), only);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
 
             ClientSession session = mock(ClientSession.class);
             LegacyConnector.checkForNewNanopubs(session);
 
-            verify(client, times(1)).execute(any(HttpUriRequest.class));
+            verify(client, times(1)).execute(argThat(LegacyConnectorTest::isListingRequest));
         }
     }
 
     @Test
     void alreadySeenNanopubsAreNotReloaded() throws Exception {
-        TestSupport.setLoadedCache(new HashMap<>(Map.of("http://example.org/np1", true)));
+        Map<String, Boolean> cache = LegacyConnector.newLoadedCache();
+        cache.put(uri(AC_1), true);
+        TestSupport.setLoadedCache(cache);
 
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class);
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
              MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
 
-            CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
-            CloseableHttpResponse page = response("http://example.org/np1\nhttp://example.org/np2\n", null);
-            when(client.execute(any(HttpUriRequest.class))).thenReturn(page);
+            CloseableHttpResponse page = response(uri(AC_1) + "\n" + uri(AC_2) + "\n", null);
+            CloseableHttpClient client = client(Set.of(), page);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
 
             ClientSession session = mock(ClientSession.class);
             LegacyConnector.checkForNewNanopubs(session);
 
             // The cache exists to avoid 1000+ redundant DB round-trips on every poll.
-            loaderMock.verify(() -> NanopubLoader.simpleLoad(session, "http://example.org/np1", false), never());
-            loaderMock.verify(() -> NanopubLoader.simpleLoad(session, "http://example.org/np2", false));
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_1))), never());
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_2))));
+            verify(client, never()).execute(argThat(r -> isPeerRequest(r) && r.getURI().toString().endsWith(AC_1)));
+        }
+    }
+
+    @Test
+    void storedNanopubsAreNeitherFetchedNorReloaded() throws Exception {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
+             MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class);
+             MockedStatic<RegistryDB> dbMock = mockStatic(RegistryDB.class)) {
+
+            CloseableHttpResponse page = response(uri(AC_1) + "\n" + uri(AC_2) + "\n", null);
+            CloseableHttpClient client = client(Set.of(), page);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
+            ClientSession session = mock(ClientSession.class);
+            dbMock.when(() -> RegistryDB.getStoredArtifactCodes(eq(session), anyList())).thenReturn(Set.of(AC_1));
+
+            LegacyConnector.checkForNewNanopubs(session);
+
+            // One query for the whole page:
+            dbMock.verify(() -> RegistryDB.getStoredArtifactCodes(session, List.of(AC_1, AC_2)), times(1));
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_1))), never());
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_2))));
+            verify(client, never()).execute(argThat(r -> isPeerRequest(r) && r.getURI().toString().endsWith(AC_1)));
         }
     }
 
+    @Test
+    void unavailableAndNonTrustyNanopubsAreSkipped() throws Exception {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
+             MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
+
+            CloseableHttpResponse page = response("http://example.org/np1\n" + uri(AC_1) + "\n" + uri(AC_2) + "\n", null);
+            CloseableHttpClient client = client(Set.of(AC_1), page);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
+
+            ClientSession session = mock(ClientSession.class);
+            LegacyConnector.checkForNewNanopubs(session);
+
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), any(Nanopub.class)), times(1));
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(eq(session), withUri(uri(AC_2))));
+            verify(client, times(2)).execute(argThat(LegacyConnectorTest::isPeerRequest));
+        }
+    }
+
+    @Test
+    void loadedCacheIsBounded() {
+        Map<String, Boolean> cache = LegacyConnector.newLoadedCache();
+        for (int i = 0; i <= LegacyConnector.CACHE_SIZE; i++) {
+            cache.put("http://example.org/np" + i, true);
+        }
+        assertEquals(LegacyConnector.CACHE_SIZE, cache.size());
+        assertFalse(cache.containsKey("http://example.org/np0"));
+    }
+
     @Test
     void networkFailureIsSwallowed() throws Exception {
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class);
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
              MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
 
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             when(client.execute(any(HttpUriRequest.class))).thenThrow(new IOException("connection refused"));
 
             ClientSession session = mock(ClientSession.class);
             // Legacy servers go down regularly; that must not abort the update cycle.
             LegacyConnector.checkForNewNanopubs(session);
 
-            loaderMock.verify(() -> NanopubLoader.simpleLoad(any(), anyString(), anyBoolean()), never());
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(any(), any(Nanopub.class)), never());
         }
     }
 
     @Test
     void nonPrevLinkHeadersAreIgnored() throws Exception {
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class);
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
              MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
 
-            CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
             CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
+            when(resp.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
             when(resp.getHeaders(eq("Link")))
                     .thenReturn(new Header[]{new BasicHeader("Link", "<page9>; rel=\"next\"")});
             HttpEntity entity = mock(HttpEntity.class);
             when(resp.getEntity()).thenReturn(entity);
-            when(entity.getContent()).thenReturn(new ByteArrayInputStream("http://example.org/np1\n".getBytes(StandardCharsets.UTF_8)));
-            when(client.execute(any(HttpUriRequest.class))).thenReturn(resp);
+            when(entity.getContent()).thenReturn(new ByteArrayInputStream((uri(AC_1) + "\n").getBytes(StandardCharsets.UTF_8)));
+            CloseableHttpClient client = client(Set.of(), resp);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
 
             ClientSession session = mock(ClientSession.class);
             LegacyConnector.checkForNewNanopubs(session);
 
             // Only rel="prev" drives the backwards walk; rel="next" must not be followed.
-            Mockito.verify(client, times(1)).execute(any(HttpUriRequest.class));
+            Mockito.verify(client, times(1)).execute(argThat(LegacyConnectorTest::isListingRequest));
+        }
+    }
+
+    @Test
+    void errorResponsesAreReleasedAndNotRead() throws Exception {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
+             MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
+
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
+            CloseableHttpResponse resp = response(uri(AC_1) + "\n", "page1");
+            when(resp.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 503, "Unavailable"));
+            when(client.execute(any(HttpUriRequest.class))).thenReturn(resp);
+
+            LegacyConnector.checkForNewNanopubs(mock(ClientSession.class));
+
+            // No prev link is followed and the connection goes back to the pool:
+            verify(client, times(1)).execute(any(HttpUriRequest.class));
+            verify(resp.getEntity(), atLeastOnce()).isStreaming();
+            loaderMock.verify(() -> NanopubLoader.simpleLoad(any(), any(Nanopub.class)), never());
+        }
+    }
+
+    @Test
+    void responsesAreReleasedWhenLoadingFails() throws Exception {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
+             MockedStatic<NanopubLoader> loaderMock = mockStatic(NanopubLoader.class)) {
+
+            CloseableHttpResponse resp = response(uri(AC_1) + "\n", null);
+            CloseableHttpClient client = client(Set.of(), resp);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
+            loaderMock.when(() -> NanopubLoader.simpleLoad(any(), any(Nanopub.class))).thenThrow(new IllegalStateException("DB down"));
+
+            try {
+                LegacyConnector.checkForNewNanopubs(mock(ClientSession.class));
+            } catch (IllegalStateException expected) {
+                // Not for the connector to handle
+            }
+
+            verify(resp.getEntity(), atLeastOnce()).isStreaming();
         }
     }
 
@@ -0,0 +1,157 @@
+package com.knowledgepixels.registry;
+
+import com.knowledgepixels.registry.utils.FakeEnv;
+import com.knowledgepixels.registry.utils.TestUtils;
+import com.mongodb.client.ClientSession;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Testcontainers
+class ListDigestTest {
+
+    @Container
+    private static final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:7.0.0");
+
+    private static final String PEER = "https://peer.example.org/";
+    private static final String PUBKEY_A = "a".repeat(64);
+    private static final String PUBKEY_B = "b".repeat(64);
+    private static final String TYPE = "c".repeat(64);
+
+    private FakeEnv fakeEnv;
+    private ClientSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fakeEnv = TestUtils.setupFakeEnv();
+        TestUtils.setupDBEnv(mongoDBContainer, "nanopubRegistry");
+        TestUtils.clearStaticFields(RegistryDB.class, "mongoClient", "mongoDB");
+        RegistryDB.init();
+        ListDigest.clear();
+        session = RegistryDB.getClient().startSession();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (session != null) {
+            session.close();
+        }
+        ListDigest.clear();
+        RegistryDB.getDB().drop();
+        fakeEnv.reset();
+    }
+
+    private void insertList(String pubkey) {
+        RegistryDB.collection("lists").insertOne(session, new Document("pubkey", pubkey).append("type", TYPE).append("maxPosition", -1L));
+    }
+
+    private Document getList(String pubkey) {
+        return RegistryDB.collection("lists").find(session, new Document("pubkey", pubkey).append("type", TYPE)).first();
+    }
+
+    @Test
+    void recordTail_onlyMovesTheTailForward() {
+        insertList(PUBKEY_A);
+        ListDigest.recordTail(session, PUBKEY_A, TYPE, 1, "cs1");
+        ListDigest.recordTail(session, PUBKEY_A, TYPE, 0, "cs0");
+
+        Document list = getList(PUBKEY_A);
+        assertEquals(1L, list.getLong("tailPosition"));
+        assertEquals("cs1", list.getString("tailChecksum"));
+        assertEquals(1L, list.getLong("digestCounter"));
+    }
+
+    @Test
+    void recordTail_stampsListsChangedAfterAMarkerWithAHigherCounter() {
+        insertList(PUBKEY_A);
+        insertList(PUBKEY_B);
+        ListDigest.recordTail(session, PUBKEY_A, TYPE, 0, "csA");
+
+        long marker = ListDigest.nextMarker(session);
+        ListDigest.recordTail(session, PUBKEY_B, TYPE, 0, "csB");
+
+        assertTrue(getList(PUBKEY_A).getLong("digestCounter") <= marker);
+        assertTrue(getList(PUBKEY_B).getLong("digestCounter") > marker);
+        // Adding entries does not move the shared counter:
+        assertEquals(marker, ListDigest.getDigestCounter(session));
+    }
+
+    @Test
+    void backfill_fillsInListsWithoutDigest() {
+        insertList(PUBKEY_A);
+        insertList(PUBKEY_B);
+        RegistryDB.collection("listEntries").insertOne(session, new Document("pubkey", PUBKEY_A).append("type", TYPE).append("position", 0L).append("checksum", "cs0"));
+        RegistryDB.collection("listEntries").insertOne(session, new Document("pubkey", PUBKEY_A).append("type", TYPE).append("position", 1L).append("checksum", "cs1"));
+
+        assertEquals(1, ListDigest.backfill(session));
+        assertEquals("cs1", getList(PUBKEY_A).getString("tailChecksum"));
+        assertNull(getList(PUBKEY_B).getString("tailChecksum"));
+        // Nothing left to do the second time:
+        assertEquals(0, ListDigest.backfill(session));
+    }
+
+    private CloseableHttpResponse digestResponse(int status, long counter, String body) throws Exception {
+        CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
+        when(resp.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "OK"));
+        when(resp.getFirstHeader(ListDigest.DIGEST_COUNTER_HEADER)).thenReturn(new BasicHeader(ListDigest.DIGEST_COUNTER_HEADER, String.valueOf(counter)));
+        HttpEntity entity = mock(HttpEntity.class);
+        when(resp.getEntity()).thenReturn(entity);
+        when(entity.getContent()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        return resp;
+    }
+
+    private static String line(String pubkey, String checksum, long counter) {
+        return "{\"pubkeyHash\":\"" + pubkey + "\",\"typeHash\":\"" + TYPE + "\",\"maxPosition\":3,\"tailChecksum\":\"" + checksum + "\",\"counter\":" + counter + "}\n";
+    }
+
+    @Test
+    void refreshPeer_mirrorsTheDigestAndAsksForDeltasAfterwards() throws Exception {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse first = digestResponse(200, 5000, line(PUBKEY_A, "csA", 4000) + line(PUBKEY_B, "csB", 5000));
+        CloseableHttpResponse second = digestResponse(200, 5001, line(PUBKEY_B, "csB2", 5001));
+        when(client.execute(any(HttpUriRequest.class))).thenReturn(first, second);
+
+        ListDigest.refreshPeer(client, session, PEER, 1L);
+        assertEquals(Set.of(PEER), ListDigest.getPeersInSync(List.of(PEER), PUBKEY_A, TYPE, "csA"));
+        assertEquals(Set.of(), ListDigest.getPeersInSync(List.of(PEER), PUBKEY_B, TYPE, "csOther"));
+        // The peer does not have this list at all:
+        assertEquals(Set.of(PEER), ListDigest.getPeersInSync(List.of(PEER), "d".repeat(64), TYPE, "csD"));
+
+        ListDigest.refreshPeer(client, session, PEER, 1L);
+        verify(client).execute(argThat(r -> r != null && r.getURI().toString().equals(PEER + "lists/digest?since=4000")));
+        assertEquals(Set.of(), ListDigest.getPeersInSync(List.of(PEER), PUBKEY_B, TYPE, "csB"));
+        assertEquals(Set.of(PEER), ListDigest.getPeersInSync(List.of(PEER), PUBKEY_B, TYPE, "csB2"));
+        assertEquals(5001L, RegistryPeerConnector.getPeerState(session, PEER).getLong("digestCounter"));
+    }
+
+    @Test
+    void getPeersInSync_ignoresPeersWithoutDigest() {
+        assertEquals(Set.of(), ListDigest.getPeersInSync(List.of(PEER), PUBKEY_A, TYPE, "csA"));
+    }
+
+}
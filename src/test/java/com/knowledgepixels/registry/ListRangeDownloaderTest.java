@@ -0,0 +1,197 @@
+package com.knowledgepixels.registry;
+
+import eu.neverblink.jelly.core.utils.IoUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubImpl;
+import org.nanopub.NanopubUtils;
+import org.nanopub.jelly.JellyUtils;
+import org.nanopub.jelly.MaybeNanopub;
+import org.nanopub.jelly.NanopubStream;
+import org.nanopub.testsuite.NanopubTestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests how {@link ListRangeDownloader} stitches the ranges of a large list together. Ranges
+ * from another peer than the first one are only used if their checksums continue the list.
+ */
+class ListRangeDownloaderTest {
+
+    private static final String PEER_A = "https://peer-a.example.org/";
+    private static final String PEER_B = "https://peer-b.example.org/";
+    private static final String TYPE_HASH = "b".repeat(64);
+    private static final String PUBKEY_HASH = "a".repeat(64);
+
+    private List<Nanopub> nanopubs;
+    private List<String> checksums;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        PeerDirectory.clear();
+        nanopubs = Stream.of("RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY", "RAR7wdfw9trX-4V5LnHGuXPXrNGTn4qFZKGs3MO_cwIHw",
+                "RATq2i1SMq-Ci6-1MAFALTELRRSL7xAsI4iQOC3cgMldE").map(ac -> {
+            try {
+                return (Nanopub) new NanopubImpl(NanopubTestSuite.getLatest().getByArtifactCode(ac).getFirst().toFile());
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }).toList();
+        // checksums.get(i) is the list checksum before position i
+        String checksum = NanopubUtils.INIT_CHECKSUM;
+        checksums = new ArrayList<>(List.of(checksum));
+        for (Nanopub np : nanopubs) {
+            checksum = NanopubUtils.updateXorChecksum(np.getUri(), checksum);
+            checksums.add(checksum);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        PeerDirectory.clear();
+    }
+
+    private byte[] jellyStreamOf(List<Nanopub> nps) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Nanopub np : nps) {
+            IoUtils.writeFrameAsDelimited(JellyUtils.writeNanopubForDB(np), out);
+        }
+        return out.toByteArray();
+    }
+
+    private CloseableHttpResponse rangeResponse(int from, int to, String startChecksum) throws Exception {
+        return rangeResponse(from, to, startChecksum, to);
+    }
+
+    private CloseableHttpResponse rangeResponse(int from, int to, String startChecksum, int sentTo) throws Exception {
+        CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
+        when(resp.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        when(resp.getFirstHeader("Nanopub-Registry-Range")).thenReturn(new BasicHeader("Nanopub-Registry-Range", from + "-" + to));
+        when(resp.getFirstHeader("Nanopub-Registry-List-Size")).thenReturn(new BasicHeader("Nanopub-Registry-List-Size", String.valueOf(nanopubs.size())));
+        when(resp.getFirstHeader("Nanopub-Registry-Range-Start-Checksum")).thenReturn(new BasicHeader("Nanopub-Registry-Range-Start-Checksum", startChecksum));
+        when(resp.getFirstHeader("Nanopub-Registry-Range-End-Checksum")).thenReturn(new BasicHeader("Nanopub-Registry-Range-End-Checksum", checksums.get(to + 1)));
+        HttpEntity entity = mock(HttpEntity.class);
+        when(resp.getEntity()).thenReturn(entity);
+        when(entity.getContent()).thenReturn(new ByteArrayInputStream(jellyStreamOf(nanopubs.subList(from, sentTo + 1))));
+        return resp;
+    }
+
+    private Stream<MaybeNanopub> firstRange() throws Exception {
+        return NanopubStream.fromByteStream(new ByteArrayInputStream(jellyStreamOf(nanopubs.subList(0, 1)))).getAsNanopubs();
+    }
+
+    private static HttpUriRequest requestTo(String peerUrl) {
+        return argThat(r -> r != null && r.getURI().toString().startsWith(peerUrl));
+    }
+
+    private List<String> download(CloseableHttpClient client) throws Exception {
+        ListRangeDownloader.Range first = new ListRangeDownloader.Range(0, 0, nanopubs.size(), checksums.get(0), checksums.get(1));
+        try (Stream<MaybeNanopub> stream = ListRangeDownloader.continueDownload(client, PEER_A, List.of(PEER_B), PUBKEY_HASH, TYPE_HASH, first, firstRange())) {
+            return stream.map(m -> m.getNanopub().getUri().stringValue()).toList();
+        }
+    }
+
+    @Test
+    void takesRangesFromOtherPeersWhenTheyContinueTheList() throws Exception {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse fromB = rangeResponse(1, 2, checksums.get(1));
+        when(client.execute(requestTo(PEER_B))).thenReturn(fromB);
+
+        assertEquals(nanopubs.stream().map(np -> np.getUri().stringValue()).toList(), download(client));
+        verify(client).execute(argThat(r -> r.getURI().toString().equals(PEER_B + "list/" + PUBKEY_HASH + "/" + TYPE_HASH + ".jelly?fromPosition=1&toPosition=2")));
+        verify(client, never()).execute(requestTo(PEER_A));
+    }
+
+    @Test
+    void fetchesARangeAgainFromTheFirstPeerIfItDoesNotFit() throws Exception {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        // Peer B has the list in another order, so its positions do not line up:
+        CloseableHttpResponse fromB = rangeResponse(1, 2, checksums.get(2));
+        CloseableHttpResponse fromA = rangeResponse(1, 2, checksums.get(1));
+        when(client.execute(requestTo(PEER_B))).thenReturn(fromB);
+        when(client.execute(requestTo(PEER_A))).thenReturn(fromA);
+
+        assertEquals(nanopubs.stream().map(np -> np.getUri().stringValue()).toList(), download(client));
+        verify(client).execute(requestTo(PEER_A));
+    }
+
+    @Test
+    void continuesABrokenOffRangeFromTheFirstPeer() throws Exception {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        // Peer B breaks off after the first nanopub of the range:
+        CloseableHttpResponse fromB = rangeResponse(1, 2, checksums.get(1), 1);
+        CloseableHttpResponse fromA = rangeResponse(1, 2, checksums.get(1));
+        when(client.execute(requestTo(PEER_B))).thenReturn(fromB);
+        when(client.execute(requestTo(PEER_A))).thenReturn(fromA);
+
+        assertEquals(nanopubs.stream().map(np -> np.getUri().stringValue()).toList(), download(client));
+        verify(client).execute(requestTo(PEER_A));
+    }
+
+    @Test
+    void fetchesATruncatedRangeAgainFromTheFirstPeer() throws Exception {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        // Peer B lags behind and only has the list up to position 1:
+        CloseableHttpResponse fromB = rangeResponse(1, 1, checksums.get(1));
+        when(fromB.getFirstHeader("Nanopub-Registry-List-Size")).thenReturn(new BasicHeader("Nanopub-Registry-List-Size", "2"));
+        CloseableHttpResponse fromA = rangeResponse(1, 2, checksums.get(1));
+        when(client.execute(requestTo(PEER_B))).thenReturn(fromB);
+        when(client.execute(requestTo(PEER_A))).thenReturn(fromA);
+
+        assertEquals(nanopubs.stream().map(np -> np.getUri().stringValue()).toList(), download(client));
+        verify(client).execute(requestTo(PEER_A));
+    }
+
+    @Test
+    void requestsTheNextRangeEvenIfNoExtraConnectionIsFree() throws Exception {
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse fromB = rangeResponse(1, 2, checksums.get(1));
+        when(client.execute(requestTo(PEER_B))).thenReturn(fromB);
+        int claimed = 0;
+        while (PeerHttpClient.tryAcquireExtraStream(PEER_B)) {
+            claimed++;
+        }
+        try {
+            assertEquals(nanopubs.stream().map(np -> np.getUri().stringValue()).toList(), download(client));
+            // Only the extra connections taken here are still claimed:
+            assertFalse(PeerHttpClient.tryAcquireExtraStream(PEER_B));
+        } finally {
+            for (int i = 0; i < claimed; i++) {
+                PeerHttpClient.releaseExtraStream(PEER_B);
+            }
+        }
+    }
+
+    @Test
+    void readsTheRangeHeaders() throws Exception {
+        CloseableHttpResponse resp = rangeResponse(1, 2, checksums.get(1));
+
+        ListRangeDownloader.Range range = ListRangeDownloader.Range.of(resp);
+        assertEquals(new ListRangeDownloader.Range(1, 2, 3, checksums.get(1), checksums.get(3)), range);
+        assertFalse(range.isPartial());
+        assertNull(ListRangeDownloader.Range.of(mock(CloseableHttpResponse.class)));
+    }
+
+}
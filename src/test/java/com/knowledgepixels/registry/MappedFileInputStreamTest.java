@@ -0,0 +1,65 @@
+package com.knowledgepixels.registry;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedFileInputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path fileWith(byte[] content) throws IOException {
+        Path file = tempDir.resolve("dump.jelly");
+        Files.write(file, content);
+        return file;
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+    @Test
+    void readsAFileAcrossSeveralRegions() throws IOException {
+        byte[] content = sequence(1000);
+        try (MappedFileInputStream in = new MappedFileInputStream(fileWith(content), 64)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            assertArrayEquals(content, out.toByteArray());
+            assertEquals(1000, in.getPosition());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void readsSingleBytesAcrossARegionBoundary() throws IOException {
+        byte[] content = sequence(10);
+        try (MappedFileInputStream in = new MappedFileInputStream(fileWith(content), 4)) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, in.read());
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void readsAnEmptyFile() throws IOException {
+        try (MappedFileInputStream in = new MappedFileInputStream(fileWith(new byte[0]))) {
+            assertEquals(0, in.getSize());
+            assertEquals(-1, in.read());
+            assertEquals(-1, in.read(new byte[8], 0, 8));
+        }
+    }
+
+}
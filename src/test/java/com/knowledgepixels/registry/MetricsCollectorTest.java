@@ -1,14 +1,19 @@
 package com.knowledgepixels.registry;
 
 import com.knowledgepixels.registry.utils.PageMocks;
+import io.micrometer.core.instrument.FunctionTimer;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
 import org.junit.jupiter.api.Test;
 import org.mockito.MockedStatic;
 
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.when;
 
@@ -106,6 +111,26 @@ class MetricsCollectorTest {
         }
     }
 
+    @Test
+    void updateMetricsRegistersGaugesForKnownPeers() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        collector = new MetricsCollector(registry);
+        String peer = "https://peer-metrics.example.org/";
+        PeerDirectory.recordSuccess(peer, 80);
+
+        try (MockedStatic<RegistryDB> dbMock = mockStatic(RegistryDB.class)) {
+            dbMock.when(RegistryDB::getClient).thenThrow(new IllegalStateException("mongo is down"));
+            collector.updateMetrics();
+            // A second round must not try to register the same gauges again
+            collector.updateMetrics();
+        }
+
+        Gauge latency = registry.find("registry.peer.latency").tag("peer", peer).gauge();
+        assertNotNull(latency, "latency gauge for the peer is registered");
+        assertEquals(80.0, latency.value());
+        assertEquals(0.0, registry.find("registry.peer.breaker.open").tag("peer", peer).gauge().value());
+    }
+
     @Test
     void updateMetricsSwallowsDatabaseFailures() {
         MeterRegistry registry = new SimpleMeterRegistry();
@@ -121,4 +146,61 @@ class MetricsCollectorTest {
         assertEquals(0.0, gauge(registry, "registry.load.counter"), "gauges keep their previous value");
     }
 
+    @Test
+    void reportsTheOutboundConnectionPool() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        collector = new MetricsCollector(registry);
+
+        assertEquals(PeerHttpClient.MAX_TOTAL, gauge(registry, "registry.http.pool.max"));
+        assertEquals(0.0, gauge(registry, "registry.http.pool.pending"));
+    }
+
+    @Test
+    void reportsQueueDepthAndLagPerTaskLane() {
+        // Task's static initialiser resolves the tasks collection, which needs RegistryDB
+        try (MockedStatic<RegistryDB> ignored = mockStatic(RegistryDB.class)) {
+            TaskQueue.clear();
+            TaskQueue.add(new Document("not-before", System.currentTimeMillis() - 1000).append("action", Task.CHECK_NEW.name()));
+            MeterRegistry registry = new SimpleMeterRegistry();
+            collector = new MetricsCollector(registry);
+
+            assertEquals(1.0, registry.find("registry.task.queue.depth").tag("lane", "sync").gauge().value());
+            assertTrue(registry.find("registry.task.queue.lag").tag("lane", "sync").gauge().value() >= 1000);
+            assertEquals(0.0, registry.find("registry.task.queue.depth").tag("lane", "trust").gauge().value());
+            assertEquals(0.0, registry.find("registry.task.queue.lag").tag("lane", "trust").gauge().value());
+        } finally {
+            TaskQueue.clear();
+        }
+    }
+
+    @Test
+    void reportsRunsAndQueuedTasksPerTask() {
+        try (MockedStatic<RegistryDB> dbMock = mockStatic(RegistryDB.class)) {
+            dbMock.when(RegistryDB::getClient).thenThrow(new IllegalStateException("mongo is down"));
+            TaskQueue.clear();
+            TaskStats.Run run = TaskStats.get(Task.LOAD_CORE.name());
+            long count = run.getCount();
+            run.recordStart(250);
+            run.record(2_000_000_000L, false);
+            TaskQueue.add(new Document("not-before", System.currentTimeMillis() - 1000).append("action", Task.CHECK_NEW.name()));
+            MeterRegistry registry = new SimpleMeterRegistry();
+            collector = new MetricsCollector(registry);
+            collector.updateMetrics();
+            // A second round must not try to register the same meters again
+            collector.updateMetrics();
+
+            FunctionTimer duration = registry.find("registry.task.duration").tag("task", "LOAD_CORE").functionTimer();
+            assertNotNull(duration, "duration timer for the task is registered");
+            assertEquals(count + 1, duration.count());
+            assertTrue(registry.find("registry.task.failures").tag("task", "LOAD_CORE").functionCounter().count() >= 1);
+            assertTrue(registry.find("registry.task.start.lag").tag("task", "LOAD_CORE").functionTimer().totalTime(TimeUnit.MILLISECONDS) >= 250);
+            assertEquals(1.0, registry.find("registry.task.queued").tag("task", "CHECK_NEW").gauge().value());
+            assertEquals(0.0, registry.find("registry.task.running").tag("task", "CHECK_NEW").gauge().value());
+            assertTrue(gauge(registry, "registry.task.queue.overdue") >= 1000);
+            assertNotNull(registry.find("registry.task.transaction.aborts").functionCounter());
+        } finally {
+            TaskQueue.clear();
+        }
+    }
+
 }
@@ -0,0 +1,72 @@
+package com.knowledgepixels.registry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NanopubExistenceFilterTest {
+
+    @BeforeEach
+    void setUp() {
+        NanopubExistenceFilter.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        NanopubExistenceFilter.clear();
+    }
+
+    private static String artifactCode(int i) {
+        return "RA" + String.format("%043d", i);
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        assertFalse(NanopubExistenceFilter.mightContain(artifactCode(1)));
+    }
+
+    @Test
+    void neverForgetsAnAddedArtifactCode() {
+        for (int i = 0; i < 10000; i++) {
+            NanopubExistenceFilter.add(artifactCode(i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(NanopubExistenceFilter.mightContain(artifactCode(i)));
+        }
+    }
+
+    @Test
+    void rarelyReportsAnArtifactCodeThatWasNotAdded() {
+        for (int i = 0; i < 10000; i++) {
+            NanopubExistenceFilter.add(artifactCode(i));
+        }
+        int falsePositives = 0;
+        for (int i = 10000; i < 20000; i++) {
+            if (NanopubExistenceFilter.mightContain(artifactCode(i))) {
+                falsePositives++;
+            }
+        }
+        // Far below capacity, so false positives should be practically absent.
+        assertTrue(falsePositives < 10, "too many false positives: " + falsePositives);
+    }
+
+    @Test
+    void clearForgetsEverything() {
+        NanopubExistenceFilter.add(artifactCode(1));
+        NanopubExistenceFilter.clear();
+        assertFalse(NanopubExistenceFilter.mightContain(artifactCode(1)));
+    }
+
+    @Test
+    void sizesTheFilterForTheTargetFalsePositiveRate() {
+        // About 9.6 bits and 7 hash functions per element for a 1% false positive rate.
+        int bits = NanopubExistenceFilter.optimalBitCount(1000, 0.01);
+        assertEquals(9586, bits);
+        assertEquals(7, NanopubExistenceFilter.optimalHashCount(1000, bits));
+    }
+
+}
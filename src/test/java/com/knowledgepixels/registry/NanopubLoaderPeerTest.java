@@ -13,7 +13,6 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.MockedStatic;
-import org.nanopub.NanopubUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -46,6 +45,8 @@ class NanopubLoaderPeerTest {
         peerUrlsField = Utils.class.getDeclaredField("peerUrls");
         peerUrlsField.setAccessible(true);
         previousPeerUrls = peerUrlsField.get(null);
+        // Peer health carries over between tests otherwise
+        PeerDirectory.clear();
     }
 
     @AfterEach
@@ -71,9 +72,9 @@ class NanopubLoaderPeerTest {
     @Test
     void requestsTheJellyListForTheGivenPubkeyAndType() throws Exception {
         setPeers(PEER_A);
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             CloseableHttpResponse ok = peerResponse(200, "ready", "");
             when(client.execute(any(HttpUriRequest.class))).thenReturn(ok);
 
@@ -86,12 +87,30 @@ class NanopubLoaderPeerTest {
         }
     }
 
+    @Test
+    void asksForAtMostOneRangeOfTheList() throws Exception {
+        setPeers(PEER_A);
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
+            CloseableHttpResponse ok = peerResponse(200, "ready", "");
+            when(client.execute(any(HttpUriRequest.class))).thenReturn(ok);
+
+            NanopubLoader.retrieveNanopubsFromPeers(TYPE_HASH, PUBKEY_HASH);
+
+            ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+            verify(client).execute(request.capture());
+            assertEquals(String.valueOf(ListRangeDownloader.RANGE_SIZE),
+                    request.getValue().getFirstHeader(ListPage.RANGE_LIMIT_HEADER).getValue());
+        }
+    }
+
     @Test
     void appendsTheChecksumSkipAheadParameter() throws Exception {
         setPeers(PEER_A);
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             CloseableHttpResponse ok = peerResponse(200, "updating", "");
             when(client.execute(any(HttpUriRequest.class))).thenReturn(ok);
 
@@ -107,9 +126,9 @@ class NanopubLoaderPeerTest {
     @Test
     void movesOnToTheNextPeerAfterAnHttpError() throws Exception {
         setPeers(PEER_A, PEER_B);
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             CloseableHttpResponse failing = peerResponse(500, "ready", "");
             CloseableHttpResponse ok = peerResponse(200, "ready", "");
             when(client.execute(any(HttpUriRequest.class))).thenReturn(failing).thenReturn(ok);
@@ -123,9 +142,9 @@ class NanopubLoaderPeerTest {
     @Test
     void skipsPeersThatDoNotIdentifyAsARegistry() throws Exception {
         setPeers(PEER_A);
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             // No Nanopub-Registry-Status header: this is not a registry we can trust.
             CloseableHttpResponse anonymous = peerResponse(200, null, "");
             when(client.execute(any(HttpUriRequest.class))).thenReturn(anonymous);
@@ -137,9 +156,9 @@ class NanopubLoaderPeerTest {
     @Test
     void skipsPeersThatAreNotReadyYet() throws Exception {
         setPeers(PEER_A);
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             // A launching registry has an incomplete list; importing from it would lose entries.
             CloseableHttpResponse launching = peerResponse(200, "launching", "");
             when(client.execute(any(HttpUriRequest.class))).thenReturn(launching);
@@ -151,9 +170,9 @@ class NanopubLoaderPeerTest {
     @Test
     void networkFailureExhaustsPeersAndReturnsAnEmptyStream() throws Exception {
         setPeers(PEER_A, PEER_B);
-        try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+        try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             when(client.execute(any(HttpUriRequest.class))).thenThrow(new IOException("connection refused"));
 
             assertEquals(0, NanopubLoader.retrieveNanopubsFromPeers(TYPE_HASH, PUBKEY_HASH).count());
@@ -1,6 +1,7 @@
 package com.knowledgepixels.registry;
 
 import com.knowledgepixels.registry.utils.PageMocks;
+import eu.neverblink.jelly.core.utils.IoUtils;
 import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCursor;
 import org.apache.http.HttpEntity;
@@ -8,6 +9,7 @@ import org.apache.http.ProtocolVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicStatusLine;
 import org.bson.Document;
 import org.bson.types.Binary;
@@ -18,26 +20,29 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.MockedStatic;
 import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
-import org.nanopub.NanopubUtils;
 import org.nanopub.jelly.JellyUtils;
 import org.nanopub.testsuite.NanopubTestSuite;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.never;
@@ -47,9 +52,10 @@ import static org.mockito.Mockito.when;
 
 /**
  * Tests how {@link NanopubLoader} resolves a single nanopub by id: the local store first,
- * then peers one at a time, with a bounded number of retries. A peer's answer is only
- * accepted when it parses and is a valid trusty nanopub, so a peer cannot substitute
- * different content for the requested artifact code.
+ * then the peers, best first, with a second peer asked if the first is slow (see
+ * {@link NanopubFetcher}). A peer's answer is only accepted when it parses and is the valid
+ * trusty nanopub with the requested artifact code, so a peer cannot substitute different
+ * content for it.
  * <p>
  * The nanopub served by the fake peers is a real signed one from the nanopub test suite.
  */
@@ -79,6 +85,9 @@ class NanopubLoaderRetrievalTest {
         peerUrlsField = Utils.class.getDeclaredField("peerUrls");
         peerUrlsField.setAccessible(true);
         previousPeerUrls = peerUrlsField.get(null);
+        // Peer health and missing nanopubs carry over between tests otherwise
+        PeerDirectory.clear();
+        NanopubFetcher.clear();
     }
 
     @AfterEach
@@ -100,12 +109,11 @@ class NanopubLoaderRetrievalTest {
     }
 
     /**
-     * Only {@code getHttpClient} is faked; the rest of NanopubUtils has to keep working
-     * because trusty validation depends on it.
+     * Makes the peer requests go to the given client.
      */
-    private static MockedStatic<NanopubUtils> mockHttpClient(CloseableHttpClient client) {
-        MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class, CALLS_REAL_METHODS);
-        httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+    private static MockedStatic<PeerHttpClient> mockHttpClient(CloseableHttpClient client) {
+        MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
+        httpMock.when(PeerHttpClient::get).thenReturn(client);
         return httpMock;
     }
 
@@ -148,7 +156,7 @@ class NanopubLoaderRetrievalTest {
             stubLocalStore(dbMock, s, stored);
             CloseableHttpClient client = mock(CloseableHttpClient.class);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 Nanopub found = NanopubLoader.retrieveNanopub(s, stored.getUri().stringValue());
                 assertEquals(stored.getUri(), found.getUri());
             }
@@ -169,7 +177,7 @@ class NanopubLoaderRetrievalTest {
             CloseableHttpResponse ok = response(200, introTrig());
             when(client.execute(any(HttpUriRequest.class))).thenReturn(ok);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 Nanopub found = NanopubLoader.retrieveNanopub(s, expected.getUri().stringValue());
                 assertEquals(expected.getUri(), found.getUri());
             }
@@ -194,7 +202,7 @@ class NanopubLoaderRetrievalTest {
             CloseableHttpResponse ok = response(200, introTrig());
             when(client.execute(any(HttpUriRequest.class))).thenReturn(notFound).thenReturn(ok);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 assertEquals(expected.getUri(), NanopubLoader.retrieveNanopub(s, expected.getUri().stringValue()).getUri());
             }
 
@@ -228,7 +236,7 @@ class NanopubLoaderRetrievalTest {
             CloseableHttpClient client = mock(CloseableHttpClient.class);
             when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> response(200, untrusted));
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 // Every attempt is refused, so the loader eventually gives up.
                 assertThrows(RuntimeException.class,
                         () -> NanopubLoader.retrieveNanopub(s, expected.getUri().stringValue()));
@@ -267,7 +275,7 @@ class NanopubLoaderRetrievalTest {
             CloseableHttpResponse ok = response(200, introTrig());
             when(client.execute(any(HttpUriRequest.class))).thenReturn(ok);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 NanopubLoader.simpleLoad(s, expected.getUri().stringValue());
             }
 
@@ -287,7 +295,7 @@ class NanopubLoaderRetrievalTest {
             dbMock.when(() -> RegistryDB.getPubkey(any())).thenReturn("PUBKEY");
             CloseableHttpClient client = mock(CloseableHttpClient.class);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 NanopubLoader.simpleLoad(s, stored.getUri().stringValue(), false);
             }
 
@@ -309,7 +317,7 @@ class NanopubLoaderRetrievalTest {
             CloseableHttpResponse ok = response(200, introTrig());
             when(client.execute(any(HttpUriRequest.class))).thenReturn(ok);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 NanopubLoader.simpleLoad(s, expected.getUri().stringValue(), false);
             }
 
@@ -363,7 +371,7 @@ class NanopubLoaderRetrievalTest {
             stubLocalStore(dbMock, s, null);
             CloseableHttpClient client = mock(CloseableHttpClient.class);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 NanopubLoader.simpleLoad(s, expected.getUri().stringValue(), false);
             }
 
@@ -384,7 +392,7 @@ class NanopubLoaderRetrievalTest {
             CloseableHttpResponse informational = response(100, introTrig());
             when(client.execute(any(HttpUriRequest.class))).thenReturn(informational);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
                 NanopubLoader.simpleLoad(s, expected.getUri().stringValue(), false);
             }
 
@@ -399,7 +407,7 @@ class NanopubLoaderRetrievalTest {
         CloseableHttpResponse informational = response(100, "");
         when(client.execute(any(HttpUriRequest.class))).thenReturn(informational);
 
-        try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+        try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
             assertEquals(0, NanopubLoader.retrieveNanopubsFromPeers("t".repeat(64), "p".repeat(64)).count());
         }
     }
@@ -419,7 +427,7 @@ class NanopubLoaderRetrievalTest {
         when(entity.getContent()).thenReturn(new ByteArrayInputStream(new byte[0]));
         when(client.execute(any(HttpUriRequest.class))).thenReturn(resp);
 
-        try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+        try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
             try (var stream = NanopubLoader.retrieveNanopubsFromPeers("t".repeat(64), "p".repeat(64))) {
                 assertNotNull(stream);
             }
@@ -443,7 +451,7 @@ class NanopubLoaderRetrievalTest {
         org.mockito.Mockito.doThrow(new IOException("already closed")).when(resp).close();
         when(client.execute(any(HttpUriRequest.class))).thenReturn(resp);
 
-        try (MockedStatic<NanopubUtils> ignored = mockHttpClient(client)) {
+        try (MockedStatic<PeerHttpClient> ignored = mockHttpClient(client)) {
             // Closing is best-effort cleanup; a failure there must not surface to the caller.
             try (var stream = NanopubLoader.retrieveNanopubsFromPeers("t".repeat(64), "p".repeat(64))) {
                 assertNotNull(stream);
@@ -453,6 +461,126 @@ class NanopubLoaderRetrievalTest {
         verify(resp).close();
     }
 
+    // --- NanopubFetcher -------------------------------------------------------
+
+    @Test
+    void aNanopubIsFetchedInJellyIfThePeerOffersIt() throws Exception {
+        Nanopub expected = introNanopub();
+        setPeers(PEER_A);
+        ByteArrayOutputStream jelly = new ByteArrayOutputStream();
+        IoUtils.writeFrameAsDelimited(JellyUtils.writeNanopubForDB(expected), jelly);
+        CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
+        when(resp.getStatusLine()).thenReturn(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200, "OK"));
+        HttpEntity entity = mock(HttpEntity.class);
+        when(resp.getEntity()).thenReturn(entity);
+        when(entity.getContentType()).thenReturn(new BasicHeader("Content-Type", Utils.TYPE_JELLY));
+        when(entity.getContent()).thenReturn(new ByteArrayInputStream(jelly.toByteArray()));
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        when(client.execute(any(HttpUriRequest.class))).thenReturn(resp);
+
+        assertEquals(expected.getUri(), NanopubFetcher.fetch(INTRO_AC, client).getUri());
+
+        ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(client).execute(request.capture());
+        assertTrue(request.getValue().getFirstHeader("Accept").getValue().startsWith(Utils.TYPE_JELLY));
+    }
+
+    @Test
+    void aSecondPeerIsAskedIfTheFirstIsSlow() throws Exception {
+        setPeers(PEER_A, PEER_B);
+        // Peer A has no latency on record yet, so it is asked first
+        PeerDirectory.recordSuccess(PEER_B, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse ok = response(200, introTrig());
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+            if (inv.getArgument(0, HttpUriRequest.class).getURI().toString().startsWith(PEER_A)) {
+                release.await(10, TimeUnit.SECONDS);
+                throw new IOException("too late");
+            }
+            return ok;
+        });
+
+        try {
+            long startTime = System.currentTimeMillis();
+            assertNotNull(NanopubFetcher.fetch(INTRO_AC, client));
+            assertTrue(System.currentTimeMillis() - startTime < 5000, "did not wait for the slow peer");
+        } finally {
+            release.countDown();
+        }
+        verify(client, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    void theNextPeerIsAskedIfOneFails() throws Exception {
+        setPeers(PEER_A, PEER_B);
+        PeerDirectory.recordSuccess(PEER_B, 1000);
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse ok = response(200, introTrig());
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+            if (inv.getArgument(0, HttpUriRequest.class).getURI().toString().startsWith(PEER_A)) {
+                throw new IllegalStateException("broken");
+            }
+            return ok;
+        });
+
+        assertNotNull(NanopubFetcher.fetch(INTRO_AC, client));
+        assertEquals(1, PeerDirectory.get(PEER_A).getFailureCount());
+    }
+
+    @Test
+    void aFetchFailsOnlyIfEveryPeerFails() throws Exception {
+        setPeers(PEER_A, PEER_B);
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        when(client.execute(any(HttpUriRequest.class))).thenThrow(new IllegalStateException("broken"));
+
+        assertThrows(RuntimeException.class, () -> NanopubFetcher.fetch(INTRO_AC, client));
+        verify(client, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    void aNanopubNoPeerHasIsNotAskedForAgainRightAway() throws Exception {
+        setPeers(PEER_A);
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> response(404, ""));
+
+        assertNull(NanopubFetcher.fetch(INTRO_AC, client));
+        assertNull(NanopubFetcher.fetch(INTRO_AC, client));
+
+        verify(client, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    void concurrentLookupsOfTheSameNanopubShareOneFetch() throws Exception {
+        setPeers(PEER_A);
+        CountDownLatch requested = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CloseableHttpClient client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse ok = response(200, introTrig());
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+            requested.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return ok;
+        });
+
+        AtomicReference<Nanopub> first = new AtomicReference<>();
+        Thread firstLookup = new Thread(() -> first.set(NanopubFetcher.fetch(INTRO_AC, client)));
+        firstLookup.start();
+        assertTrue(requested.await(10, TimeUnit.SECONDS));
+        AtomicReference<Nanopub> second = new AtomicReference<>();
+        Thread secondLookup = new Thread(() -> second.set(NanopubFetcher.fetch(INTRO_AC, client)));
+        secondLookup.start();
+        // Gives the second lookup time to find the running fetch
+        Thread.sleep(200);
+        release.countDown();
+        firstLookup.join(10000);
+        secondLookup.join(10000);
+
+        assertNotNull(first.get());
+        assertSame(first.get(), second.get());
+        verify(client, times(1)).execute(any(HttpUriRequest.class));
+    }
+
     // --- constants -----------------------------------------------------------
 
     @Test
@@ -0,0 +1,104 @@
+package com.knowledgepixels.registry;
+
+import com.mongodb.client.ClientSession;
+import org.apache.http.client.HttpClient;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+
+class PeerChangeListenerTest {
+
+    private static final String PEER = "https://peer.example.org/";
+
+    private List<PeerChangeListener.SseEvent> read(String stream, int max) throws Exception {
+        List<PeerChangeListener.SseEvent> events = new ArrayList<>();
+        PeerChangeListener.readEvents(new BufferedReader(new StringReader(stream)), e -> {
+            events.add(e);
+            return events.size() < max;
+        });
+        return events;
+    }
+
+    @Test
+    void readsTheEventsOfTheChangeFeed() throws Exception {
+        String stream = "retry: 5000\n\n"
+                + new ChangeFeed.Event(1, "nanopub", 42L, "{\"counter\":42}", null).toSse()
+                + ": keep-alive\n\n"
+                + new ChangeFeed.Event(2, "trust-state", null, "{\"trustStateCounter\":3}", null).toSse()
+                + "data: first\ndata: second\n\n";
+
+        List<PeerChangeListener.SseEvent> events = read(stream, 10);
+
+        assertEquals(List.of(
+                new PeerChangeListener.SseEvent("nanopub", "42", "{\"counter\":42}"),
+                // The event ID carries over, as in the SSE spec:
+                new PeerChangeListener.SseEvent("trust-state", "42", "{\"trustStateCounter\":3}"),
+                new PeerChangeListener.SseEvent("message", "42", "first\nsecond")), events);
+    }
+
+    @Test
+    void stopsWhenTheHandlerSaysSo() throws Exception {
+        String stream = "event: catch-up\ndata: {\"afterCounter\":1}\n\nevent: nanopub\ndata: {}\n\n";
+
+        assertEquals(1, read(stream, 1).size());
+    }
+
+    private static PeerChangeListener.SseEvent nanopubEvent(long counter) {
+        return new PeerChangeListener.SseEvent("nanopub", String.valueOf(counter), "{\"counter\":" + counter + ",\"artifactCode\":\"RA" + counter + "\"}");
+    }
+
+    @Test
+    void movesTheRecordedCounterOnlyUpToAGap() {
+        ClientSession s = mock(ClientSession.class);
+        HttpClient client = mock(HttpClient.class);
+        AtomicLong appliedCounter = new AtomicLong(1);
+        AtomicBoolean gap = new AtomicBoolean(false);
+        try (MockedStatic<RegistryDB> db = mockStatic(RegistryDB.class);
+             MockedStatic<RegistryPeerConnector> connector = mockStatic(RegistryPeerConnector.class)) {
+            // All announced nanopubs are stored already:
+            db.when(() -> RegistryDB.getStoredPubkeyHash(any(), anyString())).thenReturn("pk");
+
+            assertTrue(PeerChangeListener.handleEvent(s, client, PEER, 7, appliedCounter, gap, nanopubEvent(2)));
+            assertFalse(gap.get());
+            // Counter 3 is skipped, e.g. because its transaction was still open at the peer:
+            assertFalse(PeerChangeListener.handleEvent(s, client, PEER, 7, appliedCounter, gap, nanopubEvent(4)));
+
+            assertTrue(gap.get());
+            assertEquals(2, appliedCounter.get());
+            connector.verify(() -> RegistryPeerConnector.advancePeerState(s, PEER, 7, 2));
+            connector.verify(() -> RegistryPeerConnector.advancePeerState(any(), any(), anyLong(), eq(4L)), never());
+        }
+    }
+
+    @Test
+    void endsTheStreamOnAResync() {
+        AtomicLong appliedCounter = new AtomicLong(1);
+        AtomicBoolean gap = new AtomicBoolean(false);
+        try (MockedStatic<RegistryPeerConnector> connector = mockStatic(RegistryPeerConnector.class)) {
+            PeerChangeListener.SseEvent resync = new PeerChangeListener.SseEvent("resync", null, "{\"afterCounter\":1,\"nextCounter\":3}");
+
+            assertFalse(PeerChangeListener.handleEvent(mock(ClientSession.class), mock(HttpClient.class), PEER, 7, appliedCounter, gap, resync));
+
+            assertTrue(gap.get());
+            connector.verifyNoInteractions();
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.knowledgepixels.registry;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerDirectoryTest {
+
+    private static final String PEER_A = "https://peer-a.example.org/";
+    private static final String PEER_B = "https://peer-b.example.org/";
+    private static final String PEER_C = "https://peer-c.example.org/";
+
+    @BeforeEach
+    void setUp() {
+        PeerDirectory.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        PeerDirectory.clear();
+    }
+
+    @Test
+    void ranksFasterPeersFirst() {
+        PeerDirectory.recordSuccess(PEER_A, 500);
+        PeerDirectory.recordSuccess(PEER_B, 50);
+        PeerDirectory.recordSuccess(PEER_C, 200);
+
+        assertEquals(List.of(PEER_B, PEER_C, PEER_A), PeerDirectory.rankPeers(List.of(PEER_A, PEER_B, PEER_C)));
+    }
+
+    @Test
+    void errorsWeighAgainstAPeer() {
+        PeerDirectory.recordSuccess(PEER_A, 100);
+        PeerDirectory.recordSuccess(PEER_B, 120);
+        PeerDirectory.recordFailure(PEER_A);
+
+        assertEquals(List.of(PEER_B, PEER_A), PeerDirectory.rankPeers(List.of(PEER_A, PEER_B)));
+    }
+
+    @Test
+    void leavesOutPeersThatReportedNotToBeReady() {
+        PeerDirectory.recordProbe(PEER_A, 10, "launching", 1L, 0L, false);
+        PeerDirectory.recordProbe(PEER_B, 10, "ready", 2L, 0L, true);
+        PeerDirectory.recordProbe(PEER_C, 10, "updating", 3L, 0L, false);
+
+        assertEquals(List.of(PEER_C), PeerDirectory.rankPeers(List.of(PEER_A, PEER_B, PEER_C)));
+        assertEquals(3L, PeerDirectory.get(PEER_C).getSetupId());
+    }
+
+    @Test
+    void opensTheBreakerAfterRepeatedFailures() {
+        for (int i = 0; i < PeerDirectory.FAILURE_THRESHOLD - 1; i++) {
+            PeerDirectory.recordFailure(PEER_A);
+        }
+        assertEquals(PeerDirectory.BreakerState.CLOSED, PeerDirectory.get(PEER_A).getBreakerState());
+        PeerDirectory.recordFailure(PEER_A);
+
+        assertEquals(PeerDirectory.BreakerState.OPEN, PeerDirectory.get(PEER_A).getBreakerState());
+        assertEquals(List.of(PEER_B), PeerDirectory.rankPeers(List.of(PEER_A, PEER_B)));
+    }
+
+    @Test
+    void waitingForAPooledConnectionIsNotAPeerFailure() {
+        for (int i = 0; i < PeerDirectory.FAILURE_THRESHOLD; i++) {
+            PeerDirectory.recordFailure(PEER_A, new ConnectionPoolTimeoutException("Timeout waiting for connection from pool"));
+        }
+        PeerDirectory.recordFailure(PEER_A, new SocketTimeoutException("Read timed out"));
+
+        assertEquals(1, PeerDirectory.get(PEER_A).getFailureCount());
+        assertEquals(PeerDirectory.BreakerState.CLOSED, PeerDirectory.get(PEER_A).getBreakerState());
+    }
+
+    @Test
+    void rankingDoesNotUseUpTheHalfOpenTrial() throws Exception {
+        for (int i = 0; i < PeerDirectory.FAILURE_THRESHOLD; i++) {
+            PeerDirectory.recordFailure(PEER_A);
+        }
+        // Let the cooldown pass
+        Field changeTime = PeerDirectory.PeerStats.class.getDeclaredField("breakerChangeTime");
+        changeTime.setAccessible(true);
+        changeTime.setLong(PeerDirectory.get(PEER_A), System.currentTimeMillis() - PeerDirectory.BREAKER_COOLDOWN);
+
+        assertEquals(List.of(PEER_A), PeerDirectory.rankPeers(List.of(PEER_A)));
+        assertEquals(List.of(PEER_A), PeerDirectory.rankPeers(List.of(PEER_A)));
+        assertEquals(PeerDirectory.BreakerState.OPEN, PeerDirectory.get(PEER_A).getBreakerState());
+
+        // Only the request that is actually sent claims the trial
+        assertTrue(PeerDirectory.allowRequest(PEER_A));
+        assertEquals(PeerDirectory.BreakerState.HALF_OPEN, PeerDirectory.get(PEER_A).getBreakerState());
+        assertFalse(PeerDirectory.allowRequest(PEER_A));
+    }
+
+    @Test
+    void aSuccessfulProbeClosesTheBreaker() {
+        for (int i = 0; i < PeerDirectory.FAILURE_THRESHOLD; i++) {
+            PeerDirectory.recordFailure(PEER_A);
+        }
+        PeerDirectory.recordProbe(PEER_A, 30, "ready", 1L, 10L, false);
+
+        assertEquals(PeerDirectory.BreakerState.CLOSED, PeerDirectory.get(PEER_A).getBreakerState());
+        assertEquals(List.of(PEER_A), PeerDirectory.rankPeers(List.of(PEER_A)));
+    }
+
+    @Test
+    void movingAveragesFollowTheSamples() {
+        PeerDirectory.recordSuccess(PEER_A, 100);
+        assertEquals(100, PeerDirectory.get(PEER_A).getLatencyMs(), 1e-9);
+        PeerDirectory.recordSuccess(PEER_A, 200);
+        assertEquals(100 + PeerDirectory.EWMA_ALPHA * 100, PeerDirectory.get(PEER_A).getLatencyMs(), 1e-9);
+        PeerDirectory.recordFailure(PEER_A);
+        assertEquals(PeerDirectory.EWMA_ALPHA, PeerDirectory.get(PEER_A).getErrorRate(), 1e-9);
+        assertEquals(3, PeerDirectory.get(PEER_A).getRequestCount());
+    }
+
+    @Test
+    void meteredStreamsRecordThroughputOnClose() throws Exception {
+        try (InputStream in = PeerDirectory.meter(PEER_A, new ByteArrayInputStream(new byte[4096]))) {
+            Thread.sleep(5);
+            assertEquals(4096, in.readAllBytes().length);
+        }
+        assertTrue(PeerDirectory.get(PEER_A).getThroughput() > 0);
+    }
+
+    @Test
+    void leavesOutPeersThatDoNotCoverTheList() {
+        String typeA = Utils.getHash("https://example.org/TypeA");
+        String typeB = Utils.getHash("https://example.org/TypeB");
+        PeerDirectory.recordCoverage(PEER_A, "https://example.org/TypeA", "viaSetting");
+        PeerDirectory.recordCoverage(PEER_B, "all", "abc:1000 def:1000");
+        PeerDirectory.recordCoverage(PEER_C, "all", "viaSetting");
+        List<String> peers = List.of(PEER_A, PEER_B, PEER_C);
+
+        assertEquals(List.of(PEER_A, PEER_C), PeerDirectory.rankPeersFor(peers, "xyz", typeA));
+        assertEquals(List.of(PEER_C), PeerDirectory.rankPeersFor(peers, "xyz", typeB));
+        assertEquals(List.of(PEER_B, PEER_C), PeerDirectory.rankPeersFor(peers, "abc", typeB));
+        // Core types are covered by type-restricted peers too:
+        assertEquals(List.of(PEER_A, PEER_C), PeerDirectory.rankPeersFor(peers, "xyz", NanopubLoader.INTRO_TYPE_HASH));
+    }
+
+    @Test
+    void prefersFullCoverageAndLongerListsOfThePeer() {
+        PeerDirectory.recordSuccess(PEER_A, 10);
+        PeerDirectory.recordSuccess(PEER_B, 20);
+        PeerDirectory.recordSuccess(PEER_C, 30);
+        PeerDirectory.recordCoverage(PEER_A, "https://example.org/TypeA", "viaSetting");
+        List<String> peers = List.of(PEER_A, PEER_B, PEER_C);
+
+        // A type-restricted peer only holds part of the "$" list:
+        assertEquals(List.of(PEER_B, PEER_C, PEER_A), PeerDirectory.rankPeersFor(peers, "abc", "$"));
+
+        PeerDirectory.recordListSize(PEER_C, "abc", "$", 120);
+        PeerDirectory.recordListSize(PEER_B, "abc", "$", 80);
+        assertEquals(List.of(PEER_C, PEER_B, PEER_A), PeerDirectory.rankPeersFor(peers, "abc", "$"));
+
+        // A shorter count from a stream that was not read to the end does not lower the size:
+        PeerDirectory.recordListSize(PEER_C, "abc", "$", 5);
+        assertEquals(List.of(PEER_C, PEER_B, PEER_A), PeerDirectory.rankPeersFor(peers, "abc", "$"));
+        // Other lists are not affected:
+        assertEquals(List.of(PEER_A, PEER_B, PEER_C), PeerDirectory.rankPeersFor(peers, "def", NanopubLoader.INTRO_TYPE_HASH));
+    }
+
+}
@@ -7,7 +7,9 @@ import net.trustyuri.TrustyUriUtils;
 import org.bson.Document;
 import org.bson.types.Binary;
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
@@ -24,6 +26,7 @@ import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.mongodb.MongoDBContainer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Set;
@@ -39,6 +42,7 @@ import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 
 /**
@@ -370,6 +374,38 @@ class RegistryDBLoadNanopubTest {
             assertNotNull(listEntry(pubkeyHash, fdoTypeHash, SUPERSEDER_AC));
         }
 
+        @Test
+        void recordsTheInvalidatingNanopubsTypesOnTheInvalidation() throws Exception {
+            Nanopub superseder = testSuiteNanopub(SUPERSEDER_AC);
+
+            assertTrue(RegistryDB.loadNanopubVerified(session, superseder, RegistryDB.getPubkey(superseder), null));
+
+            Document invalidation = RegistryDB.collection("invalidations").find(session,
+                    new Document("invalidatingNp", SUPERSEDER_AC)).first();
+            assertNotNull(invalidation);
+            assertTrue(invalidation.getList("invalidatingTypes", String.class)
+                    .contains(Utils.getHash("https://w3id.org/fdof/ontology#FAIRDigitalObject")));
+        }
+
+        @Test
+        void backfillsTheTypesOfALegacyInvalidationRecord() throws Exception {
+            Nanopub invalidator = testSuiteNanopub(SUPERSEDER_AC);
+            Nanopub target = testSuiteNanopub(SIMPLE1_AC);
+            String pubkey = RegistryDB.getPubkey(target);
+            String pubkeyHash = Utils.getHash(pubkey);
+            assertTrue(RegistryDB.loadNanopubVerified(session, invalidator, RegistryDB.getPubkey(invalidator), null));
+            // Written before type hashes were recorded on invalidations.
+            RegistryDB.insert(session, "invalidations", new Document("invalidatingNp", SUPERSEDER_AC)
+                    .append("invalidatingPubkey", pubkeyHash).append("invalidatedNp", SIMPLE1_AC));
+
+            assertTrue(RegistryDB.loadNanopubVerified(session, target, pubkey, pubkeyHash, "$"));
+
+            // The invalidator is decoded once and its types are stored, so later loads don't have to.
+            Document invalidation = RegistryDB.collection("invalidations").find(session,
+                    new Document("invalidatingNp", SUPERSEDER_AC).append("invalidatedNp", SIMPLE1_AC)).first();
+            assertNotNull(invalidation.getList("invalidatingTypes", String.class));
+        }
+
         @Test
         void skipsAnInvalidatingNanopubThatCannotBeRead() throws Exception {
             Nanopub target = testSuiteNanopub(SIMPLE1_AC);
@@ -502,6 +538,49 @@ class RegistryDBLoadNanopubTest {
                     .getLong("maxPosition"));
         }
 
+        @Test
+        void listsStoredNanopubsInOneBlockWithChainedChecksums() throws Exception {
+            Nanopub first = testSuiteNanopub(SIMPLE1_AC);
+            Nanopub second = testSuiteNanopub(SUPERSEDER_AC);
+            String pubkey = RegistryDB.getPubkey(first);
+            String pubkeyHash = Utils.getHash(pubkey);
+            // Stored without a pubkey hash to list under, as simpleLoad() does
+            RegistryDB.loadNanopubVerified(session, first, pubkey, null);
+            RegistryDB.loadNanopubVerified(session, second, pubkey, null);
+            assertNull(listEntry(pubkeyHash, "$", SIMPLE1_AC));
+
+            RegistryDB.listStoredNanopubs(session, pubkeyHash, List.of(first, second));
+
+            String firstChecksum = NanopubUtils.updateXorChecksum(first.getUri(), NanopubUtils.INIT_CHECKSUM);
+            assertEquals(0L, listEntry(pubkeyHash, "$", SIMPLE1_AC).getLong("position"));
+            assertEquals(firstChecksum, listEntry(pubkeyHash, "$", SIMPLE1_AC).getString("checksum"));
+            assertEquals(1L, listEntry(pubkeyHash, "$", SUPERSEDER_AC).getLong("position"));
+            assertEquals(NanopubUtils.updateXorChecksum(second.getUri(), firstChecksum),
+                    listEntry(pubkeyHash, "$", SUPERSEDER_AC).getString("checksum"));
+            Document list = RegistryDB.collection("lists").find(session, new Document("pubkey", pubkeyHash).append("type", "$")).first();
+            assertEquals(1L, list.getLong("maxPosition"));
+            assertEquals(1L, list.getLong("tailPosition"));
+            // The covered types of each nanopub get their own lists, as with "$" in loadNanopub
+            assertNotNull(listEntry(pubkeyHash, Utils.getHash("http://purl.org/nanopub/x/ExampleNanopub"), SIMPLE1_AC));
+        }
+
+        @Test
+        void listingStoredNanopubsSkipsThoseAlreadyListed() throws Exception {
+            Nanopub first = testSuiteNanopub(SIMPLE1_AC);
+            Nanopub second = testSuiteNanopub(SUPERSEDER_AC);
+            String pubkey = RegistryDB.getPubkey(first);
+            String pubkeyHash = Utils.getHash(pubkey);
+            RegistryDB.loadNanopubVerified(session, first, pubkey, pubkeyHash, "$");
+            RegistryDB.loadNanopubVerified(session, second, pubkey, null);
+
+            RegistryDB.listStoredNanopubs(session, pubkeyHash, List.of(first, second));
+
+            assertEquals(1, RegistryDB.collection("listEntries").countDocuments(session,
+                    new Document("pubkey", pubkeyHash).append("type", "$").append("np", SIMPLE1_AC)));
+            assertEquals(0L, listEntry(pubkeyHash, "$", SIMPLE1_AC).getLong("position"));
+            assertEquals(1L, listEntry(pubkeyHash, "$", SUPERSEDER_AC).getLong("position"));
+        }
+
         @Test
         void adoptsTheHighestPositionOfALegacyListWithoutAMaxPosition() throws Exception {
             Nanopub nanopub = testSuiteNanopub(SIMPLE1_AC);
@@ -669,6 +748,60 @@ class RegistryDBLoadNanopubTest {
             assertFalse(RegistryDB.loadNanopub(session, nanopub));
             assertNull(nanopubDoc(UNSIGNED_AC));
         }
+
+        @Test
+        void loadNanopubListsAnAlreadyStoredNanopubWithoutVerifyingItAgain() throws Exception {
+            Nanopub nanopub = testSuiteNanopub(SIMPLE1_AC);
+            String pubkeyHash = Utils.getHash(RegistryDB.getPubkey(nanopub));
+            assertTrue(RegistryDB.loadNanopub(session, nanopub));
+            assertTrue(NanopubExistenceFilter.mightContain(SIMPLE1_AC));
+
+            try (MockedStatic<SignatureUtils> signatureUtils = mockStatic(SignatureUtils.class, CALLS_REAL_METHODS)) {
+                assertTrue(RegistryDB.loadNanopub(session, nanopub, pubkeyHash, "$"));
+                // The pubkey hash recorded at insert time stands in for the signature check.
+                signatureUtils.verify(() -> SignatureUtils.getSignatureElement(nanopub), never());
+            }
+            assertNotNull(listEntry(pubkeyHash, "$", SIMPLE1_AC));
+        }
+
+        @Test
+        void loadNanopubRejectsATamperedBodyUnderAStoredArtifactCode() throws Exception {
+            Nanopub nanopub = testSuiteNanopub(SIMPLE1_AC);
+            String pubkeyHash = Utils.getHash(RegistryDB.getPubkey(nanopub));
+            assertTrue(RegistryDB.loadNanopub(session, nanopub));
+
+            // Same URI, but with an extra type that would put it on another list.
+            IRI forgedType = iri("https://w3id.org/kpxl/gen/terms/ForgedType");
+            List<Statement> statements = new ArrayList<>(NanopubUtils.getStatements(nanopub));
+            statements.add(SimpleValueFactory.getInstance().createStatement(nanopub.getUri(), RDF.TYPE, forgedType, nanopub.getPubinfoUri()));
+            Nanopub tampered = new NanopubImpl(statements);
+
+            assertFalse(RegistryDB.loadNanopub(session, tampered, pubkeyHash, "$"));
+            assertNull(listEntry(pubkeyHash, "$", SIMPLE1_AC));
+            assertNull(listEntry(pubkeyHash, Utils.getTypeHash(session, forgedType), SIMPLE1_AC));
+        }
+
+        @Test
+        void loadNanopubRejectsAStoredNanopubForAnotherPubkey() throws Exception {
+            Nanopub nanopub = testSuiteNanopub(SIMPLE1_AC);
+            assertTrue(RegistryDB.loadNanopub(session, nanopub));
+
+            assertFalse(RegistryDB.loadNanopub(session, nanopub, "not-the-right-hash", "$"));
+            assertNull(listEntry("not-the-right-hash", "$", SIMPLE1_AC));
+        }
+
+        @Test
+        void existenceFilterIsRebuiltFromTheStoredNanopubsOnInit() throws Exception {
+            assertTrue(RegistryDB.loadNanopub(session, testSuiteNanopub(SIMPLE1_AC)));
+            NanopubExistenceFilter.clear();
+            assertFalse(NanopubExistenceFilter.mightContain(SIMPLE1_AC));
+
+            NanopubExistenceFilter.rebuild(session);
+
+            assertTrue(NanopubExistenceFilter.mightContain(SIMPLE1_AC));
+            assertNotNull(RegistryDB.getStoredPubkeyHash(session, SIMPLE1_AC));
+            assertNull(RegistryDB.getStoredPubkeyHash(session, UNSIGNED_AC));
+        }
     }
 
     // --- reads ---------------------------------------------------------------
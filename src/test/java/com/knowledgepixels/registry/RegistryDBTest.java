@@ -785,6 +785,30 @@ class RegistryDBTest {
         assertEquals(EntryStatus.encountered.getValue(), listDoc.getString("status"));
     }
 
+    @Test
+    void stagingCollectionsUseTheBulkWriteProfile() {
+        RegistryDB.init();
+        assertEquals(RegistryDB.WriteProfile.BULK, RegistryDB.getWriteProfile("accounts_loading"));
+        assertEquals(RegistryDB.WriteProfile.BULK.getWriteConcern(), RegistryDB.collection("trustPaths_loading").getWriteConcern());
+        assertEquals(RegistryDB.WriteProfile.DEFAULT, RegistryDB.getWriteProfile(Collection.SERVER_INFO.toString()));
+    }
+
+    @Test
+    void loadersUseTheBulkWriteProfileOnlyDuringTheInitialLoad() {
+        assertEquals(RegistryDB.WriteProfile.BULK, RegistryDB.getLoadProfile(ServerStatus.coreLoading));
+        assertEquals(RegistryDB.WriteProfile.BULK, RegistryDB.getLoadProfile(ServerStatus.coreReady));
+        assertEquals(RegistryDB.WriteProfile.DEFAULT, RegistryDB.getLoadProfile(ServerStatus.ready));
+        assertEquals(RegistryDB.WriteProfile.DEFAULT, RegistryDB.getLoadProfile(ServerStatus.updating));
+    }
+
+    @Test
+    void nanopubCollectionsKeepTheDefaultWriteProfileForOtherWriters() {
+        RegistryDB.init();
+        // Submissions and publishing write through collection(), which is never BULK for these:
+        assertEquals(RegistryDB.WriteProfile.DEFAULT, RegistryDB.getWriteProfile(Collection.NANOPUBS.toString()));
+        assertEquals(RegistryDB.WriteProfile.DEFAULT, RegistryDB.getWriteProfile("listEntries"));
+    }
+
     @Test
     void loadNanopubVerifiedStoresCounter() throws MalformedNanopubException, IOException {
         RegistryDB.init();
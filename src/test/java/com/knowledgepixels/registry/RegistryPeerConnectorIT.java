@@ -3,7 +3,6 @@ package com.knowledgepixels.registry;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpHead;
 import org.junit.jupiter.api.Test;
-import org.nanopub.NanopubUtils;
 
 import static com.knowledgepixels.registry.RegistryPeerConnector.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -14,7 +13,7 @@ import static org.junit.jupiter.api.Assertions.*;
 class RegistryPeerConnectorIT {
 
     private HttpResponse headRequest(String url) throws Exception {
-        return NanopubUtils.getHttpClient().execute(new HttpHead(url));
+        return PeerHttpClient.get().execute(new HttpHead(url));
     }
 
     @Test
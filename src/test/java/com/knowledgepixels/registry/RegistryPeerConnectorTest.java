@@ -4,10 +4,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.apache.http.HttpEntity;
@@ -34,7 +38,6 @@ import org.mockito.ArgumentCaptor;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import org.mockito.MockedStatic;
-import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.never;
@@ -43,7 +46,6 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
-import org.nanopub.NanopubUtils;
 import org.nanopub.jelly.JellyUtils;
 import org.nanopub.testsuite.NanopubTestSuite;
 import org.testcontainers.junit.jupiter.Container;
@@ -234,17 +236,28 @@ class RegistryPeerConnectorTest {
             assertEquals(0L, state.getLong("loadCounter"));
         }
 
+        private static final String PEER_URL = "https://peer.example.org/";
+
         /**
-         * Publishes a pubkeys.json for a fake peer and returns a peer URL
-         * pointing at it, so discoverPubkeys performs its real fetch instead of
-         * failing on the network.
+         * A response serving the given pubkey hashes as a peer's {@code pubkeys.json}.
          */
-        private String peerServing(Path dir, String... pubkeyHashes) throws Exception {
+        private CloseableHttpResponse pubkeysResponse(String... pubkeyHashes) throws IOException {
             String json = Arrays.stream(pubkeyHashes)
                     .map(h -> "\"" + h + "\"")
                     .collect(Collectors.joining(",", "[", "]"));
-            Files.writeString(dir.resolve("pubkeys.json"), json);
-            return dir.toUri().toString();
+            return bodyResponse(200, json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Runs pubkey discovery against a fake peer serving the given pubkey hashes.
+         */
+        private boolean discoverFrom(String... pubkeyHashes) throws Exception {
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse pubkeys = pubkeysResponse(pubkeyHashes);
+            when(client.execute(any(HttpUriRequest.class))).thenReturn(pubkeys);
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                return discoverPubkeys(session, PEER_URL, null);
+            }
         }
 
         private Document introList(String pubkeyHash) {
@@ -253,10 +266,8 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void discoverPubkeys_createsEncounteredIntroLists(@TempDir Path dir) throws Exception {
-            String peerUrl = peerServing(dir, "newPubkey123", "newPubkey456");
-
-            discoverPubkeys(session, peerUrl);
+        void discoverPubkeys_createsEncounteredIntroLists() throws Exception {
+            discoverFrom("newPubkey123", "newPubkey456");
 
             // Every pubkey the peer knows about becomes a candidate for optional loading.
             assertEquals(EntryStatus.encountered.getValue(), introList("newPubkey123").getString("status"));
@@ -264,15 +275,14 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void discoverPubkeys_leavesLoadedPubkeysAlone(@TempDir Path dir) throws Exception {
+        void discoverPubkeys_leavesLoadedPubkeysAlone() throws Exception {
             String pubkeyHash = "existingPubkey";
             collection("lists").insertOne(session,
                     new Document("pubkey", pubkeyHash)
                             .append("type", NanopubLoader.INTRO_TYPE_HASH)
                             .append("status", EntryStatus.loaded.getValue()));
-            String peerUrl = peerServing(dir, pubkeyHash);
 
-            discoverPubkeys(session, peerUrl);
+            discoverFrom(pubkeyHash);
 
             // Already loaded: rediscovering it must not send it back through core loading.
             assertEquals(EntryStatus.loaded.getValue(), introList(pubkeyHash).getString("status"));
@@ -281,30 +291,81 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void discoverPubkeys_repairsListsLeftWithoutAStatus(@TempDir Path dir) throws Exception {
+        void discoverPubkeys_repairsListsLeftWithoutAStatus() throws Exception {
             // Older code left intro lists with no status at all; rediscovery repairs them.
             String pubkeyHash = "statuslessPubkey";
             collection("lists").insertOne(session,
                     new Document("pubkey", pubkeyHash).append("type", NanopubLoader.INTRO_TYPE_HASH));
-            String peerUrl = peerServing(dir, pubkeyHash);
 
-            discoverPubkeys(session, peerUrl);
+            discoverFrom(pubkeyHash);
 
             assertEquals(EntryStatus.encountered.getValue(), introList(pubkeyHash).getString("status"));
         }
 
         @Test
-        void discoverPubkeys_isIdempotent(@TempDir Path dir) throws Exception {
-            String peerUrl = peerServing(dir, "racePubkey");
-
-            discoverPubkeys(session, peerUrl);
-            discoverPubkeys(session, peerUrl);
+        void discoverPubkeys_isIdempotent() throws Exception {
+            discoverFrom("racePubkey");
+            discoverFrom("racePubkey");
 
             // Discovery runs on every sync, so a repeat must not duplicate or throw.
             assertEquals(1, collection("lists").countDocuments(session,
                     new Document("pubkey", "racePubkey").append("type", NanopubLoader.INTRO_TYPE_HASH)));
         }
 
+        @Test
+        void discoverPubkeys_registersPubkeysInBatches() throws Exception {
+            collection("lists").insertOne(session, new Document("pubkey", "pk7")
+                    .append("type", NanopubLoader.INTRO_TYPE_HASH).append("status", EntryStatus.loaded.getValue()));
+            String[] pubkeys = new String[RegistryPeerConnector.DISCOVERY_BATCH_SIZE * 2 + 10];
+            for (int i = 0; i < pubkeys.length; i++) {
+                pubkeys[i] = "pk" + i;
+            }
+
+            assertTrue(discoverFrom(pubkeys));
+
+            assertEquals(pubkeys.length, collection("lists").countDocuments(session,
+                    new Document("type", NanopubLoader.INTRO_TYPE_HASH)));
+            assertEquals(EntryStatus.encountered.getValue(), introList("pk" + (pubkeys.length - 1)).getString("status"));
+            assertEquals(EntryStatus.loaded.getValue(), introList("pk7").getString("status"));
+        }
+
+        @Test
+        void syncWithPeer_recordsTheCounterOfTheLastPubkeyDiscovery() throws Exception {
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse pubkeys = pubkeysResponse("newPubkey123");
+            when(client.execute(any(HttpUriRequest.class))).thenReturn(pubkeys);
+
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                syncWithPeer(session, PEER_URL, 123L, 42L);
+            }
+
+            // The next discovery only asks for the pubkeys the peer added after this counter
+            assertEquals(42L, getPeerState(session, PEER_URL).getLong("pubkeysCounter"));
+        }
+
+        @Test
+        void syncWithPeer_keepsNoDiscoveryCounterIfDiscoveryFailed() {
+            syncWithPeer(session, "https://peer.invalid.example.org/", 123L, 42L);
+
+            assertNull(getPeerState(session, "https://peer.invalid.example.org/").get("pubkeysCounter"));
+        }
+
+        @Test
+        void discoverPubkeys_recordsAnErrorStatusAsPeerFailure() throws Exception {
+            PeerDirectory.clear();
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse unavailable = bodyResponse(503, new byte[0]);
+            when(client.execute(any(HttpUriRequest.class))).thenReturn(unavailable);
+
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                assertFalse(discoverPubkeys(session, PEER_URL, null));
+            }
+
+            assertEquals(0, collection("lists").countDocuments(session));
+            assertEquals(1, PeerDirectory.get(PEER_URL).getFailureCount());
+            PeerDirectory.clear();
+        }
+
         @Test
         void discoverPubkeys_survivesAnUnreachablePeer() {
             // A peer that cannot be reached must not abort the surrounding sync.
@@ -315,12 +376,11 @@ class RegistryPeerConnectorTest {
 
         // --- syncing from a peer ---------------------------------------------
         /**
-         * Fakes only the HTTP client; the rest of NanopubUtils has to keep
-         * working because signature checks depend on it.
+         * Makes the peer requests go to the given client.
          */
-        private MockedStatic<NanopubUtils> mockHttp(CloseableHttpClient client) {
-            MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class, CALLS_REAL_METHODS);
-            httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+        private MockedStatic<PeerHttpClient> mockHttp(CloseableHttpClient client) {
+            MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class);
+            httpMock.when(PeerHttpClient::get).thenReturn(client);
             return httpMock;
         }
 
@@ -361,15 +421,17 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void checkPeer_syncsWithAHealthyPeer(@TempDir Path dir) throws Exception {
-            String peerUrl = peerServing(dir, "discoveredPubkey");
+        void checkPeer_syncsWithAHealthyPeer() throws Exception {
+            String peerUrl = PEER_URL;
             CloseableHttpClient client = mock(CloseableHttpClient.class);
             // Built before stubbing: creating mocks inside a thenReturn argument confuses
             // Mockito's stubbing state machine.
             CloseableHttpResponse head = healthyHead(777L, 42L);
-            when(client.execute(any(HttpUriRequest.class))).thenReturn(head);
+            CloseableHttpResponse pubkeys = pubkeysResponse("discoveredPubkey");
+            when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv ->
+                    "HEAD".equals(inv.getArgument(0, HttpUriRequest.class).getMethod()) ? head : pubkeys);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttp(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
                 checkPeer(session, peerUrl);
             }
 
@@ -383,23 +445,25 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void syncWithPeer_loadsNanopubsAddedSinceTheLastSync(@TempDir Path dir) throws Exception {
-            String peerUrl = peerServing(dir, "discoveredPubkey");
+        void syncWithPeer_loadsNanopubsAddedSinceTheLastSync() throws Exception {
+            String peerUrl = PEER_URL;
             updatePeerState(session, peerUrl, 123L, 500L);
             Nanopub published = testSuiteNanopub();
 
             CloseableHttpClient client = mock(CloseableHttpClient.class);
             CloseableHttpResponse served = bodyResponse(200, jellyStreamOf(published));
-            when(client.execute(any(HttpUriRequest.class))).thenReturn(served);
+            CloseableHttpResponse pubkeys = pubkeysResponse("discoveredPubkey");
+            when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv ->
+                    inv.getArgument(0, HttpUriRequest.class).getURI().toString().contains("pubkeys.json") ? pubkeys : served);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttp(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
                 // The peer's counter moved on, so the gap since 500 is fetched.
                 syncWithPeer(session, peerUrl, 123L, 600L);
             }
 
             ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
-            verify(client).execute(request.capture());
-            assertTrue(request.getValue().getURI().toString().endsWith("nanopubs.jelly?afterCounter=500"),
+            verify(client, times(2)).execute(request.capture());
+            assertTrue(request.getAllValues().get(0).getURI().toString().endsWith("nanopubs.jelly?afterCounter=500"),
                     "the fetch resumes from the last known counter");
 
             assertEquals(1, collection(Collection.NANOPUBS.toString()).countDocuments(session),
@@ -409,15 +473,150 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void syncWithPeer_keepsItsPositionWhenTheFetchFails(@TempDir Path dir) throws Exception {
-            String peerUrl = peerServing(dir);
+        void syncWithPeer_prefersDumpSegmentsWhenFarBehind() throws Exception {
+            String peerUrl = PEER_URL;
+            updatePeerState(session, peerUrl, 123L, 500L);
+            byte[] segmentBytes = jellyStreamOf(testSuiteNanopub());
+            String sha256 = HexFormat.of().formatHex(DumpSegments.newDigest().digest(segmentBytes));
+            String segmentFile = "nanopubs-1-" + DumpSegments.SEGMENT_SIZE + ".jelly";
+            String manifestJson = "{\"setupId\":123,\"segmentSize\":" + DumpSegments.SEGMENT_SIZE + ",\"segments\":[{\"fromCounter\":1,\"toCounter\":"
+                    + DumpSegments.SEGMENT_SIZE + ",\"count\":1,\"size\":" + segmentBytes.length + ",\"sha256\":\"" + sha256 + "\",\"file\":\"" + segmentFile + "\"}]}";
+
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse manifest = bodyResponse(200, manifestJson.getBytes(StandardCharsets.UTF_8));
+            CloseableHttpResponse segment = bodyResponse(200, segmentBytes);
+            CloseableHttpResponse liveFeed = bodyResponse(200, new byte[0]);
+            CloseableHttpResponse pubkeys = pubkeysResponse();
+            when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+                String uri = inv.getArgument(0, HttpUriRequest.class).getURI().toString();
+                if (uri.endsWith("segments/manifest.json")) {
+                    return manifest;
+                }
+                if (uri.contains("pubkeys.json")) {
+                    return pubkeys;
+                }
+                return uri.endsWith(segmentFile) ? segment : liveFeed;
+            });
+
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                syncWithPeer(session, peerUrl, 123L, 500L + DumpSegments.SEGMENT_SIZE + 10);
+            }
+
+            ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+            verify(client, times(4)).execute(request.capture());
+            assertTrue(request.getAllValues().get(2).getURI().toString().endsWith("nanopubs.jelly?afterCounter=" + DumpSegments.SEGMENT_SIZE),
+                    "the live feed only covers the tail after the segments");
+            assertEquals(1, collection(Collection.NANOPUBS.toString()).countDocuments(session),
+                    "the nanopub from the segment is stored locally");
+            assertEquals(DumpSegments.SEGMENT_SIZE, getPeerState(session, peerUrl).getLong("loadCounter"));
+        }
+
+        @Test
+        void syncWithPeer_usesTheSegmentSizeOfThePeersManifest() throws Exception {
+            String peerUrl = PEER_URL;
+            updatePeerState(session, peerUrl, 123L, 500L);
+            // The peer is configured with much smaller segments than this node
+            byte[] segmentBytes = jellyStreamOf(testSuiteNanopub());
+            String sha256 = HexFormat.of().formatHex(DumpSegments.newDigest().digest(segmentBytes));
+            String manifestJson = "{\"setupId\":123,\"segmentSize\":1000,\"segments\":[{\"fromCounter\":1,\"toCounter\":1000,\"count\":1,\"size\":"
+                    + segmentBytes.length + ",\"sha256\":\"" + sha256 + "\",\"file\":\"nanopubs-1-1000.jelly\"}]}";
+
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse manifest = bodyResponse(200, manifestJson.getBytes(StandardCharsets.UTF_8));
+            CloseableHttpResponse segment = bodyResponse(200, segmentBytes);
+            CloseableHttpResponse liveFeed = bodyResponse(200, new byte[0]);
+            CloseableHttpResponse pubkeys = pubkeysResponse();
+            when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+                String uri = inv.getArgument(0, HttpUriRequest.class).getURI().toString();
+                if (uri.endsWith("segments/manifest.json")) {
+                    return manifest;
+                }
+                if (uri.contains("pubkeys.json")) {
+                    return pubkeys;
+                }
+                return uri.endsWith("nanopubs-1-1000.jelly") ? segment : liveFeed;
+            });
+
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                syncWithPeer(session, peerUrl, 123L, 1510L);
+            }
+
+            ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+            verify(client, times(4)).execute(request.capture());
+            assertTrue(request.getAllValues().get(2).getURI().toString().endsWith("nanopubs.jelly?afterCounter=1000"),
+                    "the live feed only covers the tail after the peer's segments");
+            assertEquals(1000L, getPeerState(session, peerUrl).getLong("loadCounter"));
+        }
+
+        @Test
+        void syncWithPeer_rejectsAManifestWithoutSegmentSize() throws Exception {
+            String peerUrl = PEER_URL;
+            updatePeerState(session, peerUrl, 123L, 500L);
+            String manifestJson = "{\"setupId\":123,\"segments\":[{\"fromCounter\":1,\"toCounter\":1000,\"count\":1,\"size\":1,"
+                    + "\"sha256\":\"00\",\"file\":\"nanopubs-1-1000.jelly\"}]}";
+
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse manifest = bodyResponse(200, manifestJson.getBytes(StandardCharsets.UTF_8));
+            CloseableHttpResponse liveFeed = bodyResponse(200, new byte[0]);
+            CloseableHttpResponse pubkeys = pubkeysResponse();
+            when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+                String uri = inv.getArgument(0, HttpUriRequest.class).getURI().toString();
+                if (uri.endsWith("segments/manifest.json")) {
+                    return manifest;
+                }
+                return uri.contains("pubkeys.json") ? pubkeys : liveFeed;
+            });
+
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                syncWithPeer(session, peerUrl, 123L, 1510L);
+            }
+
+            ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+            verify(client, times(3)).execute(request.capture());
+            assertTrue(request.getAllValues().get(1).getURI().toString().endsWith("nanopubs.jelly?afterCounter=500"),
+                    "without a segment size, no segment is fetched");
+        }
+
+        @Test
+        void syncWithPeer_skipsDumpSegmentsThatLeaveAGap() throws Exception {
+            String peerUrl = PEER_URL;
+            updatePeerState(session, peerUrl, 123L, 500L);
+            // The peer no longer offers the segment with counters 1-1000:
+            String manifestJson = "{\"setupId\":123,\"segmentSize\":1000,\"segments\":[{\"fromCounter\":1001,\"toCounter\":2000,\"count\":1,\"size\":1,"
+                    + "\"sha256\":\"00\",\"file\":\"nanopubs-1001-2000.jelly\"}]}";
+
+            CloseableHttpClient client = mock(CloseableHttpClient.class);
+            CloseableHttpResponse manifest = bodyResponse(200, manifestJson.getBytes(StandardCharsets.UTF_8));
+            CloseableHttpResponse liveFeed = bodyResponse(200, new byte[0]);
+            CloseableHttpResponse pubkeys = pubkeysResponse();
+            when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+                String uri = inv.getArgument(0, HttpUriRequest.class).getURI().toString();
+                if (uri.endsWith("segments/manifest.json")) {
+                    return manifest;
+                }
+                return uri.contains("pubkeys.json") ? pubkeys : liveFeed;
+            });
+
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
+                syncWithPeer(session, peerUrl, 123L, 2010L);
+            }
+
+            ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+            verify(client, times(3)).execute(request.capture());
+            assertTrue(request.getAllValues().get(1).getURI().toString().endsWith("nanopubs.jelly?afterCounter=500"),
+                    "the live feed continues from the local counter instead of after the segment");
+        }
+
+        @Test
+        void syncWithPeer_keepsItsPositionWhenTheFetchFails() throws Exception {
+            String peerUrl = PEER_URL;
             updatePeerState(session, peerUrl, 123L, 500L);
 
             CloseableHttpClient client = mock(CloseableHttpClient.class);
             CloseableHttpResponse unavailable = bodyResponse(503, new byte[0]);
             when(client.execute(any(HttpUriRequest.class))).thenReturn(unavailable);
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttp(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
                 syncWithPeer(session, peerUrl, 123L, 600L);
             }
 
@@ -427,14 +626,14 @@ class RegistryPeerConnectorTest {
         }
 
         @Test
-        void syncWithPeer_survivesANetworkFailureMidFetch(@TempDir Path dir) throws Exception {
-            String peerUrl = peerServing(dir);
+        void syncWithPeer_survivesANetworkFailureMidFetch() throws Exception {
+            String peerUrl = PEER_URL;
             updatePeerState(session, peerUrl, 123L, 500L);
 
             CloseableHttpClient client = mock(CloseableHttpClient.class);
             when(client.execute(any(HttpUriRequest.class))).thenThrow(new IOException("connection reset"));
 
-            try (MockedStatic<NanopubUtils> ignored = mockHttp(client)) {
+            try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
                 syncWithPeer(session, peerUrl, 123L, 600L);
             }
 
@@ -452,7 +651,7 @@ class RegistryPeerConnectorTest {
                         .thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 503, "Service Unavailable"));
                 when(client.execute(any(HttpUriRequest.class))).thenReturn(unavailable);
 
-                try (MockedStatic<NanopubUtils> ignored = mockHttp(client)) {
+                try (MockedStatic<PeerHttpClient> ignored = mockHttp(client)) {
                     checkPeers(session);
                 }
 
@@ -593,10 +792,10 @@ class RegistryPeerConnectorTest {
          * and headers, and asserts that no database work happened.
          */
         private void assertPeerSkipped(int statusCode, String... headers) throws IOException {
-            try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class); MockedStatic<RegistryDB> dbMock = mockStatic(RegistryDB.class)) {
+            try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class); MockedStatic<RegistryDB> dbMock = mockStatic(RegistryDB.class)) {
 
                 CloseableHttpClient client = mock(CloseableHttpClient.class);
-                httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+                httpMock.when(PeerHttpClient::get).thenReturn(client);
                 CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
                 when(resp.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, "Reason"));
                 for (int i = 0; i < headers.length; i += 2) {
@@ -667,6 +866,7 @@ class RegistryPeerConnectorTest {
         @BeforeEach
         void pinPeerUrls() throws Exception {
             previousPeerUrls = peerUrlsField().get(null);
+            PeerDirectory.clear();
         }
 
         @AfterEach
@@ -684,9 +884,9 @@ class RegistryPeerConnectorTest {
         void doesNothingWithoutConfiguredPeers() throws Exception {
             peerUrlsField().set(null, List.of());
 
-            try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+            try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
                 checkPeers(mock(ClientSession.class));
-                httpMock.verify(NanopubUtils::getHttpClient, never());
+                httpMock.verify(PeerHttpClient::get, never());
             }
         }
 
@@ -694,9 +894,9 @@ class RegistryPeerConnectorTest {
         void keepsGoingWhenOnePeerFails() throws Exception {
             peerUrlsField().set(null, List.of("https://peer-a.example.org/", "https://peer-b.example.org/"));
 
-            try (MockedStatic<NanopubUtils> httpMock = mockStatic(NanopubUtils.class)) {
+            try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
                 CloseableHttpClient client = mock(CloseableHttpClient.class);
-                httpMock.when(NanopubUtils::getHttpClient).thenReturn(client);
+                httpMock.when(PeerHttpClient::get).thenReturn(client);
                 when(client.execute(any(HttpUriRequest.class))).thenThrow(new IOException("connection refused"));
 
                 // One dead peer must not stop the sweep over the rest.
@@ -705,5 +905,29 @@ class RegistryPeerConnectorTest {
                 verify(client, times(2)).execute(any(HttpUriRequest.class));
             }
         }
+
+        @Test
+        void probesPeersConcurrently() throws Exception {
+            peerUrlsField().set(null, List.of("https://peer-a.example.org/", "https://peer-b.example.org/"));
+            CountDownLatch bothProbing = new CountDownLatch(2);
+            AtomicInteger sawTheOtherProbe = new AtomicInteger();
+
+            try (MockedStatic<PeerHttpClient> httpMock = mockStatic(PeerHttpClient.class)) {
+                CloseableHttpClient client = mock(CloseableHttpClient.class);
+                httpMock.when(PeerHttpClient::get).thenReturn(client);
+                when(client.execute(any(HttpUriRequest.class))).thenAnswer(inv -> {
+                    bothProbing.countDown();
+                    // Only returns early if the other peer is being probed at the same time
+                    if (bothProbing.await(5, TimeUnit.SECONDS)) {
+                        sawTheOtherProbe.incrementAndGet();
+                    }
+                    throw new IOException("connection refused");
+                });
+
+                checkPeers(mock(ClientSession.class));
+            }
+
+            assertEquals(2, sawTheOtherProbe.get(), "a slow peer must not hold up the probe of another one");
+        }
     }
 }
@@ -0,0 +1,176 @@
+package com.knowledgepixels.registry;
+
+import com.knowledgepixels.registry.utils.FakeEnv;
+import com.knowledgepixels.registry.utils.TestUtils;
+import com.mongodb.client.ClientSession;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+import java.util.HashMap;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link TaskLease}. Other registry nodes are simulated by task and account documents
+ * that carry another owner.
+ */
+@Testcontainers
+class TaskLeaseTest {
+
+    @Container
+    private static final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:7.0.0");
+
+    private static final String OTHER_NODE = "other-node";
+
+    private FakeEnv fakeEnv;
+    private ClientSession session;
+
+    @BeforeEach
+    void setUp() throws NoSuchFieldException, IllegalAccessException {
+        fakeEnv = TestUtils.setupFakeEnv();
+        TestUtils.setupDBEnv(mongoDBContainer, "nanopubRegistry");
+        TestUtils.clearStaticFields(RegistryDB.class, "mongoClient", "mongoDB");
+        RegistryDB.init();
+        TestUtils.clearStaticFields(Task.class, new HashMap<>() {{
+            put("tasksCollection", collection(Collection.TASKS.toString()));
+        }});
+        session = RegistryDB.getClient().startSession();
+    }
+
+    @AfterEach
+    void tearDown() {
+        session.close();
+        RegistryDB.getDB().drop();
+        RegistryDB.getClient().close();
+        fakeEnv.reset();
+    }
+
+    private Document queue(Task task, String owner, long leaseUntil) {
+        Document taskDoc = new Document("_id", new ObjectId()).append("not-before", System.currentTimeMillis()).append("action", task.name());
+        if (owner != null) {
+            taskDoc.append("owner", owner).append("leaseUntil", leaseUntil);
+        }
+        collection(Collection.TASKS.toString()).insertOne(session, taskDoc);
+        return taskDoc;
+    }
+
+    private Document stored(Document taskDoc) {
+        return collection(Collection.TASKS.toString()).find(session, new Document("_id", taskDoc.get("_id"))).first();
+    }
+
+    @Test
+    void claimsAnUnownedTask() {
+        Document taskDoc = queue(Task.UPDATE, null, 0);
+
+        assertEquals(TaskLease.Claim.RUN, TaskLease.claim(session, Task.UPDATE, taskDoc));
+        Document claimed = stored(taskDoc);
+        assertEquals(TaskLease.NODE_ID, claimed.getString("owner"));
+        assertTrue(claimed.getLong("leaseUntil") > System.currentTimeMillis());
+        assertTrue(claimed.getBoolean("running"));
+    }
+
+    @Test
+    void leavesATaskLeasedByAnotherNode() {
+        Document taskDoc = queue(Task.UPDATE, OTHER_NODE, System.currentTimeMillis() + 60_000);
+
+        assertEquals(TaskLease.Claim.SKIP, TaskLease.claim(session, Task.UPDATE, taskDoc));
+        assertEquals(OTHER_NODE, stored(taskDoc).getString("owner"));
+    }
+
+    @Test
+    void takesOverASingletonTaskWhoseLeaseHasRunOut() {
+        Document taskDoc = queue(Task.UPDATE, OTHER_NODE, System.currentTimeMillis() - 1);
+
+        assertEquals(TaskLease.Claim.RUN, TaskLease.claim(session, Task.UPDATE, taskDoc));
+        assertEquals(TaskLease.NODE_ID, stored(taskDoc).getString("owner"));
+    }
+
+    @Test
+    void dropsTheLoopOfADeadNodeInFavourOfItsOwn() {
+        queue(Task.CHECK_NEW, TaskLease.NODE_ID, System.currentTimeMillis() + 60_000);
+        Document orphan = queue(Task.LOAD_FULL, OTHER_NODE, System.currentTimeMillis() - 1);
+
+        assertEquals(TaskLease.Claim.SKIP, TaskLease.claim(session, Task.LOAD_FULL, orphan));
+        assertNull(stored(orphan));
+    }
+
+    @Test
+    void adoptsTheLoopOfADeadNodeIfItHasNoneOfItsOwn() {
+        Document orphan = queue(Task.LOAD_FULL, OTHER_NODE, System.currentTimeMillis() - 1);
+
+        assertEquals(TaskLease.Claim.RUN, TaskLease.claim(session, Task.LOAD_FULL, orphan));
+        assertEquals(TaskLease.NODE_ID, stored(orphan).getString("owner"));
+    }
+
+    @Test
+    void waitsWhileAnExclusiveTaskRunsOnAnotherNode() {
+        Document release = queue(Task.RELEASE_DATA, OTHER_NODE, System.currentTimeMillis() + 60_000);
+        collection(Collection.TASKS.toString()).updateOne(session, new Document("_id", release.get("_id")),
+                new Document("$set", new Document("running", true)));
+        Document taskDoc = queue(Task.CHECK_NEW, TaskLease.NODE_ID, System.currentTimeMillis() + 60_000);
+
+        assertEquals(TaskLease.Claim.WAIT, TaskLease.claim(session, Task.CHECK_NEW, taskDoc));
+        assertFalse(stored(taskDoc).getBoolean("running"));
+    }
+
+    @Test
+    void aReleasedTaskNoLongerCountsAsRunning() {
+        Document taskDoc = queue(Task.CHECK_NEW, null, 0);
+        assertEquals(TaskLease.Claim.RUN, TaskLease.claim(session, Task.CHECK_NEW, taskDoc));
+
+        TaskLease.release(session, taskDoc);
+
+        assertFalse(stored(taskDoc).getBoolean("running"));
+        assertEquals(TaskLease.NODE_ID, stored(taskDoc).getString("owner"), "the lease is kept for the retry");
+    }
+
+    @Test
+    void loopTasksBelongToTheSchedulingNode() {
+        Document loadFull = new Document("action", Task.LOAD_FULL.name());
+        Document update = new Document("action", Task.UPDATE.name());
+
+        TaskLease.stamp(Task.LOAD_FULL, loadFull);
+        TaskLease.stamp(Task.UPDATE, update);
+
+        assertEquals(TaskLease.NODE_ID, loadFull.getString("owner"));
+        assertNull(update.getString("owner"));
+    }
+
+    @Test
+    void anAccountIsLoadedByOneNodeAtATime() {
+        Document account = new Document("_id", new ObjectId()).append("pubkey", "P")
+                .append("status", EntryStatus.toLoad.getValue())
+                .append("loadOwner", OTHER_NODE).append("loadLeaseUntil", System.currentTimeMillis() + 60_000);
+        collection(Collection.ACCOUNTS.toString()).insertOne(session, account);
+
+        assertFalse(TaskLease.claimAccount(session, account));
+
+        collection(Collection.ACCOUNTS.toString()).updateOne(session, new Document("_id", account.get("_id")),
+                new Document("$set", new Document("loadLeaseUntil", System.currentTimeMillis() - 1)));
+        assertTrue(TaskLease.claimAccount(session, account));
+        assertTrue(TaskLease.claimAccount(session, account), "the owner can claim it again");
+    }
+
+    @Test
+    void renewExtendsTheLeasesOfThisNode() {
+        Document own = queue(Task.LOAD_FULL, TaskLease.NODE_ID, 0);
+        Document other = queue(Task.CHECK_NEW, OTHER_NODE, 0);
+
+        TaskLease.renew(session);
+
+        assertTrue(stored(own).getLong("leaseUntil") > System.currentTimeMillis());
+        assertEquals(0L, stored(other).getLong("leaseUntil"));
+        assertFalse(TaskLease.isOtherNodeAlive(session));
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.knowledgepixels.registry;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mockStatic;
+
+/**
+ * Tests for {@link TaskQueue}. Task's static initialiser resolves the tasks collection eagerly,
+ * so {@code RegistryDB} is mocked for each test, as in {@link TaskTransactionTest}.
+ */
+class TaskQueueTest {
+
+    private MockedStatic<RegistryDB> dbMock;
+
+    @BeforeEach
+    void setUp() {
+        dbMock = mockStatic(RegistryDB.class);
+        TaskQueue.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        TaskQueue.clear();
+        dbMock.close();
+    }
+
+    private static Document task(Task task, long notBefore) {
+        return new Document("_id", new ObjectId()).append("not-before", notBefore).append("action", task.name());
+    }
+
+    private static List<String> queued(TaskLane lane) {
+        return TaskQueue.getQueued(lane).stream().map(d -> d.getString("action")).toList();
+    }
+
+    @Test
+    void ordersByNotBeforeAndThenBySchedulingOrder() {
+        long now = System.currentTimeMillis();
+        TaskQueue.add(task(Task.UPDATE, now + 1000));
+        TaskQueue.add(task(Task.INIT_COLLECTIONS, now));
+        TaskQueue.add(task(Task.SEED_TRUST_STATE, now));
+
+        assertEquals(List.of("INIT_COLLECTIONS", "SEED_TRUST_STATE", "UPDATE"), queued(TaskLane.TRUST));
+    }
+
+    @Test
+    void tasksAreQueuedInTheirLanes() {
+        long now = System.currentTimeMillis();
+        TaskQueue.add(task(Task.LOAD_FULL, now));
+        TaskQueue.add(task(Task.CHECK_NEW, now));
+        TaskQueue.add(task(Task.LOAD_CORE, now));
+        TaskQueue.add(task(Task.INIT_DB, now));
+
+        assertEquals(List.of("LOAD_FULL"), queued(TaskLane.LOAD));
+        assertEquals(List.of("CHECK_NEW"), queued(TaskLane.SYNC));
+        assertEquals(List.of("LOAD_CORE"), queued(TaskLane.TRUST));
+        assertEquals(List.of("INIT_DB"), queued(TaskLane.BOOTSTRAP));
+        assertEquals(1, TaskQueue.getDepth(TaskLane.LOAD));
+    }
+
+    @Test
+    void dueTaskStaysQueuedUntilRemoved() throws Exception {
+        Document due = task(Task.LOAD_FULL, System.currentTimeMillis() - 1);
+        TaskQueue.add(due);
+
+        assertSame(due, TaskQueue.awaitNext(TaskLane.LOAD));
+        assertSame(due, TaskQueue.awaitNext(TaskLane.LOAD));
+        assertTrue(TaskQueue.getLag(TaskLane.LOAD) >= 1);
+        // Removed by its _id, as runTask has the copy read from the queue
+        TaskQueue.remove(new Document("_id", due.get("_id")).append("action", Task.LOAD_FULL.name()));
+        assertTrue(TaskQueue.getQueued(TaskLane.LOAD).isEmpty());
+        assertEquals(0, TaskQueue.getLag(TaskLane.LOAD));
+    }
+
+    @Test
+    void newTaskWakesUpTheWaitingRunner() throws Exception {
+        TaskQueue.add(task(Task.UPDATE, System.currentTimeMillis() + 600_000));
+        CompletableFuture<Document> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return TaskQueue.awaitNext(TaskLane.TRUST);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(next.isDone());
+
+        Document now = task(Task.INIT_COLLECTIONS, System.currentTimeMillis() - 1);
+        TaskQueue.add(now);
+        assertSame(now, next.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void aDueTaskInOneLaneDoesNotWakeAnother() throws Exception {
+        CompletableFuture<Document> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return TaskQueue.awaitNext(TaskLane.SYNC);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        TaskQueue.add(task(Task.LOAD_FULL, System.currentTimeMillis() - 1));
+        Thread.sleep(100);
+        assertFalse(next.isDone());
+
+        Document checkNew = task(Task.CHECK_NEW, System.currentTimeMillis() - 1);
+        TaskQueue.add(checkNew);
+        assertSame(checkNew, next.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void waitsUntilTheTaskIsDue() throws Exception {
+        long notBefore = System.currentTimeMillis() + 200;
+        TaskQueue.add(task(Task.CHECK_NEW, notBefore));
+
+        TaskQueue.awaitNext(TaskLane.SYNC);
+        assertTrue(System.currentTimeMillis() >= notBefore);
+    }
+
+}
@@ -5,6 +5,7 @@ import com.knowledgepixels.registry.utils.FakeEnv;
 import com.knowledgepixels.registry.utils.TestUtils;
 import com.mongodb.client.ClientSession;
 import com.mongodb.client.model.Sorts;
+import eu.neverblink.jelly.core.utils.IoUtils;
 import org.bson.Document;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,19 +13,26 @@ import org.junit.jupiter.api.Test;
 import org.mockito.MockedStatic;
 import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
+import org.nanopub.NanopubUtils;
 import org.nanopub.extra.index.IndexUtils;
 import org.nanopub.extra.security.KeyDeclaration;
 import org.nanopub.extra.setting.IntroNanopub;
+import org.nanopub.jelly.JellyUtils;
+import org.nanopub.jelly.NanopubStream;
 import org.nanopub.testsuite.NanopubTestSuite;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.mongodb.MongoDBContainer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static com.knowledgepixels.registry.RegistryDB.collection;
 import static com.knowledgepixels.registry.RegistryDB.getValue;
@@ -34,6 +42,10 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mockStatic;
 
 /**
@@ -94,6 +106,7 @@ class TaskTest {
         TestUtils.clearStaticFields(Task.class, new HashMap<>() {{
             put("tasksCollection", collection(Collection.TASKS.toString()));
         }});
+        TaskQueue.clear();
 
         // No peers: every peer fetch yields an empty stream, keeping these tests off the network.
         TestUtils.clearStaticFields(Utils.class, Map.of("peerUrls", List.of()));
@@ -647,6 +660,30 @@ class TaskTest {
         assertEquals(1, queuedTask(Task.LOAD_CORE).getInteger("load-count"));
     }
 
+    @Test
+    void loadCoreReadsAnUnchangedAccountFromTheLocalStore() throws Exception {
+        prepareLoadingCollections();
+        RegistryDB.setValue(session, Collection.SERVER_INFO.toString(), "trustCycleIncremental", true);
+        seed("accounts_loading", new Document("agent", "A").append("pubkey", "P")
+                .append("status", EntryStatus.seen.getValue()).append("depth", 1));
+        seed("trustPaths_loading", new Document("_id", "$ A|P").append("sorthash", "x")
+                .append("agent", "A").append("pubkey", "P").append("depth", 1)
+                .append("ratio", 0.5).append("type", "extended"));
+        seed("lists", new Document("pubkey", "P").append("type", NanopubLoader.INTRO_TYPE_HASH)
+                .append("status", EntryStatus.loaded.getValue()));
+        seed("lists", new Document("pubkey", "P").append("type", NanopubLoader.ENDORSE_TYPE_HASH)
+                .append("status", EntryStatus.loaded.getValue()));
+
+        Task.runTask(Task.LOAD_CORE, Task.LOAD_CORE.asDocument().append("depth", 1).append("load-count", 0));
+
+        assertEquals(EntryStatus.visited.getValue(),
+                one("accounts_loading", new Document("agent", "A")).getString("status"));
+        assertTrue(all("endorsements_loading").isEmpty(), "the local endorsement list is empty");
+        assertEquals(EntryStatus.encountered.getValue(),
+                one("lists", new Document("pubkey", "P").append("type", "$")).getString("status"));
+        assertEquals(1, queuedTask(Task.LOAD_CORE).getInteger("load-count"));
+    }
+
     // -------------------------------------------------------- FINISH_ITERATION
 
     @Test
@@ -1014,6 +1051,53 @@ class TaskTest {
                 "the retry is deferred by the update interval");
     }
 
+    /**
+     * Puts a ready registry after a published cycle, with nothing recorded since.
+     */
+    private void seedPublishedTrustState() throws Exception {
+        prepareLoadingCollections();
+        setStatus(ServerStatus.ready);
+        RegistryDB.setValue(session, Collection.SERVER_INFO.toString(), "trustStateHash", "hash1");
+        collection(TrustChanges.COLLECTION).deleteMany(session, new Document());
+        TrustChanges.finishCycle(session);
+    }
+
+    @Test
+    void updateKeepsTheTrustStateWhenNothingChanged() throws Exception {
+        seedPublishedTrustState();
+
+        Task.runTask(Task.UPDATE, Task.UPDATE.asDocument());
+
+        assertEquals(ServerStatus.ready.toString(), getValue(session, Collection.SERVER_INFO.toString(), "status"));
+        assertEquals(List.of(Task.UPDATE.name()), queuedActions());
+    }
+
+    @Test
+    void updateRecomputesIncrementallyAfterAnIntroArrives() throws Exception {
+        seedPublishedTrustState();
+        seedTestSuiteNanopub(INTRO_AC);
+        assertTrue(TrustChanges.isChanged(session, RegistryDB.getStoredPubkeyHash(session, INTRO_AC)),
+                "storing an intro records a change of its signer");
+
+        Task.runTask(Task.UPDATE, Task.UPDATE.asDocument());
+
+        assertEquals(ServerStatus.updating.toString(), getValue(session, Collection.SERVER_INFO.toString(), "status"));
+        assertEquals(List.of(Task.INIT_COLLECTIONS.name()), queuedActions());
+        assertTrue(TrustChanges.isIncrementalCycle(session));
+    }
+
+    @Test
+    void updateRebuildsInFullOnRequest() throws Exception {
+        seedPublishedTrustState();
+        TrustChanges.requestFullRebuild(session);
+
+        Task.runTask(Task.UPDATE, Task.UPDATE.asDocument());
+
+        assertEquals(List.of(Task.INIT_COLLECTIONS.name()), queuedActions());
+        assertFalse(TrustChanges.isIncrementalCycle(session));
+        assertEquals(false, getValue(session, Collection.SERVER_INFO.toString(), "trustFullRebuildRequested"));
+    }
+
     // -------------------------------------------------------- RUN_OPTIONAL_LOAD
 
     @Test
@@ -1078,6 +1162,37 @@ class TaskTest {
         assertEquals(List.of(Task.CHECK_NEW.name()), queuedActions());
     }
 
+    @Test
+    void optionalLoadServesTheListWithTheLowestVirtualTimeFirst() {
+        seed("lists", new Document("pubkey", "A").append("type", "$")
+                .append("status", EntryStatus.encountered.getValue()).append("vtime", 5.0));
+        seed("lists", new Document("pubkey", "B").append("type", "$")
+                .append("status", EntryStatus.encountered.getValue()).append("vtime", 2.0));
+        OptionalLoadScheduler scheduler = new OptionalLoadScheduler(100);
+
+        Document first = scheduler.next(session, "$");
+        assertEquals("B", first.getString("pubkey"));
+        // An empty turn still costs one byte, at weight 1; the scheduler moves on to the start of the turn.
+        assertEquals(3.0, scheduler.finishTurn(session, first, scheduler.startTurn()));
+        assertEquals(2.0, OptionalLoadScheduler.getVirtualTime(session));
+        // B had its turn in this run, so A goes next even though its virtual time is higher.
+        assertEquals("A", scheduler.next(session, "$").getString("pubkey"));
+    }
+
+    @Test
+    void optionalLoadWeighsPubkeysByPeersAndEndorsements() {
+        seed(ListDigest.PEER_DIGESTS, new Document("peer", "https://peer1/").append("pubkey", "P").append("type", "$"));
+        seed(ListDigest.PEER_DIGESTS, new Document("peer", "https://peer1/").append("pubkey", "P").append("type", NanopubLoader.INTRO_TYPE_HASH));
+        seed(ListDigest.PEER_DIGESTS, new Document("peer", "https://peer2/").append("pubkey", "P").append("type", "$"));
+        seedTrustEdge("X", "P", false);
+        seedTrustEdge("Y", "P", false);
+        seedTrustEdge("Z", "P", true);
+
+        // 1, plus two peers, plus two valid trust edges
+        assertEquals(5.0, OptionalLoadScheduler.getWeight(session, "P"));
+        assertEquals(1.0, OptionalLoadScheduler.getWeight(session, "unknown"));
+    }
+
     // --------------------------------------------------------------- CHECK_NEW
 
     @Test
@@ -1148,6 +1263,20 @@ class TaskTest {
         assertEquals(List.of(Task.RUN_OPTIONAL_LOAD.name()), queuedActions());
     }
 
+    @Test
+    void loadFullWaitsForAccountsLoadedByOtherNodesBeforeTheServerIsReady() throws Exception {
+        prepareLoadingCollections();
+        setStatus(ServerStatus.coreReady);
+        seed(Collection.ACCOUNTS.toString(), new Document("agent", "A").append("pubkey", "P")
+                .append("status", EntryStatus.toLoad.getValue())
+                .append("loadOwner", "other-node").append("loadLeaseUntil", System.currentTimeMillis() + 60_000));
+
+        Task.runTask(Task.LOAD_FULL, Task.LOAD_FULL.asDocument());
+
+        assertEquals(ServerStatus.coreReady.toString(), getValue(session, Collection.SERVER_INFO.toString(), "status"));
+        assertEquals(List.of(Task.LOAD_FULL.name()), queuedActions());
+    }
+
     @Test
     void loadFullMarksAnAccountLoadedOncePeersAreExhausted() throws Exception {
         prepareLoadingCollections();
@@ -1201,4 +1330,202 @@ class TaskTest {
         assertEquals(0, account.getInteger("quota"), "the effective quota is recorded on the account");
     }
 
+    @Test
+    void loadFullLoadsAllAccountsOfARunAndMarksEachOnce() throws Exception {
+        prepareLoadingCollections();
+        setStatus(ServerStatus.ready);
+        for (int i = 0; i < 10; i++) {
+            seed(Collection.ACCOUNTS.toString(), new Document("agent", "A" + i).append("pubkey", "P" + i)
+                    .append("status", EntryStatus.toLoad.getValue()));
+        }
+
+        Task.runTask(Task.LOAD_FULL, Task.LOAD_FULL.asDocument());
+
+        // The accounts are shared out among the workers, and all of them are done in one run:
+        assertTrue(all(Collection.ACCOUNTS.toString()).stream()
+                .allMatch(a -> EntryStatus.loaded.getValue().equals(a.getString("status"))));
+        assertEquals(List.of(Task.LOAD_FULL.name()), queuedActions());
+    }
+
+    @Test
+    void accountLoadSchedulerStartsWithResumedAccountsAndThenTheMostTrusted() throws Exception {
+        prepareLoadingCollections();
+        seed(Collection.ACCOUNTS.toString(), new Document("pubkey", "low").append("ratio", 0.1d).append("quota", 1000)
+                .append("status", EntryStatus.toLoad.getValue()));
+        seed(Collection.ACCOUNTS.toString(), new Document("pubkey", "high").append("ratio", 0.5d).append("quota", 1000)
+                .append("status", EntryStatus.toLoad.getValue()));
+        seed(Collection.ACCOUNTS.toString(), new Document("pubkey", "resumed").append("ratio", 0.01d)
+                .append("status", EntryStatus.toLoad.getValue()));
+        seed(Collection.ACCOUNTS.toString(), new Document("pubkey", "done").append("ratio", 0.9d)
+                .append("status", EntryStatus.loaded.getValue()));
+
+        Thread caller = Thread.currentThread();
+        List<String> onCaller = new ArrayList<>();
+        List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+        AccountLoadScheduler.ResumePoint resume = new AccountLoadScheduler.ResumePoint("resumed", 0, null, 5);
+        AccountLoadScheduler scheduler = new AccountLoadScheduler(List.of(resume), Long.MAX_VALUE);
+        List<AccountLoadScheduler.ResumePoint> deferred = scheduler.run(session, (ws, a, r) -> {
+            if (Thread.currentThread() == caller) {
+                onCaller.add(a.getString("pubkey"));
+            }
+            loaded.add(a.getString("pubkey"));
+            // The resumed account fills another chunk
+            return r;
+        });
+
+        assertEquals("resumed", onCaller.getFirst(), "the calling thread takes the first claim");
+        assertEquals(3, scheduler.getStarted());
+        assertEquals(List.of("high", "low", "resumed"), loaded.stream().sorted().toList());
+        assertEquals(List.of(resume), deferred);
+
+        // Without resume points, the first claim goes to the account with the highest trust ratio:
+        onCaller.clear();
+        new AccountLoadScheduler(List.of(), Long.MAX_VALUE).run(session, (ws, a, r) -> {
+            if (Thread.currentThread() == caller) {
+                onCaller.add(a.getString("pubkey"));
+            }
+            return null;
+        });
+        assertEquals("high", onCaller.getFirst());
+    }
+
+    @Test
+    void accountLoadSchedulerReadsOnWhenOtherNodesClaimTheAccountsReadAhead() throws Exception {
+        prepareLoadingCollections();
+        // More accounts than one read ahead takes, all of which another node claims first:
+        for (int i = 0; i < AccountLoadScheduler.PARALLELISM * 4; i++) {
+            seed(Collection.ACCOUNTS.toString(), new Document("pubkey", "raced" + i).append("ratio", 0.5d)
+                    .append("status", EntryStatus.toLoad.getValue()));
+        }
+        seed(Collection.ACCOUNTS.toString(), new Document("pubkey", "free").append("ratio", 0.1d)
+                .append("status", EntryStatus.toLoad.getValue()));
+
+        List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+        try (MockedStatic<TaskLease> lease = mockStatic(TaskLease.class, CALLS_REAL_METHODS)) {
+            lease.when(() -> TaskLease.claimAccount(any(), argThat(a -> a.getString("pubkey").startsWith("raced")))).thenReturn(false);
+
+            new AccountLoadScheduler(List.of(), Long.MAX_VALUE).run(session, (ws, a, r) -> {
+                loaded.add(a.getString("pubkey"));
+                return null;
+            });
+        }
+
+        assertEquals(List.of("free"), loaded);
+    }
+
+    /**
+     * Three test suite nanopubs, as served for an account by the mocked peer.
+     */
+    private static List<Nanopub> peerNanopubs() throws Exception {
+        List<Nanopub> nanopubs = new ArrayList<>();
+        for (String ac : List.of("RArZHDDWzq3MYkBQ5FyWrhJJnfVYuE6Y9BmipJQVLLjNY",
+                "RAR7wdfw9trX-4V5LnHGuXPXrNGTn4qFZKGs3MO_cwIHw", "RATq2i1SMq-Ci6-1MAFALTELRRSL7xAsI4iQOC3cgMldE")) {
+            nanopubs.add(new NanopubImpl(NanopubTestSuite.getLatest().getByArtifactCode(ac).getFirst().toFile()));
+        }
+        return nanopubs;
+    }
+
+    /**
+     * Makes the peer serve the given list after the last of the requested checksums it knows, or
+     * from the start if it knows none of them, and records the requested checksums.
+     */
+    private static void mockPeerList(MockedStatic<NanopubLoader> loader, List<Nanopub> nanopubs, List<String> requestedChecksums) {
+        List<String> prefixChecksums = new ArrayList<>(List.of(NanopubUtils.INIT_CHECKSUM));
+        for (Nanopub np : nanopubs) {
+            prefixChecksums.add(NanopubUtils.updateXorChecksum(np.getUri(), prefixChecksums.getLast()));
+        }
+        loader.when(() -> NanopubLoader.retrieveNanopubsFromPeers(anyString(), anyString(), any(), any())).thenAnswer(inv -> {
+            String afterChecksums = inv.getArgument(2);
+            requestedChecksums.add(afterChecksums);
+            int start = 0;
+            if (afterChecksums != null) {
+                List<String> after = List.of(afterChecksums.split(","));
+                for (int i = 0; i < prefixChecksums.size(); i++) {
+                    if (after.contains(prefixChecksums.get(i))) {
+                        start = i;
+                    }
+                }
+            }
+            Consumer<ListRangeDownloader.Range> onStart = inv.getArgument(3);
+            onStart.accept(new ListRangeDownloader.Range(start, nanopubs.size() - 1, nanopubs.size(),
+                    prefixChecksums.get(start), prefixChecksums.getLast()));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Nanopub np : nanopubs.subList(start, nanopubs.size())) {
+                IoUtils.writeFrameAsDelimited(JellyUtils.writeNanopubForDB(np), out);
+            }
+            return NanopubStream.fromByteStream(new ByteArrayInputStream(out.toByteArray())).getAsNanopubs();
+        });
+    }
+
+    @Test
+    void loadFullLoadsALargeAccountInResumableChunks() throws Exception {
+        prepareLoadingCollections();
+        setStatus(ServerStatus.ready);
+        fakeEnv.addVariable("REGISTRY_LOAD_CHUNK_SIZE", "2").build();
+        seed(Collection.ACCOUNTS.toString(), new Document("agent", "A").append("pubkey", "P")
+                .append("status", EntryStatus.toLoad.getValue()));
+        List<Nanopub> nanopubs = peerNanopubs();
+        String checksumAfterTwo = NanopubUtils.updateXorChecksum(nanopubs.get(1).getUri(),
+                NanopubUtils.updateXorChecksum(nanopubs.get(0).getUri(), NanopubUtils.INIT_CHECKSUM));
+
+        List<String> requestedChecksums = new ArrayList<>();
+        try (MockedStatic<NanopubLoader> loader = mockStatic(NanopubLoader.class, CALLS_REAL_METHODS)) {
+            mockPeerList(loader, nanopubs, requestedChecksums);
+
+            Task.runTask(Task.LOAD_FULL, Task.LOAD_FULL.asDocument());
+
+            // The chunk of two is done; the account is continued by the next run:
+            assertEquals(EntryStatus.toLoad.getValue(),
+                    one(Collection.ACCOUNTS.toString(), new Document("agent", "A")).getString("status"));
+            Document next = queuedTask(Task.LOAD_FULL);
+            Document resume = next.getList("resume", Document.class).getFirst();
+            assertEquals("P", resume.getString("pubkey"));
+            assertEquals(2L, resume.getLong("position"));
+            assertEquals(checksumAfterTwo, resume.getString("resumeChecksum"));
+
+            Task.runTask(Task.LOAD_FULL, next);
+
+            assertTrue(requestedChecksums.get(1).startsWith(checksumAfterTwo), "the second run resumes after the first chunk");
+            assertEquals(EntryStatus.loaded.getValue(),
+                    one(Collection.ACCOUNTS.toString(), new Document("agent", "A")).getString("status"));
+            assertNull(queuedTask(Task.LOAD_FULL).get("resume"));
+        }
+    }
+
+    @Test
+    void loadFullResumesADivergentAccountFromThePeerRangeStart() throws Exception {
+        prepareLoadingCollections();
+        setStatus(ServerStatus.ready);
+        fakeEnv.addVariable("REGISTRY_LOAD_CHUNK_SIZE", "2").build();
+        seed(Collection.ACCOUNTS.toString(), new Document("agent", "A").append("pubkey", "P")
+                .append("status", EntryStatus.toLoad.getValue()));
+        // A local entry the peer does not have, so that none of the local checksums match:
+        seed("listEntries", new Document("pubkey", "P").append("type", "$").append("position", 0L)
+                .append("np", "X").append("checksum", "localOnly").append("invalidated", false));
+        List<Nanopub> nanopubs = peerNanopubs();
+        String checksumAfterTwo = NanopubUtils.updateXorChecksum(nanopubs.get(1).getUri(),
+                NanopubUtils.updateXorChecksum(nanopubs.get(0).getUri(), NanopubUtils.INIT_CHECKSUM));
+
+        List<String> requestedChecksums = new ArrayList<>();
+        try (MockedStatic<NanopubLoader> loader = mockStatic(NanopubLoader.class, CALLS_REAL_METHODS)) {
+            mockPeerList(loader, nanopubs, requestedChecksums);
+
+            Task.runTask(Task.LOAD_FULL, Task.LOAD_FULL.asDocument());
+
+            // The peer served its list from the start, so the chunk resumes from its checksum there:
+            Document next = queuedTask(Task.LOAD_FULL);
+            Document resume = next.getList("resume", Document.class).getFirst();
+            assertEquals(2L, resume.getLong("position"));
+            assertEquals(checksumAfterTwo, resume.getString("resumeChecksum"));
+
+            Task.runTask(Task.LOAD_FULL, next);
+
+            assertEquals(2, requestedChecksums.size());
+            assertTrue(requestedChecksums.get(1).startsWith(checksumAfterTwo), "the second run resumes after the first chunk");
+            assertEquals(EntryStatus.loaded.getValue(),
+                    one(Collection.ACCOUNTS.toString(), new Document("agent", "A")).getString("status"));
+            assertNull(queuedTask(Task.LOAD_FULL).get("resume"));
+        }
+    }
+
 }
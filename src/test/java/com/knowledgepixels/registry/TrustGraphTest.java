@@ -0,0 +1,175 @@
+package com.knowledgepixels.registry;
+
+import com.knowledgepixels.registry.db.IndexInitializer;
+import com.knowledgepixels.registry.utils.FakeEnv;
+import com.knowledgepixels.registry.utils.TestUtils;
+import com.mongodb.client.ClientSession;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests for {@link TrustGraph}: the trust cycle computed in memory must leave the
+ * {@code *_loading} collections exactly as the per-document loops of the tasks do.
+ */
+@Testcontainers
+class TrustGraphTest {
+
+    @Container
+    private static final MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:7.0.0");
+
+    private static final String SETTING_ID = "RAsettingArtifactCode";
+
+    private static final List<String> LOADING_COLLECTIONS = List.of("accounts_loading", "trustPaths_loading", "agents_loading");
+
+    private FakeEnv fakeEnv;
+    private ClientSession session;
+
+    @BeforeEach
+    void setUp() throws NoSuchFieldException, IllegalAccessException {
+        fakeEnv = TestUtils.setupFakeEnv();
+        TestUtils.setupDBEnv(mongoDBContainer, "nanopubRegistry");
+        TestUtils.clearStaticFields(RegistryDB.class, "mongoClient", "mongoDB");
+        RegistryDB.init();
+        TestUtils.clearStaticFields(Task.class, new HashMap<>() {{
+            put("tasksCollection", collection(Collection.TASKS.toString()));
+        }});
+        TaskQueue.clear();
+        session = RegistryDB.getClient().startSession();
+        RegistryDB.setValue(session, Collection.SETTING.toString(), "current", SETTING_ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        session.close();
+        RegistryDB.getDB().drop();
+        RegistryDB.getClient().close();
+        fakeEnv.reset();
+    }
+
+    private void seedTrustEdge(String from, String to, String source, boolean invalidated) {
+        String[] f = from.split("\\|");
+        String[] t = to.split("\\|");
+        collection("trustEdges").insertOne(session, new Document("fromAgent", f[0]).append("fromPubkey", f[1])
+                .append("toAgent", t[0]).append("toPubkey", t[1])
+                .append("source", source).append("invalidated", invalidated));
+    }
+
+    /**
+     * A small trust network with multi-key agents, a shared pubkey, a duplicate edge, converging
+     * paths and invalidated edges, one of which comes from the setting and so still counts.
+     */
+    private void seedTrustNetwork() {
+        seedTrustEdge("$|$", "A|P1", "RAs1", false);
+        seedTrustEdge("$|$", "A|P2", "RAs1", false);
+        seedTrustEdge("$|$", "B|Q", "RAs1", false);
+        seedTrustEdge("$|$", "B|Q", "RAs2", false);
+        seedTrustEdge("$|$", "C|R", "RAs1", true);
+        seedTrustEdge("$|$", "G|U", SETTING_ID, true);
+        seedTrustEdge("A|P1", "D|S", "RAs3", false);
+        seedTrustEdge("A|P2", "B|Q", "RAs3", false);
+        seedTrustEdge("B|Q", "D|S", "RAs4", false);
+        seedTrustEdge("B|Q", "E|T", "RAs4", false);
+        seedTrustEdge("D|S", "E|T", "RAs5", false);
+        seedTrustEdge("D|S", "F|Q", "RAs5", false);
+        seedTrustEdge("E|T", "A|P1", "RAs6", false);
+        collection(Collection.ACCOUNTS.toString()).insertOne(session, new Document("agent", "D").append("pubkey", "S")
+                .append("status", EntryStatus.loaded.getValue()));
+    }
+
+    /**
+     * Stands in for {@code LOAD_CORE}: every account newly reached at the given depth is visited.
+     */
+    private void visitNewAccounts(int depth) {
+        for (Document p : collection("trustPaths_loading").find(session, new Document("depth", depth))) {
+            Document accountId = new Document("agent", p.getString("agent")).append("pubkey", p.getString("pubkey"));
+            if (collection("accounts_loading").find(session, accountId).first() == null) {
+                collection("accounts_loading").insertOne(session, accountId.append("status", EntryStatus.visited.getValue())
+                        .append("depth", depth).append("name", p.getString("agent") + " " + p.getString("pubkey")));
+            }
+        }
+    }
+
+    /**
+     * Runs the derived steps of a trust-state cycle from a fresh root, and returns the resulting
+     * loading collections, each sorted and without generated ids.
+     */
+    private Map<String, List<Document>> runTrustCycle(boolean inMemory) throws Exception {
+        fakeEnv.addVariable("REGISTRY_ENABLE_TRUST_GRAPH", String.valueOf(inMemory)).build();
+        for (String c : LOADING_COLLECTIONS) {
+            collection(c).drop(session);
+        }
+        IndexInitializer.initLoadingCollections(session);
+        collection("accounts_loading").insertOne(session, new Document("agent", "$").append("pubkey", "$")
+                .append("status", EntryStatus.visited.getValue()).append("depth", 0));
+        collection("trustPaths_loading").insertOne(session, new Document("_id", "$").append("sorthash", "")
+                .append("agent", "$").append("pubkey", "$").append("depth", 0)
+                .append("ratio", 1.0).append("type", "extended"));
+
+        for (int depth = 1; depth <= 4; depth++) {
+            Task.runTask(Task.EXPAND_TRUST_PATHS, Task.EXPAND_TRUST_PATHS.asDocument().append("depth", depth));
+            visitNewAccounts(depth);
+        }
+        Task.runTask(Task.CALCULATE_TRUST_SCORES, Task.CALCULATE_TRUST_SCORES.asDocument());
+        Task.runTask(Task.AGGREGATE_AGENTS, Task.AGGREGATE_AGENTS.asDocument());
+        Task.runTask(Task.ASSIGN_PUBKEYS, Task.ASSIGN_PUBKEYS.asDocument());
+        Task.runTask(Task.DETERMINE_UPDATES, Task.DETERMINE_UPDATES.asDocument());
+
+        Map<String, List<Document>> state = new HashMap<>();
+        for (String c : LOADING_COLLECTIONS) {
+            List<Document> docs = new ArrayList<>();
+            for (Document d : collection(c).find(session)) {
+                if (d.get("_id") instanceof ObjectId) {
+                    d.remove("_id");
+                }
+                docs.add(d);
+            }
+            docs.sort(Comparator.comparing(d -> d.toJson()));
+            state.put(c, docs);
+        }
+        return state;
+    }
+
+    @Test
+    void computesTheSameTrustStateAsThePerDocumentTasks() throws Exception {
+        seedTrustNetwork();
+
+        Map<String, List<Document>> expected = runTrustCycle(false);
+        Map<String, List<Document>> actual = runTrustCycle(true);
+
+        assertFalse(expected.get("agents_loading").isEmpty());
+        for (String c : LOADING_COLLECTIONS) {
+            assertEquals(expected.get(c), actual.get(c), c);
+        }
+    }
+
+    @Test
+    void loadsEachEdgeOnce() {
+        seedTrustNetwork();
+
+        TrustGraph graph = TrustGraph.load(session, List.of(new Document("agent", "$").append("pubkey", "$")));
+        List<Document> paths = graph.extend(graph.getId("$", "$"),
+                new Document("_id", "$").append("ratio", 1.0), 1, SETTING_ID);
+
+        // A with two keys, B once despite two edges, G through the setting's invalidated edge, and not C
+        assertEquals(List.of("$ A|P1", "$ A|P2", "$ B|Q", "$ G|U"), paths.stream().map(p -> p.getString("_id")).sorted().toList());
+        assertEquals(0.15, paths.stream().filter(p -> p.getString("agent").equals("A")).findFirst().get().getDouble("ratio"), 1e-12);
+        assertEquals(0.3, paths.stream().filter(p -> p.getString("agent").equals("B")).findFirst().get().getDouble("ratio"), 1e-12);
+    }
+
+}